@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+
+/**
+ * Measures how fast frames of 10,000 mixed shapes are drawn on a Canvas, one command at
+ * a time with NetDraw.applyCommand(), as FrameRenderer did, and with a BatchRenderer,
+ * with and without putting each batch in style order.  The shapes are like those of a
+ * class drawing together: all the shape tools and short Pen strokes, in the colors of
+ * the Color menu and a few custom colors, with the widths of the Line Width menu.
+ * There are two workloads: "random", where every command has a color and width of its
+ * own, which is the worst case for grouping, and "users", where the commands come from
+ * USERS people drawing at once, each with a color and width that they keep, which is
+ * what a busy board looks like.
+ * <p>Without a display, JavaFX does not render, so what is measured is the time on the
+ * application thread, where the calls to the GraphicsContext are recorded for the
+ * render thread; fewer setters also means less for the render thread to do, but that
+ * is not measured here.  Text is left out, since JavaFX has no fonts without a
+ * display.  The setters called per command and the number of style groups per batch
+ * are reported.
+ * <p>Then the order that StyleSorter gives each batch is checked: the commands are
+ * drawn by a SoftwareRasterizer in their original order and in style order, and the
+ * pictures must be the same, pixel for pixel.
+ * <p>Run with JavaFX on the module path, for example
+ * <pre>
+ *    java --module-path javafx/lib --add-modules javafx.controls BatchRenderBench [shapes] [frames]
+ * </pre>
+ */
+public class BatchRenderBench {
+
+	private final static int WIDTH = 1000, HEIGHT = 600;  // As NetDraw's board.
+	private final static int[] COLORS = { 0xFF000000, 0xFFFF0000, 0xFF008000, 0xFF0000FF, 0xFFFFA500, 0xFF800080, 0xFF808080, 0xFFFFFF00 };
+	private final static int[] WIDTHS = { 1, 2, 3, 4, 5, 7, 10 };
+	private final static int USERS = 16;
+
+	public static void main(String[] args) {
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		System.out.printf("%d commands per frame, best and median of %d frames, batches of %d%n", shapes, frames,
+				BatchRenderer.DEFAULT_BATCH_SIZE);
+		for (int users : new int[] { 0, USERS }) {
+			DrawCommand[] commands = commands(new Random(42), shapes, users);
+			System.out.println();
+			System.out.printf("%-22s %10s %10s %14s %12s %13s%n", users == 0 ? "random" : users + " users", "best ms", "median ms",
+					"commands/s", "setters/cmd", "groups/batch");
+			for (int round = 0; round < 2; round++) {  // The first round warms up the JIT compiler.
+				boolean print = round == 1;
+				measure("applyCommand", commands, frames, null, print);
+				measure("batch", commands, frames, false, print);
+				measure("batch+sort", commands, frames, true, print);
+			}
+			checkOrder(commands);
+		}
+	}
+
+	/**
+	 * Draw the commands on a new canvas for each frame, with applyCommand() if reorder is null, and otherwise with a BatchRenderer.
+	 */
+	private static void measure(String name, DrawCommand[] commands, int frames, Boolean reorder, boolean print) {
+		long[] times = new long[frames];
+		BatchRenderer last = null;
+		for (int f = 0; f < frames; f++) {
+			GraphicsContext g = new Canvas(WIDTH, HEIGHT).getGraphicsContext2D();
+			BatchRenderer batch = null;
+			if (reorder != null) {
+				batch = new BatchRenderer(g);
+				batch.setReorder(reorder);
+			}
+			long start = System.nanoTime();
+			if (batch == null) {
+				for (DrawCommand c : commands)
+					NetDraw.applyCommand(c, g, null);
+			}
+			else {
+				for (DrawCommand c : commands)
+					batch.draw(c, null);
+				batch.flush();
+			}
+			times[f] = System.nanoTime() - start;
+			last = batch;
+		}
+		if (!print)
+			return;
+		Arrays.sort(times);
+		long called = 0;
+		if (last == null)
+			for (DrawCommand c : commands)
+				called += applyCommandSetters(c);
+		else
+			called = last.getSettersCalled();
+		String setters = String.format("%.2f", (double)called / commands.length);
+		String groups = last != null && reorder ? String.format("%.1f", (double)last.getGroups() / last.getBatches()) : "-";
+		System.out.printf("%-22s %10.2f %10.2f %14.0f %12s %13s%n", name, times[0] / 1e6, times[frames / 2] / 1e6,
+				commands.length / (times[0] / 1e9), setters, groups);
+	}
+
+	/**
+	 * Check that drawing each batch in the order of a StyleSorter gives the same picture as the original order.
+	 */
+	private static void checkOrder(DrawCommand[] commands) {
+		SoftwareRasterizer original = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+		SoftwareRasterizer sorted = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+		StyleSorter sorter = new StyleSorter(WIDTH, HEIGHT);
+		DamageTracker bounds = new DamageTracker();
+		int batchSize = BatchRenderer.DEFAULT_BATCH_SIZE;
+		DrawCommand[] batch = new DrawCommand[batchSize];
+		for (int from = 0; from < commands.length; from += batchSize) {
+			int count = Math.min(batchSize, commands.length - from);
+			for (int i = 0; i < count; i++) {
+				DrawCommand c = commands[from + i];
+				bounds.reset();
+				NetDraw.addBounds(c, bounds);
+				double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+				bounds.forEachRegion((x, y, width, height) -> {
+					box[0] = Math.min(box[0], x);
+					box[1] = Math.min(box[1], y);
+					box[2] = Math.max(box[2], x + width);
+					box[3] = Math.max(box[3], y + height);
+				});
+				sorter.add(box[0], box[1], box[2], box[3], BatchRenderer.style(c));
+			}
+			int[] order = sorter.order();
+			for (int i = 0; i < count; i++)
+				batch[i] = commands[from + order[i]];
+			sorter.clear();
+			original.render(Arrays.copyOfRange(commands, from, from + count), count);
+			sorted.render(batch, count);
+		}
+		int differ = 0;
+		int[] a = original.getPixels(), b = sorted.getPixels();
+		for (int i = 0; i < a.length; i++)
+			if (a[i] != b[i])
+				differ++;
+		System.out.printf("style order vs original order: %s (%d pixels differ)%n",
+				differ == 0 ? "same picture" : "DIFFERENT", differ);
+	}
+
+	/**
+	 * Returns the number of setters that applyCommand() calls for a command: the stroke, line width and fill for a
+	 * shape, the stroke again for the outline of a filled shape, and the stroke, line width, and the line join and
+	 * cap twice for a polyline.
+	 */
+	private static int applyCommandSetters(DrawCommand c) {
+		if (c.op == DrawCommand.POLYLINE)
+			return 6;
+		if (c.op == DrawCommand.LINE)
+			return 2;
+		return c.op >= DrawCommand.FILLED_RECT && c.lineWidth > 0 ? 4 : 3;
+	}
+
+	/**
+	 * Returns random shapes and short Pen strokes, in the tools' colors and widths.  If users is 0, each command has a
+	 * random color and width; otherwise each comes from one of that many users, who each keep one color and width.
+	 */
+	private static DrawCommand[] commands(Random random, int count, int users) {
+		DrawCommand[] commands = new DrawCommand[count];
+		for (int i = 0; i < count; i++) {
+			DrawCommand c = new DrawCommand();
+			double x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+			int user = users == 0 ? -1 : random.nextInt(users);
+			int color = COLORS[user < 0 ? random.nextInt(COLORS.length) : user % COLORS.length];
+			int width = WIDTHS[user < 0 ? random.nextInt(WIDTHS.length) : user % WIDTHS.length];
+			if (random.nextInt(4) == 0) {
+				c.setPolyline(color, width);
+				for (int p = 0; p < 8; p++)
+					c.addPoint(x + 3 * p, y + 5 * Math.sin(p / 2.0));
+			}
+			else {
+				int op = DrawCommand.LINE + random.nextInt(7);  // LINE to FILLED_ROUNDRECT.
+				c.setShape(op, x, y, x + 5 + random.nextInt(60), y + 5 + random.nextInt(60), color, width);
+			}
+			commands[i] = c;
+		}
+		return commands;
+	}
+
+}
@@ -0,0 +1,114 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the outbound pipeline -- SendQueue, CommandSender, DrawConnection --
+ * over a loopback socket, for several batch sizes.  Each command is a text command
+ * whose string is the System.nanoTime() at which it was queued, and a local server
+ * thread, which accepts the binary format, reads the stream and records the delay
+ * until the command arrives.  The batch size is set by giving the connection a
+ * maximum batch size in bytes equal to that many commands.
+ * <p>Two runs are made for each batch size.  For throughput, a producer pushes
+ * commands into the queue as fast as it can (using the BLOCK policy, so no command
+ * is lost).  For latency, the producer sends bursts of BURST commands, one burst
+ * every BURST_INTERVAL microseconds, which is what rapid stamping looks like,
+ * and the p99 of the delivery delay is reported.
+ * <p>Usage:  java BatchWriterBench [commandsPerRun]
+ */
+public class BatchWriterBench {
+
+	private final static int[] BATCH_SIZES = { 1, 8, 64, 512 };
+	private final static int BURST = 32;
+	private final static int BURST_INTERVAL = 500;
+	private final static int FRAME_LENGTH = BinaryCodec.frameLength(command(new DrawCommand(), 0));
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		System.out.println("batch   saturated cmd/s   writes   bursty p50(us)   bursty p99(us)");
+		for (int batchSize : BATCH_SIZES) {
+			run(batchSize, count / 4, 0);  // warm up
+			long[] saturated = run(batchSize, count, 0);
+			long[] bursty = run(batchSize, count / 4, BURST);
+			System.out.printf("%5d   %15d   %6d   %14.1f   %14.1f%n", batchSize, saturated[0], saturated[3],
+					bursty[1] / 1000.0, bursty[2] / 1000.0);
+		}
+	}
+
+	/**
+	 * Send count commands through a new pipeline, either as fast as possible (burst == 0)
+	 * or in bursts.  Returns commands/sec, p50 and p99 latency in nanoseconds, and the
+	 * number of writes.
+	 */
+	private static long[] run(int batchSize, int count, int burst) throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		long[] latencies = new long[count];
+		Thread reader = new Thread(() -> receive(server, latencies));
+		reader.start();
+		DrawConnection connection = new DrawConnection("localhost", server.getLocalPort(),
+				batchSize * FRAME_LENGTH, DrawConnection.DEFAULT_BATCH_DELAY);
+		SendQueue queue = new SendQueue(1024, SendQueue.Overflow.BLOCK);
+		CommandSender sender = new CommandSender(queue, connection);
+		sender.start();
+		DrawCommand command = new DrawCommand();
+		long start = System.nanoTime();
+		long nextBurst = start;
+		for (int i = 0; i < count; i++) {
+			if (burst > 0 && i % burst == 0) {
+				nextBurst += BURST_INTERVAL * 1000L;
+				while (System.nanoTime() < nextBurst)
+					LockSupport.parkNanos(20_000);
+			}
+			queue.offer(command(command, System.nanoTime()));
+		}
+		reader.join();
+		long elapsed = System.nanoTime() - start;
+		sender.interrupt();
+		server.close();
+		Arrays.sort(latencies);
+		return new long[] { (long)(count / (elapsed / 1e9)), latencies[count / 2],
+				latencies[(int)(count * 0.99)], connection.getFlushes() };
+	}
+
+	/**
+	 * A command that is the same length for any timestamp, so that all commands have FRAME_LENGTH bytes.
+	 */
+	private static DrawCommand command(DrawCommand c, long timestamp) {
+		return c.setText(40, 100, 24, 0xFF000000, String.format("%019d", timestamp));
+	}
+
+	/**
+	 * Accept one connection, answer the handshake, and read latencies.length commands.
+	 */
+	private static void receive(ServerSocket server, long[] latencies) {
+		try (Socket socket = server.accept()) {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			String offer = DrawConnection.readLine(in);
+			out.write((Handshake.reply(offer, Handshake.BINARY) + "\n").getBytes());
+			out.flush();
+			ByteBuffer buffer = ByteBuffer.allocate(FRAME_LENGTH * 1024);
+			DrawCommand c = new DrawCommand();
+			int received = 0;
+			while (received < latencies.length) {
+				int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (n < 0)
+					break;
+				buffer.position(buffer.position() + n);
+				long now = System.nanoTime();
+				buffer.flip();
+				while (BinaryCodec.decode(buffer, c))
+					latencies[received++] = now - Long.parseLong(c.text);
+				buffer.compact();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the results of a JMH run with those of an earlier one, both written with
+ * JMH's "-rf json" option, so that a release script can stop on a regression.  Prints
+ * the change in each score, and exits with status 1 if any benchmark has become slower
+ * by more than the threshold and by more than the errors of the two scores.  The scores
+ * must be times, as those of the benchmarks package are.
+ * <p>Usage:  java BenchCompare baseline.json current.json [threshold percent, default 10]
+ */
+public class BenchCompare {
+
+	private final static Pattern ENTRY = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"(.*?)\"primaryMetric\"\\s*:"
+			+ "\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE+]+)\\s*,\\s*\"scoreError\"\\s*:\\s*\"?([-0-9.eE+]+|NaN)", Pattern.DOTALL);
+	private final static Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+	private final static Pattern PARAM = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage:  java BenchCompare baseline.json current.json [threshold percent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		Map<String,double[]> before = readScores(args[0]);
+		Map<String,double[]> now = readScores(args[1]);
+		boolean ok = true;
+		System.out.printf("%-56s %14s %14s %9s%n", "compared with " + args[0], "before", "now", "change");
+		for (Map.Entry<String,double[]> e : now.entrySet()) {
+			double[] old = before.get(e.getKey());
+			if (old == null)
+				continue;
+			double score = e.getValue()[0], error = e.getValue()[1];
+			double change = 100 * (score - old[0]) / old[0];
+			boolean regression = change > threshold && score - error > old[0] + old[1];
+			if (regression)
+				ok = false;
+			System.out.printf(Locale.ROOT, "%-56s %14.2f %14.2f %+8.1f%%%s%n", e.getKey(), old[0], score, change,
+					regression ? "  REGRESSION" : "");
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Reads the score and error of each benchmark from a JSON file written by JMH.
+	 * @return a map from the benchmark name, followed by its parameters if it has any, to {score, error}.
+	 */
+	private static Map<String,double[]> readScores(String file) throws IOException {
+		String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		Map<String,double[]> scores = new LinkedHashMap<>();
+		Matcher m = ENTRY.matcher(json);
+		while (m.find()) {
+			StringBuilder name = new StringBuilder(m.group(1));
+			Matcher params = PARAMS.matcher(m.group(2));
+			if (params.find()) {
+				Matcher param = PARAM.matcher(params.group(1));
+				while (param.find())
+					name.append(' ').append(param.group(1)).append('=').append(param.group(2));
+			}
+			double error = m.group(4).equals("NaN") ? 0 : Double.parseDouble(m.group(4));
+			scores.put(name.toString(), new double[] { Double.parseDouble(m.group(3)), error });
+		}
+		return scores;
+	}
+
+}
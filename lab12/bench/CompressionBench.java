@@ -0,0 +1,161 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Measures what the "deflate" feature saves and costs, for a session of commands like
+ * those of a class drawing together: the mix of tools, colors and line widths of
+ * WireFormatBench.
+ * <p>First, the commands are compressed on their own, as one stream per connection with
+ * a sync flush after each batch, as DrawConnection and RelayServer do.  For both formats
+ * and several batch sizes and compression levels, the table gives the bytes per command
+ * before and after compression and the processor time per command to compress and to
+ * inflate.  A batch of 1 is someone drawing alone, when every command is flushed by
+ * itself; larger batches happen when many people draw at once.  The size of a board
+ * snapshot, which CommandLog already compresses as a whole, is shown for comparison.
+ * <p>Then the session is sent through a RelayServer on the loopback interface, by a
+ * DrawConnection to a ReceiveEngine, with and without the feature, and the bytes that
+ * each of them put on the network are reported, along with the time per command.
+ * <p>Usage:  java CompressionBench [commands]
+ */
+public class CompressionBench {
+
+	private final static int[] BATCHES = { 1, 16, 256 };
+	private final static int[] LEVELS = { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION };
+	private final static int MAX_IN_FLIGHT = 4096;  // Commands sent but not yet received, in the loopback test.
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+		Random random = new Random(42);
+		List<byte[]> text = new ArrayList<>(), binary = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		CommandLog log = new CommandLog();
+		DrawCommand c = new DrawCommand();
+		for (int i = 0; i < count; i++) {
+			WireFormatBench.randomCommand(random, c);
+			text.add((c.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+			buffer.clear();
+			BinaryCodec.encode(c, buffer);
+			byte[] frame = new byte[buffer.position()];
+			System.arraycopy(buffer.array(), 0, frame, 0, frame.length);
+			binary.add(frame);
+			log.append(frame, 0, frame.length);
+		}
+		System.out.printf("%d commands%n", count);
+		System.out.printf("%-8s %6s %6s %12s %12s %7s %13s %13s%n", "format", "batch", "level", "bytes/cmd", "wire/cmd",
+				"ratio", "deflate ns", "inflate ns");
+		for (int batch : BATCHES)
+			for (int level : LEVELS) {
+				measure("text", text, batch, level);
+				measure("binary", binary, batch, level);
+			}
+		long binaryBytes = 0;
+		for (byte[] frame : binary)
+			binaryBytes += frame.length;
+		System.out.printf("snapshot of the board: %.1f bytes/cmd binary, %.1f compressed by CommandLog%n",
+				(double)binaryBytes / count, (double)log.snapshot(0).length / count);
+		System.out.println();
+		System.out.printf("%-12s %14s %14s %12s%n", "loopback", "sent wire/cmd", "recv wire/cmd", "us/cmd");
+		loopback(binary, false);
+		loopback(binary, true);
+	}
+
+	/**
+	 * Compress the commands in batches with one Deflater and inflate them with one
+	 * Inflater, and print the sizes and the best time out of a few rounds.
+	 */
+	private static void measure(String format, List<byte[]> commands, int batch, int level) throws Exception {
+		long plain = 0, wire = 0;
+		long bestDeflate = Long.MAX_VALUE, bestInflate = Long.MAX_VALUE;
+		byte[] input = new byte[1 << 20];
+		ByteBuffer output = ByteBuffer.allocate(1 << 20);
+		ByteBuffer inflated = ByteBuffer.allocate(1 << 20);
+		for (int round = 0; round < 3; round++) {
+			Deflater deflater = new Deflater(level);
+			List<byte[]> chunks = new ArrayList<>();
+			plain = 0;
+			wire = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < commands.size(); i += batch) {
+				int length = 0;
+				for (int j = i; j < Math.min(commands.size(), i + batch); j++) {
+					byte[] command = commands.get(j);
+					System.arraycopy(command, 0, input, length, command.length);
+					length += command.length;
+				}
+				deflater.setInput(input, 0, length);
+				output.clear();
+				deflater.deflate(output, Deflater.SYNC_FLUSH);
+				byte[] chunk = new byte[output.position()];
+				System.arraycopy(output.array(), 0, chunk, 0, chunk.length);
+				chunks.add(chunk);
+				plain += length;
+				wire += chunk.length;
+			}
+			bestDeflate = Math.min(bestDeflate, System.nanoTime() - start);
+			deflater.end();
+			Inflater inflater = new Inflater();
+			long inflatedBytes = 0;
+			start = System.nanoTime();
+			for (byte[] chunk : chunks) {
+				inflater.setInput(chunk);
+				inflated.clear();
+				while (!inflater.needsInput())
+					inflater.inflate(inflated);
+				inflatedBytes += inflated.position();
+			}
+			bestInflate = Math.min(bestInflate, System.nanoTime() - start);
+			inflater.end();
+			if (inflatedBytes != plain)
+				throw new IllegalStateException("Inflated " + inflatedBytes + " bytes instead of " + plain);
+		}
+		int n = commands.size();
+		System.out.printf("%-8s %6d %6s %12.1f %12.1f %7.2f %13.0f %13.0f%n", format, batch,
+				level == Deflater.BEST_SPEED ? "1" : "6", (double)plain / n, (double)wire / n, (double)plain / wire,
+				(double)bestDeflate / n, (double)bestInflate / n);
+	}
+
+	/**
+	 * Send the commands from a DrawConnection through a relay to a ReceiveEngine, with
+	 * both of them offering the deflate feature or neither.
+	 */
+	private static void loopback(List<byte[]> frames, boolean compression) throws Exception {
+		RelayServer relay = new RelayServer(0, 1);
+		relay.setDaemon(true);
+		relay.start();
+		AtomicLong received = new AtomicLong();
+		ReceiveEngine engine = new ReceiveEngine((command, from) -> received.incrementAndGet());
+		engine.setCompression(compression);
+		engine.start();
+		ReceiveEngine.Peer peer = engine.follow("localhost", relay.getPort());
+		while (peer.getConnects() == 0)
+			Thread.sleep(1);
+		long bytesBefore = peer.getBytesRead();
+		DrawConnection connection = new DrawConnection("localhost", relay.getPort());
+		connection.setCompression(compression);
+		long start = System.nanoTime();
+		for (int sent = 0; sent < frames.size(); sent++) {
+			while (sent - received.get() >= MAX_IN_FLIGHT) {
+				connection.flush();
+				Thread.yield();
+			}
+			if (connection.append(frames.get(sent)))
+				connection.flush();
+		}
+		connection.flush();
+		while (received.get() < frames.size())
+			Thread.yield();
+		double micros = (System.nanoTime() - start) / 1000.0 / frames.size();
+		System.out.printf("%-12s %14.1f %14.1f %12.2f%n", compression ? "deflate" : "plain",
+				(double)connection.getWireBytesSent() / frames.size(), (double)(peer.getBytesRead() - bytesBefore) / frames.size(), micros);
+		connection.close();
+		engine.shutdown();
+		relay.shutdown();
+	}
+
+}
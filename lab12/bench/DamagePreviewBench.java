@@ -0,0 +1,94 @@
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the cost of a drag preview event when the whole overlay is cleared, as
+ * mouseDragged() used to do, with clearing only the regions of the previous preview
+ * recorded by a DamageTracker.  JavaFX cannot run in a headless environment, so the
+ * overlay is simulated with a transparent Java2D image of the same size as NetDraw's
+ * canvas, cleared and drawn in software.  Each simulated drag starts at a random point
+ * and moves the mouse a few pixels per event, drawing a random shape of the kinds that
+ * the tools draw.  Reported are the time per event and the number of pixels cleared.
+ * <p>Usage:  java DamagePreviewBench [width] [height] [events]
+ */
+public class DamagePreviewBench {
+
+	public static void main(String[] args) {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+		int events = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+		BufferedImage overlay = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = overlay.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		for (int round = 0; round < 3; round++) {
+			boolean print = round == 2;
+			run("clear whole overlay", g, width, height, events, false, print);
+			run("clear damage only", g, width, height, events, true, print);
+		}
+	}
+
+	private static void run(String name, Graphics2D g, int width, int height, int events, boolean tracked, boolean print) {
+		Random random = new Random(42);
+		DamageTracker damage = new DamageTracker();
+		double cleared = 0;
+		long start = System.nanoTime();
+		int event = 0;
+		while (event < events) {
+			double startX = random.nextInt(width);
+			double startY = random.nextInt(height);
+			double x = startX, y = startY;
+			int tool = random.nextInt(4);
+			int lineWidth = 1 + random.nextInt(10);
+			for (int step = 0; step < 100 && event < events; step++, event++) {
+				x = Math.max(0, Math.min(width, x + random.nextInt(9) - 2));
+				y = Math.max(0, Math.min(height, y + random.nextInt(9) - 2));
+				g.setComposite(AlphaComposite.Clear);
+				if (tracked) {
+					damage.forEachRegion((rx, ry, rw, rh) -> g.fillRect((int)rx, (int)ry, (int)rw, (int)rh));
+					cleared += damage.getArea();
+					damage.reset();
+					damage.add(startX, startY, x, y, lineWidth + 1);
+				}
+				else {
+					g.fillRect(0, 0, width, height);
+					cleared += (double)width * height;
+				}
+				g.setComposite(AlphaComposite.SrcOver);
+				draw(g, tool, lineWidth, startX, startY, x, y);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (print)
+			System.out.printf("%-20s %8.1f us/event  %10.0f pixels cleared/event%n",
+					name, elapsed / 1e3 / events, cleared / events);
+	}
+
+	private static void draw(Graphics2D g, int tool, int lineWidth, double x1, double y1, double x2, double y2) {
+		g.setColor(Color.RED);
+		g.setStroke(new BasicStroke(lineWidth));
+		int left = (int)Math.min(x1, x2), top = (int)Math.min(y1, y2);
+		int w = (int)Math.abs(x1 - x2), h = (int)Math.abs(y1 - y2);
+		switch (tool) {
+		case 0:
+			g.drawLine((int)x1, (int)y1, (int)x2, (int)y2);
+			break;
+		case 1:
+			g.drawRect(left, top, w, h);
+			break;
+		case 2:
+			g.drawOval(left, top, w, h);
+			break;
+		default:
+			g.fillRoundRect(left, top, w, h, w / 4, h / 4);
+			g.setColor(Color.BLACK);
+			g.drawRoundRect(left, top, w, h, w / 4, h / 4);
+			break;
+		}
+	}
+
+}
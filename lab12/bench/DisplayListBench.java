@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the memory used by a DisplayList holding one million shapes, and checks it
+ * against the budget documented in DisplayList (32 MB per million shapes).  The heap
+ * is measured with Runtime after a garbage collection, before and after the list is
+ * filled, and compared with an ArrayList holding a DrawCommand object per shape.
+ * Replay speed is measured as well.
+ * <p>Usage:  java DisplayListBench [shapes]
+ */
+public class DisplayListBench {
+
+	private final static long BUDGET_PER_MILLION = 32L * 1024 * 1024;
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Random random = new Random(42);
+		DrawCommand c = new DrawCommand();
+
+		long before = usedHeap();
+		DisplayList list = new DisplayList();
+		for (int i = 0; i < count; i++)
+			list.add(randomShape(random, c));
+		long listBytes = usedHeap() - before;
+		long reported = list.getMemoryBytes();
+		list.trimToSize();
+		long trimmedBytes = usedHeap() - before;
+
+		random = new Random(42);
+		long beforeObjects = usedHeap();
+		List<DrawCommand> objects = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			objects.add(randomShape(random, new DrawCommand()));
+		long objectBytes = usedHeap() - beforeObjects;
+
+		double scale = 1_000_000.0 / count;
+		System.out.printf("DisplayList:        %6.1f MB per million shapes (%.1f bytes/shape; getMemoryBytes() %.1f MB)%n",
+				listBytes * scale / 1048576, (double)listBytes / count, reported * scale / 1048576);
+		System.out.printf("  after trimToSize: %6.1f MB per million shapes%n", trimmedBytes * scale / 1048576);
+		System.out.printf("DrawCommand list:   %6.1f MB per million shapes (%.1f bytes/shape)%n",
+				objectBytes * scale / 1048576, (double)objectBytes / count);
+		boolean ok = listBytes * scale <= BUDGET_PER_MILLION;
+		System.out.printf("Budget %d MB per million shapes: %s%n", BUDGET_PER_MILLION / 1048576, ok ? "OK" : "OVER BUDGET");
+
+		long checksum = 0;
+		for (int round = 0; round < 5; round++) {
+			long[] sum = new long[1];
+			long start = System.nanoTime();
+			list.replay(cmd -> sum[0] += (long)cmd.x1 + cmd.op);
+			long elapsed = System.nanoTime() - start;
+			checksum += sum[0];
+			if (round == 4)
+				System.out.printf("Replay: %.1f ms, %.0f commands/sec (checksum %d)%n",
+						elapsed / 1e6, count / (elapsed / 1e9), checksum);
+		}
+		if (objects.size() != count)
+			throw new AssertionError();
+		if (!ok)
+			System.exit(1);
+	}
+
+	private static DrawCommand randomShape(Random random, DrawCommand c) {
+		int op = DrawCommand.LINE + random.nextInt(DrawCommand.FILLED_ROUNDRECT - DrawCommand.LINE + 1);
+		return c.setShape(op, random.nextInt(1000), random.nextInt(600), random.nextInt(1000), random.nextInt(600),
+				0xFF000000 | random.nextInt(0x1000000), random.nextInt(16));
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
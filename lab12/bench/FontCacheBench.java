@@ -0,0 +1,123 @@
+import benchmarks.Workload;
+import benchmarks.Workloads;
+import java.awt.Font;
+import java.awt.geom.Rectangle2D;
+import java.awt.font.FontRenderContext;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The work of the benchmarks of what FontCache saves for text commands, which are run
+ * by JMH as benchmarks.FontCacheBenchmark, and a check of how much better measured
+ * extents are than the estimate that NetDraw.addBounds() used before.  JavaFX cannot
+ * make fonts without a display, so the fonts are the java.awt fonts of
+ * SoftwareRasterizer.TEXT_FONTS; JavaFX font lookup and Text layout cost more, so the
+ * savings in NetDraw are at least as large.
+ * <p>The commands are like those of a class writing on the board: the sizes of NetDraw's
+ * Text Size menu, words and short phrases from a small vocabulary, and one string in
+ * ten that is new.  The benchmarks are, per command:
+ * <pre>
+ *    fontUncached     make the font, as Font.font() in applyCommand() did
+ *    fontCached       get the font from a FontCache
+ *    extentUncached   make the font and measure the string
+ *    extentCached     get the extent from a FontCache
+ * </pre>
+ * main() compares, for the distinct strings, the estimate (a box of the font size per
+ * character, from one size above the baseline to a third of a size below it) with the
+ * visual bounds of the glyphs.  An estimate that misses part of the glyphs leaves parts
+ * of the text out of a damaged region or the spatial index; one that is too big redraws
+ * and indexes more than it needs to.
+ * <p>Usage:  java -Djava.awt.headless=true FontCacheBench
+ */
+public class FontCacheBench implements Workloads {
+
+	private final static double[] SIZES = { 12, 18, 24, 30, 36, 48, 60 };  // As NetDraw's Text Size menu.
+	private final static String[] WORDS = { "Hello World", "x", "y = mx + b", "WWW", "Mm", "Question 1", "Answer:",
+			"Good job!", "OK", "ijl", "Photosynthesis", "The quick brown fox", "42", "Team A", "Team B", "???", "Hg", "pq" };
+	private final static int COMMANDS = 4096;
+
+	private final double[] sizes = new double[COMMANDS];
+	private final String[] texts = new String[COMMANDS];
+
+	public FontCacheBench() {
+		Random random = new Random(42);
+		for (int i = 0; i < COMMANDS; i++) {
+			sizes[i] = SIZES[random.nextInt(SIZES.length)];
+			texts[i] = random.nextInt(10) == 0 ? "note " + random.nextInt(100000) : WORDS[random.nextInt(WORDS.length)];
+		}
+	}
+
+	public static void main(String[] args) {
+		FontCacheBench bench = new FontCacheBench();
+		compareBounds(bench.sizes, bench.texts);
+	}
+
+	public Workload get(String name) {
+		FontCache.Fonts<Font> fonts = SoftwareRasterizer.TEXT_FONTS;
+		FontCache<Font> cache = new FontCache<>(fonts, 32, 4096);
+		int[] next = new int[1];
+		switch (name) {
+		case "fontUncached":
+			return ops -> {
+				long sum = 0;
+				for (int i = 0; i < ops; i++)
+					sum += fonts.create(null, sizes[next[0]++ & (COMMANDS - 1)]).getSize();
+				return sum;
+			};
+		case "fontCached":
+			return ops -> {
+				long sum = 0;
+				for (int i = 0; i < ops; i++)
+					sum += cache.font(null, sizes[next[0]++ & (COMMANDS - 1)]).getSize();
+				return sum;
+			};
+		case "extentUncached":
+			return ops -> {
+				double sum = 0;
+				for (int i = 0; i < ops; i++) {
+					int k = next[0]++ & (COMMANDS - 1);
+					sum += fonts.measure(fonts.create(null, sizes[k]), texts[k]).width;
+				}
+				return (long)sum;
+			};
+		case "extentCached":
+			return ops -> {
+				double sum = 0;
+				for (int i = 0; i < ops; i++) {
+					int k = next[0]++ & (COMMANDS - 1);
+					sum += cache.extent(null, sizes[k], texts[k]).width;
+				}
+				return (long)sum;
+			};
+		default:
+			throw new IllegalArgumentException("No benchmark " + name);
+		}
+	}
+
+	/**
+	 * Compare the old estimate of the bounds of text with the bounds of the glyphs.
+	 */
+	private static void compareBounds(double[] sizes, String[] texts) {
+		FontRenderContext context = new FontRenderContext(null, true, true);
+		Set<String> seen = new HashSet<>();
+		int strings = 0, missed = 0;
+		double estimatedArea = 0, glyphArea = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			if (!seen.add(sizes[i] + " " + texts[i]))
+				continue;
+			double size = sizes[i];
+			String text = texts[i];
+			Rectangle2D glyphs = SoftwareRasterizer.TEXT_FONTS.create(null, size).createGlyphVector(context, text).getVisualBounds();
+			Rectangle2D estimate = new Rectangle2D.Double(0, -size, size * text.length(), size + size / 3);
+			strings++;
+			if (!estimate.contains(glyphs))
+				missed++;
+			estimatedArea += estimate.getWidth() * estimate.getHeight();
+			glyphArea += glyphs.getWidth() * glyphs.getHeight();
+		}
+		System.out.printf("%d distinct strings: the estimate misses part of the glyphs of %d (%.1f%%),"
+				+ " and covers %.1f times their area%n", strings, missed, 100.0 * missed / strings, estimatedArea / glyphArea);
+	}
+
+}
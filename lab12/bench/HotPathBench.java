@@ -0,0 +1,261 @@
+import benchmarks.Workload;
+import benchmarks.Workloads;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The work of the microbenchmarks for the hot paths of drawing and of the protocol, which
+ * are run by JMH as benchmarks.HotPathBenchmark:
+ * <ul>
+ * <li>draw.TOOL: drawing one command of each tool.  JavaFX cannot run without a
+ *     display, so the GraphicsContext calls of NetDraw.drawShape() cannot be measured
+ *     here; the commands are drawn with SoftwareRasterizer, in batches as RasterSurface
+ *     draws them, on a board of NetDraw's size.
+ * <li>build*: building the outgoing command for a finished shape or Pen stroke, as
+ *     mouseReleased() and finishPenStroke() do, in text and binary form.
+ * <li>parse*: decoding a received command with CommandParser and BinaryCodec, which
+ *     is the work that NetReader's ReceiveEngine does for each command.
+ * <li>loopback: one command sent with a DrawConnection through a RelayServer on the
+ *     loopback interface, received by a ReceiveEngine, passed through a RenderQueue,
+ *     and drawn by a SoftwareRasterizer on another thread.  With many commands in
+ *     flight, the time per command is the inverse of the throughput.
+ * </ul>
+ */
+public class HotPathBench implements Workloads {
+
+	private final static int WIDTH = 1000, HEIGHT = 600;  // As NetDraw's board.
+	private final static int COMMANDS = 1024;             // Number of different commands used by each benchmark.
+	private final static int MAX_IN_FLIGHT = 4096;        // Commands sent but not yet drawn, in the loopback benchmark.
+	private final static String[] TOOLS = { "Rectangle", "Oval", "RoundRect", "Filled Rectangle", "Filled Oval",
+			"Filled RoundRect", "Line", "Pen", "Text", "Stamp" };
+	private final static int[] COLORS = { 0xFF000000, 0xFFFF0000, 0xFF008000, 0xFF0000FF, 0x80FF00FF };
+
+	private final Random random = new Random(42);
+	private final SoftwareRasterizer.Bitmap stamp = new SoftwareRasterizer.Bitmap(32, 32, new int[32 * 32]);
+
+	public HotPathBench() {
+		Arrays.fill(stamp.pixels, 0xFF2080C0);
+	}
+
+	/**
+	 * Returns the work of a benchmark.  The draw benchmarks are named "draw." followed by
+	 * the name of the tool without spaces.
+	 */
+	public Workload get(String name) throws Exception {
+		for (String tool : TOOLS)
+			if (name.equals("draw." + tool.replace(" ", "")))
+				return draw(commands(random, tool));
+		switch (name) {
+		case "buildShapeText": return buildShapeText();
+		case "buildShapeBinary": return buildShapeBinary();
+		case "buildPenText": return buildPenText();
+		case "parseText": return parse(false);
+		case "parseBinary": return parse(true);
+		case "loopback": return loopback();
+		default: throw new IllegalArgumentException("No benchmark " + name);
+		}
+	}
+
+	/**
+	 * Returns COMMANDS random commands made with a tool, the size of shapes that people draw.
+	 */
+	private static DrawCommand[] commands(Random random, String tool) {
+		DrawCommand[] list = new DrawCommand[COMMANDS];
+		for (int i = 0; i < COMMANDS; i++) {
+			DrawCommand c = new DrawCommand();
+			int color = COLORS[random.nextInt(COLORS.length)];
+			double x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+			switch (tool) {
+			case "Text":
+				c.setText(x, y, 24, color, "Hello World");
+				break;
+			case "Stamp":
+				c.setStamp(x, y, "tux.png");
+				break;
+			case "Pen":
+				c.setPolyline(color, 3);
+				for (int p = 0; p < 30; p++)
+					c.addPoint(x + 4 * p, y + 10 * Math.sin(p / 3.0));
+				break;
+			default:
+				c.setShape(DrawCommand.opcodeForTool(tool), x, y, x + random.nextInt(200) - 100, y + random.nextInt(200) - 100,
+						color, 1 + random.nextInt(5));
+				break;
+			}
+			list[i] = c;
+		}
+		return list;
+	}
+
+	/**
+	 * Drawing commands in batches of ops, from a list of COMMANDS.
+	 */
+	private Workload draw(DrawCommand[] list) {
+		SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+		rasterizer.setImageSource(name -> stamp);
+		DrawCommand[] batch = new DrawCommand[COMMANDS];
+		int[] next = new int[1];
+		return ops -> {
+			for (int i = 0; i < ops; i++)
+				batch[i] = list[next[0]++ & (COMMANDS - 1)];
+			rasterizer.render(batch, ops);
+			return next[0];
+		};
+	}
+
+	/**
+	 * Returns 4 * COMMANDS coordinates on the board, as x1, y1, x2, y2 of COMMANDS shapes.
+	 */
+	private double[] coordinates() {
+		double[] coordinates = new double[4 * COMMANDS];
+		for (int i = 0; i < coordinates.length; i++)
+			coordinates[i] = random.nextInt(i % 2 == 0 ? WIDTH : HEIGHT);
+		return coordinates;
+	}
+
+	private Workload buildShapeText() {
+		double[] coordinates = coordinates();
+		DrawCommand outgoing = new DrawCommand();
+		int[] next = new int[1];
+		return ops -> {
+			long length = 0;
+			for (int i = 0; i < ops; i++) {
+				int k = 4 * (next[0]++ & (COMMANDS - 1));
+				outgoing.setShape(DrawCommand.RECT, coordinates[k], coordinates[k+1], coordinates[k+2], coordinates[k+3], 0xFF0000FF, 3);
+				length += outgoing.toText().length();
+			}
+			return length;
+		};
+	}
+
+	private Workload buildShapeBinary() {
+		double[] coordinates = coordinates();
+		DrawCommand outgoing = new DrawCommand();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		int[] next = new int[1];
+		return ops -> {
+			for (int i = 0; i < ops; i++) {
+				int k = 4 * (next[0]++ & (COMMANDS - 1));
+				outgoing.setShape(DrawCommand.RECT, coordinates[k], coordinates[k+1], coordinates[k+2], coordinates[k+3], 0xFF0000FF, 3);
+				buffer.clear();
+				BinaryCodec.encode(outgoing, buffer);
+			}
+			return buffer.position();
+		};
+	}
+
+	private Workload buildPenText() {
+		DrawCommand[] strokes = commands(random, "Pen");
+		DrawCommand outgoing = new DrawCommand();
+		int[] next = new int[1];
+		return ops -> {
+			long length = 0;
+			for (int i = 0; i < ops; i++) {
+				DrawCommand stroke = strokes[next[0]++ & (COMMANDS - 1)];
+				outgoing.setPolyline(stroke.color, stroke.lineWidth);
+				for (int p = 0; p < stroke.pointCount; p++)
+					outgoing.addPoint(stroke.points[2*p], stroke.points[2*p+1]);
+				length += outgoing.toText().length();
+			}
+			return length;
+		};
+	}
+
+	/**
+	 * Decoding commands of all the tools, from text or binary.
+	 */
+	private Workload parse(boolean binary) {
+		ByteBuffer received = ByteBuffer.allocate(1 << 20);
+		for (int i = 0; i < COMMANDS; i++) {
+			DrawCommand c = commands(random, TOOLS[random.nextInt(TOOLS.length)])[0];
+			if (binary)
+				BinaryCodec.encode(c, received);
+			else
+				received.put((c.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		received.flip();
+		CommandParser parser = new CommandParser(StampRegistry.builtInNames());
+		DrawCommand c = new DrawCommand();
+		return ops -> {
+			long ok = 0;
+			for (int i = 0; i < ops; i++) {
+				if (!received.hasRemaining())
+					received.rewind();
+				if (binary ? BinaryCodec.decode(received, c) : parser.next(received, c))
+					ok++;
+			}
+			return ok;
+		};
+	}
+
+	/**
+	 * Set up the relay, the sender, the receiver and the drawing thread for the loopback
+	 * benchmark.  Each operation sends a command, first waiting while MAX_IN_FLIGHT are
+	 * not yet drawn; finish() waits until all of them are drawn.
+	 */
+	private Workload loopback() throws Exception {
+		DrawCommand[] shapes = new DrawCommand[COMMANDS];
+		for (int i = 0; i < COMMANDS; i++)
+			shapes[i] = commands(random, TOOLS[random.nextInt(TOOLS.length - 2)])[0];  // Shapes and strokes only.
+		RelayServer relay = new RelayServer(0);
+		relay.setDaemon(true);
+		relay.start();
+		RenderQueue queue = new RenderQueue(16384);
+		ReceiveEngine engine = new ReceiveEngine((c, from) -> queue.offer(c), StampRegistry.builtInNames());
+		engine.setDaemon(true);
+		engine.start();
+		ReceiveEngine.Peer peer = engine.follow("localhost", relay.getPort());
+		while (peer.getConnects() == 0)
+			Thread.sleep(1);
+		AtomicLong drawn = new AtomicLong();
+		Thread drawer = new Thread(() -> {
+			SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+			rasterizer.setImageSource(name -> stamp);
+			DrawCommand[] batch = new DrawCommand[500];
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = new DrawCommand();
+			while (true) {
+				int count = 0;
+				DrawCommand c;
+				while (count < batch.length && (c = queue.peek()) != null) {
+					batch[count++].copyFrom(c);
+					queue.remove();
+				}
+				if (count == 0) {
+					Thread.yield();
+					continue;
+				}
+				rasterizer.render(batch, count);
+				drawn.addAndGet(count);
+			}
+		});
+		drawer.setDaemon(true);
+		drawer.start();
+		DrawConnection connection = new DrawConnection("localhost", relay.getPort());
+		long[] sent = new long[1];
+		return new Workload() {
+			public long run(int ops) throws Exception {
+				for (int i = 0; i < ops; i++) {
+					while (sent[0] - drawn.get() >= MAX_IN_FLIGHT) {
+						connection.flush();
+						Thread.yield();
+					}
+					if (connection.append(shapes[(int)(sent[0] & (COMMANDS - 1))]))
+						connection.flush();
+					sent[0]++;
+				}
+				return sent[0];
+			}
+			public void finish() throws Exception {
+				connection.flush();
+				while (drawn.get() < sent[0])
+					Thread.yield();
+			}
+		};
+	}
+
+}
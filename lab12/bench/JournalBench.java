@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures CommandJournal: the append rate under each sync policy, and the time to
+ * reopen a journal of ten million random commands and replay all of it.  Then a
+ * checkpoint is saved, which should delete all but the active segment, and the
+ * replay from the checkpoint is timed.  The journal is written in a temporary
+ * directory, which is deleted at the end.
+ * <p>Usage:  java JournalBench [commands] [directory]
+ */
+public class JournalBench {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		Path base = args.length > 1 ? Path.of(args[1]) : Path.of(System.getProperty("java.io.tmpdir"));
+		Path directory = Files.createTempDirectory(base, "journal");
+		try {
+			for (CommandJournal.SyncPolicy policy : CommandJournal.SyncPolicy.values()) {
+				int n = policy == CommandJournal.SyncPolicy.ALWAYS ? 5_000 : 200_000;
+				Path dir = directory.resolve(policy.toString());
+				CommandJournal journal = new CommandJournal(dir, policy, CommandJournal.DEFAULT_SEGMENT_SIZE, 100);
+				long start = System.nanoTime();
+				append(journal, new Random(1), n);
+				journal.close();
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("append, sync %-8s %10.0f commands/sec%n", policy, n / (elapsed / 1e9));
+				delete(dir);
+			}
+
+			Path dir = directory.resolve("replay");
+			CommandJournal journal = new CommandJournal(dir, CommandJournal.SyncPolicy.INTERVAL);
+			long start = System.nanoTime();
+			append(journal, new Random(42), count);
+			journal.close();
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("wrote %d commands in %.2f s, %d segments%n", count, elapsed / 1e9, journal.getSegmentCount());
+
+			for (int round = 0; round < 2; round++) {
+				start = System.nanoTime();
+				journal = new CommandJournal(dir, CommandJournal.SyncPolicy.INTERVAL);
+				long[] checksum = new long[1];
+				long replayed = journal.replay(0, c -> checksum[0] += c.op);
+				elapsed = System.nanoTime() - start;
+				System.out.printf("reopen and replay %d commands: %.2f s, %.0f commands/sec (checksum %d)%n",
+						replayed, elapsed / 1e9, replayed / (elapsed / 1e9), checksum[0]);
+				if (round == 0)
+					journal.close();
+			}
+
+			append(journal, new Random(7), 1000);
+			start = System.nanoTime();
+			journal.checkpoint(1000, 600, new int[1000 * 600]);
+			elapsed = System.nanoTime() - start;
+			System.out.printf("checkpoint and compaction: %.1f ms, %d segment(s) left%n", elapsed / 1e6, journal.getSegmentCount());
+			append(journal, new Random(8), 5000);
+			journal.close();
+			journal = new CommandJournal(dir, CommandJournal.SyncPolicy.INTERVAL);
+			start = System.nanoTime();
+			CommandJournal.Checkpoint checkpoint = journal.readCheckpoint();
+			long replayed = journal.replay(checkpoint.sequence, c -> { });
+			elapsed = System.nanoTime() - start;
+			System.out.printf("restore from checkpoint at %d: %d commands replayed in %.1f ms%n",
+					checkpoint.sequence, replayed, elapsed / 1e6);
+			journal.close();
+		}
+		finally {
+			delete(directory);
+		}
+	}
+
+	private static void append(CommandJournal journal, Random random, int count) throws IOException {
+		DrawCommand c = new DrawCommand();
+		for (int i = 0; i < count; i++) {
+			WireFormatBench.randomCommand(random, c);
+			journal.append(c);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+}
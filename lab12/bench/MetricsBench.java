@@ -0,0 +1,80 @@
+import benchmarks.Workload;
+import benchmarks.Workloads;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * The work of the benchmarks of what DrawMetrics costs on the hot paths, which are run
+ * by JMH as benchmarks.MetricsBenchmark: passing commands through a RenderQueue, and
+ * parsing received commands as ReceiveEngine does, each with metrics off and on, and
+ * recording one value in a LatencyHistogram.  With metrics off, the scores should be
+ * the same as without any metrics code.
+ */
+public class MetricsBench implements Workloads {
+
+	private final static int COMMANDS = 1024;
+
+	private final DrawCommand[] commands = new DrawCommand[COMMANDS];
+	private final ByteBuffer text = ByteBuffer.allocate(1 << 20);
+
+	public MetricsBench() {
+		Random random = new Random(42);
+		for (int i = 0; i < COMMANDS; i++) {
+			DrawCommand c = new DrawCommand();
+			double x = random.nextInt(1000), y = random.nextInt(600);
+			c.setShape(DrawCommand.RECT, x, y, x + random.nextInt(200), y + random.nextInt(200), 0xFF0000FF, 3);
+			commands[i] = c;
+			text.put((c.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		text.flip();
+	}
+
+	/**
+	 * Returns the work of a benchmark.  The names of the queue and parse benchmarks end in
+	 * ".on" or ".off", which says whether metrics are enabled.
+	 */
+	public Workload get(String name) {
+		DrawMetrics.setEnabled(name.endsWith(".on"));
+		int[] next = new int[1];
+		switch (name.replaceFirst("\\.(on|off)$", "")) {
+		case "queue":
+			RenderQueue queue = new RenderQueue(COMMANDS);
+			return ops -> {
+				for (int i = 0; i < ops; i++) {
+					queue.offer(commands[next[0]++ & (COMMANDS - 1)]);
+					DrawMetrics.RENDER.recordSince(queue.peekTime());
+					queue.remove();
+				}
+				return next[0];
+			};
+		case "parse":
+			CommandParser parser = new CommandParser(StampRegistry.builtInNames());
+			DrawCommand c = new DrawCommand();
+			return ops -> {
+				long ok = 0;
+				long start = DrawMetrics.now();
+				for (int i = 0; i < ops; i++) {
+					if (!text.hasRemaining())
+						text.rewind();
+					if (parser.next(text, c)) {
+						DrawMetrics.PARSE.recordSince(start);
+						ok++;
+						start = DrawMetrics.now();
+					}
+				}
+				return ok;
+			};
+		case "histogramRecord":
+			LatencyHistogram histogram = new LatencyHistogram();
+			return ops -> {
+				for (int i = 0; i < ops; i++)
+					histogram.record(next[0]++ & 0xFFFFF);
+				return next[0];
+			};
+		default:
+			throw new IllegalArgumentException("No benchmark " + name);
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Compares CommandParser with the java.util.Scanner approach that NetReader.run()
+ * used to take, on a stream of one million random text commands.  The Scanner
+ * version uses the same hasNext("text"), hasNext("rect"), ... chain and
+ * nextDouble() calls as the old receive loop, minus the drawing.  Both are given
+ * the stream in 64K chunks, as they would get it from a socket.  The allocated bytes
+ * are measured with com.sun.management.ThreadMXBean.
+ * <p>Usage:  java ParserBench [commands]
+ */
+public class ParserBench {
+
+	private final static String[] NAMES = { "text", "stamp", "line", "rect", "oval", "roundrect",
+			"filledrect", "filledoval", "filledroundrect" };
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Random random = new Random(42);
+		DrawCommand c = new DrawCommand();
+		for (int i = 0; i < count; i++) {
+			WireFormatBench.randomCommand(random, c);
+			stream.write((c.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		byte[] bytes = stream.toByteArray();
+		for (int round = 0; round < 3; round++) {
+			boolean last = round == 2;
+			measure("Scanner", last, count, () -> scanner(bytes));
+			measure("CommandParser", last, count, () -> parser(bytes));
+		}
+	}
+
+	private static void measure(String name, boolean print, int count, java.util.function.LongSupplier run) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long allocated = threads.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		long checksum = run.getAsLong();
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+		if (print)
+			System.out.printf("%-14s %8.1f ms  %10.0f commands/sec  %8.1f bytes allocated/command  (checksum %d)%n",
+					name, elapsed / 1e6, count / (elapsed / 1e9), (double)allocated / count, checksum);
+	}
+
+	private static long parser(byte[] bytes) {
+		CommandParser parser = new CommandParser("bell.png", "bomb.png", "camera.png", "check.png", "flower.png",
+				"smiley.png", "star.png", "tux.png", "TV.png", "x.png");
+		DrawCommand c = new DrawCommand();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long checksum = 0;
+		int offset = 0;
+		while (offset < bytes.length) {
+			int n = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, n);
+			offset += n;
+			buffer.flip();
+			while (parser.next(buffer, c))
+				checksum += c.op + (long)c.x1;
+			buffer.compact();
+		}
+		return checksum;
+	}
+
+	private static long scanner(byte[] bytes) {
+		Scanner in = new Scanner(new ByteArrayInputStream(bytes));
+		long checksum = 0;
+		while (in.hasNext()) {
+			if (in.hasNext("text")) {
+				in.next();
+				double x = in.nextDouble();
+				in.nextDouble(); in.nextDouble(); in.nextDouble(); in.nextDouble(); in.nextDouble();
+				in.nextLine();
+				checksum += 1 + (long)x;
+			}
+			else if (in.hasNext("stamp")) {
+				in.next();
+				double x = in.nextDouble();
+				in.nextDouble();
+				in.next();
+				checksum += 2 + (long)x;
+			}
+			else {
+				int op = 0;
+				for (int i = 2; i < NAMES.length && op == 0; i++) {
+					if (in.hasNext(NAMES[i]))
+						op = i + 1;
+				}
+				in.next();
+				double x = in.nextDouble();
+				for (int i = 0; i < 6; i++)
+					in.nextDouble();
+				if (op != DrawCommand.LINE || in.hasNextDouble())
+					in.nextDouble();
+				checksum += op + (long)x;
+			}
+		}
+		return checksum;
+	}
+
+}
@@ -0,0 +1,241 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that SoftwareRasterizer draws every kind of command the way a graphics context
+ * does, and measures how fast it draws.  JavaFX cannot run in a headless environment, so
+ * the reference picture is drawn with Java2D, with antialiasing, pure stroke control and
+ * the same stroke rules that NetDraw uses: square ends and mitered corners for shapes,
+ * round ends and joins for polylines, arcs of a quarter of the size for round rectangles,
+ * and a black outline for filled shapes with a positive line width.
+ * <p>For each kind of command, a few hundred random commands are drawn with both, on a
+ * board of NetDraw's size, and the pictures are compared pixel by pixel.  The mean
+ * difference per color channel, out of 255, and the fraction of pixels where some
+ * channel differs by more than TOLERANCE are reported.  Differences are expected only
+ * along antialiased edges, where the two use different estimates of the coverage, and
+ * for text, where glyph positioning differs slightly.
+ * <p>Then a stream of mixed commands is drawn in batches of BATCH commands, with pools
+ * of 1, 2 and 4 threads, and with Java2D on one thread.  The speedup from more threads
+ * is limited by the number of processors, which is printed.  Run with -Djava.awt.headless=true.
+ * <p>Usage:  java RasterizerBench [commands]
+ */
+public class RasterizerBench {
+
+	private final static int WIDTH = 1000, HEIGHT = 600;  // As NetDraw's board.
+	private final static int TOLERANCE = 64;
+	private final static int BATCH = 500;
+	private final static int[] OPS = { DrawCommand.RECT, DrawCommand.OVAL, DrawCommand.ROUNDRECT, DrawCommand.FILLED_RECT,
+			DrawCommand.FILLED_OVAL, DrawCommand.FILLED_ROUNDRECT, DrawCommand.LINE, DrawCommand.POLYLINE, DrawCommand.TEXT, DrawCommand.STAMP };
+
+	private static SoftwareRasterizer.Bitmap stamp;
+	private static BufferedImage stampImage;
+
+	public static void main(String[] args) {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		makeStamp();
+		System.out.printf("%-18s %12s %14s%n", "command", "mean diff", "pixels > " + TOLERANCE);
+		Random random = new Random(42);
+		for (int op : OPS) {
+			List<DrawCommand> list = new ArrayList<>();
+			for (int i = 0; i < 300; i++)
+				list.add(randomCommand(random, op));
+			compare(op == DrawCommand.STAMP ? "stamp" : DrawCommand.commandName(op), list);
+		}
+		System.out.println();
+		List<DrawCommand> stream = new ArrayList<>();
+		for (int i = 0; i < commands; i++)
+			stream.add(randomCommand(random, OPS[random.nextInt(OPS.length)]));
+		compare("mixed", stream);
+		System.out.println();
+		timing(stream);
+	}
+
+	private static void compare(String name, List<DrawCommand> list) {
+		SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+		rasterizer.setImageSource(text -> stamp);
+		rasterizer.render(list.toArray(new DrawCommand[0]), list.size());
+		int[] ours = rasterizer.getPixels();
+		BufferedImage reference = java2D(list);
+		long sum = 0, off = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int a = ours[y * WIDTH + x], b = reference.getRGB(x, y);
+				int worst = 0;
+				for (int shift = 0; shift < 24; shift += 8) {
+					int d = Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+					sum += d;
+					worst = Math.max(worst, d);
+				}
+				if (worst > TOLERANCE)
+					off++;
+			}
+		}
+		System.out.printf("%-18s %12.3f %13.3f%%%n", name, sum / (3.0 * WIDTH * HEIGHT), 100.0 * off / (WIDTH * HEIGHT));
+	}
+
+	private static void timing(List<DrawCommand> stream) {
+		DrawCommand[] all = stream.toArray(new DrawCommand[0]);
+		System.out.printf("%d mixed commands in batches of %d, %d processors%n", all.length, BATCH, Runtime.getRuntime().availableProcessors());
+		for (int threads : new int[] { 1, 2, 4 }) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			double best = Double.MAX_VALUE;
+			for (int round = 0; round < 3; round++) {
+				SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, pool);
+				rasterizer.setImageSource(text -> stamp);
+				DrawCommand[] batch = new DrawCommand[BATCH];
+				long start = System.nanoTime();
+				for (int i = 0; i < all.length; i += BATCH) {
+					int count = Math.min(BATCH, all.length - i);
+					System.arraycopy(all, i, batch, 0, count);
+					rasterizer.render(batch, count);
+				}
+				best = Math.min(best, (System.nanoTime() - start) / 1e6);
+			}
+			pool.shutdown();
+			System.out.printf("rasterizer, %d thread%s %9.1f ms%n", threads, threads == 1 ? " " : "s", best);
+		}
+		double best = Double.MAX_VALUE;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			java2D(stream);
+			best = Math.min(best, (System.nanoTime() - start) / 1e6);
+		}
+		System.out.printf("Java2D, 1 thread      %9.1f ms%n", best);
+	}
+
+	private static DrawCommand randomCommand(Random random, int op) {
+		DrawCommand c = new DrawCommand();
+		int color = random.nextInt(4) == 0 ? (0x80 << 24) | random.nextInt(0x1000000) : 0xFF000000 | random.nextInt(0x1000000);
+		double x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+		int width = 1 + random.nextInt(12);
+		switch (op) {
+		case DrawCommand.TEXT:
+			c.setText(x, y, 12 + random.nextInt(48), color, "Hello World".substring(0, 1 + random.nextInt(11)));
+			break;
+		case DrawCommand.STAMP:
+			c.setStamp(x, y, "test");
+			break;
+		case DrawCommand.POLYLINE:
+			c.setPolyline(color, width);
+			int points = 1 + random.nextInt(40);
+			double heading = random.nextDouble() * 2 * Math.PI;
+			for (int i = 0; i < points; i++) {
+				c.addPoint(x, y);
+				heading += random.nextDouble() - 0.5;
+				x += 8 * Math.cos(heading);
+				y += 8 * Math.sin(heading);
+			}
+			break;
+		default:
+			boolean filled = op == DrawCommand.FILLED_RECT || op == DrawCommand.FILLED_OVAL || op == DrawCommand.FILLED_ROUNDRECT;
+			c.setShape(op, x, y, x + random.nextInt(300) - 150, y + random.nextInt(200) - 100, color,
+					filled && random.nextBoolean() ? 0 : width);
+			break;
+		}
+		return c;
+	}
+
+	/**
+	 * A 32 by 32 stamp: a disk with a soft edge, colored by position.
+	 */
+	private static void makeStamp() {
+		int[] pixels = new int[32 * 32];
+		stampImage = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 32; x++) {
+				double d = Math.hypot(x - 15.5, y - 15.5);
+				int alpha = (int)Math.max(0, Math.min(255, (15 - d) * 64));
+				pixels[y * 32 + x] = (alpha << 24) | (x * 8 << 16) | (y * 8 << 8) | 0x40;
+				stampImage.setRGB(x, y, pixels[y * 32 + x]);
+			}
+		}
+		stamp = new SoftwareRasterizer.Bitmap(32, 32, pixels);
+	}
+
+	/**
+	 * Draws commands with Java2D following the rules of NetDraw.applyCommand().
+	 */
+	private static BufferedImage java2D(List<DrawCommand> list) {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, WIDTH, HEIGHT);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		for (DrawCommand c : list) {
+			Color color = new Color(c.color, true);
+			float width = c.lineWidth > 0 ? (float)c.lineWidth : 1;
+			if (c.op == DrawCommand.TEXT) {
+				g.setColor(color);
+				g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 1).deriveFont((float)c.size));
+				g.drawString(c.text, (float)c.x1, (float)c.y1);
+				continue;
+			}
+			if (c.op == DrawCommand.STAMP) {
+				g.drawImage(stampImage, (int)Math.round(c.x1 - 16), (int)Math.round(c.y1 - 16), null);
+				continue;
+			}
+			if (c.op == DrawCommand.POLYLINE) {
+				Path2D.Double path = new Path2D.Double();
+				path.moveTo(c.points[0], c.points[1]);
+				for (int i = 1; i < Math.max(2, c.pointCount); i++)
+					path.lineTo(c.points[2 * Math.min(i, c.pointCount - 1)], c.points[2 * Math.min(i, c.pointCount - 1) + 1]);
+				g.setColor(color);
+				g.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+				g.draw(path);
+				continue;
+			}
+			double left = Math.min(c.x1, c.x2), top = Math.min(c.y1, c.y2);
+			double w = Math.abs(c.x2 - c.x1), h = Math.abs(c.y2 - c.y1);
+			java.awt.Shape shape;
+			boolean filled = c.op == DrawCommand.FILLED_RECT || c.op == DrawCommand.FILLED_OVAL || c.op == DrawCommand.FILLED_ROUNDRECT;
+			switch (c.op) {
+			case DrawCommand.LINE:
+				shape = new Line2D.Double(c.x1, c.y1, c.x2, c.y2);
+				break;
+			case DrawCommand.RECT:
+			case DrawCommand.FILLED_RECT:
+				shape = new Rectangle2D.Double(left, top, w, h);
+				break;
+			case DrawCommand.OVAL:
+			case DrawCommand.FILLED_OVAL:
+				shape = new Ellipse2D.Double(left, top, w, h);
+				break;
+			default:
+				shape = new RoundRectangle2D.Double(left, top, w, h, w / 4, h / 4);
+				break;
+			}
+			g.setStroke(new BasicStroke(width, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER, 10));
+			if (filled) {
+				g.setColor(color);
+				g.fill(shape);
+				if (c.lineWidth > 0) {
+					g.setColor(Color.BLACK);
+					g.draw(shape);
+				}
+			}
+			else if (c.op != DrawCommand.LINE || w + h > 0) {
+				g.setColor(color);
+				g.draw(shape);
+			}
+		}
+		g.dispose();
+		return image;
+	}
+
+}
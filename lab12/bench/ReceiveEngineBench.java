@@ -0,0 +1,79 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how fast one ReceiveEngine thread can take in commands from several
+ * servers at once.  Each simulated server is a thread with a loopback ServerSocket
+ * that answers the handshake and then writes a fixed stream of random commands,
+ * in text or binary form as negotiated; half of the servers accept the binary
+ * format and half do not.  The engine's sink only counts the commands.
+ * <p>Usage:  java ReceiveEngineBench [peers] [commandsPerPeer]
+ */
+public class ReceiveEngineBench {
+
+	public static void main(String[] args) throws Exception {
+		int peers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int perPeer = args.length > 1 ? Integer.parseInt(args[1]) : 250_000;
+		for (int round = 0; round < 2; round++) {
+			AtomicLong received = new AtomicLong();
+			ReceiveEngine engine = new ReceiveEngine((c, from) -> received.incrementAndGet());
+			engine.start();
+			long start = System.nanoTime();
+			for (int i = 0; i < peers; i++) {
+				ServerSocket server = new ServerSocket(0);
+				boolean acceptBinary = i % 2 == 0;
+				new Thread(() -> serve(server, perPeer, acceptBinary)).start();
+				engine.follow("localhost", server.getLocalPort());
+			}
+			long total = (long)peers * perPeer;
+			while (received.get() < total)
+				Thread.sleep(1);
+			long elapsed = System.nanoTime() - start;
+			if (round == 1) {
+				System.out.printf("%d peers, %d commands in %.1f ms: %.0f commands/sec on one thread%n",
+						peers, total, elapsed / 1e6, total / (elapsed / 1e9));
+				for (ReceiveEngine.Peer peer : engine.getPeers())
+					System.out.println("   " + peer.getStats());
+			}
+			engine.shutdown();
+		}
+	}
+
+	private static void serve(ServerSocket server, int count, boolean acceptBinary) {
+		try (Socket socket = server.accept()) {
+			server.close();
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			String offer = DrawConnection.readLine(in);
+			String reply = acceptBinary ? Handshake.reply(offer, Handshake.BINARY) : Handshake.reply(offer);
+			out.write((reply + "\n").getBytes(StandardCharsets.UTF_8));
+			boolean binary = Handshake.has(Handshake.parse(reply), Handshake.BINARY);
+			Random random = new Random(17);
+			DrawCommand c = new DrawCommand();
+			ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+			for (int i = 0; i < count; i++) {
+				WireFormatBench.randomCommand(random, c);
+				if (binary)
+					BinaryCodec.encode(c, buffer);
+				else
+					buffer.put((c.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+				if (buffer.remaining() < 1024 || i == count - 1) {
+					out.write(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+			}
+			out.flush();
+			Thread.sleep(2000);  // Keep the connection open until the engine has read everything.
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A load generator for RelayServer.  It connects a number of receiving clients, using
+ * a few ReceiveEngine threads, and a number of sending clients, each a DrawConnection
+ * driven by its own thread at a fixed command rate.  Every command is a text command
+ * whose string is the System.nanoTime() at which it was sent, so each receiver can
+ * compute the delay for every delivery.  Reported are the fan-out throughput
+ * (deliveries per second, summed over all receivers) and the latency percentiles.
+ * <p>By default a relay is started in the same process, on a free port; to test a
+ * relay running elsewhere, give its host and port.
+ * <p>Usage:  java RelayLoadGen [receivers] [senders] [commandsPerSecondPerSender] [seconds] [host port]
+ */
+public class RelayLoadGen {
+
+	private final static int ENGINES = 4;
+	private final static int BUCKET_MICROS = 10;          // Width of each bucket in the latency histograms.
+	private final static int BUCKETS = 1_000_000;         // So the histograms cover 10 seconds.
+
+	public static void main(String[] args) throws Exception {
+		int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int senders = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		RelayServer relay = null;
+		String host = "localhost";
+		int port;
+		if (args.length > 5) {
+			host = args[4];
+			port = Integer.parseInt(args[5]);
+		}
+		else {
+			relay = new RelayServer(0);
+			relay.setDaemon(true);
+			relay.start();
+			port = relay.getPort();
+		}
+		Result result = run(host, port, receivers, senders, rate, seconds);
+		System.out.printf("%d receivers, %d senders x %d cmd/s for %d s%n", receivers, senders, rate, seconds);
+		result.print();
+		if (relay != null) {
+			System.out.println("relay: " + relay.getStats());
+			relay.shutdown();
+		}
+	}
+
+	/**
+	 * The outcome of a run: deliveries per second and the merged latency histogram.
+	 */
+	static class Result {
+		long deliveries;
+		double seconds;
+		long[] histogram = new long[BUCKETS + 1];
+
+		long percentile(double p) {
+			long target = (long)Math.ceil(deliveries * p);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= target)
+					return (long)i * BUCKET_MICROS;
+			}
+			return (long)BUCKETS * BUCKET_MICROS;
+		}
+
+		void print() {
+			System.out.printf("   fan-out: %d deliveries, %.0f deliveries/sec%n", deliveries, deliveries / seconds);
+			System.out.printf("   latency: p50=%dus p99=%dus p99.9=%dus max<=%dus%n", percentile(0.5),
+					percentile(0.99), percentile(0.999), percentile(1.0));
+		}
+	}
+
+	/**
+	 * Connect the clients, send for the given number of seconds, and wait for the deliveries to finish.
+	 */
+	static Result run(String host, int port, int receivers, int senders, int rate, int seconds) throws Exception {
+		List<ReceiveEngine> engines = new ArrayList<>();
+		List<long[]> histograms = new ArrayList<>();
+		long[] delivered = new long[ENGINES];
+		for (int i = 0; i < ENGINES; i++) {
+			long[] histogram = new long[BUCKETS + 1];
+			int index = i;
+			ReceiveEngine engine = new ReceiveEngine((c, from) -> {
+				long micros = (System.nanoTime() - Long.parseLong(c.text)) / 1000;
+				histogram[(int)Math.min(BUCKETS, micros / BUCKET_MICROS)]++;
+				delivered[index]++;
+			});
+			engine.start();
+			engines.add(engine);
+			histograms.add(histogram);
+		}
+		List<ReceiveEngine.Peer> peers = new ArrayList<>();
+		for (int i = 0; i < receivers; i++)
+			peers.add(engines.get(i % ENGINES).follow(host, port));
+		for (ReceiveEngine.Peer peer : peers) {
+			while (peer.getConnects() == 0)
+				Thread.sleep(1);
+		}
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < senders; i++) {
+			Thread t = new Thread(() -> send(host, port, rate, seconds));
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads)
+			t.join();
+		long expected = (long)senders * rate * seconds * receivers;
+		long deadline = System.currentTimeMillis() + 10000;
+		long total = 0;
+		while (System.currentTimeMillis() < deadline) {
+			total = 0;
+			for (ReceiveEngine.Peer peer : peers)
+				total += peer.getCommands();
+			if (total >= expected)
+				break;
+			Thread.sleep(5);
+		}
+		Result result = new Result();
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		for (ReceiveEngine engine : engines)
+			engine.shutdown();
+		Thread.sleep(50);
+		for (int i = 0; i < ENGINES; i++) {
+			result.deliveries += delivered[i];
+			long[] histogram = histograms.get(i);
+			for (int j = 0; j < histogram.length; j++)
+				result.histogram[j] += histogram[j];
+		}
+		return result;
+	}
+
+	/**
+	 * Send rate commands per second for the given number of seconds, in steps of one millisecond.
+	 */
+	private static void send(String host, int port, int rate, int seconds) {
+		DrawConnection connection = new DrawConnection(host, port);
+		DrawCommand c = new DrawCommand();
+		long start = System.nanoTime();
+		long total = (long)rate * seconds;
+		try {
+			for (long sent = 0; sent < total; ) {
+				long due = Math.min(total, (System.nanoTime() - start) * rate / 1_000_000_000L + 1);
+				while (sent < due) {
+					c.setText(10, 20, 12, 0xFF000000, Long.toString(System.nanoTime()));
+					connection.append(c);
+					sent++;
+				}
+				connection.flush();
+				Thread.sleep(1);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		connection.close();
+	}
+
+}
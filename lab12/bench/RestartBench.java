@@ -0,0 +1,145 @@
+import java.net.BindException;
+import java.util.HashMap;
+
+/**
+ * Checks what a client does when one of two servers that it follows is restarted and
+ * loses its board, and measures how long it takes to get the board back.  The client
+ * is a ReceiveEngine with a sink that keeps a board the way NetDraw does: it cannot
+ * tell which server drew what, so on restart() it drops everything and calls resync(),
+ * and both servers send their boards again from the start.
+ * <p>Two RelayServers, A and B, are loaded with boardCommands shapes each.  When the
+ * client has them all, A is shut down and started again on the same port, with an
+ * empty board, and gets liveCommands new shapes.  At the end the client's board must
+ * hold every shape of B and every new shape of A, each exactly once, and none of A's
+ * old ones.  Each shape carries its server in its color and its own number in its
+ * first corner.
+ * <p>Usage:  java RestartBench [boardCommands] [liveCommands]
+ */
+public class RestartBench {
+
+	private final static int ROW = 30000;  // Command number n is a shape at (n % ROW, n / ROW).
+	private final static int A = 0xFF0000AA, B = 0xFF0000BB;  // The colors of the two servers' shapes.
+
+	private final static HashMap<Long,Integer> board = new HashMap<>();  // How many times each shape is on the board, by key().
+	private static long restarts;
+
+	public static void main(String[] args) throws Exception {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int live = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+		RelayServer relayA = start(0);
+		RelayServer relayB = start(0);
+		int portA = relayA.getPort();
+		send(relayA, A, 0, commands);
+		send(relayB, B, 0, commands);
+
+		ReceiveEngine[] engine = new ReceiveEngine[1];
+		engine[0] = new ReceiveEngine(new ReceiveEngine.CommandSink() {
+			public void accept(DrawCommand c, ReceiveEngine.Peer from) {
+				synchronized(board) {
+					board.merge(key(c), 1, Integer::sum);
+				}
+			}
+			public void restart(ReceiveEngine.Peer from) {
+				synchronized(board) {
+					board.clear();
+					restarts++;
+				}
+				engine[0].resync();
+			}
+		});
+		engine[0].start();
+		ReceiveEngine.Peer peerA = engine[0].follow("localhost", portA);
+		ReceiveEngine.Peer peerB = engine[0].follow("localhost", relayB.getPort());
+		waitFor(2L * commands, 0);
+		System.out.printf("joined: %d shapes from each server%n", commands);
+
+		relayA.shutdown();
+		relayA.join();
+		long start = System.nanoTime();
+		relayA = start(portA);
+		send(relayA, A, commands, commands + live);
+		boolean done = waitFor((long)commands + live, 1);
+		long nanos = System.nanoTime() - start;
+
+		int wrong = 0;
+		synchronized(board) {
+			for (int n = 0; n < commands; n++)
+				if (count(B, n) != 1 || count(A, n) != 0)
+					wrong++;
+			for (int n = commands; n < commands + live; n++)
+				if (count(A, n) != 1)
+					wrong++;
+		}
+		boolean ok = done && wrong == 0 && restarts == 1;
+		System.out.printf("after restarting A: board back in %.1f ms, %d restart, %d shapes of B, %d new of A, %s%n",
+				nanos / 1e6, restarts, commands, live, ok ? "each once, none of A's old ones" : "MISMATCH (" + wrong + " wrong)");
+		System.out.println(peerA.getStats());
+		System.out.println(peerB.getStats());
+		engine[0].shutdown();
+		relayA.shutdown();
+		relayB.shutdown();
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Start a relay on a port, trying again for a while if the port is still held by the relay that had it.
+	 */
+	private static RelayServer start(int port) throws Exception {
+		for (int tries = 0; ; tries++) {
+			try {
+				RelayServer relay = new RelayServer(port, 1);
+				relay.setDaemon(true);
+				relay.start();
+				return relay;
+			}
+			catch (BindException e) {
+				if (tries == 100)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Send shapes numbered from up to, but not including, to, in a color, and wait until the relay has them.
+	 */
+	private static void send(RelayServer relay, int color, int from, int to) throws Exception {
+		long before = relay.getCommandsIn();
+		DrawConnection connection = new DrawConnection("localhost", relay.getPort());
+		DrawCommand c = new DrawCommand();
+		for (int n = from; n < to; n++) {
+			c.setShape(DrawCommand.RECT, n % ROW, n / ROW, 10, 10, color, 1);
+			if (connection.append(c))
+				connection.flush();
+		}
+		connection.flush();
+		while (relay.getCommandsIn() < before + to - from)
+			Thread.sleep(1);
+		connection.close();
+	}
+
+	/**
+	 * Wait until the board holds a number of shapes, counting repeats, after a number of restarts.  Returns false if
+	 * that took more than 20 seconds.
+	 */
+	private static boolean waitFor(long shapes, long afterRestarts) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized(board) {
+				if (restarts >= afterRestarts && board.values().stream().mapToLong(Integer::longValue).sum() >= shapes)
+					return true;
+			}
+			Thread.sleep(5);
+		}
+		return false;
+	}
+
+	private static int count(int color, int n) {
+		return board.getOrDefault((long)color << 32 | n, 0);
+	}
+
+	private static long key(DrawCommand c) {
+		return (long)c.color << 32 | ((long)c.y1 * ROW + (long)c.x1);
+	}
+
+}
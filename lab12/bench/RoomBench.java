@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how the throughput of a RelayServer grows with its number of event loops,
+ * when many rooms are busy at once, as in a school where several classes draw at the
+ * same time.  For each number of loops, a relay is started in this process, and every
+ * room gets one sending client, a DrawConnection on its own thread that sends as fast
+ * as the receivers keep up, and a number of receiving clients, spread over a few
+ * ReceiveEngine threads.  Reported are the commands relayed per second and the
+ * deliveries per second, summed over all rooms, and how many of the loops had rooms.
+ * <p>The clients run in the same process as the relay, so they compete with it for the
+ * processors, and the relay can only go faster with more loops if there are idle
+ * processors for the extra loops to run on.  The number of processors is printed; with
+ * only one, every configuration does the same work on the same processor.
+ * <p>Usage:  java RoomBench [rooms] [receiversPerRoom] [seconds] [loops...]
+ */
+public class RoomBench {
+
+	private final static int ENGINES = 4;
+	private final static int MAX_IN_FLIGHT = 2000;  // Commands a sender may be ahead of the slowest of its receivers.
+
+	public static void main(String[] args) throws Exception {
+		int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int[] loopCounts = { 1, 4, 16 };
+		if (args.length > 3) {
+			loopCounts = new int[args.length - 3];
+			for (int i = 3; i < args.length; i++)
+				loopCounts[i - 3] = Integer.parseInt(args[i]);
+		}
+		System.out.printf("%d rooms, 1 sender and %d receivers per room, %d processors%n", rooms, receivers,
+				Runtime.getRuntime().availableProcessors());
+		run(loopCounts[loopCounts.length - 1], rooms, receivers, seconds, false);  // Warm up the JIT compiler, which otherwise favors the later runs.
+		System.out.printf("%6s %8s %14s %16s %10s%n", "loops", "used", "commands/s", "deliveries/s", "dropped");
+		for (int loops : loopCounts)
+			run(loops, rooms, receivers, seconds, true);
+	}
+
+	private static void run(int loops, int rooms, int receivers, int seconds, boolean print) throws Exception {
+		RelayServer relay = new RelayServer(0, loops);
+		relay.setDaemon(true);
+		relay.start();
+		int port = relay.getPort();
+		AtomicLongArray received = new AtomicLongArray(rooms);  // Deliveries per room, over all of its receivers.
+		List<ReceiveEngine> engines = new ArrayList<>();
+		for (int i = 0; i < ENGINES; i++) {
+			ReceiveEngine engine = new ReceiveEngine((c, from) -> received.incrementAndGet(Integer.parseInt(from.getRoom().substring(1))));
+			engine.start();
+			engines.add(engine);
+		}
+		boolean[] used = new boolean[loops];
+		List<ReceiveEngine.Peer> peers = new ArrayList<>();
+		for (int r = 0; r < rooms; r++) {
+			used[relay.loopFor("r" + r)] = true;
+			for (int i = 0; i < receivers; i++)
+				peers.add(engines.get((r * receivers + i) % ENGINES).follow("localhost", port, "r" + r));
+		}
+		for (ReceiveEngine.Peer peer : peers)
+			while (peer.getConnects() == 0)
+				Thread.sleep(1);
+		DrawCommand[] shapes = commands();
+		long end = System.nanoTime() + (seconds + 1) * 1_000_000_000L;
+		List<Thread> senders = new ArrayList<>();
+		for (int r = 0; r < rooms; r++) {
+			int room = r;
+			Thread sender = new Thread(() -> {
+				DrawConnection connection = new DrawConnection("localhost", port);
+				connection.setRoom("r" + room);
+				long sent = 0;
+				try {
+					while (System.nanoTime() < end) {
+						while (sent * receivers - received.get(room) > (long)MAX_IN_FLIGHT * receivers) {
+							connection.flush();
+							Thread.yield();
+						}
+						if (connection.append(shapes[(int)(sent % shapes.length)]))
+							connection.flush();
+						sent++;
+					}
+					connection.flush();
+				}
+				catch (Exception e) {
+					System.out.println("Sender for room " + room + " failed: " + e);
+				}
+				connection.close();
+			});
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+		Thread.sleep(1000);  // Warm up.
+		long commandsBefore = relay.getCommandsIn(), deliveriesBefore = sum(received);
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long commands = relay.getCommandsIn() - commandsBefore, deliveries = sum(received) - deliveriesBefore;
+		for (Thread sender : senders)
+			sender.join();
+		int loopsUsed = 0;
+		for (boolean u : used)
+			if (u)
+				loopsUsed++;
+		if (print)
+			System.out.printf(Locale.ROOT, "%6d %8d %14.0f %16.0f %10d%n", loops, loopsUsed, commands / elapsed, deliveries / elapsed,
+					relay.getSlowClientsDropped());
+		for (ReceiveEngine engine : engines)
+			engine.shutdown();
+		relay.shutdown();
+		relay.join();
+	}
+
+	private static long sum(AtomicLongArray counts) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * Returns some shape and Pen commands, as NetDraw sends them.
+	 */
+	private static DrawCommand[] commands() {
+		Random random = new Random(42);
+		DrawCommand[] commands = new DrawCommand[256];
+		for (int i = 0; i < commands.length; i++) {
+			DrawCommand c = new DrawCommand();
+			double x = random.nextInt(1000), y = random.nextInt(600);
+			if (i % 4 == 0) {
+				c.setPolyline(0xFF000000, 3);
+				for (int p = 0; p < 20; p++)
+					c.addPoint(x + 4 * p, y + 10 * Math.sin(p / 3.0));
+			}
+			else {
+				c.setShape(DrawCommand.RECT + i % 6, x, y, x + random.nextInt(200), y + random.nextInt(200), 0xFF0000FF, 3);
+			}
+			commands[i] = c;
+		}
+		return commands;
+	}
+
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures SpatialIndex with one million shapes on a 20000 by 20000 board.  Most
+ * shapes are up to 100 pixels across, as drawn with the mouse, with a few percent
+ * much larger ones.  The benchmark times insertion, point queries, 256 by 256 range
+ * queries, and removing and reinserting 10% of the shapes, and reports the mean and
+ * 99th percentile time per query.  A few queries are checked against a linear scan
+ * of all the boxes, which is also timed for comparison.
+ * <p>Usage:  java SpatialIndexBench [shapes] [boardSize] [cellSize]
+ */
+public class SpatialIndexBench {
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int board = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+		int cell = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		Random random = new Random(42);
+		double[][] boxes = new double[count][];
+		for (int i = 0; i < count; i++) {
+			double size = random.nextInt(100) < 3 ? 200 + random.nextInt(3000) : 1 + random.nextInt(100);
+			double x = random.nextDouble() * board, y = random.nextDouble() * board;
+			boxes[i] = new double[] { x, y, x + size * random.nextDouble(), y + size * random.nextDouble() };
+		}
+
+		SpatialIndex index = null;
+		for (int round = 0; round < 3; round++) {
+			index = new SpatialIndex(board, board, cell);
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				index.insert(i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+			long elapsed = System.nanoTime() - start;
+			if (round == 2)
+				System.out.printf("insert %d shapes: %.1f ms, %.0f inserts/sec%n", count, elapsed / 1e6, count / (elapsed / 1e9));
+		}
+
+		int[] found = new int[1];
+		SpatialIndex.IdVisitor counter = id -> found[0]++;
+		for (int round = 0; round < 2; round++) {
+			long[] pointTimes = new long[100_000];
+			long pointHits = 0;
+			for (int i = 0; i < pointTimes.length; i++) {
+				double x = random.nextDouble() * board, y = random.nextDouble() * board;
+				long start = System.nanoTime();
+				pointHits += index.queryPoint(x, y, counter);
+				pointTimes[i] = System.nanoTime() - start;
+			}
+			long[] rangeTimes = new long[10_000];
+			long rangeHits = 0;
+			for (int i = 0; i < rangeTimes.length; i++) {
+				double x = random.nextDouble() * board, y = random.nextDouble() * board;
+				long start = System.nanoTime();
+				rangeHits += index.queryRange(x, y, x + 256, y + 256, counter);
+				rangeTimes[i] = System.nanoTime() - start;
+			}
+			if (round == 1) {
+				report("point query", pointTimes, (double)pointHits / pointTimes.length);
+				report("256x256 range query", rangeTimes, (double)rangeHits / rangeTimes.length);
+			}
+		}
+
+		long start = System.nanoTime();
+		int changed = count / 10;
+		for (int i = 0; i < changed; i++) {
+			int id = random.nextInt(count);
+			index.remove(id);
+			double x = random.nextDouble() * board, y = random.nextDouble() * board;
+			boxes[id] = new double[] { x, y, x + random.nextInt(100), y + random.nextInt(100) };
+			index.insert(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("remove and reinsert %d shapes: %.1f ms, %.2f us each%n", changed, elapsed / 1e6, elapsed / 1e3 / changed);
+
+		long scanNanos = 0;
+		for (int i = 0; i < 20; i++) {
+			double x = random.nextDouble() * board, y = random.nextDouble() * board;
+			found[0] = 0;
+			int indexed = index.queryRange(x, y, x + 256, y + 256, counter);
+			start = System.nanoTime();
+			int scanned = 0;
+			for (double[] b : boxes) {
+				if ((float)b[0] <= x + 256 && Math.max((float)b[0], (float)b[2]) >= x && (float)b[1] <= y + 256 && Math.max((float)b[1], (float)b[3]) >= y)
+					scanned++;
+			}
+			scanNanos += System.nanoTime() - start;
+			if (scanned != indexed)
+				throw new AssertionError("Index found " + indexed + " shapes, scan found " + scanned);
+		}
+		System.out.printf("linear scan, for comparison: %.2f ms per range query (results agree)%n", scanNanos / 1e6 / 20);
+	}
+
+	private static void report(String name, long[] times, double hits) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		double mean = Arrays.stream(times).average().orElse(0);
+		System.out.printf("%-20s mean %7.2f us  p99 %7.2f us  max %8.2f us  (%.1f shapes found on average)%n",
+				name, mean / 1e3, sorted[(int)(sorted.length * 0.99)] / 1e3, sorted[sorted.length - 1] / 1e3, hits);
+	}
+
+}
@@ -0,0 +1,263 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures what the Pen tool and StrokeCoalescer save.  Freehand strokes are simulated
+ * as the mouse would produce them: a point every few pixels, rounded to whole pixels,
+ * along a path that turns gradually.
+ * <p>The first part simplifies each stroke with StrokeSimplifier, as the Pen tool does,
+ * and compares the points and bytes needed to send it as one line command per mouse
+ * movement, as one polyline, and as one simplified polyline.  It also checks that the
+ * simplified stroke stays within the tolerance of the original.
+ * <p>The second part plays the strokes back as a remote peer that streams one short
+ * line command per mouse movement would send them, mixed with some other shapes, and
+ * draws the stream with and without a StrokeCoalescer, in frames of FRAME_COMMANDS
+ * commands, as FrameRenderer does.  The state changes and drawing calls are counted as
+ * NetDraw.drawShape() and NetDraw.drawPolyline() make them.  JavaFX cannot run in a
+ * headless environment, so the drawing time is measured with Java2D on an image of the
+ * size of NetDraw's canvas.  That time is only a rough guide: Java2D has a fast path
+ * for short antialiased lines, and computes the coverage of a long path over its whole
+ * bounding box, so it favors drawing one line per command more than a canvas whose
+ * cost is dominated by the number of calls would.  Run with -Djava.awt.headless=true.
+ * <p>Usage:  java StrokeBench [strokes]
+ */
+public class StrokeBench {
+
+	private final static double TOLERANCE = 0.75;  // As NetDraw.PEN_TOLERANCE.
+	private final static int FRAME_COMMANDS = 500;
+	private final static int[] COLORS = { 0xFF000000, 0xFFFF0000, 0xFF008000, 0xFF0000FF };
+
+	public static void main(String[] args) {
+		int strokes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		Random random = new Random(42);
+		List<double[]> paths = new ArrayList<>();
+		for (int i = 0; i < strokes; i++)
+			paths.add(freehand(random));
+		simplification(paths);
+		List<DrawCommand> stream = lineStream(paths, random);
+		System.out.println();
+		rendering(stream);
+	}
+
+	/**
+	 * Returns a simulated mouse stroke, as x1, y1, x2, y2, ...
+	 */
+	private static double[] freehand(Random random) {
+		int count = 50 + random.nextInt(350);
+		double[] points = new double[2 * count];
+		double x = 100 + random.nextInt(800), y = 100 + random.nextInt(400);
+		double heading = random.nextDouble() * 2 * Math.PI;
+		double turn = 0;
+		for (int i = 0; i < count; i++) {
+			points[2*i] = Math.round(x);
+			points[2*i+1] = Math.round(y);
+			turn = 0.8 * turn + 0.1 * (random.nextDouble() - 0.5);
+			heading += turn;
+			double step = 2 + 4 * random.nextDouble();
+			x = Math.max(0, Math.min(999, x + step * Math.cos(heading)));
+			y = Math.max(0, Math.min(599, y + step * Math.sin(heading)));
+		}
+		return points;
+	}
+
+	private static void simplification(List<double[]> paths) {
+		long rawPoints = 0, keptPoints = 0;
+		long lineText = 0, lineBinary = 0, rawText = 0, rawBinary = 0, keptText = 0, keptBinary = 0;
+		double worst = 0;
+		long nanos = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		CommandParser parser = new CommandParser();
+		DrawCommand c = new DrawCommand(), parsed = new DrawCommand();
+		double[] out = new double[2 * 400];
+		for (int round = 0; round < 2; round++) {  // The first round warms up the simplifier.
+			for (double[] points : paths) {
+				int count = points.length / 2;
+				long start = System.nanoTime();
+				int kept = StrokeSimplifier.simplify(points, count, TOLERANCE, out);
+				nanos += System.nanoTime() - start;
+				if (round == 0)
+					continue;
+				rawPoints += count;
+				keptPoints += kept;
+				worst = Math.max(worst, deviation(points, count, out, kept));
+				for (int i = 1; i < count; i++) {
+					c.setShape(DrawCommand.LINE, points[2*i-2], points[2*i-1], points[2*i], points[2*i+1], COLORS[0], 3);
+					lineText += c.toText().length() + 1;
+					lineBinary += BinaryCodec.frameLength(c);
+				}
+				polyline(c, points, count);
+				rawText += c.toText().length() + 1;
+				rawBinary += BinaryCodec.frameLength(c);
+				polyline(c, out, kept);
+				String line = c.toText();
+				keptText += line.length() + 1;
+				buffer.clear();
+				buffer.put((line + "\n").getBytes(StandardCharsets.UTF_8)).flip();
+				if (!parser.next(buffer, parsed) || !parsed.toText().equals(line))
+					throw new IllegalStateException("Text round trip failed for " + line);
+				buffer.clear();
+				BinaryCodec.encode(c, buffer);
+				keptBinary += buffer.position();
+				buffer.flip();
+				if (!BinaryCodec.decode(buffer, parsed) || !parsed.toText().equals(line))
+					throw new IllegalStateException("Binary round trip failed for " + line);
+			}
+			if (round == 0)
+				nanos = 0;
+		}
+		int strokes = paths.size();
+		System.out.printf("%d strokes, %.1f points per stroke, %.1f after simplification (%.1f%% removed), worst deviation %.3f px%n",
+				strokes, (double)rawPoints / strokes, (double)keptPoints / strokes,
+				100.0 * (rawPoints - keptPoints) / rawPoints, worst);
+		System.out.printf("simplify: %.2f us per stroke%n", nanos / 1e3 / strokes);
+		System.out.println("bytes per stroke          text    binary");
+		System.out.printf("one line per movement %8d  %8d%n", lineText / strokes, lineBinary / strokes);
+		System.out.printf("polyline              %8d  %8d%n", rawText / strokes, rawBinary / strokes);
+		System.out.printf("simplified polyline   %8d  %8d%n", keptText / strokes, keptBinary / strokes);
+	}
+
+	private static void polyline(DrawCommand c, double[] points, int count) {
+		c.setPolyline(COLORS[0], 3);
+		for (int i = 0; i < count; i++)
+			c.addPoint(points[2*i], points[2*i+1]);
+	}
+
+	/**
+	 * Returns the largest distance from a point of the original stroke to the simplified stroke.
+	 */
+	private static double deviation(double[] points, int count, double[] kept, int keptCount) {
+		double worst = 0;
+		for (int i = 0; i < count; i++) {
+			double best = Double.MAX_VALUE;
+			for (int k = 1; k < keptCount; k++)
+				best = Math.min(best, segmentDistance(points[2*i], points[2*i+1], kept[2*k-2], kept[2*k-1], kept[2*k], kept[2*k+1]));
+			if (keptCount == 1)
+				best = Math.hypot(points[2*i] - kept[0], points[2*i+1] - kept[1]);
+			worst = Math.max(worst, best);
+		}
+		return worst;
+	}
+
+	private static double segmentDistance(double x, double y, double ax, double ay, double bx, double by) {
+		double dx = bx - ax, dy = by - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / lengthSquared));
+		return Math.hypot(ax + t * dx - x, ay + t * dy - y);
+	}
+
+	/**
+	 * Returns the strokes as one line command per mouse movement, with a rectangle or oval after about one stroke in ten.
+	 */
+	private static List<DrawCommand> lineStream(List<double[]> paths, Random random) {
+		List<DrawCommand> stream = new ArrayList<>();
+		for (double[] points : paths) {
+			int color = COLORS[random.nextInt(COLORS.length)];
+			int width = 1 + random.nextInt(5);
+			for (int i = 1; i < points.length / 2; i++)
+				stream.add(new DrawCommand().setShape(DrawCommand.LINE, points[2*i-2], points[2*i-1], points[2*i], points[2*i+1], color, width));
+			if (random.nextInt(10) == 0)
+				stream.add(new DrawCommand().setShape(random.nextBoolean() ? DrawCommand.RECT : DrawCommand.FILLED_OVAL,
+						random.nextInt(1000), random.nextInt(600), random.nextInt(1000), random.nextInt(600), color, 2));
+		}
+		return stream;
+	}
+
+	/**
+	 * Draws commands with Java2D and counts state changes and drawing calls as NetDraw would make them.
+	 */
+	private static class Java2DTarget implements FrameRenderer.Target {
+		final Graphics2D g;
+		long stateChanges, drawCalls;
+		final int[] xs = new int[DrawCommand.MAX_POINTS + 1], ys = new int[DrawCommand.MAX_POINTS + 1];
+		Java2DTarget(Graphics2D g) {
+			this.g = g;
+		}
+		public void draw(DrawCommand c, DamageTracker damage) {
+			g.setColor(new Color(c.color, true));
+			if (c.op == DrawCommand.POLYLINE && c.lineSegments) {
+				g.setStroke(new BasicStroke((float)c.lineWidth, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER));
+				Path2D.Double segments = new Path2D.Double();
+				for (int i = 1; i < c.pointCount; i++) {
+					segments.moveTo(c.points[2*i-2], c.points[2*i-1]);
+					segments.lineTo(c.points[2*i], c.points[2*i+1]);
+				}
+				g.draw(segments);
+				stateChanges += 2;  // Stroke and line width; the caps are those of lines.
+				drawCalls++;
+				return;
+			}
+			if (c.op == DrawCommand.POLYLINE) {
+				g.setStroke(new BasicStroke((float)c.lineWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+				for (int i = 0; i < c.pointCount; i++) {
+					xs[i] = (int)c.points[2*i];
+					ys[i] = (int)c.points[2*i+1];
+				}
+				g.drawPolyline(xs, ys, c.pointCount);
+				stateChanges += 6;  // Stroke, line width, and setting and restoring the join and cap.
+				drawCalls++;
+				return;
+			}
+			g.setStroke(new BasicStroke((float)c.lineWidth));
+			stateChanges += 2;      // Stroke and line width.
+			int left = (int)Math.min(c.x1, c.x2), top = (int)Math.min(c.y1, c.y2);
+			int width = (int)Math.abs(c.x2 - c.x1), height = (int)Math.abs(c.y2 - c.y1);
+			switch (c.op) {
+			case DrawCommand.LINE:
+				g.drawLine((int)c.x1, (int)c.y1, (int)c.x2, (int)c.y2);
+				drawCalls++;
+				break;
+			case DrawCommand.RECT:
+				stateChanges++;     // Fill.
+				g.drawRect(left, top, width, height);
+				drawCalls++;
+				break;
+			default:
+				stateChanges += 2;  // Fill, and the black stroke for the outline.
+				g.fillOval(left, top, width, height);
+				g.setColor(Color.BLACK);
+				g.drawOval(left, top, width, height);
+				drawCalls += 2;
+				break;
+			}
+		}
+	}
+
+	private static void rendering(List<DrawCommand> stream) {
+		BufferedImage image = new BufferedImage(1000, 600, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		System.out.printf("%d commands from a peer that sends one line per mouse movement, in frames of %d%n", stream.size(), FRAME_COMMANDS);
+		System.out.println("                   state changes   draw calls   time (ms)");
+		for (int round = 0; round < 3; round++) {
+			for (int coalesce = 0; coalesce < 2; coalesce++) {
+				Java2DTarget target = new Java2DTarget(g);
+				StrokeCoalescer strokes = new StrokeCoalescer();
+				DamageTracker damage = new DamageTracker();
+				long start = System.nanoTime();
+				for (int i = 0; i < stream.size(); i++) {
+					if (coalesce == 1)
+						strokes.draw(stream.get(i), target, damage);
+					else
+						target.draw(stream.get(i), damage);
+					if (coalesce == 1 && (i + 1) % FRAME_COMMANDS == 0)
+						strokes.flush(target, damage);
+				}
+				strokes.flush(target, damage);
+				long nanos = System.nanoTime() - start;
+				if (round == 2)
+					System.out.printf("%-18s %14d %12d %11.1f%n", coalesce == 1 ? "coalesced" : "one per command",
+							target.stateChanges, target.drawCalls, nanos / 1e6);
+			}
+		}
+	}
+
+}
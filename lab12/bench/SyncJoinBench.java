@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long it takes a client to join a RelayServer whose board already holds
+ * a large number of commands, and checks that the snapshot and the live stream fit
+ * together exactly.  The relay is first loaded with random shapes, and one receiver
+ * joins.  Then a sender keeps adding shapes while more receivers join one after
+ * another, and at the end every
+ * receiver must have every command exactly once, in order.  Each shape carries its
+ * own number in its first corner, so the receivers can check the order.
+ * <p>The join time is the time from starting the connection until the last command of
+ * the snapshot has been passed to the sink.  Each receiver has its own ReceiveEngine.
+ * <p>Usage:  java SyncJoinBench [boardCommands] [joiners] [liveCommands]
+ */
+public class SyncJoinBench {
+
+	private final static int ROW = 30000;  // Command number n is a shape at (n % ROW, n / ROW).
+
+	public static void main(String[] args) throws Exception {
+		int board = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+		int joiners = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int live = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+		RelayServer relay = new RelayServer(0);
+		relay.setDaemon(true);
+		relay.start();
+		int port = relay.getPort();
+
+		Random random = new Random(42);
+		DrawConnection sender = new DrawConnection("localhost", port);
+		send(sender, random, 0, board);
+		while (relay.getCommandsIn() < board)
+			Thread.sleep(1);
+
+		long[] next = new long[joiners];      // Number of the next command that each receiver expects.
+		boolean[] failed = new boolean[joiners];
+		List<ReceiveEngine> engines = new ArrayList<>();
+		for (int i = 0; i < joiners; i++) {
+			int index = i;
+			ReceiveEngine engine = new ReceiveEngine((c, from) -> {
+				long n = (long)c.y1 * ROW + (long)c.x1;
+				if (n != next[index])
+					failed[index] = true;
+				next[index]++;
+			});
+			engine.start();
+			engines.add(engine);
+		}
+
+		Thread liveSender = new Thread(() -> {
+			try {
+				send(sender, new Random(7), board, board + live);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		List<ReceiveEngine.Peer> peers = new ArrayList<>();
+		for (int i = 0; i < joiners; i++) {
+			peers.add(engines.get(i).follow("localhost", port));
+			while (peers.get(i).getJoinNanos() == 0)
+				Thread.sleep(1);
+			if (i == 0)
+				liveSender.start();  // The first receiver joins a quiet board, the others join while commands are arriving.
+			Thread.sleep(50);
+		}
+		liveSender.join();
+		long total = board + live;
+		long deadline = System.currentTimeMillis() + 20000;
+		for (ReceiveEngine.Peer peer : peers) {
+			while (peer.getCommands() < total && System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+		}
+		boolean ok = true;
+		for (int i = 0; i < joiners; i++) {
+			ReceiveEngine.Peer peer = peers.get(i);
+			boolean exact = !failed[i] && next[i] == total;
+			ok &= exact;
+			System.out.printf("joiner %d: join %.1f ms, %d commands in snapshot, %d in total, %s%n", i,
+					peer.getJoinNanos() / 1e6, peer.getSnapshotCommands(), peer.getCommands(),
+					exact ? "in order, none lost or repeated" : "MISMATCH");
+		}
+		System.out.printf("%d snapshots sent, %.0f KB each on average%n",
+				relay.getSnapshotsSent(), relay.getSnapshotBytes() / 1024.0 / relay.getSnapshotsSent());
+		for (ReceiveEngine engine : engines)
+			engine.shutdown();
+		relay.shutdown();
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static void send(DrawConnection connection, Random random, int from, int to) throws Exception {
+		DrawCommand c = new DrawCommand();
+		for (int n = from; n < to; n++) {
+			int op = DrawCommand.LINE + random.nextInt(DrawCommand.FILLED_ROUNDRECT - DrawCommand.LINE + 1);
+			c.setShape(op, n % ROW, n / ROW, random.nextInt(1000), random.nextInt(600),
+					0xFF000000 | random.nextInt(0x1000000), 1 + random.nextInt(8));
+			if (connection.append(c))
+				connection.flush();
+		}
+		connection.flush();
+	}
+
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how long undo and redo take in UndoHistory as the history grows, and checks
+ * that they give the right picture.  The board is a SoftwareRasterizer of NetDraw's size,
+ * so that it runs without a display; run with -Djava.awt.headless=true.  Commands are
+ * drawn in batches, as RasterSurface draws them, and every tenth command is the user's
+ * own, as when a class draws together.  Checkpoints are saved when they are due at the
+ * end of every FRAME commands, as NetDraw saves them after each frame.  The checkpoints get the memory that NetDraw
+ * gives them, which is less than the checkpoints of a long history take, so the older
+ * ones are dropped.
+ * <p>For each size of history, the user's commands are undone one after another, back
+ * through UNDOS of them, and then redone, and the median and greatest time of an undo
+ * or redo are reported, along with the time to draw the whole history again, which is
+ * what undo would cost without checkpoints.  With checkpoints, the time should be about
+ * the same for every size.  After the undos, the picture is compared with one drawn
+ * from scratch without the undone commands, and after the redos, with the full history.
+ * <p>Usage:  java UndoBench [sizes...]
+ */
+public class UndoBench {
+
+	private final static int WIDTH = 1000, HEIGHT = 600;  // As NetDraw's board.
+	private final static int CHECKPOINTS = (int)(64L * 1024 * 1024 / (4L * WIDTH * HEIGHT));  // As NetDraw's MAX_UNDO_MEMORY.
+	private final static int LOCAL_EVERY = 10;
+	private final static int UNDOS = 50;
+	private final static int FRAME = 100;  // Commands drawn per frame.
+
+	/**
+	 * A board that draws with a SoftwareRasterizer, in batches.
+	 */
+	private static class RasterBoard implements UndoHistory.Board<int[]> {
+		final SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+		final DrawCommand[] batch = new DrawCommand[500];
+		int count;
+		RasterBoard() {
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = new DrawCommand();
+			rasterizer.fill(0xFFFFFFFF);
+		}
+		public int[] snapshot(int[] reuse) {
+			finish();
+			int[] pixels = rasterizer.getPixels();
+			if (reuse == null)
+				return pixels.clone();
+			System.arraycopy(pixels, 0, reuse, 0, pixels.length);
+			return reuse;
+		}
+		public void restore(int[] snapshot) {
+			count = 0;
+			rasterizer.setPixels(snapshot);
+		}
+		public void draw(DrawCommand c) {
+			batch[count++].copyFrom(c);
+			if (count == batch.length)
+				finish();
+		}
+		void finish() {
+			rasterizer.render(batch, count);
+			count = 0;
+		}
+	}
+
+	public static void main(String[] args) {
+		int[] sizes = { 1_000, 10_000, 100_000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		System.out.printf("%d checkpoints of %d commands, %d processors%n", CHECKPOINTS, UndoHistory.INTERVAL,
+				Runtime.getRuntime().availableProcessors());
+		run(sizes[0], false);  // Warm up the JIT compiler.
+		System.out.printf("%10s %12s %12s %12s %12s %14s %8s%n", "history", "undo p50", "undo max", "redo p50", "redo max",
+				"full replay", "picture");
+		for (int size : sizes)
+			run(size, true);
+	}
+
+	private static void run(int size, boolean print) {
+		DisplayList list = new DisplayList();
+		RasterBoard board = new RasterBoard();
+		UndoHistory<int[]> history = new UndoHistory<>(list, board, CHECKPOINTS);
+		history.reset();
+		Random random = new Random(42);
+		DrawCommand c = new DrawCommand();
+		for (int i = 0; i < size; i++) {
+			randomShape(random, c);
+			board.draw(c);
+			list.add(c);
+			history.added(i % LOCAL_EVERY == LOCAL_EVERY - 1);
+			if (i % FRAME == FRAME - 1)
+				history.saveCheckpointIfDue();
+		}
+		board.finish();
+		int undos = Math.min(UNDOS, size / LOCAL_EVERY);
+		long[] undoTimes = new long[undos], redoTimes = new long[undos];
+		for (int i = 0; i < undos; i++) {
+			long start = System.nanoTime();
+			history.undo();
+			board.finish();
+			undoTimes[i] = System.nanoTime() - start;
+		}
+		boolean undoneOk = Arrays.equals(board.snapshot(null), drawFromScratch(list, history));
+		for (int i = 0; i < undos; i++) {
+			long start = System.nanoTime();
+			history.redo();
+			board.finish();
+			redoTimes[i] = System.nanoTime() - start;
+		}
+		boolean redoneOk = Arrays.equals(board.snapshot(null), drawFromScratch(list, history));
+		long start = System.nanoTime();
+		drawFromScratch(list, history);
+		long full = System.nanoTime() - start;
+		if (print)
+			System.out.printf("%10d %12s %12s %12s %12s %14s %8s%n", size, ms(median(undoTimes)), ms(max(undoTimes)),
+					ms(median(redoTimes)), ms(max(redoTimes)), ms(full), undoneOk && redoneOk ? "OK" : "WRONG");
+		if (print && size == 100_000)
+			System.out.println(history.getStats());
+	}
+
+	/**
+	 * Returns the picture drawn from a blank board with the commands in the list that are not undone.
+	 */
+	private static int[] drawFromScratch(DisplayList list, UndoHistory<int[]> history) {
+		RasterBoard board = new RasterBoard();
+		DrawCommand c = new DrawCommand();
+		for (int i = 0; i < list.size(); i++)
+			if (!history.isUndone(i))
+				board.draw(list.get(i, c));
+		return board.snapshot(null);
+	}
+
+	private static void randomShape(Random random, DrawCommand c) {
+		double x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+		int op = DrawCommand.RECT + random.nextInt(6);
+		int color = 0xFF000000 | random.nextInt(0x1000000);
+		c.setShape(op, x, y, x + random.nextInt(120), y + random.nextInt(120), color, 1 + random.nextInt(5));
+	}
+
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static long max(long[] times) {
+		long max = 0;
+		for (long t : times)
+			max = Math.max(max, t);
+		return max;
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+
+}
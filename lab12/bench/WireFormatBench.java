@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares the size of commands in the text and binary protocols, using a random
+ * mix of every tool, stamps, text, and short Pen strokes, with mouse coordinates on
+ * a 1000-by-600 canvas and colors from the Color menu and the custom color dialog.
+ * Every command is also checked to survive a round trip through both formats unchanged.
+ * <p>Usage:  java WireFormatBench [commands]
+ */
+public class WireFormatBench {
+
+	private final static String[] STAMPS = { "bell.png", "bomb.png", "camera.png", "check.png", "flower.png",
+			"smiley.png", "star.png", "tux.png", "TV.png", "x.png" };
+	private final static int[] COLORS = { 0xFF000000, 0xFFFF0000, 0xFF008000, 0xFF0000FF, 0xFF8A2BE2, 0xFFCD853F };
+	private final static int[] LINE_WIDTHS = { 1, 2, 3, 4, 5, 7, 10, 12, 15 };
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		Random random = new Random(42);
+		DrawCommand c = new DrawCommand();
+		DrawCommand decoded = new DrawCommand();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long[] textBytes = new long[DrawCommand.MAX_OPCODE + 1];
+		long[] binaryBytes = new long[DrawCommand.MAX_OPCODE + 1];
+		long[] counts = new long[DrawCommand.MAX_OPCODE + 1];
+		for (int i = 0; i < count; i++) {
+			randomCommand(random, c);
+			String line = c.toText();
+			buffer.clear();
+			BinaryCodec.encode(c, buffer);
+			buffer.flip();
+			textBytes[c.op] += line.getBytes(StandardCharsets.UTF_8).length + 1;
+			binaryBytes[c.op] += buffer.remaining();
+			counts[c.op]++;
+			if (!BinaryCodec.decode(buffer, decoded) || !decoded.toText().equals(line))
+				throw new IllegalStateException("Binary round trip failed for " + line);
+			if (!decoded.parse(line) || !decoded.toText().equals(line))
+				throw new IllegalStateException("Text round trip failed for " + line);
+		}
+		long totalText = 0, totalBinary = 0;
+		System.out.println("command           text bytes/cmd   binary bytes/cmd   ratio");
+		for (int op = 1; op <= DrawCommand.MAX_OPCODE; op++) {
+			totalText += textBytes[op];
+			totalBinary += binaryBytes[op];
+			System.out.printf("%-15s   %14.1f   %16.1f   %5.2f%n", DrawCommand.commandName(op),
+					(double)textBytes[op] / counts[op], (double)binaryBytes[op] / counts[op],
+					(double)textBytes[op] / binaryBytes[op]);
+		}
+		System.out.printf("%-15s   %14.1f   %16.1f   %5.2f%n", "all", (double)totalText / count,
+				(double)totalBinary / count, (double)totalText / totalBinary);
+	}
+
+	static void randomCommand(Random random, DrawCommand c) {
+		int op = 1 + random.nextInt(DrawCommand.MAX_OPCODE);
+		int color = COLORS[random.nextInt(COLORS.length)];
+		double x = random.nextInt(1000), y = random.nextInt(600);
+		switch (op) {
+		case DrawCommand.TEXT:
+			c.setText(x, y, 30, color, "Hello World");
+			break;
+		case DrawCommand.STAMP:
+			c.setStamp(x, y, STAMPS[random.nextInt(STAMPS.length)]);
+			break;
+		case DrawCommand.POLYLINE:
+			c.setPolyline(color, LINE_WIDTHS[random.nextInt(LINE_WIDTHS.length)]);
+			int points = 2 + random.nextInt(20);
+			for (int i = 0; i < points; i++) {
+				c.addPoint(x, y);
+				x += random.nextInt(21) - 10;
+				y += random.nextInt(21) - 10;
+			}
+			break;
+		default:
+			c.setShape(op, x, y, random.nextInt(1000), random.nextInt(600), color,
+					LINE_WIDTHS[random.nextInt(LINE_WIDTHS.length)]);
+			break;
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of what FontCache saves for text commands, described in FontCacheBench,
+ * which does the work.  The scores are the time per command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FontCacheBenchmark {
+
+	@State(Scope.Thread)
+	public static class Work extends WorkState {
+		protected String workloads() {
+			return "FontCacheBench";
+		}
+	}
+
+	@Benchmark
+	public long fontUncached(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long fontCached(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long extentUncached(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long extentCached(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hot paths of drawing and of the protocol, described in HotPathBench,
+ * which does the work.  The scores are the time per command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HotPathBenchmark {
+
+	private final static int BATCH = 64;  // Commands drawn at a time, as RasterSurface draws them.
+
+	@State(Scope.Thread)
+	public static class Work extends WorkState {
+		protected String workloads() {
+			return "HotPathBench";
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Draw extends Work {
+		@Param({ "Rectangle", "Oval", "RoundRect", "FilledRectangle", "FilledOval", "FilledRoundRect", "Line", "Pen", "Text",
+				"Stamp" })
+		public String tool;
+
+		protected String name(String method) {
+			return "draw." + tool;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long draw(Draw state) throws Exception {
+		return state.work.run(BATCH);
+	}
+
+	@Benchmark
+	public long buildShapeText(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long buildShapeBinary(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long buildPenText(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long parseText(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long parseBinary(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+	/**
+	 * The commands still in flight at the end of an iteration are drawn afterwards, in
+	 * Workload.finish(), so they are not counted; there are at most a few thousand of
+	 * them, against millions sent in an iteration.
+	 */
+	@Benchmark
+	public long loopback(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of what DrawMetrics costs on the hot paths, described in MetricsBench,
+ * which does the work.  The queue and parse benchmarks are run with metrics off and
+ * on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+	@State(Scope.Thread)
+	public static class Work extends WorkState {
+		protected String workloads() {
+			return "MetricsBench";
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Metrics extends Work {
+		@Param({ "off", "on" })
+		public String metrics;
+
+		protected String name(String method) {
+			return method + "." + metrics;
+		}
+	}
+
+	@Benchmark
+	public long queue(Metrics state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long parse(Metrics state) throws Exception {
+		return state.work.run(1);
+	}
+
+	@Benchmark
+	public long histogramRecord(Work state) throws Exception {
+		return state.work.run(1);
+	}
+
+}
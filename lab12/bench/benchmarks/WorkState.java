@@ -0,0 +1,39 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * The state of a benchmark that runs a Workload.  By default the Workload has the name
+ * of the benchmark method; a subclass with parameters puts them in the name.
+ */
+public abstract class WorkState {
+
+	Workload work;
+
+	/**
+	 * Returns the name of the class that implements Workloads for this benchmark.
+	 */
+	protected abstract String workloads();
+
+	/**
+	 * Returns the name of the Workload of a benchmark method.
+	 */
+	protected String name(String method) {
+		return method;
+	}
+
+	@Setup
+	public void setUp(BenchmarkParams params) throws Exception {
+		String benchmark = params.getBenchmark();
+		work = Workloads.load(workloads()).get(name(benchmark.substring(benchmark.lastIndexOf('.') + 1)));
+	}
+
+	@TearDown(Level.Iteration)
+	public void finish() throws Exception {
+		work.finish();
+	}
+
+}
@@ -0,0 +1,25 @@
+package benchmarks;
+
+/**
+ * The code measured by a JMH benchmark.  JMH will not generate code for a benchmark in
+ * the default package, and NetDraw's classes are all in the default package, where a
+ * class in a named package cannot refer to them.  So the benchmarks are here, and the
+ * work that they measure is set up by a class of the bench directory, which implements
+ * Workloads.
+ */
+public interface Workload {
+
+	/**
+	 * Perform the operation ops times.
+	 * @return a value that depends on the work, for the benchmark to give to a Blackhole.
+	 */
+	long run(int ops) throws Exception;
+
+	/**
+	 * Finish work that run() left in progress, at the end of an iteration.  The time that
+	 * this takes is not measured.
+	 */
+	default void finish() throws Exception {
+	}
+
+}
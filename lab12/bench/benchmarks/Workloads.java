@@ -0,0 +1,21 @@
+package benchmarks;
+
+/**
+ * Makes the Workloads of one group of benchmarks.  Implemented by a class of the bench
+ * directory, in the default package, and loaded by its name.
+ */
+public interface Workloads {
+
+	/**
+	 * Returns the work of the benchmark with a name, set up and ready to run.
+	 */
+	Workload get(String name) throws Exception;
+
+	/**
+	 * Load a class that implements Workloads, by its name, and make an instance of it.
+	 */
+	static Workloads load(String className) throws ReflectiveOperationException {
+		return (Workloads)Class.forName(className).getDeclaredConstructor().newInstance();
+	}
+
+}
@@ -0,0 +1,365 @@
+import java.util.Arrays;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.shape.StrokeLineCap;
+import javafx.scene.shape.StrokeLineJoin;
+import javafx.scene.text.Font;
+
+/**
+ * Draws commands on a GraphicsContext in batches, with as few changes of the graphics
+ * state as it can.  NetDraw.applyCommand() sets the stroke, fill and line width for
+ * every shape, and a filled shape with an outline switches the stroke to black and
+ * back, so when hundreds of commands from the network are drawn in one frame, most of
+ * the calls to the GraphicsContext are setters.  A BatchRenderer remembers what it has
+ * set and skips a setter that would not change anything.  It collects up to batchSize
+ * commands before drawing them, and, if setReorder(true) has been called, puts them in
+ * an order that groups the commands of the same style, using a StyleSorter, so that
+ * the state only changes between groups; commands that overlap are still drawn in
+ * their original order, so the picture is the same.  Sorting costs more time on the
+ * application thread than the setters it saves, as BatchRenderBench shows, so it is
+ * off unless asked for; it can still pay off on the render thread, which has to carry
+ * out every setter, but that can only be measured with a display.
+ * <p>Commands are drawn as applyCommand() draws them.  A batch is drawn when it is
+ * full and when flush() is called, which a FrameRenderer does at the end of every
+ * frame.  Anything that reads the picture, such as a snapshot of the canvas, must call
+ * flush() first.  Other code can use the same GraphicsContext between batches, so
+ * what is known about its state is forgotten at the start of each batch, and the line
+ * cap and join are put back to the square ends and mitered corners that the rest of
+ * NetDraw expects at the end.  A BatchRenderer must only be used on the JavaFX
+ * application thread.
+ */
+public class BatchRenderer implements FrameRenderer.Target {
+
+	public final static int DEFAULT_BATCH_SIZE = 512;
+
+	private final static int STROKED = 0, FILLED = 1, POLYLINE = 2, TEXT = 3, STAMP = 4;  // Kinds of style, for StyleSorter.
+
+	private final GraphicsContext g;
+	private final int batchSize;
+	private final StyleSorter sorter;
+	private final DamageTracker commandBounds = new DamageTracker();  // For finding the bounds of each command.
+	private final double[] box = new double[4];  // The bounding box of the regions of commandBounds, as left, top, right, bottom.
+	private final DamageTracker.RegionVisitor growBox = (x, y, width, height) -> {
+		box[0] = Math.min(box[0], x);
+		box[1] = Math.min(box[1], y);
+		box[2] = Math.max(box[2], x + width);
+		box[3] = Math.max(box[3], y + height);
+	};
+	private DrawCommand[] batch;
+	private int count;
+	private boolean reorder;
+	private double[] polylineX = new double[DrawCommand.MAX_POINTS + 1];  // For passing the points of a polyline to strokePolyline().
+	private double[] polylineY = new double[DrawCommand.MAX_POINTS + 1];
+
+	private int strokeArgb, fillArgb;         // The state of the GraphicsContext that has been set in this batch,
+	private boolean strokeSet, fillSet;       // if the corresponding ...Set is true.
+	private double lineWidth;
+	private boolean lineWidthSet;
+	private boolean roundEnds;                // True if the line cap and join are ROUND; otherwise they are SQUARE and MITER.
+	private Font font;                        // Null if not set in this batch.
+
+	private long commandsDrawn, batches, groups, settersCalled, settersSkipped;
+
+	/**
+	 * Create a renderer that draws on g in batches of DEFAULT_BATCH_SIZE commands.
+	 */
+	public BatchRenderer(GraphicsContext g) {
+		this(g, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Create a renderer that draws on g in batches of up to batchSize commands.
+	 */
+	public BatchRenderer(GraphicsContext g, int batchSize) {
+		this.g = g;
+		this.batchSize = Math.max(1, batchSize);
+		sorter = new StyleSorter((int)Math.ceil(g.getCanvas().getWidth()), (int)Math.ceil(g.getCanvas().getHeight()));
+		batch = new DrawCommand[Math.min(this.batchSize, 64)];
+	}
+
+	/**
+	 * Say whether batches are put in style order.  If not, which is the default, only redundant setters are skipped.
+	 */
+	public void setReorder(boolean reorder) {
+		flush();
+		this.reorder = reorder;
+	}
+
+	/**
+	 * Add a command to the batch; it is drawn no later than the next flush().  The command is copied.
+	 * @param damage  If not null, the area that will be drawn is added to this tracker.
+	 */
+	public void draw(DrawCommand c, DamageTracker damage) {
+		if (damage != null)
+			NetDraw.addBounds(c, damage);
+		if (c.op == DrawCommand.NONE)
+			return;
+		if (count == batch.length)
+			batch = Arrays.copyOf(batch, Math.min(batchSize, 2 * count));
+		if (batch[count] == null)
+			batch[count] = new DrawCommand();
+		batch[count].copyFrom(c);
+		if (reorder) {
+			commandBounds.reset();
+			NetDraw.addBounds(c, commandBounds);
+			box[0] = box[1] = Double.POSITIVE_INFINITY;
+			box[2] = box[3] = Double.NEGATIVE_INFINITY;
+			commandBounds.forEachRegion(growBox);
+			sorter.add(box[0], box[1], box[2], box[3], style(c));  // With no bounds, the box is empty, and the sorter takes the whole picture.
+		}
+		count++;
+		if (count == batchSize)
+			flush();
+	}
+
+	/**
+	 * Draw the commands of the batch.
+	 */
+	public void flush() {
+		if (count == 0)
+			return;
+		strokeSet = fillSet = lineWidthSet = roundEnds = false;
+		font = null;
+		if (reorder) {
+			int[] order = sorter.order();
+			groups += sorter.getGroupCount();
+			for (int i = 0; i < count; i++)
+				apply(batch[order[i]]);
+			sorter.clear();
+		}
+		else {
+			for (int i = 0; i < count; i++)
+				apply(batch[i]);
+		}
+		if (roundEnds)
+			setRoundEnds(false);
+		commandsDrawn += count;
+		batches++;
+		count = 0;
+	}
+
+	public long getCommandsDrawn() {
+		return commandsDrawn;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of style groups in the batches that have been drawn in style order.
+	 */
+	public long getGroups() {
+		return groups;
+	}
+
+	public long getSettersCalled() {
+		return settersCalled;
+	}
+
+	public long getSettersSkipped() {
+		return settersSkipped;
+	}
+
+	public String getStats() {
+		return String.format("batches=%d commands=%d groups=%d setters=%d skipped=%d", batches, commandsDrawn, groups,
+				settersCalled, settersSkipped);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the style of a command, for StyleSorter: its kind, color and line width, or font size for text.
+	 */
+	static long style(DrawCommand c) {
+		int kind;
+		double value = c.lineWidth;
+		int color = c.color;
+		switch (c.op) {
+		case DrawCommand.LINE:
+		case DrawCommand.RECT:
+		case DrawCommand.OVAL:
+		case DrawCommand.ROUNDRECT:
+			kind = STROKED;
+			break;
+		case DrawCommand.POLYLINE:
+			kind = POLYLINE;
+			break;
+		case DrawCommand.TEXT:
+			kind = TEXT;
+			value = c.size;
+			break;
+		case DrawCommand.STAMP:
+			kind = STAMP;
+			color = c.text == null ? 0 : c.text.hashCode();  // Grouping a stamp's images helps JavaFX batch them.
+			break;
+		default:
+			kind = FILLED;
+			break;
+		}
+		return ((long)color << 32 | Float.floatToIntBits((float)value) & 0xFFFFFFFFL) * 31 + kind;
+	}
+
+	/**
+	 * Draws a command as NetDraw.applyCommand() does, but through the setters below.
+	 */
+	private void apply(DrawCommand c) {
+		switch (c.op) {
+		case DrawCommand.TEXT:
+			Font f = NetDraw.textFont(c.size);
+			if (f != font) {
+				g.setFont(f);
+				font = f;
+				settersCalled++;
+			}
+			else
+				settersSkipped++;
+			setFill(c.color);
+			g.fillText(c.text, c.x1, c.y1);
+			break;
+		case DrawCommand.STAMP:
+			Image stamp = NetDraw.stampImage(c.text);
+			if (stamp != null)
+				g.drawImage( stamp, c.x1 - stamp.getWidth()/2, c.y1 - stamp.getHeight()/2 );
+			break;
+		case DrawCommand.POLYLINE:
+			drawPolyline(c);
+			break;
+		default:
+			drawShape(c);
+			break;
+		}
+	}
+
+	/**
+	 * Draws a shape as NetDraw.drawShape() does.
+	 */
+	private void drawShape(DrawCommand c) {
+		double left = Math.min(c.x1, c.x2);
+		double top = Math.min(c.y1, c.y2);
+		double width = Math.abs(c.x1 - c.x2);
+		double height = Math.abs(c.y1 - c.y2);
+		setRoundEnds(false);
+		setLineWidth(c.lineWidth);
+		switch (c.op) {
+		case DrawCommand.LINE:
+			setStroke(c.color);
+			g.strokeLine(c.x1, c.y1, c.x2, c.y2);
+			break;
+		case DrawCommand.RECT:
+			setStroke(c.color);
+			g.strokeRect(left, top, width, height);
+			break;
+		case DrawCommand.ROUNDRECT:
+			setStroke(c.color);
+			g.strokeRoundRect(left, top, width, height, width/4, height/4);
+			break;
+		case DrawCommand.OVAL:
+			setStroke(c.color);
+			g.strokeOval(left, top, width, height);
+			break;
+		case DrawCommand.FILLED_RECT:
+			setFill(c.color);
+			g.fillRect(left, top, width, height);
+			if (c.lineWidth > 0) {
+				setStroke(0xFF000000);
+				g.strokeRect(left, top, width, height);
+			}
+			break;
+		case DrawCommand.FILLED_ROUNDRECT:
+			setFill(c.color);
+			g.fillRoundRect(left, top, width, height, width/4, height/4);
+			if (c.lineWidth > 0) {
+				setStroke(0xFF000000);
+				g.strokeRoundRect(left, top, width, height, width/4, height/4);
+			}
+			break;
+		case DrawCommand.FILLED_OVAL:
+			setFill(c.color);
+			g.fillOval(left, top, width, height);
+			if (c.lineWidth > 0) {
+				setStroke(0xFF000000);
+				g.strokeOval(left, top, width, height);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Draws a polyline as NetDraw.drawPolyline() does.
+	 */
+	private void drawPolyline(DrawCommand c) {
+		if (c.lineSegments) {
+			setStroke(c.color);
+			setLineWidth(c.lineWidth);
+			setRoundEnds(false);
+			NetDraw.strokeSegments(c, g);
+			return;
+		}
+		int count = c.pointCount;
+		for (int i = 0; i < count; i++) {
+			polylineX[i] = c.points[2*i];
+			polylineY[i] = c.points[2*i+1];
+		}
+		if (count == 1) {
+			polylineX[1] = polylineX[0];
+			polylineY[1] = polylineY[0];
+			count = 2;
+		}
+		setStroke(c.color);
+		setLineWidth(c.lineWidth);
+		setRoundEnds(true);
+		g.strokePolyline(polylineX, polylineY, count);
+	}
+
+	private void setStroke(int argb) {
+		if (strokeSet && strokeArgb == argb) {
+			settersSkipped++;
+			return;
+		}
+		g.setStroke(NetDraw.toColor(argb));
+		strokeArgb = argb;
+		strokeSet = true;
+		settersCalled++;
+	}
+
+	private void setFill(int argb) {
+		if (fillSet && fillArgb == argb) {
+			settersSkipped++;
+			return;
+		}
+		g.setFill(NetDraw.toColor(argb));
+		fillArgb = argb;
+		fillSet = true;
+		settersCalled++;
+	}
+
+	/**
+	 * GraphicsContext ignores a width that is not positive, so it is not set, and the width stays what it was, as in applyCommand().
+	 */
+	private void setLineWidth(double width) {
+		if (!(width > 0) || lineWidthSet && lineWidth == width) {
+			settersSkipped++;
+			return;
+		}
+		g.setLineWidth(width);
+		lineWidth = width;
+		lineWidthSet = true;
+		settersCalled++;
+	}
+
+	/**
+	 * Use round caps and joins, as for polylines, or square caps and mitered joins, as for shapes.
+	 */
+	private void setRoundEnds(boolean round) {
+		if (roundEnds == round) {
+			settersSkipped++;
+			return;
+		}
+		g.setLineJoin(round ? StrokeLineJoin.ROUND : StrokeLineJoin.MITER);
+		g.setLineCap(round ? StrokeLineCap.ROUND : StrokeLineCap.SQUARE);
+		roundEnds = round;
+		settersCalled += 2;
+	}
+
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Collects outgoing commands in a byte buffer so that many commands can be written
+ * to a socket with a single write.  A batch is considered ready to be written when
+ * it holds at least maxBytes bytes, or when its oldest command has been waiting for
+ * maxDelayMicros microseconds.  The owner of the writer is also expected to write
+ * the batch as soon as it has no more commands to add, so that batching never delays
+ * a command when the sender is idle.
+ * <p>Commands are stored as binary frames (see BinaryCodec), either encoded from a
+ * DrawCommand or copied from frames that were encoded already, as a SendQueue
+ * holds them.  writeTo() writes the frames as they are, for a connection that uses
+ * the binary protocol, and writeTextTo() turns them into text lines, for one that
+ * does not; so the text form is only made for a server that needs it.  The batch is
+ * kept until a write succeeds, so that the same commands can be written again on a
+ * new connection if a write fails.
+ */
+public class BatchingWriter {
+
+	private final int maxBytes;
+	private final long maxDelayNanos;
+
+	private byte[] buffer;          // The frames of the current batch, back to back.
+	private int count;              // Number of bytes in the current batch.
+	private int commands;           // Number of commands in the current batch.
+	private long firstAppendTime;   // System.nanoTime() when the first command of the current batch was added.
+
+	private ByteBuffer text;        // Holds the text form of a batch during writeTextTo().
+	private final StringBuilder line = new StringBuilder(64);
+	private final DrawCommand command = new DrawCommand();
+	private final CommandParser parser = new CommandParser(StampRegistry.builtInNames());
+
+	private long batchesWritten;
+	private long commandsWritten;
+	private long bytesWritten;
+	private int largestBatch;       // Largest number of commands written at once.
+
+	/**
+	 * Create a writer.
+	 * @param maxBytes the batch is ready to write when it contains this many bytes.
+	 * @param maxDelayMicros the batch is ready to write when its oldest command has waited this long.
+	 */
+	public BatchingWriter(int maxBytes, long maxDelayMicros) {
+		this.maxBytes = Math.max(1, maxBytes);
+		this.maxDelayNanos = maxDelayMicros * 1000;
+		buffer = new byte[Math.max(256, this.maxBytes + 128)];
+	}
+
+	/**
+	 * Add a command to the current batch, as a binary frame.
+	 * @return true if the batch is now ready to be written.
+	 * @throws IllegalArgumentException if c is not a valid command; see BinaryCodec.encode().
+	 */
+	public boolean append(DrawCommand c) {
+		ensureCapacity(BinaryCodec.frameLength(c));
+		ByteBuffer frame = ByteBuffer.wrap(buffer, count, buffer.length - count);
+		BinaryCodec.encode(c, frame);
+		count = frame.position();
+		added(1);
+		return isReady();
+	}
+
+	/**
+	 * Add commands that are already encoded as binary frames, back to back, such as an
+	 * entry of a SendQueue, to the current batch.  Each of them is counted.
+	 * @return true if the batch is now ready to be written.
+	 * @throws IllegalArgumentException if the bytes are not whole frames.
+	 */
+	public boolean append(byte[] frames) {
+		ByteBuffer in = ByteBuffer.wrap(frames);
+		int n = 0;
+		while (in.hasRemaining()) {
+			int length = BinaryCodec.frameLength(in);
+			if (length < 0 || length > in.remaining())
+				throw new IllegalArgumentException("Not a whole number of frames");
+			in.position(in.position() + length);
+			n++;
+		}
+		ensureCapacity(frames.length);
+		System.arraycopy(frames, 0, buffer, count, frames.length);
+		count += frames.length;
+		added(n);
+		return isReady();
+	}
+
+	/**
+	 * Add the commands of a text line, or of several lines separated by line feeds, to
+	 * the current batch.  Lines that are not valid commands are skipped.  This costs a
+	 * parse of each line; a sender that has the DrawCommand should use append(c).
+	 * @return true if the batch is now ready to be written.
+	 */
+	public boolean append(String lines) {
+		ByteBuffer in = ByteBuffer.wrap((lines + "\n").getBytes(StandardCharsets.UTF_8));
+		while (parser.next(in, command)) {
+			if (command.op != DrawCommand.NONE)
+				append(command);
+		}
+		return isReady();
+	}
+
+	/**
+	 * Returns true if the batch is full or its oldest command has waited long enough.
+	 */
+	public boolean isReady() {
+		return commands > 0 && (count >= maxBytes || System.nanoTime() - firstAppendTime >= maxDelayNanos);
+	}
+
+	public boolean isEmpty() {
+		return commands == 0;
+	}
+
+	/**
+	 * Returns the number of commands in the current batch.
+	 */
+	public int getPendingCommands() {
+		return commands;
+	}
+
+	/**
+	 * Returns System.nanoTime() for the time when the oldest command in the current batch was added.
+	 */
+	public long getFirstAppendTime() {
+		return firstAppendTime;
+	}
+
+	/**
+	 * Write the whole batch, as binary frames, with a single call to out.write(), and
+	 * then start a new batch.  If the write throws an exception, the batch is kept.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (commands == 0)
+			return;
+		out.write(buffer, 0, count);
+		out.flush();
+		written(count);
+	}
+
+	/**
+	 * Like writeTo(), except that the commands are written as lines of the text
+	 * protocol.  The text has no alpha, so translucent colors are sent as opaque.
+	 */
+	public void writeTextTo(OutputStream out) throws IOException {
+		if (commands == 0)
+			return;
+		if (text == null)
+			text = ByteBuffer.allocate(Math.max(4 * count, 1024));
+		text.clear();
+		ByteBuffer frames = ByteBuffer.wrap(buffer, 0, count);
+		while (BinaryCodec.decode(frames, command)) {
+			line.setLength(0);
+			byte[] bytes = command.appendText(line).append('\n').toString().getBytes(StandardCharsets.UTF_8);
+			if (text.remaining() < bytes.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(text.capacity() * 2 + bytes.length);
+				text.flip();
+				bigger.put(text);
+				text = bigger;
+			}
+			text.put(bytes);
+		}
+		out.write(text.array(), 0, text.position());
+		out.flush();
+		written(text.position());
+	}
+
+	/**
+	 * Record that the current batch has been written as the given number of bytes, and start a new batch.
+	 */
+	private void written(int bytes) {
+		batchesWritten++;
+		commandsWritten += commands;
+		bytesWritten += bytes;
+		if (commands > largestBatch)
+			largestBatch = commands;
+		count = 0;
+		commands = 0;
+	}
+
+	public long getBatchesWritten() {
+		return batchesWritten;
+	}
+
+	public long getCommandsWritten() {
+		return commandsWritten;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+
+	private void added(int n) {
+		if (commands == 0 && n > 0)
+			firstAppendTime = System.nanoTime();
+		commands += n;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, count + extra)];
+			System.arraycopy(buffer, 0, newBuffer, 0, count);
+			buffer = newBuffer;
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes DrawCommands in the compact binary form of the NetDraw protocol.
+ * The binary form is used on a connection only if both ends agree to it in the
+ * handshake (see Handshake); its version is part of the name of the handshake feature,
+ * "bin2", so an incompatible format in the future would get a new name.  (Version 2
+ * added the stamp ID form of stamp frames.  Every version 1 frame is still a valid
+ * version 2 frame, so stored frames from version 1 can still be decoded.)
+ * <p>Each command is one frame, and frames are sent back to back with no separators.
+ * All multi-byte values are big-endian.  The first byte of a frame is the opcode from
+ * DrawCommand, possibly ORed with SHORT_COORDS.  When SHORT_COORDS is set, every
+ * coordinate in the frame is a 16-bit signed integer; otherwise every coordinate is
+ * a 32-bit float.  (Mouse coordinates are almost always whole numbers, so nearly all
+ * frames use the short form.)  For a stamp, the first byte can also have STAMP_ID set,
+ * meaning that the stamp is given by its ID in StampRegistry instead of by its name;
+ * this is used for all of the built-in stamps.  A server can also set ECHO in the first
+ * byte of a frame that it sends back to the user who sent the command (see
+ * Handshake.ORIGIN); decode() ignores it, and isEcho() tests for it.  The rest of the
+ * frame depends on the opcode:
+ * <pre>
+ *    shapes and line:  x1 y1 x2 y2, color (RGBA, 4 bytes), line width (1 byte)
+ *    text:             x y, size (1 byte), color (RGBA, 4 bytes), length (2 bytes), UTF-8 bytes of the string
+ *    stamp:            x y, length (1 byte), UTF-8 bytes of the file name
+ *    stamp with ID:    x y, stamp ID (1 byte)
+ *    polyline:         number of points (2 bytes), color (RGBA, 4 bytes), line width (1 byte), x y for each point
+ * </pre>
+ * The line width byte holds the width in quarter pixels, so widths from 0 to 63.75
+ * can be sent exactly.  A shape frame is 14 bytes in the short form, compared to
+ * 40 to 90 bytes for the same command in the text protocol.
+ */
+public class BinaryCodec {
+
+	public final static int SHORT_COORDS = 0x80;
+	public final static int STAMP_ID = 0x40;
+	public final static int ECHO = 0x20;
+	private final static int OP_MASK = 0x1F;
+
+	/**
+	 * The largest number of bytes that encode() can produce for a command, not counting
+	 * the bytes of the string for text and stamps, or the points of a polyline.
+	 */
+	public final static int MAX_FIXED_FRAME = 1 + 16 + 4 + 1 + 2;
+
+	/**
+	 * Returns the number of bytes that encode() will write for a command.  (For a string
+	 * that contains unpaired surrogate characters, this can be more than the actual number.)
+	 */
+	public static int frameLength(DrawCommand c) {
+		int coordBytes = fitsShort(c) ? 2 : 4;
+		switch (c.op) {
+		case DrawCommand.TEXT:
+			return 1 + 2 * coordBytes + 1 + 4 + 2 + utf8Length(c.text);
+		case DrawCommand.STAMP:
+			return 1 + 2 * coordBytes + 1 + (StampRegistry.builtInId(c.text) >= 0 ? 0 : utf8Length(c.text));
+		case DrawCommand.POLYLINE:
+			return 1 + 2 + 4 + 1 + 2 * coordBytes * c.pointCount;
+		default:
+			return 1 + 4 * coordBytes + 4 + 1;
+		}
+	}
+
+	/**
+	 * Write the frame for a command at the buffer's position.  The buffer must have
+	 * at least frameLength(c) bytes remaining.
+	 * @throws IllegalArgumentException if c is not a valid command, or if its string
+	 *     is too long to be sent.
+	 */
+	public static void encode(DrawCommand c, ByteBuffer out) {
+		if (c.op <= DrawCommand.NONE || c.op > DrawCommand.MAX_OPCODE)
+			throw new IllegalArgumentException("Not a drawing command: " + c.op);
+		boolean shortCoords = fitsShort(c);
+		int stampId = c.op == DrawCommand.STAMP ? StampRegistry.builtInId(c.text) : -1;
+		out.put((byte)(c.op | (shortCoords ? SHORT_COORDS : 0) | (stampId >= 0 ? STAMP_ID : 0)));
+		if (c.op == DrawCommand.POLYLINE) {
+			if (c.pointCount < 1 || c.pointCount > DrawCommand.MAX_POINTS)
+				throw new IllegalArgumentException("Bad number of points in a polyline: " + c.pointCount);
+			out.putShort((short)c.pointCount);
+			out.putInt(toRGBA(c.color));
+			out.put(lineWidthByte(c.lineWidth));
+			for (int i = 0; i < 2 * c.pointCount; i++)
+				putCoord(out, c.points[i], shortCoords);
+			return;
+		}
+		putCoord(out, c.x1, shortCoords);
+		putCoord(out, c.y1, shortCoords);
+		switch (c.op) {
+		case DrawCommand.TEXT:
+			out.put((byte)Math.max(0, Math.min(255, (int)Math.round(c.size))));
+			out.putInt(toRGBA(c.color));
+			byte[] text = c.text.getBytes(StandardCharsets.UTF_8);
+			if (text.length > 0xFFFF)
+				throw new IllegalArgumentException("Text is too long");
+			out.putShort((short)text.length);
+			out.put(text);
+			break;
+		case DrawCommand.STAMP:
+			if (stampId >= 0) {
+				out.put((byte)stampId);
+				break;
+			}
+			byte[] name = c.text.getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xFF)
+				throw new IllegalArgumentException("Stamp name is too long");
+			out.put((byte)name.length);
+			out.put(name);
+			break;
+		default:
+			putCoord(out, c.x2, shortCoords);
+			putCoord(out, c.y2, shortCoords);
+			out.putInt(toRGBA(c.color));
+			out.put(lineWidthByte(c.lineWidth));
+			break;
+		}
+	}
+
+	/**
+	 * Decode the frame that starts at the buffer's position.  If the buffer holds a
+	 * complete frame, the command is stored in c, the buffer's position is moved past
+	 * the frame, and the return value is true.  If the frame is not complete, the
+	 * return value is false and the buffer's position is not changed.
+	 * @throws IllegalArgumentException if the opcode byte is not valid; the stream
+	 *     cannot be resynchronized after that.
+	 */
+	public static boolean decode(ByteBuffer in, DrawCommand c) {
+		int length = frameLength(in);
+		if (length < 0 || in.remaining() < length)
+			return false;
+		int first = in.get() & 0xFF;
+		int op = first & OP_MASK;
+		boolean shortCoords = (first & SHORT_COORDS) != 0;
+		if (op == DrawCommand.POLYLINE) {
+			int count = in.getShort() & 0xFFFF;
+			c.setPolyline(fromRGBA(in.getInt()), (in.get() & 0xFF) / 4.0);
+			for (int i = 0; i < count; i++)
+				c.addPoint(getCoord(in, shortCoords), getCoord(in, shortCoords));
+			return true;
+		}
+		double x = getCoord(in, shortCoords);
+		double y = getCoord(in, shortCoords);
+		switch (op) {
+		case DrawCommand.TEXT:
+			double size = in.get() & 0xFF;
+			int color = fromRGBA(in.getInt());
+			int textLength = in.getShort() & 0xFFFF;
+			c.setText(x, y, size, color, getString(in, textLength));
+			break;
+		case DrawCommand.STAMP:
+			if ((first & STAMP_ID) != 0) {
+				int id = in.get() & 0xFF;
+				c.setStamp(x, y, id < StampRegistry.BUILT_IN_COUNT ? StampRegistry.name(id) : "#" + id);  // An unknown ID gets a name that matches no stamp.
+				break;
+			}
+			int nameLength = in.get() & 0xFF;
+			c.setStamp(x, y, getString(in, nameLength));
+			break;
+		default:
+			double x2 = getCoord(in, shortCoords);
+			double y2 = getCoord(in, shortCoords);
+			int shapeColor = fromRGBA(in.getInt());
+			double lineWidth = (in.get() & 0xFF) / 4.0;
+			c.setShape(op, x, y, x2, y2, shapeColor, lineWidth);
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether the frame that starts at the buffer's position is marked with ECHO.
+	 * The buffer must have at least one byte remaining.  The position is not changed.
+	 */
+	public static boolean isEcho(ByteBuffer in) {
+		return (in.get(in.position()) & ECHO) != 0;
+	}
+
+	/**
+	 * Returns the length of the frame that starts at the buffer's position, or -1 if
+	 * not enough of the frame is available to tell.  The buffer's position is not changed.
+	 * This lets a stream of frames be skipped or copied without decoding them.
+	 * @throws IllegalArgumentException if the opcode byte is not valid.
+	 */
+	public static int frameLength(ByteBuffer in) {
+		int start = in.position();
+		int available = in.remaining();
+		if (available < 1)
+			return -1;
+		int first = in.get(start) & 0xFF;
+		int op = first & OP_MASK;
+		if (op <= DrawCommand.NONE || op > DrawCommand.MAX_OPCODE || ((first & STAMP_ID) != 0 && op != DrawCommand.STAMP))
+			throw new IllegalArgumentException("Bad opcode in binary frame: " + first);
+		int coordBytes = (first & SHORT_COORDS) != 0 ? 2 : 4;
+		switch (op) {
+		case DrawCommand.TEXT:
+			int textLengthAt = start + 1 + 2 * coordBytes + 1 + 4;
+			if (available < textLengthAt + 2 - start)
+				return -1;
+			return textLengthAt + 2 - start + (in.getShort(textLengthAt) & 0xFFFF);
+		case DrawCommand.POLYLINE:
+			if (available < 3)
+				return -1;
+			int count = in.getShort(start + 1) & 0xFFFF;
+			if (count < 1 || count > DrawCommand.MAX_POINTS)
+				throw new IllegalArgumentException("Bad number of points in a polyline: " + count);
+			return 1 + 2 + 4 + 1 + 2 * coordBytes * count;
+		case DrawCommand.STAMP:
+			if ((first & STAMP_ID) != 0)
+				return 1 + 2 * coordBytes + 1;
+			int nameLengthAt = start + 1 + 2 * coordBytes;
+			if (available < nameLengthAt + 1 - start)
+				return -1;
+			return nameLengthAt + 1 - start + (in.get(nameLengthAt) & 0xFF);
+		default:
+			return 1 + 4 * coordBytes + 4 + 1;
+		}
+	}
+
+	/**
+	 * Convert a color from the 0xAARRGGBB form used in DrawCommand to the RGBA form used on the wire.
+	 */
+	public static int toRGBA(int argb) {
+		return (argb << 8) | (argb >>> 24);
+	}
+
+	public static int fromRGBA(int rgba) {
+		return (rgba >>> 8) | (rgba << 24);
+	}
+
+	private static byte lineWidthByte(double lineWidth) {
+		return (byte)Math.max(0, Math.min(255, (int)Math.round(lineWidth * 4)));
+	}
+
+	private static boolean fitsShort(DrawCommand c) {
+		if (c.op == DrawCommand.POLYLINE) {
+			for (int i = 0; i < 2 * c.pointCount; i++) {
+				if (!fitsShort(c.points[i]))
+					return false;
+			}
+			return true;
+		}
+		if (!fitsShort(c.x1) || !fitsShort(c.y1))
+			return false;
+		return !c.isShape() || (fitsShort(c.x2) && fitsShort(c.y2));
+	}
+
+	private static boolean fitsShort(double v) {
+		return v == (short)v;
+	}
+
+	private static void putCoord(ByteBuffer out, double v, boolean shortCoords) {
+		if (shortCoords)
+			out.putShort((short)v);
+		else
+			out.putFloat((float)v);
+	}
+
+	private static double getCoord(ByteBuffer in, boolean shortCoords) {
+		return shortCoords ? in.getShort() : in.getFloat();
+	}
+
+	private static String getString(ByteBuffer in, int length) {
+		String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		}
+		else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch < 0x80)
+				length++;
+			else if (ch < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(ch)) {
+				length += 4;
+				i++;
+			}
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+}
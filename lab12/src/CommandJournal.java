@@ -0,0 +1,437 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An append-only, on-disk record of the commands drawn on a board, so that the board
+ * can be rebuilt after the program is closed or crashes.  Commands are numbered from
+ * zero in the order they are appended, and stored as binary frames (see BinaryCodec)
+ * in a series of segment files in one directory.  Each segment is a file of fixed size
+ * that is memory-mapped, so appending a command is a copy into memory, and the
+ * operating system writes the pages to the disk.  A segment starts with a header:
+ * <pre>
+ *    magic "NDJ1"                     4 bytes
+ *    end of the committed frames      4 bytes
+ *    number of commands               4 bytes
+ *    number of the first command      8 bytes
+ * </pre>
+ * The end and count are updated after each frame is copied, so a frame that was only
+ * partly written when the program died is ignored.  When a segment is full, a new one
+ * is started; its file name holds the number of its first command.
+ * <p>Now and then the owner should save a checkpoint, a compressed copy of the board's
+ * pixels together with the number of commands that it includes.  To rebuild the board,
+ * the latest checkpoint is drawn and then only the commands after it are replayed.
+ * After a checkpoint, segments that hold only older commands are deleted, along with
+ * older checkpoints; this is the journal's compaction.
+ * <p>The journal also keeps, for each source of commands, such as a server that the
+ * board follows, the number of that source's commands that the board includes, so
+ * that after a restart only the later ones need to be asked for.  They are kept in
+ * another memory-mapped file, "sources.nds", as a magic number "NDS1" followed by
+ * entries of
+ * <pre>
+ *    number of commands (8 bytes), length of the name (2 bytes), UTF-8 bytes of the name
+ * </pre>
+ * ending at an entry with a length of zero.  A number is updated in place, so saving it
+ * after every command costs no more than appending the command.
+ * <p>How often data is forced to the disk is set by a SyncPolicy.  Even with NEVER,
+ * nothing is lost if only the program crashes, since the mapped pages belong to the
+ * operating system; the policy matters if the whole machine goes down.
+ * <p>A CommandJournal is not thread-safe.
+ */
+public class CommandJournal implements Closeable {
+
+	/**
+	 * When appended commands are forced to the disk.
+	 */
+	public enum SyncPolicy {
+		NEVER,     // Only when a segment is finished, at checkpoints, and when the journal is closed.
+		INTERVAL,  // Also when an append happens at least syncIntervalMillis after the last sync.
+		ALWAYS     // After every append.  Safest, and much slower.
+	}
+
+	/**
+	 * The pixels of a board after a given number of commands, as saved by checkpoint().
+	 */
+	public static class Checkpoint {
+		public final long sequence;  // Number of commands included in the picture.
+		public final int width, height;
+		public final int[] pixels;   // ARGB pixels, row by row.
+		Checkpoint(long sequence, int width, int height, int[] pixels) {
+			this.sequence = sequence;
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+	}
+
+	public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public final static long DEFAULT_SYNC_INTERVAL = 1000;
+
+	private final static int SEGMENT_MAGIC = 0x4E444A31;     // "NDJ1"
+	private final static int CHECKPOINT_MAGIC = 0x4E444331;  // "NDC1"
+	private final static int SOURCES_MAGIC = 0x4E445331;     // "NDS1"
+	private final static int SOURCES_SIZE = 64 * 1024;
+	private final static int HEADER_SIZE = 20;
+	private final static int END_OFFSET = 4, COUNT_OFFSET = 8, FIRST_OFFSET = 12;
+
+	private final Path directory;
+	private final SyncPolicy policy;
+	private final int segmentSize;
+	private final long syncIntervalMillis;
+
+	private MappedByteBuffer segment;  // The segment that is being appended to.
+	private long segmentFirst;         // Number of the first command in that segment.
+	private int segmentCount;          // Number of commands in that segment.
+	private int syncedTo = HEADER_SIZE;  // Offset in the segment up to which data has been forced to the disk.
+	private long size;                 // Total number of commands.
+	private long lastSync = System.currentTimeMillis();
+	private long checkpointSequence;   // Number of commands in the latest checkpoint, or 0.
+	private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);
+	private MappedByteBuffer sources;  // The sources file; its position is the end of the last entry.
+	private final HashMap<String,Integer> sourceOffsets = new HashMap<>();  // Offset of each source's number in the file.
+	private boolean sourcesChanged;    // True if a number has changed since the last sync.
+
+	/**
+	 * Open the journal in a directory, with the default segment size and sync interval.
+	 */
+	public CommandJournal(Path directory, SyncPolicy policy) throws IOException {
+		this(directory, policy, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/**
+	 * Open the journal in a directory, which is created if it does not exist.  If the
+	 * directory already holds a journal, new commands are added at its end.
+	 * @param segmentSize the size of each segment file.  It must be larger than the longest frame.
+	 * @param syncIntervalMillis the interval for the INTERVAL sync policy.
+	 */
+	public CommandJournal(Path directory, SyncPolicy policy, int segmentSize, long syncIntervalMillis) throws IOException {
+		this.directory = directory;
+		this.policy = policy;
+		this.segmentSize = Math.max(segmentSize, 128 * 1024);
+		this.syncIntervalMillis = syncIntervalMillis;
+		Files.createDirectories(directory);
+		List<Path> checkpoints = files("checkpoint-");
+		if (!checkpoints.isEmpty())
+			checkpointSequence = sequenceOf(checkpoints.get(checkpoints.size() - 1));
+		List<Path> segments = files("segment-");
+		if (segments.isEmpty()) {
+			startSegment(checkpointSequence);
+		}
+		else {
+			segment = map(segments.get(segments.size() - 1), FileChannel.MapMode.READ_WRITE);
+			if (segment.getInt(0) != SEGMENT_MAGIC)
+				throw new IOException("Not a journal segment: " + segments.get(segments.size() - 1));
+			segmentFirst = segment.getLong(FIRST_OFFSET);
+			segmentCount = segment.getInt(COUNT_OFFSET);
+			segment.position(segment.getInt(END_OFFSET));
+			syncedTo = segment.position();
+			size = segmentFirst + segmentCount;
+		}
+		openSources();
+	}
+
+	/**
+	 * Add a command to the end of the journal.  Commands with op equal to DrawCommand.NONE are ignored.
+	 * @return the number of the command, or -1 if it was ignored.
+	 */
+	public long append(DrawCommand c) throws IOException {
+		if (c.op == DrawCommand.NONE)
+			return -1;
+		int frameLength = BinaryCodec.frameLength(c);
+		if (encodeBuffer.capacity() < frameLength)
+			encodeBuffer = ByteBuffer.allocate(frameLength * 2);
+		encodeBuffer.clear();
+		BinaryCodec.encode(c, encodeBuffer);
+		encodeBuffer.flip();
+		if (segment.remaining() < encodeBuffer.remaining()) {
+			sync();
+			startSegment(size);
+		}
+		segment.put(encodeBuffer);
+		segmentCount++;
+		segment.putInt(END_OFFSET, segment.position());  // Commit the frame.
+		segment.putInt(COUNT_OFFSET, segmentCount);
+		if (policy == SyncPolicy.ALWAYS || (policy == SyncPolicy.INTERVAL && System.currentTimeMillis() - lastSync >= syncIntervalMillis))
+			sync();
+		return size++;
+	}
+
+	/**
+	 * Force the commands that have been appended so far to the disk.
+	 */
+	public void sync() {
+		int end = segment.position();
+		if (end > syncedTo) {
+			segment.force(syncedTo, end - syncedTo);
+			segment.force(0, HEADER_SIZE);
+			syncedTo = end;
+		}
+		if (sourcesChanged) {
+			sources.force();
+			sourcesChanged = false;
+		}
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the number of commands from a source, such as a server that the board follows,
+	 * that the board includes, as saved by setSourceSequence(), or 0 if none was saved.
+	 */
+	public long getSourceSequence(String source) {
+		Integer offset = sourceOffsets.get(source);
+		return offset == null ? 0 : sources.getLong(offset);
+	}
+
+	/**
+	 * Save the number of commands from a source that the board includes.  It is forced to
+	 * the disk along with the commands.
+	 * @throws IOException if the sources file has no room for a new source.
+	 */
+	public void setSourceSequence(String source, long sequence) throws IOException {
+		Integer offset = sourceOffsets.get(source);
+		if (offset == null) {
+			byte[] name = source.getBytes(StandardCharsets.UTF_8);
+			if (name.length == 0 || name.length > 0xFFFF || sources.remaining() < 8 + 2 + name.length + 8 + 2)
+				throw new IOException("No room in the journal for the source " + source);
+			offset = sources.position();
+			sources.putLong(sequence);
+			sources.position(offset + 8 + 2);
+			sources.put(name);
+			sources.putShort(offset + 8, (short)name.length);  // Commit the entry.
+			sourceOffsets.put(source, offset);
+		}
+		else {
+			sources.putLong(offset, sequence);
+		}
+		sourcesChanged = true;
+	}
+
+	/**
+	 * Save 0 as the number of commands from every source, for when the board no longer
+	 * includes any of them.
+	 */
+	public void clearSourceSequences() {
+		for (int offset : sourceOffsets.values())
+			sources.putLong(offset, 0);
+		sourcesChanged = true;
+	}
+
+	/**
+	 * Returns the number of commands in the journal, which is also the number of the next one.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of commands included in the latest checkpoint, or 0 if there is none.
+	 */
+	public long getCheckpointSequence() {
+		return checkpointSequence;
+	}
+
+	/**
+	 * Returns the number of commands appended since the latest checkpoint.
+	 */
+	public long getCommandsSinceCheckpoint() {
+		return size - checkpointSequence;
+	}
+
+	public int getSegmentCount() throws IOException {
+		return files("segment-").size();
+	}
+
+	/**
+	 * Save a picture of the board, which must include all the commands that have been appended,
+	 * and then delete the segments and checkpoints that are no longer needed.
+	 * @param pixels the ARGB pixels of the picture, row by row.
+	 */
+	public void checkpoint(int width, int height, int[] pixels) throws IOException {
+		sync();
+		Path temp = directory.resolve("checkpoint.tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(size);
+			out.writeInt(width);
+			out.writeInt(height);
+			ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+			bytes.asIntBuffer().put(pixels);
+			DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+			deflated.write(bytes.array());
+			deflated.finish();
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temp, directory.resolve(String.format("checkpoint-%016d.ndc", size)),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		checkpointSequence = size;
+		compact();
+	}
+
+	/**
+	 * Returns the latest checkpoint, or null if there is none.
+	 */
+	public Checkpoint readCheckpoint() throws IOException {
+		List<Path> checkpoints = files("checkpoint-");
+		if (checkpoints.isEmpty())
+			return null;
+		try (InputStream file = Files.newInputStream(checkpoints.get(checkpoints.size() - 1))) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(file, 65536));
+			if (in.readInt() != CHECKPOINT_MAGIC)
+				throw new IOException("Not a journal checkpoint");
+			long sequence = in.readLong();
+			int width = in.readInt();
+			int height = in.readInt();
+			byte[] bytes = new InflaterInputStream(in).readNBytes(4 * width * height);
+			if (bytes.length != 4 * width * height)
+				throw new IOException("Checkpoint is too short");
+			int[] pixels = new int[width * height];
+			ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+			return new Checkpoint(sequence, width, height, pixels);
+		}
+	}
+
+	/**
+	 * Pass the commands from number from to the end of the journal, in order, to a visitor.
+	 * A single DrawCommand object is used for all of them.
+	 * @return the number of commands passed to the visitor.
+	 */
+	public long replay(long from, DisplayList.CommandVisitor visitor) throws IOException {
+		DrawCommand c = new DrawCommand();
+		long count = 0;
+		for (Path file : files("segment-")) {
+			boolean active = sequenceOf(file) == segmentFirst;
+			ByteBuffer data = active ? segment.duplicate() : map(file, FileChannel.MapMode.READ_ONLY);
+			long first = data.getLong(FIRST_OFFSET);
+			int segmentCommands = data.getInt(COUNT_OFFSET);
+			if (first + segmentCommands <= from)
+				continue;
+			data.limit(data.getInt(END_OFFSET)).position(HEADER_SIZE);
+			for (long n = first; n < from; n++)
+				data.position(data.position() + BinaryCodec.frameLength(data));
+			while (BinaryCodec.decode(data, c)) {
+				visitor.accept(c);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void close() {
+		sync();
+		segment = null;  // The mappings are released when the buffers are collected.
+		sources = null;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Delete the segments whose commands are all in the latest checkpoint, except the
+	 * one that is being appended to, and the checkpoints before the latest.
+	 */
+	private void compact() throws IOException {
+		for (Path file : files("segment-")) {
+			long first = sequenceOf(file);
+			if (first == segmentFirst)
+				continue;
+			MappedByteBuffer data = map(file, FileChannel.MapMode.READ_ONLY);
+			if (first + data.getInt(COUNT_OFFSET) <= checkpointSequence)
+				Files.delete(file);
+		}
+		List<Path> checkpoints = files("checkpoint-");
+		for (int i = 0; i < checkpoints.size() - 1; i++)
+			Files.delete(checkpoints.get(i));
+	}
+
+	/**
+	 * Map the sources file, creating it if it does not exist, and find the entries in it.
+	 */
+	private void openSources() throws IOException {
+		Path file = directory.resolve("sources.nds");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			boolean created = channel.size() == 0;
+			sources = channel.map(FileChannel.MapMode.READ_WRITE, 0, SOURCES_SIZE);
+			if (created)
+				sources.putInt(0, SOURCES_MAGIC);
+			else if (sources.getInt(0) != SOURCES_MAGIC)
+				throw new IOException("Not a journal sources file: " + file);
+		}
+		int offset = 4;
+		while (offset + 8 + 2 <= SOURCES_SIZE) {
+			int length = sources.getShort(offset + 8) & 0xFFFF;
+			if (length == 0 || offset + 8 + 2 + length > SOURCES_SIZE)
+				break;
+			byte[] name = new byte[length];
+			sources.get(offset + 8 + 2, name);
+			sourceOffsets.put(new String(name, StandardCharsets.UTF_8), offset);
+			offset += 8 + 2 + length;
+		}
+		sources.position(offset);
+	}
+
+	private void startSegment(long first) throws IOException {
+		Path file = directory.resolve(String.format("segment-%016d.ndj", first));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		segment.putInt(0, SEGMENT_MAGIC);
+		segment.putInt(END_OFFSET, HEADER_SIZE);
+		segment.putInt(COUNT_OFFSET, 0);
+		segment.putLong(FIRST_OFFSET, first);
+		segment.position(HEADER_SIZE);
+		segmentFirst = first;
+		segmentCount = 0;
+		syncedTo = 0;
+		size = first;
+	}
+
+	private MappedByteBuffer map(Path file, FileChannel.MapMode mode) throws IOException {
+		StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY ? new StandardOpenOption[] { StandardOpenOption.READ }
+				: new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+		try (FileChannel channel = FileChannel.open(file, options)) {
+			return channel.map(mode, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Returns the files in the directory whose names start with a prefix, in order of the sequence number in their names.
+	 */
+	private List<Path> files(String prefix) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+			for (Path file : stream) {
+				if (!file.getFileName().toString().endsWith(".tmp"))
+					files.add(file);
+			}
+		}
+		Collections.sort(files);  // The numbers in the names have a fixed width.
+		return files;
+	}
+
+	private static long sequenceOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+	}
+
+}
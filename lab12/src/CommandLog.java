@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The history of a NetDraw board, kept by a server so that a client that joins late,
+ * or reconnects, can be brought up to date.  Every command is given a sequence number,
+ * starting from zero, in the order in which the server broadcasts it, and is stored in
+ * the binary frame format of BinaryCodec, back to back in one growing byte array.
+ * <p>A client that offers the "sync" handshake feature, with the number of commands
+ * it already has as the value (for example "sync=0"), is sent a snapshot right after
+ * the handshake reply.  The snapshot is a header line
+ * <pre>
+ *    #snapshot from to length
+ * </pre>
+ * followed by length bytes of zlib-compressed binary frames, holding the commands with
+ * sequence numbers from up to, but not including, to.  The commands that the client
+ * is sent after the snapshot are numbered from to onward, with no gap and no overlap,
+ * since the server writes the snapshot and the live commands to the client's
+ * connection in order.  (The snapshot is always binary, even if the connection uses
+ * the text format.)  If from is less than the client asked for, the server does not
+ * have the client's earlier commands, probably because it was restarted, and sends
+ * its whole board; the client must then drop the commands that it had from the
+ * server, or they would be drawn twice.
+ * <p>The log is not thread-safe.
+ */
+public class CommandLog {
+
+	public final static String SNAPSHOT_HEADER = "#snapshot";
+	private final static int INDEX_INTERVAL = 256;  // The byte offset of every 256th command is kept, for finding commands by number.
+
+	private byte[] frames = new byte[64 * 1024];
+	private int length;                     // Number of bytes used in frames.
+	private long count;                     // Number of commands in the log.
+	private int[] index = new int[256];     // index[i] is the offset of command number i * INDEX_INTERVAL.
+	private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] cachedSnapshot;          // The last snapshot made, which is reused while no commands have been added.
+	private long cachedFrom = -1, cachedTo = -1;
+
+	/**
+	 * Add a command to the log.
+	 * @return the command's sequence number.
+	 */
+	public long append(DrawCommand c) {
+		int frameLength = BinaryCodec.frameLength(c);
+		if (encodeBuffer.capacity() < frameLength)
+			encodeBuffer = ByteBuffer.allocate(frameLength * 2);
+		encodeBuffer.clear();
+		BinaryCodec.encode(c, encodeBuffer);
+		return append(encodeBuffer.array(), 0, encodeBuffer.position());
+	}
+
+	/**
+	 * Add a command that has already been encoded as a binary frame.
+	 * @return the command's sequence number.
+	 */
+	public long append(byte[] frame, int offset, int frameLength) {
+		if (length + frameLength > frames.length) {
+			if ((long)length + frameLength > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException("Command log is full");
+			frames = Arrays.copyOf(frames, (int)Math.min(Integer.MAX_VALUE - 8, Math.max(2L * frames.length, length + frameLength)));
+		}
+		if (count % INDEX_INTERVAL == 0) {
+			int i = (int)(count / INDEX_INTERVAL);
+			if (i == index.length)
+				index = Arrays.copyOf(index, 2 * index.length);
+			index[i] = length;
+		}
+		System.arraycopy(frame, offset, frames, length, frameLength);
+		length += frameLength;
+		return count++;
+	}
+
+	/**
+	 * Returns the number of commands in the log, which is also the sequence number of the next command.
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes of binary frames in the log.
+	 */
+	public int getByteLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the compressed binary frames of the commands from sequence number from to the
+	 * end of the log.  The result of the last call is reused while the log has not changed,
+	 * so that many clients joining at once do not each cost a compression.  The array must
+	 * not be modified.
+	 */
+	public byte[] snapshot(long from) {
+		from = Math.max(0, Math.min(from, count));
+		if (from == cachedFrom && count == cachedTo)
+			return cachedSnapshot;
+		int start = offsetOf(from);
+		byte[] out = new byte[Math.max(64, (length - start) / 2)];
+		int outLength = 0;
+		deflater.reset();
+		deflater.setInput(frames, start, length - start);
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (outLength == out.length)
+				out = Arrays.copyOf(out, 2 * out.length);
+			outLength += deflater.deflate(out, outLength, out.length - outLength);
+		}
+		cachedSnapshot = Arrays.copyOf(out, outLength);
+		cachedFrom = from;
+		cachedTo = count;
+		return cachedSnapshot;
+	}
+
+	/**
+	 * Returns the header line, without a line feed, for a snapshot of commands from up to to.
+	 */
+	public static String snapshotHeader(long from, long to, int compressedLength) {
+		return SNAPSHOT_HEADER + " " + from + " " + to + " " + compressedLength;
+	}
+
+	/**
+	 * Parse a snapshot header line.
+	 * @return an array holding from, to and the compressed length, or null if the line is not a valid header.
+	 */
+	public static long[] parseSnapshotHeader(String line) {
+		String[] words = line.trim().split(" +");
+		if (words.length != 4 || !words[0].equals(SNAPSHOT_HEADER))
+			return null;
+		try {
+			long[] values = { Long.parseLong(words[1]), Long.parseLong(words[2]), Long.parseLong(words[3]) };
+			if (values[0] < 0 || values[1] < values[0] || values[2] < 0)
+				return null;
+			return values;
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the byte offset of the command with a given sequence number, or the length
+	 * of the log if seq is equal to size().
+	 */
+	private int offsetOf(long seq) {
+		if (seq == count)
+			return length;
+		int offset = index[(int)(seq / INDEX_INTERVAL)];
+		ByteBuffer buffer = ByteBuffer.wrap(frames, 0, length);
+		for (long n = seq - seq % INDEX_INTERVAL; n < seq; n++) {
+			buffer.position(offset);
+			offset += BinaryCodec.frameLength(buffer);
+		}
+		return offset;
+	}
+
+}
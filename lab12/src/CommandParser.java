@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A parser for the text form of the NetDraw protocol (see DrawCommand) that works
+ * directly on the bytes in a ByteBuffer.  The command name is recognized from its
+ * bytes in one pass, and numbers are converted to doubles without creating Strings,
+ * so parsing a shape does not allocate any objects.  Text commands need a String for
+ * the text, of course.  For stamps, the file name is matched against a list of known
+ * names given to the constructor, and the existing String is used when it matches.
+ * <p>Numbers are converted by accumulating the decimal digits into a long and then
+ * scaling by a power of ten.  For numbers with up to 15 significant digits, which
+ * includes every mouse coordinate, the result is exactly what Double.parseDouble()
+ * would give.  For longer numbers, like the color components produced by
+ * Color.getRed(), the result can differ from it in the last bit or two.
+ */
+public class CommandParser {
+
+	private final static byte[][] NAMES = new byte[DrawCommand.MAX_OPCODE + 1][];
+	static {
+		for (int op = 1; op <= DrawCommand.MAX_OPCODE; op++)
+			NAMES[op] = DrawCommand.commandName(op).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private final static double[] POWERS_OF_TEN = new double[23];  // Exactly representable powers of ten.
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+	}
+
+	private final String[] knownNames;
+	private final byte[][] knownNameBytes;
+
+	private int pos;     // Current position in the line being parsed.
+	private int end;     // Position of the line feed at the end of the line being parsed.
+	private boolean ok;  // Set to false when a number is missing or malformed.
+
+	/**
+	 * Create a parser.
+	 * @param knownNames file names of stamps that are expected in stamp commands.  When
+	 *    a stamp command uses one of these names, the String from this array is used
+	 *    as the file name in the command, instead of creating a new String.
+	 */
+	public CommandParser(String... knownNames) {
+		this.knownNames = knownNames.clone();
+		knownNameBytes = new byte[knownNames.length][];
+		for (int i = 0; i < knownNames.length; i++)
+			knownNameBytes[i] = knownNames[i].getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parse the line that starts at the buffer's position.  If the buffer contains a
+	 * complete line, ending with a line feed, the line is parsed into c, the buffer's
+	 * position is moved past the line feed, and the return value is true.  If the line
+	 * is not a valid command, c.op is set to DrawCommand.NONE.  If the buffer does not
+	 * contain a complete line, the return value is false and the position is unchanged.
+	 */
+	public boolean next(ByteBuffer in, DrawCommand c) {
+		int start = in.position();
+		int limit = in.limit();
+		int lineEnd = start;
+		while (lineEnd < limit && in.get(lineEnd) != '\n')
+			lineEnd++;
+		if (lineEnd == limit)
+			return false;
+		in.position(lineEnd + 1);
+		pos = start;
+		end = lineEnd;
+		if (end > pos && in.get(end - 1) == '\r')
+			end--;
+		parseLine(in, c);
+		return true;
+	}
+
+	private void parseLine(ByteBuffer in, DrawCommand c) {
+		c.op = DrawCommand.NONE;
+		skipSpaces(in);
+		int op = matchName(in);
+		if (op == DrawCommand.NONE)
+			return;
+		ok = true;
+		if (op == DrawCommand.POLYLINE) {
+			parsePolyline(in, c);
+			return;
+		}
+		double x = number(in);
+		double y = number(in);
+		switch (op) {
+		case DrawCommand.TEXT:
+			double size = number(in);
+			int color = color(in);
+			skipSpaces(in);
+			if (!ok || pos >= end)
+				return;
+			c.setText(x, y, size, color, string(in, pos, end));
+			break;
+		case DrawCommand.STAMP:
+			skipSpaces(in);
+			int nameEnd = pos;
+			while (nameEnd < end && in.get(nameEnd) != ' ')
+				nameEnd++;
+			if (!ok || nameEnd == pos)
+				return;
+			c.setStamp(x, y, stampName(in, pos, nameEnd));
+			break;
+		case DrawCommand.LINE:
+			double x2 = number(in);
+			double y2 = number(in);
+			int lineColor = color(in);
+			skipSpaces(in);
+			double lineWidth = pos < end ? number(in) : 1;  // The line width is optional for lines.
+			if (ok)
+				c.setShape(op, x, y, x2, y2, lineColor, lineWidth);
+			break;
+		default:
+			double width = number(in);
+			double height = number(in);
+			int shapeColor = color(in);
+			double shapeLineWidth = number(in);
+			if (ok)
+				c.setShape(op, x, y, x + width, y + height, shapeColor, shapeLineWidth);
+			break;
+		}
+	}
+
+	/**
+	 * Parse the rest of a polyline command: the color, the line width, and then the points.
+	 */
+	private void parsePolyline(ByteBuffer in, DrawCommand c) {
+		int color = color(in);
+		double lineWidth = number(in);
+		if (!ok)
+			return;
+		c.setPolyline(color, lineWidth);
+		skipSpaces(in);
+		while (pos < end) {
+			double x = number(in);
+			double y = number(in);
+			if (!ok || c.pointCount == DrawCommand.MAX_POINTS) {
+				c.op = DrawCommand.NONE;
+				return;
+			}
+			c.addPoint(x, y);
+			skipSpaces(in);
+		}
+		if (c.pointCount == 0)
+			c.op = DrawCommand.NONE;
+	}
+
+	/**
+	 * Match the command name at the start of the line.  Returns its opcode, or NONE.
+	 */
+	private int matchName(ByteBuffer in) {
+		int wordEnd = pos;
+		while (wordEnd < end && in.get(wordEnd) != ' ')
+			wordEnd++;
+		int length = wordEnd - pos;
+		int first = length > 0 ? in.get(pos) : 0;
+		for (int op = 1; op <= DrawCommand.MAX_OPCODE; op++) {
+			byte[] name = NAMES[op];
+			if (name.length == length && name[0] == first && sameBytes(in, pos, name)) {
+				pos = wordEnd;
+				return op;
+			}
+		}
+		return DrawCommand.NONE;
+	}
+
+	private int color(ByteBuffer in) {
+		double red = number(in);
+		double green = number(in);
+		double blue = number(in);
+		return DrawCommand.rgb(red, green, blue);
+	}
+
+	/**
+	 * Parse the next number on the line, skipping spaces in front of it.  If there is no
+	 * valid number, ok is set to false and the return value is zero.
+	 */
+	private double number(ByteBuffer in) {
+		skipSpaces(in);
+		boolean negative = false;
+		if (pos < end && (in.get(pos) == '-' || in.get(pos) == '+')) {
+			negative = in.get(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;       // Significant digits accumulated in the mantissa.
+		int scale = 0;        // Power of ten to multiply the mantissa by.
+		boolean any = false;  // Set to true when at least one digit is seen.
+		boolean fraction = false;
+		while (pos < end) {
+			int ch = in.get(pos);
+			if (ch >= '0' && ch <= '9') {
+				any = true;
+				if (digits < 18) {
+					if (mantissa != 0 || ch != '0')
+						digits++;
+					mantissa = mantissa * 10 + (ch - '0');
+					if (fraction)
+						scale--;
+				}
+				else if (!fraction) {
+					scale++;  // Too many digits to keep; the rest only change the magnitude.
+				}
+			}
+			else if (ch == '.' && !fraction) {
+				fraction = true;
+			}
+			else {
+				break;
+			}
+			pos++;
+		}
+		if (pos < end && any && (in.get(pos) == 'E' || in.get(pos) == 'e')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (in.get(pos) == '-' || in.get(pos) == '+')) {
+				negativeExponent = in.get(pos) == '-';
+				pos++;
+			}
+			int exponent = 0;
+			boolean exponentDigits = false;
+			while (pos < end && in.get(pos) >= '0' && in.get(pos) <= '9') {
+				exponent = Math.min(100000, exponent * 10 + (in.get(pos) - '0'));
+				exponentDigits = true;
+				pos++;
+			}
+			any = exponentDigits;
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (!any || (pos < end && in.get(pos) != ' ')) {
+			ok = false;
+			return 0;
+		}
+		double value = mantissa;
+		if (scale < 0)
+			value = -scale < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scale] : value / Math.pow(10, -scale);
+		else if (scale > 0)
+			value = scale < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+		return negative ? -value : value;
+	}
+
+	private void skipSpaces(ByteBuffer in) {
+		while (pos < end && in.get(pos) == ' ')
+			pos++;
+	}
+
+	private String stampName(ByteBuffer in, int from, int to) {
+		for (int i = 0; i < knownNameBytes.length; i++) {
+			byte[] name = knownNameBytes[i];
+			if (name.length == to - from && sameBytes(in, from, name))
+				return knownNames[i];
+		}
+		return string(in, from, to);
+	}
+
+	private static boolean sameBytes(ByteBuffer in, int at, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (in.get(at + i) != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static String string(ByteBuffer in, int from, int to) {
+		if (in.hasArray())
+			return new String(in.array(), in.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = in.get(from + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
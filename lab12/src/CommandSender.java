@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A daemon thread that takes commands from a SendQueue and writes them to a
+ * DrawConnection.  This is the only thread that uses the connection, so all of
+ * the blocking network operations -- connecting, the handshake, writing, and
+ * waiting out the reconnect backoff -- happen here and never on the JavaFX
+ * application thread.
+ * <p>Commands are batched: the sender keeps appending commands for as long as
+ * the queue has more of them, and flushes the batch when the connection says
+ * that it is full or old enough, or as soon as the queue runs dry.  So a burst
+ * of commands is sent in a few large writes, while a single command on an idle
+ * connection is written immediately.  A batch that cannot be sent because the
+ * server is down is kept and retried after the backoff delay; meanwhile, new
+ * commands pile up in the queue and are handled according to the queue's
+ * overflow policy.
+ * <p>The queue holds binary frames, which are added to the connection's batch as
+ * they are; only a connection to a server that does not accept the binary format
+ * turns them into text, as it writes them.
+ * <p>While DrawMetrics are on, the time from each command being queued until its
+ * batch has been written is recorded in DrawMetrics.SEND.
+ */
+public class CommandSender extends Thread {
+
+	private final SendQueue queue;
+	private final DrawConnection connection;
+	private long[] batchTimes = new long[64];  // When each command in the connection's batch was queued, for DrawMetrics.
+	private int batchCount;
+
+	public CommandSender(SendQueue queue, DrawConnection connection) {
+		this.queue = queue;
+		this.connection = connection;
+		setDaemon(true);
+		setName("NetDraw sender");
+	}
+
+	public SendQueue getQueue() {
+		return queue;
+	}
+
+	public DrawConnection getConnection() {
+		return connection;
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				byte[] frames = queue.take();
+				while (frames != null) {
+					int before = connection.getPendingCommands();
+					boolean ready = connection.append(frames);
+					long queued = queue.getTakenTime();
+					if (queued != 0) {
+						for (int i = connection.getPendingCommands() - before; i > 0; i--)
+							addBatchTime(queued);  // A coalesced entry holds several commands.
+					}
+					if (ready)
+						flush();
+					frames = queue.poll();
+				}
+				flush();  // The queue is empty, so don't hold back what we have.
+			}
+		}
+		catch (InterruptedException e) {
+			connection.close();
+		}
+	}
+
+	private void addBatchTime(long queued) {
+		if (batchCount == batchTimes.length)
+			batchTimes = Arrays.copyOf(batchTimes, 2 * batchCount);
+		batchTimes[batchCount++] = queued;
+	}
+
+	/**
+	 * Write the connection's current batch, retrying until it goes through.
+	 */
+	private void flush() throws InterruptedException {
+		while (true) {
+			long delay = connection.getReconnectDelay();
+			if (delay > 0)
+				Thread.sleep(delay);
+			try {
+				connection.flush();
+				for (int i = 0; i < batchCount; i++)
+					DrawMetrics.SEND.recordSince(batchTimes[i]);
+				batchCount = 0;
+				return;
+			}
+			catch (IOException e) {
+				// The connection records the failure and sets the backoff delay; just try again.
+			}
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Keeps track of the parts of a drawing surface that have been drawn on, as a short list
+ * of rectangles, so that only those parts have to be erased or redrawn instead of the
+ * whole surface.  A rectangle that overlaps or touches one that is already in the list is
+ * merged into it, so the list never holds overlapping rectangles.  When there would be
+ * more than MAX_REGIONS rectangles, they are all merged into their bounding box, which
+ * keeps the cost of adding and visiting regions small.
+ * <p>NetDraw uses a tracker for the shape preview on the overlay canvas: each mouse
+ * drag erases just the regions of the previous preview.  DrawShape() and applyCommand()
+ * report the bounds of what they draw to a tracker, if they are given one.
+ */
+public class DamageTracker {
+
+	/**
+	 * Receives the regions from forEachRegion().
+	 */
+	public interface RegionVisitor {
+		void region(double x, double y, double width, double height);
+	}
+
+	public final static int MAX_REGIONS = 8;
+
+	private final double[] left = new double[MAX_REGIONS + 1];
+	private final double[] top = new double[MAX_REGIONS + 1];
+	private final double[] right = new double[MAX_REGIONS + 1];
+	private final double[] bottom = new double[MAX_REGIONS + 1];
+	private int count;
+
+	/**
+	 * Add the bounding box of the points (x1,y1) and (x2,y2), grown on every side by pad.
+	 * For a stroked shape, pad should be at least half the line width, plus a pixel for antialiasing.
+	 */
+	public void add(double x1, double y1, double x2, double y2, double pad) {
+		double l = Math.floor(Math.min(x1, x2) - pad);
+		double t = Math.floor(Math.min(y1, y2) - pad);
+		double r = Math.ceil(Math.max(x1, x2) + pad);
+		double b = Math.ceil(Math.max(y1, y2) + pad);
+		int i = 0;
+		while (i < count) {  // Absorb every region that overlaps the new one; the result can overlap others, so start over.
+			if (left[i] <= r && l <= right[i] && top[i] <= b && t <= bottom[i]) {
+				l = Math.min(l, left[i]);
+				t = Math.min(t, top[i]);
+				r = Math.max(r, right[i]);
+				b = Math.max(b, bottom[i]);
+				remove(i);
+				i = 0;
+			}
+			else {
+				i++;
+			}
+		}
+		left[count] = l;
+		top[count] = t;
+		right[count] = r;
+		bottom[count] = b;
+		count++;
+		if (count > MAX_REGIONS)
+			mergeAll();
+	}
+
+	/**
+	 * Pass each region to a visitor, as x, y, width and height.
+	 */
+	public void forEachRegion(RegionVisitor visitor) {
+		for (int i = 0; i < count; i++)
+			visitor.region(left[i], top[i], right[i] - left[i], bottom[i] - top[i]);
+	}
+
+	/**
+	 * Forget all of the regions.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int getRegionCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the total area of the regions.  Since they do not overlap, this is the area that they cover.
+	 */
+	public double getArea() {
+		double area = 0;
+		for (int i = 0; i < count; i++)
+			area += (right[i] - left[i]) * (bottom[i] - top[i]);
+		return area;
+	}
+
+	private void remove(int i) {
+		count--;
+		left[i] = left[count];
+		top[i] = top[count];
+		right[i] = right[count];
+		bottom[i] = bottom[count];
+	}
+
+	private void mergeAll() {
+		for (int i = 1; i < count; i++) {
+			left[0] = Math.min(left[0], left[i]);
+			top[0] = Math.min(top[0], top[i]);
+			right[0] = Math.max(right[0], right[i]);
+			bottom[0] = Math.max(bottom[0], bottom[i]);
+		}
+		count = 1;
+	}
+
+}
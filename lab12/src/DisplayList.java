@@ -0,0 +1,228 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A record of every command that has been drawn on a picture, in the order it was
+ * drawn, so that the picture can be drawn again, at any scale or in another graphics
+ * context, and so that the commands can be looked at or sent to someone else.
+ * <p>The commands are not stored as objects.  Each field of a command is kept in
+ * its own array of primitive values, with one element per command, which takes a
+ * fraction of the memory of one DrawCommand per shape and keeps the garbage
+ * collector from having to trace millions of small objects.  For each command, the
+ * list stores:
+ * <pre>
+ *    ops      1 byte   the opcode
+ *    coords  16 bytes  x1 y1 x2 y2 as floats; for text, x2 holds the font size; for
+ *                      a polyline, x2 holds the line width and y2 the number of points
+ *    colors   4 bytes  the color as 0xAARRGGBB
+ *    params   4 bytes  the line width (as float bits) for shapes, the index of the
+ *                      string in the string pool for text and stamps, or the position
+ *                      of the first point in the point pool for a polyline
+ * </pre>
+ * That is 25 bytes per command.  Strings are kept once each in a string pool, which
+ * matters for stamps, since there are only a few different stamp names.  The points
+ * of polylines are kept, as floats, one after another in a single array.  The arrays
+ * grow by half when they fill up, so the budget for one million shapes is 32 MB
+ * including the unused space at the end of the arrays (25 MB after trimToSize()).
+ * DisplayListBench measures it.
+ * <p>Coordinates are stored as floats, which is exact for the whole-number mouse
+ * coordinates that NetDraw produces.  A DisplayList is not thread-safe; NetDraw only
+ * uses it on the JavaFX application thread.
+ */
+public class DisplayList {
+
+	/**
+	 * Receives the commands from replay().  The command object is reused for the next
+	 * command, so it must be copied if it is needed after accept() returns.
+	 */
+	public interface CommandVisitor {
+		void accept(DrawCommand command);
+	}
+
+	private final static int INITIAL_CAPACITY = 1024;
+
+	private byte[] ops;
+	private float[] coords;
+	private int[] colors;
+	private int[] params;
+	private int count;
+
+	private float[] points = new float[256];  // The pool of polyline points, as x1 y1 x2 y2 ...
+	private int pointsLength;                 // Number of elements of points that are in use.
+
+	private final List<String> strings = new ArrayList<>();
+	private final HashMap<String,Integer> stringIndex = new HashMap<>();
+
+	public DisplayList() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Create a display list with room for a given number of commands before it has to grow.
+	 */
+	public DisplayList(int capacity) {
+		capacity = Math.max(16, capacity);
+		ops = new byte[capacity];
+		coords = new float[4 * capacity];
+		colors = new int[capacity];
+		params = new int[capacity];
+	}
+
+	/**
+	 * Add a command to the end of the list.  Commands with op equal to DrawCommand.NONE are ignored.
+	 */
+	public void add(DrawCommand c) {
+		if (c.op == DrawCommand.NONE)
+			return;
+		if (count == ops.length)
+			resize(count + (count >> 1));
+		ops[count] = (byte)c.op;
+		int at = 4 * count;
+		coords[at] = (float)c.x1;
+		coords[at + 1] = (float)c.y1;
+		colors[count] = c.color;
+		switch (c.op) {
+		case DrawCommand.TEXT:
+			coords[at + 2] = (float)c.size;
+			coords[at + 3] = 0;
+			params[count] = intern(c.text);
+			break;
+		case DrawCommand.STAMP:
+			coords[at + 2] = 0;
+			coords[at + 3] = 0;
+			params[count] = intern(c.text);
+			break;
+		case DrawCommand.POLYLINE:
+			coords[at + 2] = (float)c.lineWidth;
+			coords[at + 3] = c.pointCount;
+			params[count] = pointsLength;
+			if (pointsLength + 2 * c.pointCount > points.length)
+				points = Arrays.copyOf(points, Math.max(pointsLength + 2 * c.pointCount, points.length + (points.length >> 1)));
+			for (int i = 0; i < 2 * c.pointCount; i++)
+				points[pointsLength++] = (float)c.points[i];
+			break;
+		default:
+			coords[at + 2] = (float)c.x2;
+			coords[at + 3] = (float)c.y2;
+			params[count] = Float.floatToRawIntBits((float)c.lineWidth);
+			break;
+		}
+		count++;
+	}
+
+	/**
+	 * Copy the command at a given position in the list into c.
+	 * @throws IndexOutOfBoundsException if index is not between 0 and size() - 1.
+	 */
+	public DrawCommand get(int index, DrawCommand c) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+		int op = ops[index];
+		int at = 4 * index;
+		switch (op) {
+		case DrawCommand.TEXT:
+			c.setText(coords[at], coords[at + 1], coords[at + 2], colors[index], strings.get(params[index]));
+			break;
+		case DrawCommand.STAMP:
+			c.setStamp(coords[at], coords[at + 1], strings.get(params[index]));
+			break;
+		case DrawCommand.POLYLINE:
+			c.setPolyline(colors[index], coords[at + 2]);
+			int first = params[index];
+			int last = first + 2 * (int)coords[at + 3];
+			for (int i = first; i < last; i += 2)
+				c.addPoint(points[i], points[i + 1]);
+			break;
+		default:
+			c.setShape(op, coords[at], coords[at + 1], coords[at + 2], coords[at + 3],
+					colors[index], Float.intBitsToFloat(params[index]));
+			break;
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the opcode of the command at a given position in the list.
+	 */
+	public int getOp(int index) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+		return ops[index];
+	}
+
+	/**
+	 * Pass the commands from position from up to, but not including, position to, in order, to a visitor.
+	 * A single DrawCommand object is used for all of them.
+	 */
+	public void replay(int from, int to, CommandVisitor visitor) {
+		if (from < 0 || to > count || from > to)
+			throw new IndexOutOfBoundsException("Range " + from + " to " + to + ", size " + count);
+		DrawCommand c = new DrawCommand();
+		for (int i = from; i < to; i++)
+			visitor.accept(get(i, c));
+	}
+
+	/**
+	 * Pass all of the commands, in order, to a visitor.
+	 */
+	public void replay(CommandVisitor visitor) {
+		replay(0, count, visitor);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Remove all commands from the list.  The arrays keep their current size.
+	 */
+	public void clear() {
+		count = 0;
+		pointsLength = 0;
+		strings.clear();
+		stringIndex.clear();
+	}
+
+	/**
+	 * Shrink the arrays to the number of commands in the list.
+	 */
+	public void trimToSize() {
+		if (count < ops.length)
+			resize(Math.max(16, count));
+		if (pointsLength < points.length)
+			points = Arrays.copyOf(points, pointsLength);
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the list: the arrays, including
+	 * their unused space, and the pooled strings.
+	 */
+	public long getMemoryBytes() {
+		long bytes = ops.length + 4L * coords.length + 4L * colors.length + 4L * params.length + 4L * points.length;
+		for (String s : strings)
+			bytes += 56 + s.length();  // The String, its byte array, and its entries in the pool.
+		return bytes;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private int intern(String s) {
+		Integer index = stringIndex.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.add(s);
+			stringIndex.put(s, index);
+		}
+		return index;
+	}
+
+	private void resize(int capacity) {
+		ops = Arrays.copyOf(ops, capacity);
+		coords = Arrays.copyOf(coords, 4 * capacity);
+		colors = Arrays.copyOf(colors, capacity);
+		params = Arrays.copyOf(params, capacity);
+	}
+
+}
@@ -0,0 +1,327 @@
+import java.util.Arrays;
+
+/**
+ * One drawing command, as it is sent between NetDraw programs.  A DrawCommand is a
+ * plain, mutable holder for the data of the command, so that a single object can be
+ * reused for a whole stream of commands instead of allocating one per command.
+ * <p>In the text protocol, each command is one line.  Colors are given as red, green
+ * and blue components in the range 0.0 to 1.0, as returned by Color.getRed() etc.
+ * Shapes are given by their top-left corner, width and height (the width and height
+ * can be negative if the shape was dragged up or to the left).  The lines are:
+ * <pre>
+ *    text  x y size red green blue string...
+ *    stamp x y filename
+ *    line  x1 y1 x2 y2 red green blue [lineWidth]
+ *    rect | oval | roundrect | filledrect | filledoval | filledroundrect  x y width height red green blue lineWidth
+ *    polyline red green blue lineWidth x1 y1 x2 y2 ...
+ * </pre>
+ * For text, the string is the rest of the line.  For stamps, (x,y) is the center of
+ * the stamp image, and filename is one of the names of the images in the "stamps" folder.
+ * A polyline is a connected series of line segments through a list of points, as drawn
+ * by the Pen tool; it has at least one point and at most MAX_POINTS points.
+ */
+public class DrawCommand {
+
+	public final static int NONE = 0;  // Not a valid command; used for lines that could not be parsed.
+	public final static int TEXT = 1;
+	public final static int STAMP = 2;
+	public final static int LINE = 3;
+	public final static int RECT = 4;
+	public final static int OVAL = 5;
+	public final static int ROUNDRECT = 6;
+	public final static int FILLED_RECT = 7;
+	public final static int FILLED_OVAL = 8;
+	public final static int FILLED_ROUNDRECT = 9;
+	public final static int POLYLINE = 10;
+	public final static int MAX_OPCODE = 10;
+
+	/**
+	 * The largest number of points in a polyline.  This keeps the longest text line for
+	 * a polyline well within the input buffers of the network code.
+	 */
+	public final static int MAX_POINTS = 1024;
+
+	private final static String[] NAMES = {  // Command names in the text protocol, indexed by opcode.
+			null, "text", "stamp", "line", "rect", "oval", "roundrect", "filledrect", "filledoval", "filledroundrect", "polyline"
+		};
+
+	private final static String[] TOOL_NAMES = {  // Names of the corresponding tools in NetDraw's Tool menu, indexed by opcode.
+			null, "Text", "Stamp", "Line", "Rectangle", "Oval", "RoundRect", "Filled Rectangle", "Filled Oval", "Filled RoundRect", "Pen"
+		};
+
+	public int op;             // One of the opcode constants.
+	public double x1, y1;      // The first corner or endpoint of a shape, the start of the baseline of text, or the center of a stamp.
+	public double x2, y2;      // The opposite corner or the other endpoint of a shape.  Not used for text and stamps.
+	public int color;          // The color, packed as 0xAARRGGBB.
+	public double lineWidth;   // Line width for lines, shapes and polylines.
+	public double size;        // Font size for text.
+	public String text;        // The string for text, or the file name for a stamp.
+	public double[] points;    // For a polyline, the points as x1, y1, x2, y2, ...  The array can be longer than needed.
+	public int pointCount;     // The number of points in a polyline.
+	public boolean lineSegments;  // For a polyline, true if each segment is drawn as a separate line, with square ends; see StrokeCoalescer.
+
+	/**
+	 * Set this command to a shape or line.  (x1,y1) and (x2,y2) are opposite corners
+	 * of the shape, or the endpoints of the line.
+	 */
+	public DrawCommand setShape(int op, double x1, double y1, double x2, double y2, int color, double lineWidth) {
+		this.op = op;
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.color = color;
+		this.lineWidth = lineWidth;
+		this.text = null;
+		return this;
+	}
+
+	/**
+	 * Set this command to draw a string, with its baseline starting at (x,y).
+	 */
+	public DrawCommand setText(double x, double y, double size, int color, String text) {
+		this.op = TEXT;
+		this.x1 = this.x2 = x;
+		this.y1 = this.y2 = y;
+		this.size = size;
+		this.color = color;
+		this.text = text;
+		return this;
+	}
+
+	/**
+	 * Set this command to draw a stamp centered at (x,y).
+	 */
+	public DrawCommand setStamp(double x, double y, String fileName) {
+		this.op = STAMP;
+		this.x1 = this.x2 = x;
+		this.y1 = this.y2 = y;
+		this.text = fileName;
+		return this;
+	}
+
+	/**
+	 * Set this command to a polyline with no points yet.  Add the points with addPoint().
+	 */
+	public DrawCommand setPolyline(int color, double lineWidth) {
+		this.op = POLYLINE;
+		this.color = color;
+		this.lineWidth = lineWidth;
+		this.text = null;
+		pointCount = 0;
+		lineSegments = false;
+		return this;
+	}
+
+	/**
+	 * Add a point to the end of a polyline.  (x1,y1) is kept equal to the first point of
+	 * the polyline, and (x2,y2) to the last point.
+	 * @throws IllegalStateException if the polyline already has MAX_POINTS points.
+	 */
+	public DrawCommand addPoint(double x, double y) {
+		if (pointCount == MAX_POINTS)
+			throw new IllegalStateException("Too many points in a polyline");
+		if (points == null || points.length < 2 * pointCount + 2)
+			points = points == null ? new double[64] : Arrays.copyOf(points, Math.min(2 * MAX_POINTS, 2 * points.length));
+		points[2 * pointCount] = x;
+		points[2 * pointCount + 1] = y;
+		if (pointCount == 0) {
+			x1 = x;
+			y1 = y;
+		}
+		x2 = x;
+		y2 = y;
+		pointCount++;
+		return this;
+	}
+
+	/**
+	 * Make this command a copy of another one.  The points of a polyline are copied into
+	 * this command's own array.
+	 */
+	public DrawCommand copyFrom(DrawCommand c) {
+		op = c.op;
+		x1 = c.x1;
+		y1 = c.y1;
+		x2 = c.x2;
+		y2 = c.y2;
+		color = c.color;
+		lineWidth = c.lineWidth;
+		size = c.size;
+		text = c.text;
+		if (c.op == POLYLINE) {
+			if (points == null || points.length < 2 * c.pointCount)
+				points = new double[Math.max(64, 2 * c.pointCount)];
+			System.arraycopy(c.points, 0, points, 0, 2 * c.pointCount);
+			pointCount = c.pointCount;
+			lineSegments = c.lineSegments;
+		}
+		return this;
+	}
+
+	/**
+	 * Returns true if this is a line or one of the shapes, that is, something that is drawn by NetDraw.drawShape().
+	 */
+	public boolean isShape() {
+		return op >= LINE && op <= FILLED_ROUNDRECT;
+	}
+
+	/**
+	 * Returns the command name that is used for an opcode in the text protocol, such as "rect".
+	 */
+	public static String commandName(int op) {
+		return op > 0 && op <= MAX_OPCODE ? NAMES[op] : null;
+	}
+
+	/**
+	 * Returns the name of the NetDraw tool for an opcode, such as "Rectangle".
+	 */
+	public static String toolName(int op) {
+		return op > 0 && op <= MAX_OPCODE ? TOOL_NAMES[op] : null;
+	}
+
+	/**
+	 * Returns the opcode for the name of a NetDraw tool, or NONE if the name is not a known tool.
+	 */
+	public static int opcodeForTool(String tool) {
+		for (int op = 1; op <= MAX_OPCODE; op++) {
+			if (TOOL_NAMES[op].equals(tool))
+				return op;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Returns the line for this command in the text protocol, without a line terminator.
+	 */
+	public String toText() {
+		return appendText(new StringBuilder(64)).toString();
+	}
+
+	/**
+	 * Appends the line for this command in the text protocol, without a line terminator.
+	 */
+	public StringBuilder appendText(StringBuilder b) {
+		b.append(NAMES[op]).append(' ');
+		switch (op) {
+		case TEXT:
+			b.append(x1).append(' ').append(y1).append(' ').append(size).append(' ');
+			appendColor(b).append(' ').append(text);
+			break;
+		case STAMP:
+			b.append(x1).append(' ').append(y1).append(' ').append(text);
+			break;
+		case LINE:
+			b.append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2).append(' ');
+			appendColor(b).append(' ').append(lineWidth);
+			break;
+		case POLYLINE:
+			appendColor(b).append(' ').append(lineWidth);
+			for (int i = 0; i < 2 * pointCount; i++)
+				b.append(' ').append(points[i]);
+			break;
+		default:
+			b.append(x1).append(' ').append(y1).append(' ').append(x2 - x1).append(' ').append(y2 - y1).append(' ');
+			appendColor(b).append(' ').append(lineWidth);
+			break;
+		}
+		return b;
+	}
+
+	private StringBuilder appendColor(StringBuilder b) {
+		return b.append(((color >> 16) & 0xFF) / 255.0).append(' ')
+				.append(((color >> 8) & 0xFF) / 255.0).append(' ')
+				.append((color & 0xFF) / 255.0);
+	}
+
+	/**
+	 * Set this command from a line in the text protocol.
+	 * @return false if the line is not a valid command.  In that case, op is set to NONE.
+	 */
+	public boolean parse(String line) {
+		op = NONE;
+		if (line.trim().startsWith(NAMES[POLYLINE] + " "))
+			return parsePolyline(line.trim().split(" +"));
+		String[] tokens = line.trim().split(" +", 8);
+		int parsedOp = NONE;
+		for (int i = 1; i <= MAX_OPCODE; i++) {
+			if (NAMES[i].equals(tokens[0]))
+				parsedOp = i;
+		}
+		try {
+			switch (parsedOp) {
+			case NONE:
+				return false;
+			case TEXT:
+				if (tokens.length < 8)
+					return false;
+				setText(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+						rgb(tokens[4], tokens[5], tokens[6]), tokens[7]);
+				return true;
+			case STAMP:
+				if (tokens.length < 4)
+					return false;
+				setStamp(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]), tokens[3].trim());
+				return true;
+			case LINE:
+				if (tokens.length < 8)
+					return false;
+				String[] end = tokens[7].split(" +");  // "blue" and, optionally, "lineWidth".
+				setShape(LINE, Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+						Double.parseDouble(tokens[4]), rgb(tokens[5], tokens[6], end[0]),
+						end.length > 1 ? Double.parseDouble(end[1]) : 1);
+				return true;
+			default:
+				if (tokens.length < 8)
+					return false;
+				String[] rest = tokens[7].split(" +");  // "blue lineWidth".
+				if (rest.length < 2)
+					return false;
+				double x = Double.parseDouble(tokens[1]);
+				double y = Double.parseDouble(tokens[2]);
+				setShape(parsedOp, x, y, x + Double.parseDouble(tokens[3]), y + Double.parseDouble(tokens[4]),
+						rgb(tokens[5], tokens[6], rest[0]), Double.parseDouble(rest[1]));
+				return true;
+			}
+		}
+		catch (NumberFormatException e) {
+			op = NONE;
+			return false;
+		}
+	}
+
+	private boolean parsePolyline(String[] tokens) {
+		if (tokens.length < 7 || tokens.length % 2 == 0 || (tokens.length - 5) / 2 > MAX_POINTS)
+			return false;
+		try {
+			setPolyline(rgb(tokens[1], tokens[2], tokens[3]), Double.parseDouble(tokens[4]));
+			for (int i = 5; i < tokens.length; i += 2)
+				addPoint(Double.parseDouble(tokens[i]), Double.parseDouble(tokens[i+1]));
+			return true;
+		}
+		catch (NumberFormatException e) {
+			op = NONE;
+			return false;
+		}
+	}
+
+	/**
+	 * Pack an opaque color from red, green and blue components in the range 0.0 to 1.0.
+	 */
+	public static int rgb(double red, double green, double blue) {
+		return 0xFF000000 | (component(red) << 16) | (component(green) << 8) | component(blue);
+	}
+
+	private static int rgb(String red, String green, String blue) {
+		return rgb(Double.parseDouble(red), Double.parseDouble(green), Double.parseDouble(blue));
+	}
+
+	private static int component(double c) {
+		return Math.max(0, Math.min(255, (int)Math.round(c * 255)));
+	}
+
+	public String toString() {
+		return op == NONE ? "none" : toText();
+	}
+
+}
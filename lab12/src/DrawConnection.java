@@ -0,0 +1,513 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A long-lived outbound connection to a NetDraw server.  The "NetDraw" handshake is
+ * done once, when the socket is opened, and the socket then stays open for all
+ * following commands.  The handshake offers the binary command format (see
+ * BinaryCodec), which is used if the server accepts it, and says that this
+ * connection is only used for sending.  A server that does not confirm that, with the
+ * "sendonly" feature in its reply, sends this connection the commands of the other
+ * users, as it would any client.  They are read and thrown away by a thread for the
+ * socket: if no one read them, the socket's buffers would fill up, and the server
+ * would block writing to it and stop reading the commands sent here.
+ * <p>If the server does not answer an offer with a NetDraw reply, because it closes
+ * the socket or does not answer in time, the connection is opened again at once with
+ * the plain "NetDraw" handshake, so that servers that know nothing about features
+ * still work; the features are offered again the next time the connection is opened.
+ * That is not done if a room has been set, since the commands would go to the
+ * server's default room instead: a server that does not accept the room is not used,
+ * and this is reported once to the listener given to setRoomRefusedListener(), if
+ * any.  If the connection breaks, it is reopened automatically the next time a
+ * command is sent.  Failed connection attempts are spaced out using an exponential
+ * backoff, so that a server that is down is not hammered with connects.
+ * <p>Commands can be added to a batch with append() and written together with
+ * flush(), so that a burst of commands goes out in one write instead of one small
+ * TCP segment per command.  Nagle's algorithm is turned off on the socket, since
+ * the batching is done here and a flushed batch should be sent immediately.
+ * send() appends one command and flushes it at once.  The batch holds binary frames,
+ * which are written as they are if the server accepted the binary format, and as
+ * text lines otherwise (see BatchingWriter); a command given as a DrawCommand or as
+ * frames is never turned into text for a binary server.
+ * <p>If setCompression(true) has been called, the "deflate" feature is offered too, and
+ * if the server accepts it, batches are written through a Deflater that lasts as long as
+ * the socket, with a sync flush after each batch (see Handshake.DEFLATE).
+ * <p>A DrawConnection is meant to be owned by a single sender; its methods are
+ * synchronized only so that the statistics can be read safely from other threads.
+ */
+public class DrawConnection {
+
+	private final static int CONNECT_TIMEOUT = 2000;   // Milliseconds allowed for the TCP connect and the handshake reply.
+	private final static long MIN_BACKOFF = 100;       // Delay, in milliseconds, after the first failed connection attempt.
+	private final static long MAX_BACKOFF = 5000;      // The backoff delay doubles after each failure, up to this limit.
+	public final static int DEFAULT_BATCH_BYTES = 16 * 1024;   // Default size at which a batch is ready to be flushed.
+	public final static long DEFAULT_BATCH_DELAY = 1000;       // Default time, in microseconds, that a command can wait in a batch.
+
+	private final String host;
+	private final int port;
+
+	private Socket socket;     // The open socket, or null if not currently connected.
+	private OutputStream out;  // Output stream for the socket.  Not buffered, since the BatchingWriter does the buffering.
+	private final BatchingWriter batch;
+	private boolean binary;               // Set to true if the server accepted the binary format for the current socket.
+	private boolean roomRefused;          // Set to true once it has been reported that the server does not support rooms.
+	private String room;                  // The room to join, or null for the server's default room.
+	private Consumer<String> roomRefusedListener;  // Told when the server does not support rooms, or null.
+	private String origin;                // The ID of the user, for Handshake.ORIGIN, or null.
+	private boolean compression;          // Offer the deflate feature.
+	private Deflater deflater;            // Compresses the output, if the server accepted deflate; otherwise null.
+
+	private long backoff = MIN_BACKOFF;  // Delay to use after the next failed connection attempt.
+	private long nextConnectTime;        // System.currentTimeMillis() before which no new connection attempt is made.
+
+	private long connects;          // Number of successful connections, including the first one.
+	private long failures;          // Number of failed connection attempts and broken connections.
+	private long commandsSent;      // Number of commands written since this object was created.
+	private long bytesSent;         // Number of bytes written, not counting the handshakes.
+	private final AtomicLong bytesDiscarded = new AtomicLong();  // Bytes that servers sent on connections that are only for sending.
+	private long wireBytesSent;     // The same, after compression.
+	private long flushes;           // Number of successful flushes, that is, of batches written.
+	private long totalSendNanos;    // Sum, over all commands sent, of the time the command's batch waited before being written.
+	private long maxSendNanos;      // Longest time that any batch waited between its first append and the end of its write.
+	private long startTime = System.nanoTime();
+
+	/**
+	 * Create a connection object for a given server, using the default batch limits.
+	 * No connection is made until the first command is flushed.
+	 */
+	public DrawConnection(String host, int port) {
+		this(host, port, DEFAULT_BATCH_BYTES, DEFAULT_BATCH_DELAY);
+	}
+
+	/**
+	 * Create a connection object for a given server.
+	 * @param maxBatchBytes append() reports that the batch should be flushed when it holds this many bytes.
+	 * @param maxBatchDelayMicros append() reports that the batch should be flushed when its
+	 *     oldest command has waited this many microseconds.
+	 */
+	public DrawConnection(String host, int port, int maxBatchBytes, long maxBatchDelayMicros) {
+		this.host = host;
+		this.port = port;
+		batch = new BatchingWriter(maxBatchBytes, maxBatchDelayMicros);
+	}
+
+	/**
+	 * Set the room on the server that commands are sent to, or null for the server's
+	 * default room.  It is used from the next time the connection is opened.  (A server
+	 * that does not know about rooms, or about handshake features at all, ignores it.)
+	 * @throws IllegalArgumentException if the name is not allowed; see Handshake.room().
+	 */
+	public synchronized void setRoom(String room) {
+		if (room != null)
+			Handshake.room(room);
+		this.room = room;
+	}
+
+	public synchronized String getRoom() {
+		return room;
+	}
+
+	/**
+	 * Set the ID of the user, which is offered as the "origin" feature from the next time
+	 * that the connection is opened, or null for none.  A server that accepts it marks the
+	 * commands sent on this connection as echoes when it sends them to a receiver of the
+	 * same user.  See Handshake.ORIGIN.
+	 * @throws IllegalArgumentException if the ID is not allowed; see Handshake.origin().
+	 */
+	public synchronized void setOrigin(String origin) {
+		if (origin != null)
+			Handshake.origin(origin);
+		this.origin = origin;
+	}
+
+	/**
+	 * Say whether to offer the "deflate" feature, to compress the commands, the next time
+	 * that the connection is opened.  Compression costs some processor time per command,
+	 * and saves most of the bytes.
+	 */
+	public synchronized void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Set the listener that is told, with a message for the user, when the server does
+	 * not accept the room, or null for none.  It is called once, on the thread that is
+	 * sending, the first time that the room is refused.
+	 */
+	public synchronized void setRoomRefusedListener(Consumer<String> listener) {
+		this.roomRefusedListener = listener;
+	}
+
+	/**
+	 * Send one command line to the server right away, together with any commands
+	 * that were appended earlier and not yet flushed.
+	 * @param command the command, without a line terminator.
+	 * @throws IOException if the command could not be sent.  See flush().
+	 */
+	public synchronized void send(String command) throws IOException {
+		batch.append(command);
+		flush();
+	}
+
+	/**
+	 * Add a command to the current batch without doing any I/O.
+	 * @param command the command in the text protocol, without a line terminator.  It is
+	 *     parsed, and skipped if it is not valid.
+	 * @return true if the batch is now full or has waited long enough, so that
+	 *     flush() should be called.
+	 */
+	public synchronized boolean append(String command) {
+		return batch.append(command);
+	}
+
+	/**
+	 * Add a command to the current batch without doing any I/O.
+	 * @return true if the batch is now full or has waited long enough, so that
+	 *     flush() should be called.
+	 * @throws IllegalArgumentException if c is not a valid command; see BinaryCodec.encode().
+	 */
+	public synchronized boolean append(DrawCommand c) {
+		return batch.append(c);
+	}
+
+	/**
+	 * Add commands that are already encoded as binary frames, such as an entry of a
+	 * SendQueue, to the current batch without doing any I/O.
+	 * @return true if the batch is now full or has waited long enough, so that
+	 *     flush() should be called.
+	 * @throws IllegalArgumentException if the bytes are not whole frames.
+	 */
+	public synchronized boolean append(byte[] frames) {
+		return batch.append(frames);
+	}
+
+	/**
+	 * Write the current batch to the server in a single write, connecting first if
+	 * necessary.  If the write fails on an existing connection, the connection is
+	 * reopened and the write is tried one more time, since a server restart will
+	 * normally show up as a failed write on the old socket.  If the batch cannot be
+	 * written, it is kept, and will be written by the next successful flush().
+	 * @throws IOException if the batch could not be written.  This includes the case
+	 *     where the previous connection attempt failed and the backoff delay has not
+	 *     yet expired.
+	 */
+	public synchronized void flush() throws IOException {
+		if (batch.isEmpty())
+			return;
+		long firstAppend = batch.getFirstAppendTime();
+		int commands = batch.getPendingCommands();
+		long bytesBefore = batch.getBytesWritten();
+		boolean wasConnected = socket != null;
+		try {
+			write();
+		}
+		catch (IOException e) {
+			closeSocket();
+			failures++;
+			if (!wasConnected)
+				throw e;
+			write();  // One retry on a fresh connection.
+		}
+		long elapsed = System.nanoTime() - firstAppend;
+		flushes++;
+		commandsSent += commands;
+		bytesSent += batch.getBytesWritten() - bytesBefore;
+		totalSendNanos += elapsed * commands;
+		if (elapsed > maxSendNanos)
+			maxSendNanos = elapsed;
+	}
+
+	/**
+	 * Returns the number of commands that have been appended but not yet written.
+	 */
+	public synchronized int getPendingCommands() {
+		return batch.getPendingCommands();
+	}
+
+	/**
+	 * Returns the number of milliseconds until the next connection attempt is allowed,
+	 * or zero if a command can be sent now.  A sender that does not want to lose
+	 * commands can sleep for this long before calling send().
+	 */
+	public synchronized long getReconnectDelay() {
+		if (socket != null)
+			return 0;
+		return Math.max(0, nextConnectTime - System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns true if commands are currently being sent in the binary format.
+	 */
+	public synchronized boolean isBinary() {
+		return socket != null && binary;
+	}
+
+	/**
+	 * Returns true if a socket is currently open.
+	 */
+	public synchronized boolean isConnected() {
+		return socket != null;
+	}
+
+	/**
+	 * Close the connection, if one is open.  A later send() will reconnect.
+	 */
+	public synchronized void close() {
+		closeSocket();
+	}
+
+	public synchronized long getCommandsSent() {
+		return commandsSent;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of bytes that getBytesSent() came to on the network, after any compression.
+	 */
+	public synchronized long getWireBytesSent() {
+		return wireBytesSent;
+	}
+
+	/**
+	 * Returns the number of bytes that servers that did not accept the sendonly feature
+	 * sent on this connection, which were thrown away.
+	 */
+	public long getBytesDiscarded() {
+		return bytesDiscarded.get();
+	}
+
+	/**
+	 * Returns the number of batches written.  The average batch size is getCommandsSent()/getFlushes().
+	 */
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	public synchronized long getConnects() {
+		return connects;
+	}
+
+	/**
+	 * Returns the number of times that a connection was reopened after the first one.
+	 */
+	public synchronized long getReconnects() {
+		return Math.max(0, connects - 1);
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the average time, in microseconds, from when a command is appended until
+	 * the write of its batch completes, including the time for any connection that had
+	 * to be made.  Each command is charged with the wait of the oldest command in its batch.
+	 */
+	public synchronized double getAverageLatencyMicros() {
+		return commandsSent == 0 ? 0 : totalSendNanos / 1000.0 / commandsSent;
+	}
+
+	public synchronized double getMaxLatencyMicros() {
+		return maxSendNanos / 1000.0;
+	}
+
+	/**
+	 * Returns the average number of commands sent per second since this object was created.
+	 */
+	public synchronized double getCommandsPerSecond() {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return seconds <= 0 ? 0 : commandsSent / seconds;
+	}
+
+	/**
+	 * Returns a one-line summary of the statistics for this connection.
+	 */
+	public synchronized String getStats() {
+		return String.format("%s:%d sent=%d bytes=%d wire=%d flushes=%d cmd/s=%.1f avg=%.1fus max=%.1fus connects=%d failures=%d discarded=%d",
+				host, port, commandsSent, bytesSent, wireBytesSent, flushes, getCommandsPerSecond(), getAverageLatencyMicros(),
+				getMaxLatencyMicros(), connects, failures, bytesDiscarded.get());
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void write() throws IOException {
+		if (socket == null)
+			connect();
+		long before = deflater == null ? batch.getBytesWritten() : deflater.getBytesWritten();
+		if (binary)
+			batch.writeTo(out);
+		else
+			batch.writeTextTo(out);
+		wireBytesSent += (deflater == null ? batch.getBytesWritten() : deflater.getBytesWritten()) - before;
+	}
+
+	/**
+	 * Open the socket and do the handshake, falling back to the plain handshake if the
+	 * server does not answer the features.  A failure counts once toward the backoff,
+	 * however many sockets were tried.
+	 */
+	private void connect() throws IOException {
+		if (System.currentTimeMillis() < nextConnectTime)
+			throw new IOException("Waiting to reconnect to " + host + ":" + port);
+		try {
+			if (!open(true)) {
+				if (room != null)
+					throw roomRefused();
+				if (!open(false))
+					throw new IOException("Server did not accept the NetDraw handshake");
+			}
+			connects++;
+			backoff = MIN_BACKOFF;
+			nextConnectTime = 0;
+		}
+		catch (IOException e) {
+			nextConnectTime = System.currentTimeMillis() + backoff;
+			backoff = Math.min(MAX_BACKOFF, backoff * 2);
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a socket and do one handshake.  The client sends "NetDraw", followed by the
+	 * features that it would like to use if offer is true, and the server must answer
+	 * with a line that starts with "NetDraw" (see Handshake).
+	 * @return false, with the socket closed, if the server closed the socket or did not
+	 *     answer within CONNECT_TIMEOUT, or answered with something else.
+	 */
+	private boolean open(boolean offer) throws IOException {
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			s.setSoTimeout(CONNECT_TIMEOUT);
+			s.setTcpNoDelay(true);
+			OutputStream os = s.getOutputStream();
+			List<String> features = new ArrayList<>();
+			features.add(Handshake.BINARY);
+			features.add(Handshake.SEND_ONLY);
+			if (compression)
+				features.add(Handshake.DEFLATE);
+			if (room != null)
+				features.add(Handshake.room(room));
+			if (origin != null)
+				features.add(Handshake.origin(origin));
+			String line = offer ? Handshake.offer(features.toArray(new String[0])) : Handshake.offer();
+			os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			os.flush();
+			List<String> accepted;
+			try {
+				accepted = Handshake.parse(readLine(s.getInputStream()));
+			}
+			catch (SocketTimeoutException e) {
+				accepted = null;
+			}
+			if (accepted == null) {
+				s.close();
+				return false;
+			}
+			if (offer && room != null && !room.equals(Handshake.value(accepted, Handshake.ROOM)))
+				throw roomRefused();
+			s.setSoTimeout(0);
+			if (!Handshake.has(accepted, Handshake.SEND_ONLY))
+				discardInput(s);
+			socket = s;
+			binary = Handshake.has(accepted, Handshake.BINARY);
+			if (Handshake.has(accepted, Handshake.DEFLATE)) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				out = new DeflaterOutputStream(os, deflater, 16 * 1024, true);  // With sync flush, so flush() sends everything.
+			}
+			else {
+				out = os;
+			}
+			return true;
+		}
+		catch (IOException e) {
+			try {
+				s.close();
+			}
+			catch (IOException e2) {
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the exception for a server that does not accept the room, and tells the listener the first time.
+	 */
+	private IOException roomRefused() {
+		String error = "Server " + host + ":" + port + " does not support rooms, so commands for room " + room + " are not sent to it";
+		if (!roomRefused && roomRefusedListener != null)
+			roomRefusedListener.accept(error);
+		roomRefused = true;
+		return new IOException(error);
+	}
+
+	/**
+	 * Start a thread that reads everything that the server sends on a socket and throws
+	 * it away, until the socket is closed.
+	 */
+	private void discardInput(Socket s) throws IOException {
+		InputStream in = s.getInputStream();
+		Thread reader = new Thread(() -> {
+			byte[] buffer = new byte[16 * 1024];
+			try {
+				int count;
+				while ((count = in.read(buffer)) >= 0)
+					bytesDiscarded.addAndGet(count);
+			}
+			catch (IOException e) {  // The socket was closed.
+			}
+		});
+		reader.setDaemon(true);
+		reader.setName("NetDraw discard " + host + ":" + port);
+		reader.start();
+	}
+
+	private void closeSocket() {
+		if (socket != null) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+			}
+			socket = null;
+			out = null;
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+	}
+
+	/**
+	 * Read one line from the stream, one byte at a time, so that nothing past the
+	 * end of the line is consumed.  Returns null at end-of-stream.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0)
+				return line.length() == 0 ? null : line.toString();
+			if (b == '\n')
+				break;
+			if (b != '\r')
+				line.append((char)b);
+		}
+		return line.toString();
+	}
+
+}
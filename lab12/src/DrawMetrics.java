@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Runtime metrics for the drawing pipeline, in one place, so that a slow or stuck board
+ * can be diagnosed while the program runs.  There are two kinds of metric:
+ * <ul>
+ * <li>Latency histograms, filled in by the pipeline itself: INPUT, the time to handle a
+ *     mouse event, including drawing on the local image and queueing the command; SEND,
+ *     from a command being queued until it has been written to the server; PARSE, the
+ *     time to decode one received command; RENDER, from a received command being put in
+ *     the render queue until it is drawn; and FRAME, the time spent drawing per frame.
+ * <li>Gauges, which read the counters and queue depths that the pipeline's classes
+ *     keep anyway, such as the depth of the send and render queues, the number of
+ *     commands sent and received, and the number of reconnects.  They are registered
+ *     with gauge() by whoever creates those objects.
+ * </ul>
+ * Collecting latencies is off unless the system property netdraw.metrics is "on", and
+ * can be turned on and off at any time with setEnabled().  When it is off, now()
+ * returns 0 and the histograms ignore it, so the cost on the hot paths is a read of a
+ * volatile boolean.  Gauges cost nothing until they are read.
+ * <p>install() makes the metrics visible outside the program: they are registered with
+ * the platform MBean server, as the MBean OBJECT_NAME, where a JMX console such as
+ * jconsole can read them, turn collection on and off through the Enabled attribute,
+ * and reset the histograms; and, while collection is on, a summary line is printed
+ * every netdraw.metrics.log seconds (10 by default; 0 for none).
+ */
+public class DrawMetrics {
+
+	public final static String OBJECT_NAME = "NetDraw:type=DrawMetrics";
+	private final static int LOG_SECONDS = Integer.getInteger("netdraw.metrics.log", 10);
+
+	public final static LatencyHistogram INPUT = new LatencyHistogram();
+	public final static LatencyHistogram SEND = new LatencyHistogram();
+	public final static LatencyHistogram PARSE = new LatencyHistogram();
+	public final static LatencyHistogram RENDER = new LatencyHistogram();
+	public final static LatencyHistogram FRAME = new LatencyHistogram();
+
+	private final static Map<String,LatencyHistogram> histograms = new LinkedHashMap<>();
+	private final static Map<String,LongSupplier> gauges = new LinkedHashMap<>();  // Guarded by the map itself.
+	private static volatile boolean enabled = "on".equalsIgnoreCase(System.getProperty("netdraw.metrics"));
+	private static boolean installed;
+
+	static {
+		histograms.put("input", INPUT);
+		histograms.put("send", SEND);
+		histograms.put("parse", PARSE);
+		histograms.put("render", RENDER);
+		histograms.put("frame", FRAME);
+	}
+
+	private DrawMetrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turn the collection of latencies on or off.  What has been collected is kept.
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Returns System.nanoTime() if metrics are on, or 0 if they are off.  Pass the result
+	 * to the recordSince() method of a histogram at the end of the period being timed.
+	 */
+	public static long now() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Add a value that is read when the metrics are shown, such as the depth of a queue.
+	 * A gauge with the same name as an earlier one replaces it.
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		synchronized(gauges) {
+			gauges.put(name, value);
+		}
+	}
+
+	/**
+	 * Empty all the histograms.
+	 */
+	public static void reset() {
+		for (LatencyHistogram h : histograms.values())
+			h.reset();
+	}
+
+	/**
+	 * Register the MBean and start the thread that prints the summary line.  Only the first call does anything.
+	 */
+	public static synchronized void install() {
+		if (installed)
+			return;
+		installed = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+		}
+		catch (JMException e) {
+			System.out.println("Can't register the metrics with JMX: " + e);
+		}
+		if (LOG_SECONDS > 0) {
+			Thread log = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(LOG_SECONDS * 1000L);
+						if (enabled)
+							System.out.println(getStats());
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			});
+			log.setDaemon(true);
+			log.setName("NetDraw metrics");
+			log.start();
+		}
+	}
+
+	/**
+	 * Returns a one-line summary of every histogram that has something in it, and of every gauge.
+	 */
+	public static String getStats() {
+		StringBuilder line = new StringBuilder("metrics:");
+		for (Map.Entry<String,LatencyHistogram> e : histograms.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			if (h.getCount() > 0)
+				line.append(' ').append(e.getKey()).append("[").append(h.getStats()).append("]");
+		}
+		for (Map.Entry<String,LongSupplier> e : gaugeList())
+			line.append(' ').append(e.getKey()).append('=').append(e.getValue().getAsLong());
+		return line.toString();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private static List<Map.Entry<String,LongSupplier>> gaugeList() {
+		synchronized(gauges) {
+			return new ArrayList<>(gauges.entrySet());
+		}
+	}
+
+	/**
+	 * The MBean.  Its attributes are Enabled, which can be set; NAME.count, NAME.p50,
+	 * NAME.p99, NAME.p999 and NAME.max for each histogram, in microseconds; and one for
+	 * each gauge.  Its only operation is reset.  It is a DynamicMBean because gauges can
+	 * be added after it is registered.
+	 */
+	private static class Bean implements DynamicMBean {
+
+		private final static String[] STATISTICS = { "count", "p50", "p99", "p999", "max" };
+
+		public Object getAttribute(String name) throws AttributeNotFoundException {
+			if (name.equals("Enabled"))
+				return enabled;
+			int dot = name.lastIndexOf('.');
+			LatencyHistogram h = dot < 0 ? null : histograms.get(name.substring(0, dot));
+			if (h != null) {
+				switch (name.substring(dot + 1)) {
+				case "count": return (double)h.getCount();
+				case "p50": return h.getPercentile(50) / 1000.0;
+				case "p99": return h.getPercentile(99) / 1000.0;
+				case "p999": return h.getPercentile(99.9) / 1000.0;
+				case "max": return h.getMax() / 1000.0;
+				}
+			}
+			for (Map.Entry<String,LongSupplier> e : gaugeList())
+				if (e.getKey().equals(name))
+					return e.getValue().getAsLong();
+			throw new AttributeNotFoundException(name);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+			if (!attribute.getName().equals("Enabled"))
+				throw new AttributeNotFoundException(attribute.getName() + " can't be set");
+			if (!(attribute.getValue() instanceof Boolean))
+				throw new InvalidAttributeValueException("Enabled must be a boolean");
+			setEnabled((Boolean)attribute.getValue());
+		}
+
+		public AttributeList getAttributes(String[] names) {
+			AttributeList list = new AttributeList();
+			for (String name : names) {
+				try {
+					list.add(new Attribute(name, getAttribute(name)));
+				}
+				catch (AttributeNotFoundException e) {
+				}
+			}
+			return list;
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			AttributeList set = new AttributeList();
+			for (Attribute a : attributes.asList()) {
+				try {
+					setAttribute(a);
+					set.add(a);
+				}
+				catch (JMException e) {
+				}
+			}
+			return set;
+		}
+
+		public Object invoke(String action, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+			if (!action.equals("reset"))
+				throw new ReflectionException(new NoSuchMethodException(action));
+			reset();
+			return null;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "Whether latencies are being collected", true, true, true));
+			for (String name : histograms.keySet())
+				for (String statistic : STATISTICS)
+					attributes.add(new MBeanAttributeInfo(name + "." + statistic, "double",
+							statistic.equals("count") ? "Number of " + name + " latencies" : statistic + " of the " + name + " latency, in microseconds",
+							true, false, false));
+			for (Map.Entry<String,LongSupplier> e : gaugeList())
+				attributes.add(new MBeanAttributeInfo(e.getKey(), "long", e.getKey(), true, false, false));
+			MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Empty the latency histograms", null, "void", MBeanOperationInfo.ACTION);
+			return new MBeanInfo(DrawMetrics.class.getName(), "Metrics of the NetDraw drawing pipeline",
+					attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { reset }, null);
+		}
+
+	}
+
+}
@@ -0,0 +1,148 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the fonts that text commands are drawn with, by family and size, and the
+ * measured extents of the strings drawn with them, so that neither has to be made again
+ * for the next command.  Looking up a font and laying out a string are slow compared
+ * with drawing it, and a class tends to use a few sizes and often repeats the same
+ * words.  The size of a text command comes from the network, though, and could be
+ * anything, so both are bounded: at most maxFonts fonts and maxExtents extents are
+ * kept, and when there would be more, the least recently used one is dropped.
+ * <p>The fonts are made and measured by a Fonts object, so the same cache serves for
+ * JavaFX fonts in NetDraw and for AWT fonts in SoftwareRasterizer.  A family of null
+ * stands for the default family.  A FontCache is not thread-safe.
+ * @param <F> the type of font.
+ */
+public class FontCache<F> {
+
+	/**
+	 * Makes fonts and measures strings.
+	 */
+	public interface Fonts<F> {
+		/**
+		 * Returns the font of a family and size.  The family can be null for the default family.
+		 */
+		F create(String family, double size);
+		/**
+		 * Returns the extent of a string drawn in a font, with its baseline at y = 0.
+		 */
+		Extent measure(F font, String text);
+	}
+
+	/**
+	 * The size of a string drawn in some font.  The ascent is the distance that it goes
+	 * up from the baseline, and the descent the distance that it goes down from it.
+	 */
+	public final static class Extent {
+		public final double width, ascent, descent;
+		public Extent(double width, double ascent, double descent) {
+			this.width = width;
+			this.ascent = ascent;
+			this.descent = descent;
+		}
+	}
+
+	private final Fonts<F> fonts;
+	private final LinkedHashMap<Key,F> fontsByKey;        // Least recently used first.
+	private final LinkedHashMap<Key,Extent> extentsByKey; // Least recently used first.
+	private final Key probe = new Key();  // Reused for lookups, so that a hit makes no garbage.
+
+	private long fontHits, fontMisses, extentHits, extentMisses, evictions;
+
+	/**
+	 * Create a cache that keeps up to maxFonts fonts and the extents of up to maxExtents strings.
+	 */
+	public FontCache(Fonts<F> fonts, int maxFonts, int maxExtents) {
+		this.fonts = fonts;
+		fontsByKey = new LinkedHashMap<Key,F>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,F> eldest) {
+				if (size() <= maxFonts)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+		extentsByKey = new LinkedHashMap<Key,Extent>(256, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,Extent> eldest) {
+				if (size() <= maxExtents)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the font of a family and size, making it if it is not in the cache.
+	 */
+	public F font(String family, double size) {
+		F font = fontsByKey.get(probe.set(family, size, null));
+		if (font != null) {
+			fontHits++;
+			return font;
+		}
+		fontMisses++;
+		font = fonts.create(family, size);
+		fontsByKey.put(new Key().set(family, size, null), font);
+		return font;
+	}
+
+	/**
+	 * Returns the extent of a string in the font of a family and size, measuring it if it is not in the cache.
+	 */
+	public Extent extent(String family, double size, String text) {
+		Extent extent = extentsByKey.get(probe.set(family, size, text));
+		if (extent != null) {
+			extentHits++;
+			return extent;
+		}
+		extentMisses++;
+		extent = fonts.measure(font(family, size), text);
+		extentsByKey.put(new Key().set(family, size, text), extent);
+		return extent;
+	}
+
+	/**
+	 * Empty the cache.
+	 */
+	public void clear() {
+		fontsByKey.clear();
+		extentsByKey.clear();
+	}
+
+	public String getStats() {
+		return String.format("fonts=%d hits=%d misses=%d extents=%d hits=%d misses=%d evictions=%d", fontsByKey.size(),
+				fontHits, fontMisses, extentsByKey.size(), extentHits, extentMisses, evictions);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * A family, size and, for an extent, string.
+	 */
+	private static class Key {
+		String family;
+		double size;
+		String text;
+		int hash;
+		Key set(String family, double size, String text) {
+			this.family = family;
+			this.size = size;
+			this.text = text;
+			hash = (Objects.hashCode(family) * 31 + Double.hashCode(size)) * 31 + Objects.hashCode(text);
+			return this;
+		}
+		public int hashCode() {
+			return hash;
+		}
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return Double.compare(size, k.size) == 0 && Objects.equals(family, k.family) && Objects.equals(text, k.text);
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.GraphicsContext;
+
+/**
+ * Applies the commands from a RenderQueue to a GraphicsContext, or some other Target, once per JavaFX pulse.
+ * Each frame, the renderer draws as many queued commands as it can within a time
+ * budget, and leaves the rest for the next frame, so that a flood of commands from
+ * the network is spread over several frames instead of freezing the user interface.
+ * Each command that is drawn can also be passed on to be recorded.  Lines and
+ * polylines that continue one another are joined by a StrokeCoalescer and drawn as
+ * one polyline; they are still recorded one by one, so a command can be recorded
+ * before it has been drawn, and flush() must be called before the picture is read.
+ * Work that must see the whole frame drawn, such as saving checkpoints of the picture,
+ * is done by the afterFrame action, once per frame, after the drawing loop; it is kept
+ * out of the loop so that the budget is spent on drawing and the clock checks are
+ * not thrown off by a snapshot that takes a good part of a frame.  Its time is
+ * counted in the frame's time, so a frame that saves a checkpoint shows up as a long one.
+ * <p>The renderer also keeps statistics about the time spent per frame and the backlog,
+ * and a DamageTracker with the area that was drawn in the last frame, and, while
+ * DrawMetrics are on, records the time per frame and the time that each command
+ * waited in the queue.
+ */
+public class FrameRenderer extends AnimationTimer {
+
+	public final static long DEFAULT_BUDGET_NANOS = 4_000_000;  // 4 milliseconds, a quarter of a 60 Hz frame.
+	private final static int COMMANDS_PER_CLOCK_CHECK = 32;     // The clock is read after every 32 commands, not after each one.
+
+	/**
+	 * Something that the renderer can draw commands on, such as a TiledSurface.
+	 */
+	public interface Target {
+		void draw(DrawCommand command, DamageTracker damage);
+		/**
+		 * Finish drawing the commands that have been passed to draw(), for a target that
+		 * draws them in batches.  It is called at the end of every frame.
+		 */
+		default void flush() {
+		}
+	}
+
+	private final RenderQueue queue;
+	private final Target target;
+	private final DisplayList.CommandVisitor record;
+	private final DamageTracker damage = new DamageTracker();
+	private final StrokeCoalescer strokes = new StrokeCoalescer();
+	private volatile long budgetNanos = DEFAULT_BUDGET_NANOS;
+	private Runnable afterFrame;
+
+	private volatile long frames;            // Frames in which at least one command was drawn.
+	private volatile long commandsDrawn;
+	private volatile long lastFrameNanos;    // Drawing time in the most recent frame that drew something.
+	private volatile long maxFrameNanos;
+	private volatile long totalFrameNanos;
+	private volatile long framesOverBudget;  // Frames that ended with commands still waiting.
+	private volatile int lastBacklog;        // Commands left in the queue at the end of the most recent frame.
+
+	/**
+	 * Create a renderer that draws the commands from queue in g.  Call start() to begin rendering.
+	 */
+	public FrameRenderer(RenderQueue queue, GraphicsContext g) {
+		this(queue, (command, damage) -> NetDraw.applyCommand(command, g, damage), null);
+	}
+
+	/**
+	 * Create a renderer that draws the commands from queue on a target and passes each one to record after drawing it.
+	 * @param record receives the commands, for example the add() method of a DisplayList, or null if the
+	 *     commands should not be recorded.
+	 */
+	public FrameRenderer(RenderQueue queue, Target target, DisplayList.CommandVisitor record) {
+		this.queue = queue;
+		this.target = target;
+		this.record = record;
+	}
+
+	/**
+	 * Set the maximum time to spend drawing commands in one frame.  At least a few
+	 * commands are drawn per frame, however small the budget.
+	 */
+	public void setBudgetNanos(long budgetNanos) {
+		this.budgetNanos = budgetNanos;
+	}
+
+	/**
+	 * Set an action to run at the end of each frame that drew commands, after they have
+	 * all been drawn and flushed, or null for none.
+	 */
+	public void setAfterFrame(Runnable afterFrame) {
+		this.afterFrame = afterFrame;
+	}
+
+	public void handle(long now) {
+		if (queue.peek() == null)
+			return;
+		long start = System.nanoTime();
+		long deadline = start + budgetNanos;
+		damage.reset();
+		int count = 0;
+		DrawCommand command;
+		while ((command = queue.peek()) != null) {
+			strokes.draw(command, target, damage);
+			DrawMetrics.RENDER.recordSince(queue.peekTime());
+			if (record != null)
+				record.accept(command);
+			queue.remove();
+			count++;
+			if (count % COMMANDS_PER_CLOCK_CHECK == 0 && System.nanoTime() >= deadline)
+				break;
+		}
+		flush();
+		if (afterFrame != null)
+			afterFrame.run();
+		long elapsed = System.nanoTime() - start;
+		if (DrawMetrics.isEnabled())
+			DrawMetrics.FRAME.record(elapsed);
+		frames++;
+		commandsDrawn += count;
+		lastFrameNanos = elapsed;
+		totalFrameNanos += elapsed;
+		if (elapsed > maxFrameNanos)
+			maxFrameNanos = elapsed;
+		lastBacklog = queue.size();
+		if (lastBacklog > 0)
+			framesOverBudget++;
+	}
+
+	/**
+	 * Draw the stroke that is waiting to be joined with the next one, and finish drawing
+	 * on the target.  This is done at the end of every frame, but anything that reads the
+	 * picture in the middle of a frame, such as a checkpoint taken while a command is
+	 * being recorded, must call it first.  Only for use on the application thread.
+	 */
+	public void flush() {
+		strokes.flush(target, damage);
+		target.flush();
+	}
+
+	/**
+	 * Returns the regions that were drawn in the most recent frame that drew something.  Only for use on the application thread.
+	 */
+	public DamageTracker getDamage() {
+		return damage;
+	}
+
+	/**
+	 * Returns the object that joins strokes, for its statistics.
+	 */
+	public StrokeCoalescer getStrokeCoalescer() {
+		return strokes;
+	}
+
+	public RenderQueue getQueue() {
+		return queue;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getCommandsDrawn() {
+		return commandsDrawn;
+	}
+
+	public long getLastFrameNanos() {
+		return lastFrameNanos;
+	}
+
+	public long getMaxFrameNanos() {
+		return maxFrameNanos;
+	}
+
+	public double getAverageFrameMillis() {
+		return frames == 0 ? 0 : totalFrameNanos / 1e6 / frames;
+	}
+
+	public long getFramesOverBudget() {
+		return framesOverBudget;
+	}
+
+	/**
+	 * Returns the number of commands that were still waiting at the end of the last frame.
+	 */
+	public int getBacklog() {
+		return lastBacklog;
+	}
+
+	public String getStats() {
+		return String.format("frames=%d commands=%d avg=%.2fms last=%.2fms max=%.2fms overBudget=%d backlog=%d queueMax=%d lastDamage=%.0fpx paths=%d",
+				frames, commandsDrawn, getAverageFrameMillis(), lastFrameNanos / 1e6, maxFrameNanos / 1e6,
+				framesOverBudget, lastBacklog, queue.getMaxDepth(), damage.getArea(), strokes.getPathsDrawn());
+	}
+
+}
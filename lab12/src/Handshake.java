@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The opening exchange of the NetDraw protocol.  A client starts by sending the line
+ * "NetDraw", and the server answers with a line that also starts with "NetDraw".
+ * Optional protocol features are negotiated in the same exchange: the client lists
+ * the features it supports after the word NetDraw, separated by spaces, and the
+ * server's reply lists the ones that will actually be used.  A feature is a word,
+ * or a key=value pair for features that need a parameter.  A peer that does not
+ * know about features just answers "NetDraw", and then none of them are used, so
+ * the plain text protocol still works with old peers.
+ * <p>A client that offered features and did not get any kind of "NetDraw" reply
+ * should retry with the bare "NetDraw" line, in case the server insists on it.
+ */
+public class Handshake {
+
+	public final static String GREETING = "NetDraw";
+
+	/**
+	 * The port that NetDraw servers listen on, unless they are told otherwise.
+	 */
+	public final static int DEFAULT_PORT = 35053;
+
+	/**
+	 * Feature name for the binary command format, version 2 (see BinaryCodec).
+	 */
+	public final static String BINARY = "bin2";
+
+	/**
+	 * Feature name used by a client that only sends commands, and does not want to be
+	 * sent the commands of other clients.
+	 */
+	public final static String SEND_ONLY = "sendonly";
+
+	/**
+	 * Feature name used by a client that wants a snapshot of the board when it joins.
+	 * The value is the number of the board's commands that the client already has,
+	 * usually 0.  See CommandLog.
+	 */
+	public final static String SYNC = "sync";
+
+	/**
+	 * Feature name for compressing the rest of the connection, in both directions, as one
+	 * zlib stream per direction.  Everything after the handshake lines is compressed,
+	 * including any snapshot, and each batch of data is ended with a sync flush, so that
+	 * the receiver can decode it without waiting for more.  The compressor keeps its
+	 * dictionary for the life of the connection, so the command names, colors and
+	 * numbers that every command repeats cost only a few bits after the first time.
+	 * A client that offers it must not send anything more until it has read the reply,
+	 * since only then does it know whether to compress.
+	 */
+	public final static String DEFLATE = "deflate";
+
+	/**
+	 * Feature name used by a client to pick the room, that is, the board, that it joins
+	 * on a server that has several.  The value is the name of the room, which can't
+	 * contain spaces.  Clients that don't give a room share a default room.  See room().
+	 */
+	public final static String ROOM = "room";
+
+	/**
+	 * Returns the room feature for joining a named room, for use in offer().
+	 * @throws IllegalArgumentException if the name is empty or contains white space.
+	 */
+	public static String room(String name) {
+		if (name.isEmpty() || name.chars().anyMatch(Character::isWhitespace))
+			throw new IllegalArgumentException("Bad room name: \"" + name + "\"");
+		return ROOM + "=" + name;
+	}
+
+	/**
+	 * Feature name by which a client says which user it belongs to.  NetDraw sends its
+	 * commands on one connection and receives the board on another, so a server that
+	 * sends each command to every other client also sends the user's own commands back
+	 * to them, although they have already been drawn.  When both connections give the
+	 * same value, the server marks the frames of those echoes with BinaryCodec.ECHO, so
+	 * that the client can drop them and still count them for sync.  The value is any
+	 * word without spaces that other clients are unlikely to use, such as a random
+	 * number.  It is only accepted together with the binary format.  See origin().
+	 */
+	public final static String ORIGIN = "origin";
+
+	/**
+	 * Returns the origin feature for a client's ID, for use in offer().
+	 * @throws IllegalArgumentException if the ID is empty or contains white space.
+	 */
+	public static String origin(String id) {
+		if (id.isEmpty() || id.chars().anyMatch(Character::isWhitespace))
+			throw new IllegalArgumentException("Bad origin: \"" + id + "\"");
+		return ORIGIN + "=" + id;
+	}
+
+	/**
+	 * Returns the line that a client sends to offer a list of features.
+	 * With no features, this is just "NetDraw".
+	 */
+	public static String offer(String... features) {
+		StringBuilder b = new StringBuilder(GREETING);
+		for (String f : features)
+			b.append(' ').append(f);
+		return b.toString();
+	}
+
+	/**
+	 * Parse a handshake line.
+	 * @return the list of features in the line, which is empty for a bare "NetDraw",
+	 *     or null if the line is not a NetDraw handshake at all.
+	 */
+	public static List<String> parse(String line) {
+		if (line == null)
+			return null;
+		String[] words = line.trim().split(" +");
+		if (!words[0].equals(GREETING))
+			return null;
+		List<String> features = new ArrayList<>();
+		for (int i = 1; i < words.length; i++)
+			features.add(words[i]);
+		return features;
+	}
+
+	/**
+	 * Returns the reply that a server sends to a client's handshake line, accepting
+	 * those offered features that are also in the list of supported features.
+	 * Returns null if the line is not a NetDraw handshake.
+	 */
+	public static String reply(String offerLine, String... supported) {
+		List<String> offered = parse(offerLine);
+		if (offered == null)
+			return null;
+		List<String> accepted = new ArrayList<>();
+		for (String f : offered) {
+			for (String s : supported) {
+				if (f.equals(s) || f.startsWith(s + "="))
+					accepted.add(f);
+			}
+		}
+		return offer(accepted.toArray(new String[0]));
+	}
+
+	/**
+	 * Tests whether a list of features, as returned by parse(), contains a feature.
+	 */
+	public static boolean has(List<String> features, String feature) {
+		return value(features, feature) != null;
+	}
+
+	/**
+	 * Returns the value of a key=value feature, the empty string if the feature is
+	 * present without a value, or null if it is not present.
+	 */
+	public static String value(List<String> features, String key) {
+		for (String f : features) {
+			if (f.equals(key))
+				return "";
+			if (f.startsWith(key + "="))
+				return f.substring(key.length() + 1);
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,330 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+/**
+ * Draws boards without JavaFX, so that pictures can be made on a machine with no
+ * display: thumbnails of boards on a server, and reference pictures for checking that
+ * drawing has not changed.  Commands are drawn by a SoftwareRasterizer, in batches of
+ * BATCH, into a white board.  They can be given one by one, as text lines in the
+ * protocol's format, from a file of such lines (a recorded session), or from a
+ * CommandJournal.  Stamps are loaded with ImageIO from the same resources that NetDraw
+ * uses.  The picture can be saved as a PNG file, at full size or reduced to a thumbnail.
+ * <p>The main program draws a file or journal as fast as it can, saves the picture,
+ * reports the drawing speed in commands per second, and can compare the picture with
+ * a reference picture, exiting with status 1 if they differ:
+ * <pre>
+ *    java -Djava.awt.headless=true HeadlessRenderer [options] input output.png
+ *
+ *    input               a file of text commands, one per line, or a journal directory
+ *    -size WxH           size of the board; the default is 1000x600, as NetDraw's
+ *    -thumb N            save a thumbnail that is at most N pixels wide and high
+ *    -golden file.png    compare the saved picture with this one
+ *    -tolerance T        a pixel differs if a channel differs by more than T; the default is 2
+ * </pre>
+ * A HeadlessRenderer is not thread-safe.
+ */
+public class HeadlessRenderer {
+
+	public final static int BATCH = 4096;
+	public final static int DEFAULT_WIDTH = 1000, DEFAULT_HEIGHT = 600;  // The size of NetDraw's board.
+
+	private final SoftwareRasterizer rasterizer;
+	private final DrawCommand[] batch = new DrawCommand[BATCH];
+	private int count;
+	private final CommandParser parser = new CommandParser(StampRegistry.builtInNames());
+	private final HashMap<String,SoftwareRasterizer.Bitmap> stamps = new HashMap<>();  // Loaded stamps, or null for names that could not be loaded.
+
+	private long commands;
+	private long renderNanos;
+
+	/**
+	 * Create a white board of the given size, drawn by the threads of the common ForkJoinPool.
+	 */
+	public HeadlessRenderer(int width, int height) {
+		rasterizer = new SoftwareRasterizer(width, height, ForkJoinPool.commonPool());
+		rasterizer.setImageSource(this::stamp);
+		for (int i = 0; i < BATCH; i++)
+			batch[i] = new DrawCommand();
+	}
+
+	/**
+	 * Draw a command.  It is copied, and drawn with the rest of its batch.
+	 */
+	public void draw(DrawCommand c) {
+		if (c.op == DrawCommand.NONE)
+			return;
+		batch[count++].copyFrom(c);
+		if (count == BATCH)
+			flush();
+	}
+
+	/**
+	 * Draw a command given as a line of text in the protocol's format.
+	 * @return false if the line is not a valid command.
+	 */
+	public boolean draw(String line) {
+		DrawCommand c = new DrawCommand();
+		if (!c.parse(line))
+			return false;
+		draw(c);
+		return true;
+	}
+
+	/**
+	 * Draw every command in a file of text commands, one per line.  Lines that are not valid commands are skipped.
+	 * @return the number of lines.
+	 */
+	public long drawTextFile(Path file) throws IOException {
+		ByteBuffer data;
+		try (FileChannel channel = FileChannel.open(file)) {
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		DrawCommand c = new DrawCommand();
+		long lines = 0;
+		while (parser.next(data, c)) {
+			draw(c);
+			lines++;
+		}
+		if (data.hasRemaining()) {  // A last line with no line feed.
+			byte[] rest = new byte[data.remaining()];
+			data.get(rest);
+			draw(new String(rest, StandardCharsets.UTF_8));
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * Draw the board recorded in a journal: its latest checkpoint, if it has the size of this board, and then the
+	 * commands after it.  Other checkpoints are ignored and the whole journal is drawn.
+	 * @return the number of commands drawn.
+	 */
+	public long drawJournal(Path directory) throws IOException {
+		try (CommandJournal journal = new CommandJournal(directory, CommandJournal.SyncPolicy.NEVER)) {
+			CommandJournal.Checkpoint checkpoint = journal.readCheckpoint();
+			long from = 0;
+			if (checkpoint != null && checkpoint.width == 0) {
+				from = checkpoint.sequence;
+			}
+			else if (checkpoint != null && checkpoint.width == getWidth() && checkpoint.height == getHeight()) {
+				flush();
+				rasterizer.setPixels(checkpoint.pixels);
+				from = checkpoint.sequence;
+			}
+			return journal.replay(from, this::draw);
+		}
+	}
+
+	/**
+	 * Draw the commands that are waiting in the current batch.
+	 */
+	public void flush() {
+		if (count == 0)
+			return;
+		long start = System.nanoTime();
+		rasterizer.render(batch, count);
+		renderNanos += System.nanoTime() - start;
+		commands += count;
+		count = 0;
+	}
+
+	/**
+	 * Make the board white.  Commands that have not been drawn yet are discarded.
+	 */
+	public void clear() {
+		count = 0;
+		rasterizer.fill(0xFFFFFFFF);
+	}
+
+	public int getWidth() {
+		return rasterizer.getWidth();
+	}
+
+	public int getHeight() {
+		return rasterizer.getHeight();
+	}
+
+	/**
+	 * Returns the picture, as ARGB pixels row by row, after drawing everything.  It is not a copy.
+	 */
+	public int[] getPixels() {
+		flush();
+		return rasterizer.getPixels();
+	}
+
+	/**
+	 * Returns a copy of the picture as an image.
+	 */
+	public BufferedImage toImage() {
+		BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, getWidth(), getHeight(), getPixels(), 0, getWidth());
+		return image;
+	}
+
+	/**
+	 * Returns a copy of the picture reduced to fit in a square of maxSize pixels, keeping its
+	 * shape.  Each pixel is the average of the block of pixels of the picture that it covers,
+	 * so thin lines fade instead of disappearing, and the result is the same on every machine.
+	 */
+	public BufferedImage thumbnail(int maxSize) {
+		int width = getWidth(), height = getHeight();
+		double scale = Math.min(1, (double)maxSize / Math.max(width, height));
+		int w = Math.max(1, (int)Math.round(width * scale)), h = Math.max(1, (int)Math.round(height * scale));
+		int[] pixels = getPixels();
+		int[] reduced = new int[w * h];
+		for (int ty = 0; ty < h; ty++) {
+			int y0 = ty * height / h, y1 = Math.max(y0 + 1, (ty + 1) * height / h);
+			for (int tx = 0; tx < w; tx++) {
+				int x0 = tx * width / w, x1 = Math.max(x0 + 1, (tx + 1) * width / w);
+				long r = 0, g = 0, b = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						int argb = pixels[y * width + x];
+						r += (argb >> 16) & 0xFF;
+						g += (argb >> 8) & 0xFF;
+						b += argb & 0xFF;
+					}
+				}
+				long n = (long)(y1 - y0) * (x1 - x0);
+				reduced[ty * w + tx] = 0xFF000000 | (int)((r + n/2) / n) << 16 | (int)((g + n/2) / n) << 8 | (int)((b + n/2) / n);
+			}
+		}
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, w, h, reduced, 0, w);
+		return image;
+	}
+
+	/**
+	 * Save the picture as a PNG file.
+	 * @param maxSize if positive, a thumbnail of at most this size is saved instead of the whole picture.
+	 */
+	public void writePng(Path file, int maxSize) throws IOException {
+		BufferedImage image = maxSize > 0 ? thumbnail(maxSize) : toImage();
+		if (!ImageIO.write(image, "png", file.toFile()))
+			throw new IOException("No PNG writer is available");
+	}
+
+	/**
+	 * Returns the number of commands drawn so far.
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Returns the number of commands drawn per second of drawing time, not counting parsing and reading.
+	 */
+	public double getCommandsPerSecond() {
+		return renderNanos == 0 ? 0 : commands / (renderNanos / 1e9);
+	}
+
+	/**
+	 * Returns the number of pixels where some color channel differs by more than tolerance
+	 * between two images, or -1 if the images do not have the same size.
+	 */
+	public static long countDifferences(BufferedImage a, BufferedImage b, int tolerance) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			return -1;
+		int width = a.getWidth(), height = a.getHeight();
+		int[] rowA = new int[width], rowB = new int[width];
+		long differences = 0;
+		for (int y = 0; y < height; y++) {
+			a.getRGB(0, y, width, 1, rowA, 0, width);
+			b.getRGB(0, y, width, 1, rowB, 0, width);
+			for (int x = 0; x < width; x++) {
+				int p = rowA[x], q = rowB[x];
+				if (Math.abs(((p >> 16) & 0xFF) - ((q >> 16) & 0xFF)) > tolerance
+						|| Math.abs(((p >> 8) & 0xFF) - ((q >> 8) & 0xFF)) > tolerance
+						|| Math.abs((p & 0xFF) - (q & 0xFF)) > tolerance)
+					differences++;
+			}
+		}
+		return differences;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the pixels of a stamp, loading them the first time.  Called by the rasterizer, on the thread
+	 * that called flush().
+	 */
+	private SoftwareRasterizer.Bitmap stamp(String name) {
+		if (stamps.containsKey(name))
+			return stamps.get(name);
+		SoftwareRasterizer.Bitmap bitmap = null;
+		String source = StampRegistry.source(StampRegistry.id(name));
+		try {
+			URL url = source == null ? null : source.contains(":") ? new URL(source) : HeadlessRenderer.class.getClassLoader().getResource(source);
+			BufferedImage image = url == null ? null : ImageIO.read(url);
+			if (image != null) {
+				int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+				bitmap = new SoftwareRasterizer.Bitmap(image.getWidth(), image.getHeight(), pixels);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Can't load the stamp " + name + ": " + e);
+		}
+		stamps.put(name, bitmap);
+		return bitmap;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int width = DEFAULT_WIDTH, height = DEFAULT_HEIGHT;
+		int thumb = 0;
+		String golden = null;
+		int tolerance = 2;
+		int i = 0;
+		while (i < args.length - 2 && args[i].startsWith("-")) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-size":
+				String[] parts = value.toLowerCase().split("x");
+				width = Integer.parseInt(parts[0]);
+				height = Integer.parseInt(parts[1]);
+				break;
+			case "-thumb": thumb = Integer.parseInt(value); break;
+			case "-golden": golden = value; break;
+			case "-tolerance": tolerance = Integer.parseInt(value); break;
+			default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			i += 2;
+		}
+		if (args.length - i != 2) {
+			System.out.println("Usage:  java HeadlessRenderer [-size WxH] [-thumb N] [-golden file.png] [-tolerance T] input output.png");
+			System.exit(2);
+		}
+		Path input = Paths.get(args[i]);
+		Path output = Paths.get(args[i + 1]);
+		HeadlessRenderer renderer = new HeadlessRenderer(width, height);
+		long start = System.nanoTime();
+		if (Files.isDirectory(input))
+			renderer.drawJournal(input);
+		else
+			renderer.drawTextFile(input);
+		renderer.flush();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		renderer.writePng(output, thumb);
+		System.out.printf("%d commands in %.3f s: %.0f commands/sec (%.0f commands/sec drawing only)%n", renderer.getCommands(),
+				seconds, renderer.getCommands() / seconds, renderer.getCommandsPerSecond());
+		if (golden != null) {
+			long differences = countDifferences(ImageIO.read(output.toFile()), ImageIO.read(Paths.get(golden).toFile()), tolerance);
+			if (differences != 0) {
+				System.out.println(differences < 0 ? "The picture is not the same size as " + golden
+						: differences + " pixels differ from " + golden);
+				System.exit(1);
+			}
+			System.out.println("The picture matches " + golden);
+		}
+	}
+
+}
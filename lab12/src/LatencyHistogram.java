@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, with buckets laid out as in HdrHistogram:
+ * below 128ns there is one bucket per nanosecond, and above that each power of two is
+ * split into 64 buckets of equal width.  So a recorded value is kept to within 1/64,
+ * about 1.6%, at every scale from nanoseconds up to MAX_VALUE, in a fixed array of a
+ * couple of thousand counters.  Recording a value is a few shifts and an atomic
+ * increment, so it can be done from any number of threads on a hot path, and the
+ * percentiles can be read at any time from another thread.
+ */
+public class LatencyHistogram {
+
+	public final static long MAX_VALUE = 1L << 40;  // About 18 minutes; longer durations are counted as this.
+
+	private final static int SUB_BITS = 7;                     // Values below 2^SUB_BITS get a bucket each.
+	private final static int HALF = 1 << (SUB_BITS - 1);        // Buckets per power of two, above that.
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Count one duration.  Negative values are counted as zero.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value));
+		total.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/**
+	 * Count the time since start, a value of System.nanoTime() returned by
+	 * DrawMetrics.now().  Nothing is counted if start is 0, which is what
+	 * DrawMetrics.now() returns when metrics are off.
+	 */
+	public void recordSince(long start) {
+		if (start != 0)
+			record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the number of durations that have been counted.
+	 */
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < counts.length(); i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double)total.get() / n;
+	}
+
+	/**
+	 * Returns the duration that a given percentage of the counted durations do not
+	 * exceed, to within the width of its bucket, or 0 if nothing has been counted.
+	 * @param percent from 0 to 100, for example 99.9.
+	 */
+	public long getPercentile(double percent) {
+		long[] snapshot = new long[counts.length()];
+		long n = 0;
+		for (int i = 0; i < snapshot.length; i++)
+			n += snapshot[i] = counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percent / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestEquivalent(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forget everything that has been counted.  Values recorded by other threads
+	 * while this runs may or may not be forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns a summary such as "n=1200 p50=41.2us p99=180us p99.9=1.20ms max=3.41ms".
+	 */
+	public String getStats() {
+		return "n=" + getCount() + " p50=" + format(getPercentile(50)) + " p99=" + format(getPercentile(99))
+				+ " p99.9=" + format(getPercentile(99.9)) + " max=" + format(getMax());
+	}
+
+	/**
+	 * Returns a duration in the most readable of ns, us, ms and s, with three significant digits.
+	 */
+	public static String format(long nanos) {
+		if (nanos < 1000)
+			return nanos + "ns";
+		String[] units = { "us", "ms", "s" };
+		double value = nanos / 1000.0;
+		int unit = 0;
+		while (value >= 1000 && unit < units.length - 1) {
+			value /= 1000;
+			unit++;
+		}
+		return String.format(value < 10 ? "%.2f%s" : value < 100 ? "%.1f%s" : "%.0f%s", value, units[unit]);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * The bucket for a value: the value itself below 2^SUB_BITS, and above that, HALF
+	 * buckets for each power of two, found from the top SUB_BITS bits of the value.
+	 */
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+		return shift * HALF + (int)(value >>> shift);
+	}
+
+	/**
+	 * The largest value that falls in a bucket.
+	 */
+	private static long highestEquivalent(int index) {
+		if (index < 2 * HALF)
+			return index;
+		int shift = index / HALF - 1;
+		long lowest = (long)(index - shift * HALF) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+}
@@ -1,21 +1,21 @@
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketAddress;
-import java.util.Scanner;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
+import javafx.geometry.Bounds;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
@@ -24,77 +24,177 @@ import javafx.scene.control.MenuItem;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.Paint;
-import javafx.scene.shape.Line;
 import javafx.scene.shape.Shape;
+import javafx.scene.shape.StrokeLineCap;
+import javafx.scene.shape.StrokeLineJoin;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
+import javafx.scene.transform.Affine;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 public class NetDraw extends Application {
 
 	private final static String[] TOOLS = {  // The commands that appear in the Tools menu.
 			"Rectangle", "Oval", "RoundRect", "Filled Rectangle", "Filled Oval",
-			"Filled RoundRect", "Line", "Text"   // "Stamp" tool is handled separately!
+			"Filled RoundRect", "Line", "Pen", "Text"   // "Stamp" tool is handled separately!
 		};
 	
 	private final static String[] TOOL_SHORTCUTS = { // For defining accelerator keys for commands in the Tools menu.
 			"shortcut+R", "shortcut+V", "shortcut+D", "shortcut+shift+R", "shortcut+shift+V", 
-			"shortcut+shift+D", "shortcut+L", "shortcut+T"
-		};
-	
-	private final static String[] STAMP_FILE_NAMES = {  // Resource file names for available stamps, which must be in a folder names "stamps".
-			"bell.png", "bomb.png", "camera.png", "check.png", "flower.png",
-			"smiley.png", "star.png", "tux.png", "TV.png", "x.png"
+			"shortcut+shift+D", "shortcut+L", "shortcut+P", "shortcut+T"
 		};
 	
 	private final static int WIDTH = 1000;  // Width of the Canvas that is used for drawing.
 	private final static int HEIGHT = 600;  // Height of the Canvas that is used for drawing.
+	private final static String BOARD_SIZE = System.getProperty("netdraw.board");  // "widthxheight" for a large, tiled board; otherwise the board is the Canvas.
+	private final static boolean SOFTWARE_RENDERER = "software".equals(System.getProperty("netdraw.renderer"));  // Draw a normal board on other threads with a SoftwareRasterizer.
+	private final static boolean SORT_BATCHES = "on".equals(System.getProperty("netdraw.sort"));  // Draw each frame of commands from the network grouped by style.
+	private final static long MAX_TILE_MEMORY = 256L * 1024 * 1024;  // Memory for the tiles of a large board, beyond which tiles are compressed.
+	private final static int INDEX_CELL_SIZE = 64;  // Size of the cells of the spatial index.
+	private final static int MAX_FONTS = 32;  // Number of fonts for text commands that are kept; the sizes come from the network.
+	private final static int MAX_TEXT_EXTENTS = 4096;  // Number of measured strings that are kept, for the bounds of text commands.
+	private final static int MAX_CUSTOM_STAMP_IMAGES = 32;  // Number of custom stamp images that are kept in memory.
+	private final static double PEN_TOLERANCE = 0.75;  // Points of a Pen stroke are dropped if the stroke moves less than this many pixels without them.
+	private final static int REMOTE_QUEUE_SIZE = 16384;  // Capacity of the queue of commands waiting to be drawn.
+	private final static int CHECKPOINT_INTERVAL = 100000;  // A checkpoint of the image is saved in the journal after this many commands.
+	private final static long MAX_UNDO_MEMORY = 64L * 1024 * 1024;  // Memory for the checkpoints of the image that make undo fast.
+	private final static String JOURNAL_DIRECTORY = System.getProperty("netdraw.journal",   // Where the journal is kept; "off" for no journal.
+			Paths.get(System.getProperty("user.home"), ".netdraw", "journal").toString());
 
-	private static GraphicsContext imageGraphics;    // For drawing on the actual image.
+	private static GraphicsContext imageGraphics;    // For drawing on the actual image.  Not used if the board is tiled or drawn by software.
+	private static TiledSurface surface;             // The board, if it is a large, tiled board; otherwise null.
+	private static RasterSurface raster;             // The board, if it is drawn by a SoftwareRasterizer; otherwise null.
+	private static FrameRenderer remoteRenderer;     // Draws the commands received from the network, once per frame, on the application thread.
+	private static BatchRenderer batchRenderer;      // Draws those commands on imageGraphics, in batches; null if imageGraphics is not used.
+	private static DisplayList displayList = new DisplayList();  // Every command drawn on the image since it was last cleared, local or remote.
+	private static CommandJournal journal;  // Saves every command drawn on the image, so the image can be restored; null if there is no journal.
+	private static SpatialIndex spatialIndex;  // The bounds of the commands in displayList, by their positions in the list.
+	private static UndoHistory<?> undoHistory;  // For undoing the user's commands; null if the board is tiled.
+	private static DamageTracker commandBounds = new DamageTracker();  // Used for computing the bounds of a command for the spatial index.
+	private static FontCache<Font> textFonts;  // The fonts of text commands, and the extents of their strings; made in start().
+	private static double[] polylineX = new double[DrawCommand.MAX_POINTS + 1];  // For passing the points of a polyline to strokePolyline().
+	private static double[] polylineY = new double[DrawCommand.MAX_POINTS + 1];
 	private GraphicsContext overlayGraphics;  // For drawing on a transparent Canvas that overlays the image; used when drawing shapes.
+	private DamageTracker previewDamage = new DamageTracker();  // The parts of the overlay where the current preview shape is drawn.
 
 	private String currentTool = "Stamp";  // The current tool, either "Stamp" if a stamp has been selected, or a command from the Tools menu.
-	private Image[] stampImages;  // The images that are drawn when the current tool is "Stamp", one for each item in the "Stamp" menu.
+	private static StampImages stampImages;  // The images of the stamps, by their IDs in StampRegistry.
 	private Color currentColor = Color.BLACK;  // Used for all tools except "Stamp".
-	private int currentStampNumber = 7;  // Used when the currentTool is "Stamp".
+	private int currentStampNumber = 7;  // The StampRegistry ID of the stamp that is used when the currentTool is "Stamp".
 	
 	private TextField textInput;   // Input for the text that will be drawn when the user clicks the canvas using the "Text" tool.
 	private ComboBox<Integer> textSizeSelect;   // Pop-up menu for selecting the size of the font that is used for drawing the text.
 	private ComboBox<Integer> lineWidthSelect;  // Pop-up menu for selecting the width of lines and outlines of shapes.
 	
-	private Label message;  // Message that appears below the canvas, for showing status information about the program.
+	private static Label message;  // Message that appears below the canvas, for showing status information about the program.
+	
+	private DrawCommand outgoing = new DrawCommand();  // Reused for building the commands that are sent to the server.
 	
+	/**
+	 * Returns the graphics context of the image canvas, or null if the board is tiled or drawn by software.
+	 */
 	public static GraphicsContext getIGC() {
 		return imageGraphics;
 	}
 	
+	/**
+	 * Returns the renderer that draws commands from the network.  Commands are passed to it
+	 * by adding them to its queue, getRemoteRenderer().getQueue(), from the network thread.
+	 */
+	public static FrameRenderer getRemoteRenderer() {
+		return remoteRenderer;
+	}
+	
+	/**
+	 * Returns the record of the commands that make up the current image.  It must only be used on the application thread.
+	 */
+	public static DisplayList getDisplayList() {
+		return displayList;
+	}
+	
+	/**
+	 * Returns the index of the areas covered by the commands in the display list.  The id of each entry is the
+	 * position of the command in the display list.  It must only be used on the application thread.
+	 */
+	public static SpatialIndex getSpatialIndex() {
+		return spatialIndex;
+	}
+	
+	/**
+	 * Returns the resource file names of the built-in stamps, which are also the names used for stamps in the protocol.
+	 */
+	public static String[] getStampFileNames() {
+		return StampRegistry.builtInNames();
+	}
+	
 	/**
 	 * Set up the GUI and event handling.
 	 */
 	public void start(Stage stage) {
 		BorderPane root = new BorderPane();
 
-		Canvas picture = new Canvas(WIDTH,HEIGHT);
-		imageGraphics = picture.getGraphicsContext2D();
-		imageGraphics.setLineWidth(2);
-		imageGraphics.setFill(Color.WHITE);
-		imageGraphics.fillRect(0,0,WIDTH,HEIGHT);
+		Node picture;
+		int[] boardSize = parseBoardSize(BOARD_SIZE);
+		if (boardSize != null) {
+			surface = new TiledSurface(WIDTH, HEIGHT, boardSize[0], boardSize[1], MAX_TILE_MEMORY);
+			picture = surface;
+		}
+		else if (SOFTWARE_RENDERER) {
+			raster = new RasterSurface(WIDTH, HEIGHT, ForkJoinPool.commonPool());
+			picture = raster;
+		}
+		else {
+			Canvas canvas = new Canvas(WIDTH,HEIGHT);
+			imageGraphics = canvas.getGraphicsContext2D();
+			imageGraphics.setLineWidth(2);
+			imageGraphics.setFill(Color.WHITE);
+			imageGraphics.fillRect(0,0,WIDTH,HEIGHT);
+			picture = canvas;
+		}
+		textFonts = new FontCache<>(javaFXFonts(), MAX_FONTS, MAX_TEXT_EXTENTS);
+		spatialIndex = surface == null ? new SpatialIndex(WIDTH, HEIGHT, INDEX_CELL_SIZE)
+				: new SpatialIndex(surface.getBoardWidth(), surface.getBoardHeight(), INDEX_CELL_SIZE);
 		Canvas overlay = new Canvas(WIDTH,HEIGHT);
 		overlayGraphics = overlay.getGraphicsContext2D();
 		overlayGraphics.setLineWidth(2);
+		if (imageGraphics != null) {
+			batchRenderer = new BatchRenderer(imageGraphics);
+			batchRenderer.setReorder(SORT_BATCHES);
+		}
+		remoteRenderer = new FrameRenderer(new RenderQueue(REMOTE_QUEUE_SIZE),
+				batchRenderer != null ? batchRenderer : NetDraw::drawOnImage, NetDraw::record);
+		remoteRenderer.setAfterFrame(NetDraw::saveDueCheckpoints);
+		remoteRenderer.start();
+		RenderQueue remoteQueue = remoteRenderer.getQueue();
+		DrawMetrics.gauge("render.queue", remoteQueue::size);
+		DrawMetrics.gauge("render.queue.max", remoteQueue::getMaxDepth);
+		DrawMetrics.gauge("render.drawn", remoteRenderer::getCommandsDrawn);
+		DrawMetrics.gauge("render.overBudget", remoteRenderer::getFramesOverBudget);
+		DrawMetrics.install();
 		StackPane canvasHolder = new StackPane(picture,overlay);
 		root.setCenter(canvasHolder);
 
 		MenuBar menubar = makeMenus();
 		root.setTop(menubar);
+		openJournal();
+		if (surface == null) {
+			int checkpoints = (int)(MAX_UNDO_MEMORY / (4L * WIDTH * HEIGHT));
+			undoHistory = raster != null ? new UndoHistory<>(displayList, rasterBoard(), checkpoints)
+					: new UndoHistory<>(displayList, canvasBoard(), checkpoints);
+			undoHistory.reset();
+		}
 		
 		textInput = new TextField("Hello World");
 		textInput.setPrefColumnCount(20);
@@ -118,9 +218,14 @@ public class NetDraw extends Application {
 		root.setBottom(bottom);
 		bottom.setStyle("-fx-border-color:black");
 
-		overlay.setOnMousePressed( this::mousePressed );
-		overlay.setOnMouseDragged( this::mouseDragged );
-		overlay.setOnMouseReleased( this::mouseReleased );
+		overlay.setOnMousePressed( timed(this::mousePressed) );
+		overlay.setOnMouseDragged( timed(this::mouseDragged) );
+		overlay.setOnMouseReleased( timed(this::mouseReleased) );
+		if (surface != null) {
+			overlay.setOnScroll( this::mouseScrolled );
+			message.setText("Welcome to NetDraw!  The board is " + surface.getBoardWidth() + " by " + surface.getBoardHeight()
+					+ "; scroll to move around it, and hold down the shortcut key while scrolling to zoom.");
+		}
 
 		Scene scene = new Scene(root);
 		stage.setScene(scene);
@@ -130,6 +235,28 @@ public class NetDraw extends Application {
 	}
 	
 	
+	/**
+	 * Save a checkpoint of the image in the journal when the program ends, so it is quick to restore next time.
+	 */
+	public void stop() {
+		if (journal != null) {
+			saveCheckpoint();
+			if (journal != null)
+				journal.close();
+		}
+	}
+
+	/**
+	 * Wraps a mouse handler so that the time it takes is recorded in DrawMetrics.INPUT.
+	 */
+	private static EventHandler<MouseEvent> timed(EventHandler<MouseEvent> handler) {
+		return evt -> {
+			long start = DrawMetrics.now();
+			handler.handle(evt);
+			DrawMetrics.INPUT.recordSince(start);
+		};
+	}
+
 	public static void main(String[] args) {
 		launch();
 	}
@@ -144,17 +271,41 @@ public class NetDraw extends Application {
 		Menu controlMenu = new Menu("Control");
 		MenuItem clearItem = new MenuItem("Clear");
 		MenuItem connect = new MenuItem("Connect");
-		clearItem.setOnAction( e -> {
-			imageGraphics.setFill(Color.WHITE);
-			imageGraphics.fillRect(0, 0, WIDTH, HEIGHT);
+		clearItem.setOnAction( e -> clearBoard() );
+		MenuItem undoItem = new MenuItem("Undo");
+		MenuItem redoItem = new MenuItem("Redo");
+		undoItem.setOnAction( e -> {
+			if (undoHistory == null)
+				message.setText("Undo is not available on a large board.");
+			else if (!undoHistory.undo())
+				message.setText("There is nothing of yours to undo.");
+		});
+		redoItem.setOnAction( e -> {
+			if (undoHistory != null && !undoHistory.redo())
+				message.setText("There is nothing to redo.");
 		});
 		connect.setOnAction(e -> {
-			NetReader connection = new NetReader("localhost");
-			connection.run();
+			String server = SimpleDialogs.prompt("Enter a server to connect to, optionally followed by /room.");
+			if (server == null || server.trim().length() == 0)
+				return;
+			try {
+				NetReader.follow(server.trim());
+			}
+			catch (IllegalArgumentException ex) {
+				message.setText(ex.getMessage());
+			}
 		});
+		CheckMenuItem metrics = new CheckMenuItem("Collect Metrics");
+		metrics.setOnAction( e -> DrawMetrics.setEnabled(metrics.isSelected()) );
+		controlMenu.setOnShowing( e -> metrics.setSelected(DrawMetrics.isEnabled()) );  // It can also be changed through JMX.
 		clearItem.setAccelerator(KeyCombination.keyCombination("shortcut+N"));
+		undoItem.setAccelerator(KeyCombination.keyCombination("shortcut+Z"));
+		redoItem.setAccelerator(KeyCombination.keyCombination("shortcut+shift+Z"));
 		controlMenu.getItems().add(clearItem);
+		controlMenu.getItems().add(undoItem);
+		controlMenu.getItems().add(redoItem);
 		controlMenu.getItems().add(connect);
+		controlMenu.getItems().add(metrics);
 		
 		Menu colorMenu = new Menu("Color");
 		MenuItem item;
@@ -193,20 +344,22 @@ public class NetDraw extends Application {
 		}
 
 		Menu stampMenu = new Menu("Stamp");
-		stampImages = new Image[STAMP_FILE_NAMES.length];
-		for (int i = 0; i < STAMP_FILE_NAMES.length; i++) {
+		stampImages = new StampImages(MAX_CUSTOM_STAMP_IMAGES);
+		for (int i = 0; i < StampRegistry.BUILT_IN_COUNT; i++) {
 			final int stampNumber = i;  // final, for use in lambda expression.
-			stampImages[i] = new Image("stamps/" + STAMP_FILE_NAMES[i]);
 			MenuItem stampItem = new MenuItem();
-			stampItem.setGraphic( new ImageView(stampImages[i]) ); 
+			stampItem.setGraphic( new ImageView(stampImages.image(i)) ); 
 			stampItem.setOnAction( e -> {
 				currentTool = "Stamp";
 				currentStampNumber = stampNumber;
-				message.setText("Current tool is Stamp (" + STAMP_FILE_NAMES[stampNumber] + ")");
+				message.setText("Current tool is Stamp (" + StampRegistry.name(stampNumber) + ")");
 			});
 			stampMenu.getItems().add(stampItem);
 			stampItem.setAccelerator(KeyCombination.keyCombination("shortcut+" + i));
 		}
+		MenuItem customStamp = new MenuItem("Custom Stamp...");
+		customStamp.setOnAction( e -> chooseCustomStamp() );
+		stampMenu.getItems().add(customStamp);
 		
 		MenuBar menubar = new MenuBar(controlMenu, colorMenu, toolMenu, stampMenu);
 		return menubar;
@@ -229,6 +382,17 @@ public class NetDraw extends Application {
 	 */
 	public static void drawShape(String shape,  Color color, double lineWidth, GraphicsContext g, 
 			double x1, double y1, double x2, double y2) {
+		drawShape(shape, color, lineWidth, g, x1, y1, x2, y2, null);
+	}
+	
+	/**
+	 * Draws a shape, as in the other drawShape() method, and adds the area covered by the shape to a damage tracker.
+	 * @param damage  The tracker that is told about the area that is drawn.  If it is null, the area is not recorded.
+	 */
+	public static void drawShape(String shape,  Color color, double lineWidth, GraphicsContext g, 
+			double x1, double y1, double x2, double y2, DamageTracker damage) {
+		if (damage != null)
+			damage.add(x1, y1, x2, y2, lineWidth + 1);  // Wide enough for the corners of thick outlines, plus antialiasing.
 		g.setStroke(color);
 		g.setLineWidth( lineWidth );
 		if (shape.equals("Line")) {
@@ -275,15 +439,505 @@ public class NetDraw extends Application {
 	}
 	
 	
+	/**
+	 * Draws a command that was received from the network, or that was made by one of the tools, in a graphics context.
+	 * @param c  The command.  Commands with op equal to DrawCommand.NONE are ignored, as are stamps with unknown file names.
+	 * @param g  The graphics context where the command is drawn.
+	 */
+	public static void applyCommand(DrawCommand c, GraphicsContext g) {
+		applyCommand(c, g, null);
+	}
+	
+	/**
+	 * Draws a command, as in the other applyCommand() method, and adds the area that it covers to a damage tracker.
+	 * @param damage  The tracker that is told about the area that is drawn.  If it is null, the area is not recorded.
+	 */
+	public static void applyCommand(DrawCommand c, GraphicsContext g, DamageTracker damage) {
+		if (damage != null)
+			addBounds(c, damage);
+		switch (c.op) {
+		case DrawCommand.NONE:
+			break;
+		case DrawCommand.TEXT:
+			g.setFont(textFont(c.size));
+			g.setFill(toColor(c.color));
+			g.fillText(c.text, c.x1, c.y1);
+			break;
+		case DrawCommand.STAMP:
+			Image stamp = stampImage(c.text);
+			if (stamp != null)
+				g.drawImage( stamp, c.x1 - stamp.getWidth()/2, c.y1 - stamp.getHeight()/2 );
+			break;
+		case DrawCommand.POLYLINE:
+			drawPolyline(c, g);
+			break;
+		default:
+			drawShape(DrawCommand.toolName(c.op), toColor(c.color), c.lineWidth, g, c.x1, c.y1, c.x2, c.y2);
+			break;
+		}
+	}
+	
+	/**
+	 * Returns the font for text of a given size, from the cache of text fonts once start() has made it.
+	 */
+	static Font textFont(double size) {
+		return textFonts == null ? Font.font(size) : textFonts.font(null, size);
+	}
+	
+	/**
+	 * Adds the area that a command covers to a damage tracker.  For shapes, the area includes the width of the outline.
+	 * For text, it is the measured extent of the string, or, before start() has made the font cache, an estimate
+	 * from the font size and the length of the string.
+	 */
+	public static void addBounds(DrawCommand c, DamageTracker damage) {
+		switch (c.op) {
+		case DrawCommand.NONE:
+			break;
+		case DrawCommand.TEXT:
+			if (textFonts == null) {
+				damage.add(c.x1, c.y1 - c.size, c.x1 + c.size * c.text.length(), c.y1 + c.size / 3, 1);
+				break;
+			}
+			FontCache.Extent extent = textFonts.extent(null, c.size, c.text);
+			damage.add(c.x1, c.y1 - extent.ascent, c.x1 + extent.width, c.y1 + extent.descent, 2);  // Glyphs can go a little beyond their advance.
+			break;
+		case DrawCommand.STAMP:
+			Image stamp = stampImage(c.text);
+			if (stamp != null)
+				damage.add(c.x1 - stamp.getWidth()/2, c.y1 - stamp.getHeight()/2, c.x1 + stamp.getWidth()/2, c.y1 + stamp.getHeight()/2, 1);
+			break;
+		case DrawCommand.POLYLINE:
+			double left = c.x1, top = c.y1, right = c.x1, bottom = c.y1;
+			for (int i = 0; i < 2 * c.pointCount; i += 2) {
+				left = Math.min(left, c.points[i]);
+				right = Math.max(right, c.points[i]);
+				top = Math.min(top, c.points[i+1]);
+				bottom = Math.max(bottom, c.points[i+1]);
+			}
+			damage.add(left, top, right, bottom, c.lineWidth + 1);
+			break;
+		default:
+			damage.add(c.x1, c.y1, c.x2, c.y2, c.lineWidth + 1);
+			break;
+		}
+	}
+	
+	/**
+	 * Draws a polyline with a single call to strokePolyline().  Lines are joined and ended with round caps,
+	 * so that the sharp turns of a freehand stroke do not get long mitered points, and a polyline with a
+	 * single point is drawn as a dot.  The defaults are restored afterwards, for the other shapes.  A polyline
+	 * with lineSegments set is drawn as its segments, with square ends, with one call to stroke().
+	 */
+	private static void drawPolyline(DrawCommand c, GraphicsContext g) {
+		if (c.lineSegments) {
+			g.setStroke(toColor(c.color));
+			g.setLineWidth(c.lineWidth);
+			strokeSegments(c, g);
+			return;
+		}
+		int count = c.pointCount;
+		for (int i = 0; i < count; i++) {
+			polylineX[i] = c.points[2*i];
+			polylineY[i] = c.points[2*i+1];
+		}
+		if (count == 1) {
+			polylineX[1] = polylineX[0];
+			polylineY[1] = polylineY[0];
+			count = 2;
+		}
+		g.setStroke(toColor(c.color));
+		g.setLineWidth(c.lineWidth);
+		g.setLineJoin(StrokeLineJoin.ROUND);
+		g.setLineCap(StrokeLineCap.ROUND);
+		g.strokePolyline(polylineX, polylineY, count);
+		g.setLineJoin(StrokeLineJoin.MITER);
+		g.setLineCap(StrokeLineCap.SQUARE);
+	}
+	
+	/**
+	 * Strokes each segment of a polyline as a separate subpath of one path, so that each one gets the caps of a
+	 * line, as if it had been drawn by strokeLine().  The stroke, line width and caps must already be set.
+	 */
+	static void strokeSegments(DrawCommand c, GraphicsContext g) {
+		g.beginPath();
+		for (int i = 1; i < c.pointCount; i++) {
+			g.moveTo(c.points[2*i-2], c.points[2*i-1]);
+			g.lineTo(c.points[2*i], c.points[2*i+1]);
+		}
+		g.stroke();
+	}
+	
+	/**
+	 * Draws a command on the board, which is the image canvas, the tiled surface or the software-drawn surface.
+	 * @param damage  If not null, the area that is drawn is added to this tracker.
+	 */
+	public static void drawOnImage(DrawCommand c, DamageTracker damage) {
+		if (surface != null)
+			surface.draw(c, damage);
+		else if (raster != null)
+			raster.draw(c, damage);
+		else
+			applyCommand(c, imageGraphics, damage);
+	}
+	
+	/**
+	 * Returns the image for a stamp file name, or null if the name is not one of the stamps.
+	 */
+	static Image stampImage(String fileName) {
+		return stampImages == null ? null : stampImages.image(fileName);
+	}
+	
+	/**
+	 * Lets the user select an image file to use as a stamp.  The stamp is named after the file.  Other
+	 * NetDraw programs can only draw it if they have a custom stamp with the same name.
+	 */
+	private void chooseCustomStamp() {
+		FileChooser chooser = new FileChooser();
+		chooser.setTitle("Select an Image for the Stamp");
+		chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Images", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+		File file = chooser.showOpenDialog(message.getScene().getWindow());
+		if (file == null)
+			return;
+		int id = StampRegistry.id(file.getName());
+		if (id >= 0 && id < StampRegistry.BUILT_IN_COUNT) {
+			SimpleDialogs.message("Sorry, there is already a stamp named " + file.getName() + ".");
+			return;
+		}
+		id = StampRegistry.register(file.getName().replace(' ', '_'), file.toURI().toString());
+		if (stampImages.image(id) == null) {
+			SimpleDialogs.message("Sorry, " + file.getName() + " could not be loaded as an image.");
+			return;
+		}
+		currentTool = "Stamp";
+		currentStampNumber = id;
+		message.setText("Current tool is Stamp (" + StampRegistry.name(id) + ")");
+	}
+	
+	/**
+	 * Parses a board size of the form "widthxheight".  Returns null if size is null, or if it is not valid.
+	 */
+	private static int[] parseBoardSize(String size) {
+		if (size == null)
+			return null;
+		String[] parts = size.toLowerCase().split("x");
+		try {
+			int[] boardSize = { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()) };
+			if (parts.length == 2 && boardSize[0] > 0 && boardSize[1] > 0)
+				return boardSize;
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+		}
+		System.out.println("Ignoring bad board size \"" + size + "\"; it should be like 8000x6000.");
+		return null;
+	}
+	
+	/**
+	 * Draws all of the commands in a display list, in order, in a graphics context.  The context can be
+	 * scaled or translated first to draw the picture at another size or position.
+	 */
+	public static void replay(DisplayList list, GraphicsContext g) {
+		list.replay(c -> applyCommand(c, g));
+	}
+	
+	/**
+	 * Records a command from the network that has been drawn on the image, in the display list, the spatial index,
+	 * the undo history and the journal.  The remote renderer calls it while the command is still at the head of its
+	 * queue, so the journal also saves how many of its server's commands the image now includes, which is offered
+	 * to the server when the board is followed again after a restart.  Must be called on the application thread.
+	 */
+	static void record(DrawCommand c) {
+		record(c, false);
+		RenderQueue queue = remoteRenderer.getQueue();
+		Object source = queue.peekSource();
+		if (journal == null || source == null)
+			return;
+		try {
+			journal.setSourceSequence(source.toString(), queue.peekSequence());
+		}
+		catch (IOException e) {
+			journalFailed(e);
+		}
+	}
+	
+	/**
+	 * Returns the number of commands from a server, named as a ReceiveEngine names its peers, that the image
+	 * includes, according to the journal.  Must be called on the application thread.
+	 */
+	static long getSourceSequence(String server) {
+		return journal == null ? 0 : journal.getSourceSequence(server);
+	}
+	
+	/**
+	 * Records a command that has been drawn on the image.  If it was drawn by this user, it can be undone.
+	 */
+	private static void record(DrawCommand c, boolean local) {
+		record(c, local, false);
+	}
+	
+	/**
+	 * Records a command that has been drawn on the image.  If it was drawn by this user, it can be undone, and if
+	 * joinPrevious is true, it is undone together with the user's previous command.  The checkpoints that become
+	 * due are saved at once for the user's own commands, but for commands from the network, which are recorded
+	 * while a frame is being drawn, only when the frame is done, in saveDueCheckpoints().
+	 */
+	private static void record(DrawCommand c, boolean local, boolean joinPrevious) {
+		if (remember(c) && undoHistory != null)
+			undoHistory.added(local, joinPrevious);
+		if (journal != null) {
+			try {
+				journal.append(c);
+			}
+			catch (IOException e) {
+				journalFailed(e);
+			}
+		}
+		if (local)
+			saveDueCheckpoints();
+	}
+	
+	/**
+	 * Saves a checkpoint for undo, and one in the journal, if enough commands have been recorded since the last
+	 * ones.  A checkpoint reads the whole image, which can take a good part of a frame, so the remote renderer
+	 * calls this once at the end of a frame, after drawing, and not for every command that it records.
+	 */
+	private static void saveDueCheckpoints() {
+		if (undoHistory != null)
+			undoHistory.saveCheckpointIfDue();
+		if (journal != null && journal.getCommandsSinceCheckpoint() >= CHECKPOINT_INTERVAL)
+			saveCheckpoint();
+	}
+	
+	/**
+	 * Adds a command to the display list, and its bounds to the spatial index.  Returns false if the command is ignored.
+	 */
+	private static boolean remember(DrawCommand c) {
+		if (c.op == DrawCommand.NONE)
+			return false;
+		int id = displayList.size();
+		displayList.add(c);
+		commandBounds.reset();
+		addBounds(c, commandBounds);
+		commandBounds.forEachRegion((x, y, width, height) -> spatialIndex.insert(id, x, y, x + width, y + height));
+		return true;
+	}
+	
+	/**
+	 * Opens the journal and restores the image from it: the latest checkpoint is drawn, and then the commands
+	 * after the checkpoint are drawn on top of it.  A checkpoint with a width of zero stands for a blank board.
+	 */
+	private static void openJournal() {
+		if (JOURNAL_DIRECTORY.equals("off"))
+			return;
+		try {
+			journal = new CommandJournal(Paths.get(JOURNAL_DIRECTORY), CommandJournal.SyncPolicy.INTERVAL);
+			CommandJournal.Checkpoint checkpoint = journal.readCheckpoint();
+			long from = 0;
+			if (checkpoint != null && checkpoint.width == 0) {
+				from = checkpoint.sequence;
+			}
+			else if (checkpoint != null && surface == null && checkpoint.width == WIDTH && checkpoint.height == HEIGHT) {
+				if (raster != null)
+					raster.setPixels(checkpoint.pixels);
+				else
+					imageGraphics.getPixelWriter().setPixels(0, 0, WIDTH, HEIGHT, PixelFormat.getIntArgbInstance(),
+							checkpoint.pixels, 0, WIDTH);
+				from = checkpoint.sequence;
+			}
+			journal.replay(from, c -> {
+				drawOnImage(c, null);
+				remember(c);
+			});
+		}
+		catch (IOException e) {
+			journalFailed(e);
+		}
+	}
+	
+	/**
+	 * Clears the image, and forgets every command that was drawn on it.
+	 */
+	private static void clearBoard() {
+		if (surface != null)
+			surface.clear();
+		else if (raster != null)
+			raster.clear();
+		else {
+			imageGraphics.setFill(Color.WHITE);
+			imageGraphics.fillRect(0, 0, WIDTH, HEIGHT);
+		}
+		displayList.clear();
+		spatialIndex.clear();
+		if (undoHistory != null)
+			undoHistory.reset();
+		saveCheckpoint();  // The blank image replaces everything in the journal.
+	}
+	
+	/**
+	 * Shows a message on the status line at the bottom of the window.  Can be called on any thread.
+	 */
+	static void showStatus(String text) {
+		Platform.runLater(() -> {
+			if (message != null)
+				message.setText(text);
+		});
+	}
+	
+	/**
+	 * Starts the board again when a server that is followed has lost the commands that it sent before, and is about
+	 * to send its board again from the start; otherwise they would be drawn twice.  The image does not record which
+	 * server drew what, and a checkpoint from the journal is only pixels, so the commands of that one server can't
+	 * be taken off it.  Instead the whole image is cleared, and every other server that is followed is asked for its
+	 * board from the start as well, so that what they drew comes back.  This is called on the receiver's thread, in
+	 * CommandSink.restart(), and waits while the commands that are waiting to be drawn, from every server, are
+	 * dropped and the image is cleared on the application thread, so that the snapshots that follow are drawn on
+	 * the blank image.  The user's own commands come back in the snapshots too, but what the user could undo is
+	 * forgotten.
+	 */
+	static void serverRestarted(ReceiveEngine receiver) {
+		CountDownLatch cleared = new CountDownLatch(1);
+		Platform.runLater(() -> {
+			RenderQueue queue = remoteRenderer.getQueue();
+			while (queue.peek() != null)
+				queue.remove();
+			clearBoard();
+			if (journal != null)
+				journal.clearSourceSequences();
+			cleared.countDown();
+		});
+		try {
+			cleared.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		receiver.resync();
+	}
+	
+	/**
+	 * Saves the current image as a checkpoint in the journal.  A large, tiled board is too big to save as a single
+	 * picture, so for it a checkpoint is only saved when the board is blank, and the journal is replayed from there.
+	 */
+	private static void saveCheckpoint() {
+		if (journal == null)
+			return;
+		try {
+			if (surface != null) {
+				if (displayList.size() == 0)
+					journal.checkpoint(0, 0, new int[0]);
+				return;
+			}
+			remoteRenderer.flush();  // A received stroke can still be waiting to be joined with the next one.
+			int[] pixels;
+			if (raster != null)
+				pixels = raster.getPixels();
+			else {
+				WritableImage image = imageGraphics.getCanvas().snapshot(null, null);
+				pixels = new int[WIDTH * HEIGHT];
+				image.getPixelReader().getPixels(0, 0, WIDTH, HEIGHT, PixelFormat.getIntArgbInstance(), pixels, 0, WIDTH);
+			}
+			journal.checkpoint(WIDTH, HEIGHT, pixels);
+		}
+		catch (IOException e) {
+			journalFailed(e);
+		}
+	}
+	
+	/**
+	 * Returns the Fonts for the cache of text fonts: the default family at each size, measured with a Text node,
+	 * which lays out a string the way fillText() does.  The node is reused, so it must only be used on the
+	 * application thread.
+	 */
+	private static FontCache.Fonts<Font> javaFXFonts() {
+		Text measurer = new Text();
+		return new FontCache.Fonts<Font>() {
+			public Font create(String family, double size) {
+				return family == null ? Font.font(size) : Font.font(family, size);
+			}
+			public FontCache.Extent measure(Font font, String text) {
+				measurer.setFont(font);
+				measurer.setText(text);
+				Bounds bounds = measurer.getLayoutBounds();  // The origin of a Text is on the baseline.
+				return new FontCache.Extent(bounds.getMaxX(), -bounds.getMinY(), bounds.getMaxY());
+			}
+		};
+	}
+	
+	/**
+	 * Returns the board for the undo history of a Canvas, which saves the image with snapshot().
+	 */
+	private static UndoHistory.Board<WritableImage> canvasBoard() {
+		return new UndoHistory.Board<WritableImage>() {
+			public WritableImage snapshot(WritableImage reuse) {
+				remoteRenderer.flush();
+				return imageGraphics.getCanvas().snapshot(null, reuse);
+			}
+			public void restore(WritableImage snapshot) {
+				imageGraphics.getPixelWriter().setPixels(0, 0, WIDTH, HEIGHT, snapshot.getPixelReader(), 0, 0);
+			}
+			public void draw(DrawCommand c) {
+				applyCommand(c, imageGraphics, null);
+			}
+		};
+	}
+	
+	/**
+	 * Returns the board for the undo history of a RasterSurface, which saves its pixels.
+	 */
+	private static UndoHistory.Board<int[]> rasterBoard() {
+		return new UndoHistory.Board<int[]>() {
+			public int[] snapshot(int[] reuse) {
+				remoteRenderer.flush();
+				return raster.getPixels();
+			}
+			public void restore(int[] snapshot) {
+				raster.setPixels(snapshot);
+			}
+			public void draw(DrawCommand c) {
+				raster.draw(c, null);
+			}
+		};
+	}
+	
+	/**
+	 * Closes the journal after an error, and tells the user in a dialog.  The dialog is shown later, since this can
+	 * be called while the window is being set up, or while a frame is being drawn, when a dialog can't be shown.
+	 */
+	private static void journalFailed(IOException e) {
+		String error = "Error in the journal; the picture will not be saved: " + e;
+		Platform.runLater(() -> SimpleDialogs.message(error));
+		if (journal != null)
+			journal.close();
+		journal = null;
+	}
+	
+	/**
+	 * Converts a color packed as 0xAARRGGBB, as used in DrawCommand, to a Color.
+	 */
+	public static Color toColor(int argb) {
+		return Color.rgb((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF, ((argb >>> 24) & 0xFF) / 255.0);
+	}
+	
+	/**
+	 * Converts a Color to the packed 0xAARRGGBB form used in DrawCommand.
+	 */
+	public static int toArgb(Color c) {
+		return ((int)Math.round(c.getOpacity() * 255) << 24) | ((int)Math.round(c.getRed() * 255) << 16)
+				| ((int)Math.round(c.getGreen() * 255) << 8) | (int)Math.round(c.getBlue() * 255);
+	}
+	
+	
 	//--------------------------- Implementing mouse interaction ---------------------------------------------
 
 	private double startX, startY;  // Records the point where a drag operation begins.
 	private double endX, endY;  // Records the current mouse location during a drag operation.
 	private boolean dragging;  // Set to true when a drag operation is in progress.  Not all mousePressed events begin a drag action.
+	private double[] penPoints = new double[1024];  // The points of the stroke that is being drawn with the Pen tool, as x1, y1, x2, y2, ...
+	private int penCount;  // The number of points in penPoints.
 
 	/**
 	 * Respond when the user presses a mouse button while the mouse is over the canvas.  If the currentTool is "Stamp"
-	 * or "Text", the image or text is drawn directly to imageGraphics.  If it is one of the other tools, a drag operation
+	 * or "Text", the image or text is drawn directly on the board.  If it is one of the other tools, a drag operation
 	 * is started that allows the user to set the size of the shape by dragging the mouse.
 	 */
 	private void mousePressed(MouseEvent evt) {
@@ -295,30 +949,28 @@ public class NetDraw extends Application {
 			if (text.length() == 0)
 				message.setText("PLEASE ENTER SOME TEXT IN THE INPUT BOX!!");
 			else {
-				Font f = Font.font( textSizeSelect.getValue() );
-				imageGraphics.setFont(f);
-				imageGraphics.setFill(currentColor);
-				imageGraphics.fillText(text, evt.getX(), evt.getY());
-				NetReader nr = new NetReader("localhost");
-				String outgoing = "text " + evt.getX()+ " " + evt.getY()
-				+ " " + textSizeSelect.getValue() + " " + currentColor.getRed() +
-				" " + currentColor.getGreen() + " " + currentColor.getBlue() + " " + text.toString();
-				nr.send(outgoing);
+				outgoing.setText(boardX(evt), boardY(evt), textSizeSelect.getValue(), toArgb(currentColor), text);
+				drawOnImage(outgoing, null);
+				record(outgoing, true);
+				NetReader.send(outgoing);
 			}		
 			dragging = false;
 		}
 		else if (currentTool.equals("Stamp")) {  // Draw the stamp to the actual image.
-			Image stamp = stampImages[currentStampNumber];
-			imageGraphics.drawImage( stamp, evt.getX() - stamp.getWidth()/2, evt.getY()-stamp.getHeight()/2 );
 			dragging = false;
-			NetReader nr = new NetReader("localhost");
-			String outgoing = "stamp " + evt.getX()+ " " + evt.getY() + " " + STAMP_FILE_NAMES[currentStampNumber];
-			nr.send(outgoing);
+			outgoing.setStamp(boardX(evt), boardY(evt), StampRegistry.name(currentStampNumber));
+			drawOnImage(outgoing, null);
+			record(outgoing, true);
+			NetReader.send(outgoing);
 		}
 		else {  // Start a drag operation.
-			startX = endX = evt.getX();
-			startY = endY = evt.getY();
+			startX = endX = boardX(evt);
+			startY = endY = boardY(evt);
+			overlayGraphics.setTransform(surface == null ? new Affine() : surface.getViewTransform());  // The preview is drawn in board coordinates.
 			dragging = true;
+			penCount = 0;
+			if (currentTool.equals("Pen"))
+				addPenPoint(startX, startY);
 		}
 	}
 
@@ -332,14 +984,21 @@ public class NetDraw extends Application {
 		if (!dragging) {  // Ignore a mouseDragged event that is not part of a drag operation in this program.
 			return;
 		}
-		endX = evt.getX();
-		endY = evt.getY();
-		overlayGraphics.clearRect(0,0,WIDTH,HEIGHT);  // Clear any previous shape in the overlay canvas that was drawn while dragging.
+		if (currentTool.equals("Pen")) {  // Add a segment to the stroke in the overlay canvas, without erasing the rest of it.
+			drawShape("Line",currentColor,penWidth(),overlayGraphics,endX,endY,boardX(evt),boardY(evt),previewDamage);
+			endX = boardX(evt);
+			endY = boardY(evt);
+			addPenPoint(endX, endY);
+			return;
+		}
+		endX = boardX(evt);
+		endY = boardY(evt);
+		clearPreview();  // Clear the previous shape in the overlay canvas that was drawn while dragging.
 		double lineWidth = lineWidthSelect.getValue();
 		if (lineWidth == 0 && (currentTool.equals("Rectangle") || currentTool.equals("Oval") || currentTool.equals("RoundRect")) ) {
 			lineWidth = 1;
 		}
-		drawShape(currentTool,currentColor,lineWidth,overlayGraphics,startX,startY,endX,endY);  // draw shape to overlay canvas
+		drawShape(currentTool,currentColor,lineWidth,overlayGraphics,startX,startY,endX,endY,previewDamage);  // draw shape to overlay canvas
 	}
 
 	/**
@@ -351,258 +1010,203 @@ public class NetDraw extends Application {
 			return;
 		}
 		dragging = false;
-		overlayGraphics.clearRect(0,0,WIDTH,HEIGHT);
+		clearPreview();
+		if (currentTool.equals("Pen")) {
+			finishPenStroke();
+			return;
+		}
 		double lineWidth = lineWidthSelect.getValue();
 		if (lineWidth == 0 && (currentTool.equals("Rectangle") || currentTool.equals("Oval") || currentTool.equals("RoundRect")) ) {
 			lineWidth = 1;
 		}
-		drawShape(currentTool,currentColor,lineWidth,imageGraphics,startX,startY,endX,endY); // draw shape to actual image
-		String outgoing = "";
-		NetReader nr = new NetReader("localhost");
-		if (currentTool.equals("Rectangle")) {
-			outgoing = "rect " + startX+ " " + startY + " " + (endX-startX)+ " " +(endY-startY)
-					+ " " + currentColor.getRed() + " " + currentColor.getGreen() + " " + lineWidth;
-			nr.send(outgoing);
-		}
-		else if (currentTool.equals("Oval")) {
-			outgoing = "oval " + startX+ " " + startY + " " + (endX-startX)+ " " +(endY-startY)
-					+ " " + currentColor.getRed() + " " + currentColor.getGreen() + " " + lineWidth;
-			nr.send(outgoing);
+		outgoing.setShape(DrawCommand.opcodeForTool(currentTool), startX, startY, endX, endY, toArgb(currentColor), lineWidth);
+		drawOnImage(outgoing, null); // draw shape to actual image
+		record(outgoing, true);
+		NetReader.send(outgoing);
+	}
+	
+	/**
+	 * Returns the line width for the Pen tool, which is the selected line width, but at least 1.
+	 */
+	private double penWidth() {
+		return Math.max(1, lineWidthSelect.getValue());
+	}
+	
+	private void addPenPoint(double x, double y) {
+		if (2 * penCount + 2 > penPoints.length)
+			penPoints = Arrays.copyOf(penPoints, 2 * penPoints.length);
+		penPoints[2 * penCount] = x;
+		penPoints[2 * penCount + 1] = y;
+		penCount++;
+	}
+	
+	/**
+	 * Simplifies the stroke that was drawn with the Pen tool, and then draws, records and sends it.  A stroke that
+	 * has more than DrawCommand.MAX_POINTS points after simplification is sent as several polylines, each starting
+	 * at the last point of the previous one, and they are undone and redone together, as one stroke.
+	 */
+	private void finishPenStroke() {
+		int count = StrokeSimplifier.simplify(penPoints, penCount, PEN_TOLERANCE, penPoints);
+		int first = 0;
+		do {
+			int last = Math.min(count, first + DrawCommand.MAX_POINTS);
+			outgoing.setPolyline(toArgb(currentColor), penWidth());
+			for (int i = first; i < last; i++)
+				outgoing.addPoint(penPoints[2*i], penPoints[2*i+1]);
+			drawOnImage(outgoing, null);
+			record(outgoing, true, first > 0);
+			NetReader.send(outgoing);
+			first = last - 1;
+		} while (first < count - 1);
+		penCount = 0;
+	}
+	
+	/**
+	 * Erases the shape that was drawn in the overlay canvas by the last mouseDragged event.  Only the area covered by
+	 * that shape is cleared, rather than the whole overlay.
+	 */
+	private void clearPreview() {
+		previewDamage.forEachRegion(overlayGraphics::clearRect);
+		previewDamage.reset();
+	}
+	
+	/**
+	 * Respond to a scroll event on a large, tiled board, by moving the view, or by zooming if the shortcut key is down.
+	 */
+	private void mouseScrolled(ScrollEvent evt) {
+		if (dragging)
+			return;
+		if (evt.isShortcutDown()) {
+			if (evt.getDeltaY() != 0)
+				surface.zoom(evt.getDeltaY() > 0 ? 1.25 : 0.8, evt.getX(), evt.getY());
+			message.setText(String.format("Zoom: %.0f%%", 100 * surface.getZoom()));
 		}
-		else if (currentTool.equals("RoundRect")) {
-			outgoing = "roundrect " + startX+ " " + startY + " " + (endX-startX)+ " " +(endY-startY)
-					+ " " + currentColor.getRed() + " " + currentColor.getGreen() + " " + lineWidth;
-			nr.send(outgoing);
+		else {
+			surface.pan(evt.getDeltaX(), evt.getDeltaY());
 		}
 	}
 	
+	/**
+	 * Returns the x-coordinate on the board for a mouse event on the overlay.  This is just the x-coordinate of the
+	 * event, unless the board is a tiled board that can be moved and zoomed.
+	 */
+	private double boardX(MouseEvent evt) {
+		return surface == null ? evt.getX() : surface.toBoardX(evt.getX());
+	}
+	
+	private double boardY(MouseEvent evt) {
+		return surface == null ? evt.getY() : surface.toBoardY(evt.getY());
+	}
+	
 	//----------------------------------------------------------------------------------------------------------------------
 
 }
 
-class NetReader extends Thread {
-    String host;
-    PrintWriter out = new PrintWriter(System.out);
-    public final String HWS_IP = "172.21.7.12";
-    NetReader(String host) {
-        this.host = host;
-        setDaemon(true);
-    }
-    public PrintWriter getPW() {
-    	return out;
+/**
+ * Handles the network side of NetDraw.  Outgoing commands are queued by send() and written
+ * to the HWS server by a sender thread.  Incoming commands from any number of servers that
+ * the user connects to are received by a single ReceiveEngine thread and passed to NetDraw's
+ * remote renderer, which draws them on the image on the application thread.
+ */
+class NetReader {
+    public static final String HWS_IP = "172.21.7.12";
+    public static final int PORT = Handshake.DEFAULT_PORT;
+    public static final int SEND_QUEUE_SIZE = 1024;  // Capacity of the outgoing command queue.
+    public static final String ROOM = System.getProperty("netdraw.room");  // The room that commands are sent to; null for the server's default room.
+    public static final boolean COMPRESS = "on".equals(System.getProperty("netdraw.compress"));  // Offer the deflate feature; see Handshake.DEFLATE.
+    public static final String ORIGIN = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);  // Identifies this user's connections to servers; see Handshake.ORIGIN.
+    public static final SendQueue.Overflow SEND_OVERFLOW = SendQueue.Overflow.COALESCE;  // What to do when the queue is full.
+    private static CommandSender sender;  // The thread that owns the outbound connection; shared by all calls to send().
+    private static ReceiveEngine receiver;  // The thread that reads commands from all followed servers.
+    
+    /**
+     * Queue a copy of a command to be sent to the HWS server.  This never waits for the network:
+     * the command is handed to a sender thread that owns the shared, long-lived connection.
+     */
+    public static void send(DrawCommand send) {
+    	getSender().getQueue().offer(send);
     }
     
-    public void send(String send) {
-    	Socket socket = new Socket();
-		SocketAddress address = new InetSocketAddress(HWS_IP, 35053);
-		Scanner in;
-		try {
-			socket.connect(address);
-			in = new Scanner(socket.getInputStream());
-			System.out.println("sub test 2");
-			System.out.println("TEST 4");
-			OutputStream os = socket.getOutputStream();
-			PrintWriter out = new PrintWriter(os, true);
-			out.println("NetDraw");
-			out.flush();
-			if (in.nextLine().equals("NetDraw")) {
-				out.println(send);
-				out.flush();
-			}
-			socket.close();
-			in.close();
-			
-		} catch (IOException e) {
-			System.out.println("Error");
-			e.printStackTrace();
-		}
+    /**
+     * Returns the thread that sends commands, creating and starting it if necessary.
+     * The queue and connection statistics are available through its getQueue() and
+     * getConnection() methods.
+     */
+    public static synchronized CommandSender getSender() {
+    	if (sender == null) {
+    		DrawConnection hws = new DrawConnection(HWS_IP, PORT);
+    		hws.setRoom(ROOM);
+    		hws.setOrigin(ORIGIN);
+    		hws.setCompression(COMPRESS);
+    		hws.setRoomRefusedListener(NetDraw::showStatus);
+    		sender = new CommandSender(new SendQueue(SEND_QUEUE_SIZE, SEND_OVERFLOW), hws);
+    		sender.start();
+    		SendQueue queue = sender.getQueue();
+    		DrawConnection connection = sender.getConnection();
+    		DrawMetrics.gauge("send.queue", queue::getDepth);
+    		DrawMetrics.gauge("send.queue.max", queue::getMaxDepth);
+    		DrawMetrics.gauge("send.dropped", queue::getDropped);
+    		DrawMetrics.gauge("send.sent", connection::getCommandsSent);
+    		DrawMetrics.gauge("send.reconnects", connection::getReconnects);
+    	}
+    	return sender;
     }
     
-    public void run() {
-    	System.out.println("TEST 1");
-    	Scanner in = new Scanner(System.in);
-    	String server = SimpleDialogs.prompt("Enter a server to connect to.");
+    /**
+     * Start drawing the commands sent by a server, in addition to those from any servers
+     * that are already being followed.  The name "hws" stands for the HWS server.  A room
+     * on the server can be given after a slash, as in "hws/room12"; otherwise the room
+     * is ROOM, the one that this program sends to.
+     * If the image was restored from the journal, only the server's commands that it does
+     * not include are asked for.  This must be called on the application thread.  It does
+     * not block; the connection is made by the receive engine's thread.
+     * @throws IllegalArgumentException if the room name is not allowed.
+     */
+    public static ReceiveEngine.Peer follow(String server) {
+    	String room = ROOM;
+    	int slash = server.indexOf('/');
+    	if (slash >= 0) {
+    		room = server.substring(slash + 1);
+    		server = server.substring(0, slash);
+    	}
     	if (server.equalsIgnoreCase("hws")) {server = HWS_IP;}
-    	System.out.println("TEST 2");
-    	try {
-    		while (true) {
-    			System.out.println("TEST 3");
-    			System.out.println("sub test 1");
-    			Socket socket = new Socket();
-    			SocketAddress address = new InetSocketAddress(server, 35053);
-    			socket.connect(address);
-    			System.out.println("sub test 2");
-    			System.out.println("TEST 4");
-    			OutputStream os = socket.getOutputStream();
-    			PrintWriter out = new PrintWriter(os, true);
-    			out.println("NetDraw");
-    			out.flush();
-    			System.out.println("TEST 5");
-    			//172.21.7.12
-    			in = new Scanner(socket.getInputStream());
-    			String protocolIn;
-    			if (in.hasNext()) {
-    				protocolIn = in.nextLine();
-    				System.out.println(protocolIn);
-    				if (protocolIn.equals("NetDraw")) {
-    					while (true) {
-    						System.out.println("--1");
-    						if (in.hasNext()) {
-    							System.out.println("--2");
-    							in.nextLine();
-    							if (in.hasNext("text")) {
-    								in.next();
-    								System.out.println("--3 Text");
-    								double xCoor = in.nextDouble();
-    								double yCoor = in.nextDouble();
-    								double size = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								String textLine = in.next();
-    								Font font = Font.font(size);
-    								Text text = new Text(textLine);
-    						        text.setFont(font);
-    						        text.setX(xCoor);
-    						        text.setY(yCoor);
-    						        text.setFill(Color.rgb((int)red*100, (int)green*100, (int)blue*100));
-    						        NetDraw.getIGC().fillText(textLine, xCoor, yCoor);
-    							}
-    							else if (in.hasNext("stamp")) {
-    								in.next();
-    								System.out.println("--3 Stamp");
-    								double xCoor = in.nextDouble();
-    								double yCoor = in.nextDouble();
-    								String filename = in.next();
-    								System.out.println(filename);
-    								Image stamp = new Image(filename);
-    								NetDraw.getIGC().drawImage( stamp, xCoor, yCoor );
-    							}
-    							else if (in.hasNext("line")) {
-    								in.next();
-    								System.out.println("--3 Line");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double xCoor2 = in.nextDouble();
-    								double yCoor2 = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								Line line = new Line();
-    								line.setEndX(xCoor2);
-    								line.setEndY(yCoor2);
-    								line.setStartX(xCoor1);
-    								line.setStartY(yCoor1);
-    								line.setFill(Color.rgb((int)red*100, (int)green*100, (int)blue*100));
-    						        NetDraw.getIGC().lineTo(xCoor2, yCoor2);
-    							}
-    							else if (in.hasNext("rect")) {
-    								in.next();
-    								System.out.println("--3 rect");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("Rectangle", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    							else if (in.hasNext("oval")) {
-    								in.next();
-    								System.out.println("--3 oval");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("Oval", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    							else if (in.hasNext("roundrect")) {
-    								in.next();
-    								System.out.println("--3 roundrect");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("RoundRect", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    							else if (in.hasNext("filledoval")) {
-    								in.next();
-    								System.out.println("--3 filledoval");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("Filled Oval", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    							else if (in.hasNext("filledroundrect")) {
-    								in.next();
-    								System.out.println("--3 rect");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("Filled RoundRect", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    							else if (in.hasNext("filledrect")) {
-    								in.next();
-    								System.out.println("--3 filledrect");
-    								double xCoor1 = in.nextDouble();
-    								double yCoor1 = in.nextDouble();
-    								double width = in.nextDouble();
-    								double height = in.nextDouble();
-    								double red = in.nextDouble();
-    								double green = in.nextDouble();
-    								double blue = in.nextDouble();
-    								double lineWidth = in.nextDouble();
-    						        NetDraw.drawShape("Filled Rectangle", Color.rgb((int)red*100, (int)green*100, (int)blue*100), 
-    						        		lineWidth, NetDraw.getIGC(), xCoor1, yCoor1, xCoor1+width, yCoor1+height);
-    							}
-    						}
-    					}
+    	return getReceiver().follow(server, PORT, room, NetDraw.getSourceSequence(ReceiveEngine.name(server, PORT, room)));
+    }
+    
+    /**
+     * Returns the engine that receives commands, creating and starting it if necessary.
+     * Per-server statistics are available from its getPeers() method.
+     */
+    public static synchronized ReceiveEngine getReceiver() {
+    	if (receiver == null) {
+    		try {
+    			RenderQueue queue = NetDraw.getRemoteRenderer().getQueue();
+    			ReceiveEngine.CommandSink sink = new ReceiveEngine.CommandSink() {
+    				public void accept(DrawCommand command, ReceiveEngine.Peer from) {
+    					queue.offer(command, from, from.getSequence());
+    				}
+    				public void restart(ReceiveEngine.Peer from) {
+    					NetDraw.serverRestarted(receiver);
     				}
-    			}
-    			else {
-    				protocolIn = "Could not Connect";
-    				socket.close();
-    				in.close();
-    				break;
-    			}
-    			System.out.println("TEST 6");
-    			System.out.println(protocolIn);
-    			out.close();
-    			socket.close();
+    				public void roomRefused(ReceiveEngine.Peer from) {
+    					NetDraw.showStatus("Server " + from.getHost() + ":" + from.getPort()
+    							+ " does not support rooms, so room " + from.getRoom() + " is not followed.");
+    				}
+    			};
+    			receiver = new ReceiveEngine(sink, NetDraw.getStampFileNames());
+    			receiver.setCompression(COMPRESS);
+    			receiver.setOrigin(ORIGIN);
     		}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-    	
+    		catch (IOException e) {
+    			throw new IllegalStateException("Can't open a selector", e);
+    		}
+    		receiver.start();
+    		ReceiveEngine engine = receiver;
+    		DrawMetrics.gauge("receive.commands", () -> engine.getPeers().stream().mapToLong(ReceiveEngine.Peer::getCommands).sum());
+    		DrawMetrics.gauge("receive.bad", () -> engine.getPeers().stream().mapToLong(ReceiveEngine.Peer::getBadCommands).sum());
+    		DrawMetrics.gauge("receive.reconnects", () -> engine.getPeers().stream().mapToLong(p -> Math.max(0, p.getConnects() - 1)).sum());
+    	}
+    	return receiver;
     }
     
-    
 }
-
-
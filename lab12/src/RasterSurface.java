@@ -0,0 +1,193 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+
+/**
+ * A board that is drawn by a SoftwareRasterizer on other threads, instead of by a Canvas
+ * on the application thread.  Commands passed to draw() are copied into a batch.  Once
+ * per frame, if the rasterizer is not busy, the rows that it changed in the previous
+ * batch are copied into a WritableImage with its PixelWriter, and the new batch is
+ * given to the rasterizer, which draws it on the threads of a ForkJoinPool while the
+ * application thread goes on handling events.  A command therefore appears on the
+ * screen one or two frames after it is drawn, but the application thread only has to
+ * copy it and, once per frame, copy the changed rows of pixels.
+ * <p>All methods must be called on the application thread.  Methods that read or
+ * replace the pixels first wait for the rasterizer to finish everything that has been
+ * drawn.
+ */
+public class RasterSurface extends ImageView {
+
+	private final int width, height;
+	private final SoftwareRasterizer rasterizer;
+	private final ForkJoinPool pool;
+	private final WritableImage image;
+	private final ConcurrentHashMap<String,SoftwareRasterizer.Bitmap> stamps = new ConcurrentHashMap<>();  // Pixels of the stamps that have been drawn, for the rasterizer.
+	private DrawCommand[] pending = new DrawCommand[256];  // Commands drawn since the last batch was started.
+	private int pendingCount;
+	private DrawCommand[] rendering = new DrawCommand[256];  // The batch that the rasterizer is drawing.
+	private ForkJoinTask<?> job;  // The rasterizer drawing the batch, or null if it is idle.
+	private final AnimationTimer timer;
+
+	private long publishedRows;
+
+	/**
+	 * Create a white surface of a given size, which is drawn on by the threads of a pool.
+	 */
+	public RasterSurface(int width, int height, ForkJoinPool pool) {
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		image = new WritableImage(width, height);
+		rasterizer = new SoftwareRasterizer(width, height, pool);
+		rasterizer.setImageSource(stamps::get);
+		setImage(image);
+		publish();
+		timer = new AnimationTimer() {
+			public void handle(long now) {
+				pulse();
+			}
+		};
+		timer.start();
+	}
+
+	/**
+	 * Draw a command, soon.  The command is copied, so it can be reused by the caller.
+	 * @param damage  If not null, the area that will be drawn is added to this tracker.
+	 */
+	public void draw(DrawCommand c, DamageTracker damage) {
+		if (damage != null)
+			NetDraw.addBounds(c, damage);
+		if (c.op == DrawCommand.NONE)
+			return;
+		if (c.op == DrawCommand.STAMP && c.text != null && !stamps.containsKey(c.text)) {
+			Image stamp = NetDraw.stampImage(c.text);
+			if (stamp != null && stamp.getPixelReader() != null)
+				stamps.put(c.text, toBitmap(stamp));
+		}
+		if (pendingCount == pending.length)
+			pending = Arrays.copyOf(pending, 2 * pending.length);
+		if (pending[pendingCount] == null)
+			pending[pendingCount] = new DrawCommand();
+		pending[pendingCount++].copyFrom(c);
+	}
+
+	/**
+	 * Make the picture white.
+	 */
+	public void clear() {
+		finish();
+		rasterizer.fill(0xFFFFFFFF);
+		publish();
+	}
+
+	/**
+	 * Returns a copy of the picture, as ARGB pixels row by row, including everything that has been drawn.
+	 */
+	public int[] getPixels() {
+		finish();
+		return rasterizer.getPixels().clone();
+	}
+
+	/**
+	 * Replace the picture with the given ARGB pixels, row by row.  Anything that was drawn before is finished first.
+	 */
+	public void setPixels(int[] argb) {
+		finish();
+		rasterizer.setPixels(argb);
+		publish();
+	}
+
+	public int getBoardWidth() {
+		return width;
+	}
+
+	public int getBoardHeight() {
+		return height;
+	}
+
+	public SoftwareRasterizer getRasterizer() {
+		return rasterizer;
+	}
+
+	public String getStats() {
+		return rasterizer.getStats() + String.format(" pending=%d publishedRows=%d", pendingCount, publishedRows);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Called once per frame.  If the rasterizer has finished its batch, the result is shown
+	 * and the commands that have been drawn since then are given to it.
+	 */
+	private void pulse() {
+		if (job != null) {
+			if (!job.isDone())
+				return;
+			join();
+			publish();
+		}
+		if (pendingCount == 0)
+			return;
+		DrawCommand[] batch = pending;
+		int count = pendingCount;
+		pending = rendering;
+		pendingCount = 0;
+		rendering = batch;
+		job = pool.submit(() -> rasterizer.render(batch, count));
+	}
+
+	/**
+	 * Wait until everything that has been drawn is in the rasterizer's pixels, and show it.
+	 */
+	private void finish() {
+		join();
+		if (pendingCount > 0) {
+			rasterizer.render(pending, pendingCount);
+			pendingCount = 0;
+		}
+		publish();
+	}
+
+	private void join() {
+		if (job == null)
+			return;
+		try {
+			job.get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("Error while drawing the board: " + e);
+		}
+		job = null;
+	}
+
+	/**
+	 * Copy the rows that the rasterizer has changed into the image.
+	 */
+	private void publish() {
+		int top = rasterizer.getDirtyTop();
+		int bottom = rasterizer.getDirtyBottom();
+		if (bottom < top)
+			return;
+		image.getPixelWriter().setPixels(0, top, width, bottom - top + 1, PixelFormat.getIntArgbInstance(),
+				rasterizer.getPixels(), top * width, width);
+		publishedRows += bottom - top + 1;
+		rasterizer.resetDirty();
+	}
+
+	private static SoftwareRasterizer.Bitmap toBitmap(Image image) {
+		int w = (int)image.getWidth(), h = (int)image.getHeight();
+		int[] pixels = new int[w * h];
+		PixelReader reader = image.getPixelReader();
+		reader.getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+		return new SoftwareRasterizer.Bitmap(w, h, pixels);
+	}
+
+}
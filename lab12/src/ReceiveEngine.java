@@ -0,0 +1,754 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives drawing commands from any number of NetDraw servers on a single thread,
+ * using a java.nio Selector and non-blocking SocketChannels.  Each server that is
+ * being followed is represented by a Peer, which has its own direct ByteBuffer for
+ * incoming data and its own byte and command counters.  Decoded commands are passed
+ * to a CommandSink, on the engine's thread, in the order they arrive from each peer.
+ * <p>The handshake is the same one that NetReader uses: the binary format is offered,
+ * and if the server closes the connection without replying, it is opened again at once
+ * with the bare "NetDraw" line; the features are offered again the next time that the
+ * peer reconnects.  A peer that follows a room does not fall back, since it would get
+ * the server's default room instead: a server that does not accept the room is
+ * treated as a failed connection, and the sink is told once, with roomRefused().
+ * The "sync" feature is offered too, with the number of commands already received
+ * from the peer, so that the server sends a snapshot of the rest of its board before
+ * the live commands (see CommandLog).  The commands in the snapshot are passed to the
+ * sink like any others.  Since the count is kept across reconnections, a peer that
+ * reconnects only gets the commands that it missed.  If the server has fewer commands
+ * than that, it has lost the ones that it sent before, and sends its board from the
+ * start; the sink is told, with restart(), so that it can drop what it has.  A sink
+ * that can't tell which peer drew what can drop everything instead, and call resync()
+ * to have every other peer send its board again from the start as well.
+ * <p>If setCompression(true) has been called, the "deflate" feature is offered as well,
+ * and if the server accepts it, everything after its handshake reply is inflated into
+ * the peer's input buffer as it arrives, and handled just like uncompressed data.
+ * A peer whose connection fails or is closed by the server is reconnected after a
+ * delay that doubles with each consecutive failure, from MIN_BACKOFF to MAX_BACKOFF.
+ */
+public class ReceiveEngine extends Thread {
+
+	/**
+	 * Receives the commands decoded by the engine.  The command object is reused for
+	 * the next command, so it must be copied if it is needed after accept() returns.
+	 */
+	public interface CommandSink {
+		void accept(DrawCommand command, Peer from);
+		/**
+		 * Called when a server starts its snapshot before the commands that the peer
+		 * already has, which means that it has lost them, probably because it was
+		 * restarted, and is sending its board again from there.  The commands that the
+		 * sink has from the peer are out of date, and should be dropped before the
+		 * snapshot's commands are passed to accept().  A sink that drops the other peers'
+		 * commands as well must call resync() before it returns.  By default, nothing is done.
+		 */
+		default void restart(Peer from) {
+		}
+		/**
+		 * Called the first time that a peer's server does not accept the peer's room.  The
+		 * engine keeps trying to connect, with backoff, in case the server is replaced by
+		 * one that has rooms, but does not call this again.  By default, nothing is done.
+		 */
+		default void roomRefused(Peer from) {
+		}
+	}
+
+	private final static int BUFFER_SIZE = 128 * 1024;  // Size of each peer's input buffer.  Must be bigger than the largest binary frame.
+	private final static long MIN_BACKOFF = 100;
+	private final static long MAX_BACKOFF = 5000;
+
+	private final Selector selector;
+	private final CommandSink sink;
+	private final CommandParser parser;
+	private final DrawCommand command = new DrawCommand();
+	private final ConcurrentLinkedQueue<Peer> added = new ConcurrentLinkedQueue<>();    // Peers added by follow(), not yet seen by the engine thread.
+	private final ConcurrentLinkedQueue<Peer> removed = new ConcurrentLinkedQueue<>();  // Peers removed by unfollow(), not yet closed.
+	private final List<Peer> peers = new ArrayList<>();  // All peers.  Only used on the engine thread.
+	private Peer restarting;  // The peer whose restart() is being called, if any.
+	private volatile boolean shutdown;
+	private volatile boolean compression;
+	private volatile String origin;
+
+	/**
+	 * Information about one followed server.  The counters can be read from any thread.
+	 */
+	public class Peer {
+		private final String host;
+		private final int port;
+		private final String room;           // The room to join, or null for the default room.
+		private SocketChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private ByteBuffer out;              // The handshake line, while it is being written.
+		private boolean handshakeDone;
+		private boolean binary;
+		private boolean offerBinary = true;  // Offer features, including the binary format and sync, in the handshake.  False only for a fallback connection.
+		private boolean roomRefused;         // Set to true once it has been reported that the server does not support rooms.
+		private volatile long sequence;      // Number of the server's commands received, which is the sequence number of the next one.
+		private boolean snapshotPending;     // True after the server accepts sync, until the snapshot header is read.
+		private long snapshotTo;             // Sequence number at the end of the snapshot that is being read.
+		private long snapshotRemaining;      // Bytes of the compressed snapshot that have not arrived yet.
+		private Inflater inflater;           // Non-null while a snapshot is being read.
+		private Inflater stream;             // Inflates the whole connection, if the server accepted deflate; otherwise null.
+		private ByteBuffer compressed;       // Data read from the server that stream has not inflated yet.
+		private ByteBuffer inflated;         // Decompressed snapshot data that has not been decoded yet.
+		private long connectStart;           // System.nanoTime() when the current connection was started.
+		private boolean skipping;            // True while skipping a text line that did not fit in the buffer.
+		private boolean closed;
+		private long backoff = MIN_BACKOFF;
+		private long reconnectTime;          // System.currentTimeMillis() at which to reconnect, or 0 if not waiting.
+
+		private volatile long bytesRead;
+		private volatile long commands;
+		private volatile long badCommands;
+		private volatile long connects;
+		private volatile long failures;
+		private volatile long snapshotCommands;
+		private volatile long echoes;
+		private volatile long joinNanos;
+
+		Peer(String host, int port, String room, long sequence) {
+			this.host = host;
+			this.port = port;
+			this.room = room;
+			this.sequence = sequence;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * Returns the number of valid commands that have been passed to the sink.
+		 */
+		public long getCommands() {
+			return commands;
+		}
+
+		/**
+		 * Returns the number of text lines that were not valid commands.
+		 */
+		public long getBadCommands() {
+			return badCommands;
+		}
+
+		public long getConnects() {
+			return connects;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public boolean isBinary() {
+			return binary;
+		}
+
+		/**
+		 * Returns true if the current connection is compressed with the deflate feature.
+		 * getBytesRead() counts the compressed bytes.
+		 */
+		public boolean isCompressed() {
+			return stream != null;
+		}
+
+		/**
+		 * Returns the number of the server's commands that have been received, counting
+		 * from the start of its board, including those of an earlier session that were
+		 * given to follow().  In a CommandSink, this includes the command being accepted.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns the number of the user's own commands that the server sent back, marked as
+		 * echoes, and that were dropped.  See setOrigin().
+		 */
+		public long getEchoes() {
+			return echoes;
+		}
+
+		/**
+		 * Returns the number of commands that have been received in snapshots.
+		 */
+		public long getSnapshotCommands() {
+			return snapshotCommands;
+		}
+
+		/**
+		 * Returns the time from the start of the most recent connection until the whole
+		 * board was received, that is, until the handshake and snapshot were done.
+		 * Returns 0 if that has not happened yet.
+		 */
+		public long getJoinNanos() {
+			return joinNanos;
+		}
+
+		public String getStats() {
+			return String.format("%s %s bytes=%d commands=%d bad=%d echoes=%d snapshot=%d join=%.1fms connects=%d failures=%d",
+					this, (binary ? "binary" : "text") + (stream != null ? "+deflate" : ""), bytesRead, commands, badCommands, echoes,
+					snapshotCommands, joinNanos / 1e6, connects, failures);
+		}
+
+		/**
+		 * Returns the room on the server that is followed, or null for the server's default room.
+		 */
+		public String getRoom() {
+			return room;
+		}
+
+		public String toString() {
+			return name(host, port, room);
+		}
+	}
+
+	/**
+	 * Create an engine that sends commands to a given sink.  The engine does nothing
+	 * until it is started and told to follow some servers.
+	 * @param stampNames known stamp file names, passed on to the CommandParser.
+	 */
+	public ReceiveEngine(CommandSink sink, String... stampNames) throws IOException {
+		this.sink = sink;
+		this.parser = new CommandParser(stampNames);
+		selector = Selector.open();
+		setDaemon(true);
+		setName("NetDraw receiver");
+	}
+
+	/**
+	 * Start receiving commands from a server.  This can be called from any thread.
+	 */
+	public Peer follow(String host, int port) {
+		return follow(host, port, null);
+	}
+
+	/**
+	 * Start receiving commands from one room on a server, or from its default room if
+	 * room is null.  A server that does not know about rooms sends its only board.
+	 * This can be called from any thread.
+	 * @throws IllegalArgumentException if the room name is not allowed; see Handshake.room().
+	 */
+	public Peer follow(String host, int port, String room) {
+		return follow(host, port, room, 0);
+	}
+
+	/**
+	 * Start receiving commands from one room on a server, or from its default room if
+	 * room is null, when the first sequence commands of its board are already known,
+	 * for example from an earlier session.  The server sends only the later ones, or
+	 * its whole board if it does not have that many, in which case the sink is told.
+	 * This can be called from any thread.
+	 * @throws IllegalArgumentException if the room name is not allowed; see Handshake.room().
+	 */
+	public Peer follow(String host, int port, String room, long sequence) {
+		if (room != null)
+			Handshake.room(room);
+		Peer peer = new Peer(host, port, room, sequence);
+		added.add(peer);
+		selector.wakeup();
+		return peer;
+	}
+
+	/**
+	 * Returns the name of a peer, as its toString() gives it: host:port, followed by /room if room is not null.
+	 */
+	public static String name(String host, int port, String room) {
+		return room == null ? host + ":" + port : host + ":" + port + "/" + room;
+	}
+
+	/**
+	 * Set the ID of the user, which is offered as the "origin" feature the next time that
+	 * each peer connects, or null for none.  If it is the one that the user's
+	 * DrawConnection gives, a server that accepts it marks the user's own commands when
+	 * it sends them back, and they are counted but not passed to the sink, since they
+	 * were drawn when they were sent.  See Handshake.ORIGIN.
+	 * @throws IllegalArgumentException if the ID is not allowed; see Handshake.origin().
+	 */
+	public void setOrigin(String origin) {
+		if (origin != null)
+			Handshake.origin(origin);
+		this.origin = origin;
+	}
+
+	/**
+	 * Say whether to offer the "deflate" feature, for a compressed connection, the next
+	 * time that each peer connects.  This costs some processor time per byte received,
+	 * and saves most of the bytes; it is worth it on a slow network.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Stop receiving commands from a server.  This can be called from any thread.
+	 */
+	public void unfollow(Peer peer) {
+		removed.add(peer);
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns a list of the peers that are currently being followed.
+	 */
+	public synchronized List<Peer> getPeers() {
+		return new ArrayList<>(peers);
+	}
+
+	/**
+	 * Reconnect to every peer except the one whose restart() is being called, and ask
+	 * each for its board from the start, as if nothing had been received from it; a
+	 * peer that is waiting to reconnect asks for it when it does.  Nothing more is read
+	 * from the old connections, so the sink gets each command once, in order.  A server
+	 * that does not accept sync does not send its board again, and its commands stay
+	 * lost.  This must be called from CommandSink.restart(), on the engine's thread.
+	 * @throws IllegalStateException if it is called from anywhere else.
+	 */
+	public void resync() {
+		if (Thread.currentThread() != this || restarting == null)
+			throw new IllegalStateException("resync() must be called from CommandSink.restart()");
+		for (Peer peer : peers) {
+			if (peer == restarting)
+				continue;
+			peer.sequence = 0;
+			if (peer.channel != null) {
+				disconnect(peer, false);
+				connect(peer);
+			}
+		}
+	}
+
+	/**
+	 * Close all connections and end the engine thread.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while (!shutdown) {
+				long timeout = timeUntilReconnect();
+				if (timeout == 0)
+					selector.select();
+				else if (timeout > 0)
+					selector.select(timeout);
+				else
+					selector.selectNow();
+				changePeers();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid())
+						continue;  // Its channel was closed by resync() while handling another key.
+					Peer peer = (Peer)key.attachment();
+					try {
+						if (key.isConnectable())
+							finishConnect(peer);
+						if (key.isValid() && key.isWritable())
+							writeHandshake(peer);
+						if (key.isValid() && key.isReadable())
+							read(peer);
+					}
+					catch (IOException | IllegalArgumentException | CancelledKeyException e) {
+						disconnect(peer, true);
+					}
+				}
+				selector.selectedKeys().clear();
+				reconnect();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			for (Peer peer : getPeers())
+				disconnect(peer, false);
+			try {
+				selector.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void changePeers() {
+		Peer peer;
+		while ((peer = added.poll()) != null) {
+			synchronized(this) {
+				peers.add(peer);
+			}
+			connect(peer);
+		}
+		while ((peer = removed.poll()) != null) {
+			peer.closed = true;
+			disconnect(peer, false);
+			synchronized(this) {
+				peers.remove(peer);
+			}
+		}
+	}
+
+	private void connect(Peer peer) {
+		peer.reconnectTime = 0;
+		peer.handshakeDone = false;
+		peer.skipping = false;
+		peer.snapshotPending = false;
+		endSnapshot(peer);
+		peer.in.clear();
+		peer.connectStart = System.nanoTime();
+		peer.joinNanos = 0;
+		try {
+			peer.channel = SocketChannel.open();
+			peer.channel.configureBlocking(false);
+			List<String> features = new ArrayList<>();
+			features.add(Handshake.BINARY);
+			features.add(Handshake.SYNC + "=" + peer.sequence);
+			if (compression)
+				features.add(Handshake.DEFLATE);
+			if (peer.room != null)
+				features.add(Handshake.room(peer.room));
+			if (origin != null)
+				features.add(Handshake.origin(origin));
+			String offer = peer.offerBinary ? Handshake.offer(features.toArray(new String[0])) : Handshake.offer();
+			peer.out = ByteBuffer.wrap((offer + "\n").getBytes(StandardCharsets.UTF_8));
+			if (peer.channel.connect(new InetSocketAddress(peer.host, peer.port)))
+				finishConnect(peer);
+			else
+				peer.channel.register(selector, SelectionKey.OP_CONNECT, peer);
+		}
+		catch (IOException e) {
+			disconnect(peer, true);
+		}
+	}
+
+	private void finishConnect(Peer peer) throws IOException {
+		if (!peer.channel.finishConnect())
+			return;
+		writeHandshake(peer);
+	}
+
+	private void writeHandshake(Peer peer) throws IOException {
+		peer.channel.write(peer.out);
+		int interest = peer.out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		peer.channel.register(selector, interest, peer);
+	}
+
+	private void read(Peer peer) throws IOException {
+		int n = peer.channel.read(peer.stream == null ? peer.in : peer.compressed);
+		if (n < 0) {
+			boolean answered = peer.handshakeDone;
+			if (!answered && peer.offerBinary && peer.room == null) {
+				peer.offerBinary = false;  // The server may not understand the feature list.
+				disconnect(peer, false);
+				connect(peer);
+			}
+			else {
+				if (!answered && peer.room != null)
+					reportRoomRefused(peer);
+				disconnect(peer, true);
+			}
+			return;
+		}
+		peer.bytesRead += n;
+		if (peer.stream == null)
+			process(peer);
+		if (peer.stream != null)  // Including when the handshake that process() just read turned it on.
+			inflateStream(peer);
+	}
+
+	/**
+	 * Inflate the data in the peer's compressed buffer into its input buffer, and handle
+	 * the input each time, until all of the compressed data has been used.
+	 */
+	private void inflateStream(Peer peer) throws IOException {
+		ByteBuffer compressed = peer.compressed;
+		compressed.flip();
+		peer.stream.setInput(compressed);
+		try {
+			while (!peer.stream.needsInput()) {
+				int count = peer.stream.inflate(peer.in);
+				if (peer.stream.finished())
+					throw new IOException("The server ended the compressed stream");
+				if (count == 0 && !peer.in.hasRemaining())
+					throw new IOException("Input buffer is full");
+				process(peer);
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Bad compressed data", e);
+		}
+		compressed.clear();
+	}
+
+	/**
+	 * Handle the data in the peer's input buffer: the handshake reply, the snapshot, and commands.
+	 */
+	private void process(Peer peer) throws IOException {
+		ByteBuffer in = peer.in;
+		in.flip();
+		if (!peer.handshakeDone && !readHandshake(peer)) {
+			in.compact();
+			return;
+		}
+		if (peer.snapshotPending && !readSnapshotHeader(peer)) {
+			in.compact();
+			return;
+		}
+		if (peer.inflater != null && !readSnapshot(peer)) {
+			in.compact();
+			return;
+		}
+		long start = DrawMetrics.now();
+		if (peer.binary) {
+			while (in.hasRemaining()) {
+				boolean echo = BinaryCodec.isEcho(in);
+				if (!BinaryCodec.decode(in, command))
+					break;
+				DrawMetrics.PARSE.recordSince(start);
+				if (echo) {
+					peer.echoes++;
+					peer.sequence++;
+				}
+				else {
+					deliver(peer);
+				}
+				start = DrawMetrics.now();
+			}
+		}
+		else {
+			while (parser.next(in, command)) {
+				DrawMetrics.PARSE.recordSince(start);
+				if (peer.skipping)
+					peer.skipping = false;
+				else
+					deliver(peer);
+				start = DrawMetrics.now();
+			}
+			if (in.remaining() == in.capacity()) {
+				in.clear();
+				peer.skipping = true;
+				return;
+			}
+		}
+		in.compact();
+	}
+
+	/**
+	 * Look for the server's handshake reply at the start of the buffer.  Returns true if
+	 * it was found and accepted, false if more data is needed.
+	 * @throws IOException if the reply is not a NetDraw handshake.
+	 */
+	private boolean readHandshake(Peer peer) throws IOException {
+		String line = readLine(peer.in);
+		if (line == null)
+			return false;
+		List<String> features = Handshake.parse(line);
+		if (features == null)
+			throw new IOException("Not a NetDraw server");
+		if (peer.room != null && !peer.room.equals(Handshake.value(features, Handshake.ROOM))) {
+			reportRoomRefused(peer);
+			throw new IOException("The server does not support rooms");
+		}
+		peer.handshakeDone = true;
+		peer.binary = Handshake.has(features, Handshake.BINARY);
+		peer.snapshotPending = Handshake.has(features, Handshake.SYNC);
+		if (Handshake.has(features, Handshake.DEFLATE)) {
+			peer.stream = new Inflater();
+			if (peer.compressed == null)
+				peer.compressed = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			peer.compressed.clear();
+			peer.compressed.put(peer.in);  // Whatever follows the reply line is compressed.
+		}
+		peer.connects++;
+		peer.backoff = MIN_BACKOFF;
+		if (!peer.snapshotPending)
+			peer.joinNanos = System.nanoTime() - peer.connectStart;
+		return true;
+	}
+
+	/**
+	 * Read the header line of the snapshot that the server sends when it accepts sync.
+	 * Returns false if more data is needed.
+	 */
+	private boolean readSnapshotHeader(Peer peer) throws IOException {
+		String line = readLine(peer.in);
+		if (line == null)
+			return false;
+		long[] header = CommandLog.parseSnapshotHeader(line);
+		if (header == null)
+			throw new IOException("Bad snapshot header");
+		peer.snapshotPending = false;
+		if (header[0] < peer.sequence) {
+			restarting = peer;
+			try {
+				sink.restart(peer);
+			}
+			finally {
+				restarting = null;
+			}
+		}
+		peer.sequence = header[0];
+		peer.snapshotTo = header[1];
+		peer.snapshotRemaining = header[2];
+		peer.inflater = new Inflater();
+		peer.inflated = ByteBuffer.allocate(BUFFER_SIZE);
+		return true;
+	}
+
+	/**
+	 * Decompress and deliver the part of the snapshot that is in the input buffer.
+	 * Returns true when the whole snapshot has been read.
+	 */
+	private boolean readSnapshot(Peer peer) throws IOException {
+		ByteBuffer in = peer.in;
+		int n = (int)Math.min(in.remaining(), peer.snapshotRemaining);
+		byte[] compressed = new byte[n];
+		in.get(compressed);
+		peer.snapshotRemaining -= n;
+		Inflater inflater = peer.inflater;
+		ByteBuffer inflated = peer.inflated;
+		inflater.setInput(compressed);
+		try {
+			while (!inflater.needsInput() && !inflater.finished()) {
+				int count = inflater.inflate(inflated.array(), inflated.position(), inflated.remaining());
+				inflated.position(inflated.position() + count);
+				inflated.flip();
+				while (BinaryCodec.decode(inflated, command)) {
+					peer.snapshotCommands++;
+					deliver(peer);
+				}
+				inflated.compact();
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Bad snapshot data", e);
+		}
+		if (peer.snapshotRemaining > 0)
+			return false;
+		boolean complete = inflater.finished() && inflated.position() == 0 && peer.sequence == peer.snapshotTo;
+		endSnapshot(peer);
+		if (!complete)
+			throw new IOException("Incomplete snapshot");
+		peer.joinNanos = System.nanoTime() - peer.connectStart;
+		return true;
+	}
+
+	/**
+	 * Tell the sink, the first time for a peer, that its server does not accept its room.
+	 */
+	private void reportRoomRefused(Peer peer) {
+		if (!peer.roomRefused)
+			sink.roomRefused(peer);
+		peer.roomRefused = true;
+	}
+
+	private void endSnapshot(Peer peer) {
+		if (peer.inflater != null)
+			peer.inflater.end();
+		peer.inflater = null;
+		peer.inflated = null;
+	}
+
+	/**
+	 * Read a line of text at the buffer's position.  Returns null if the buffer does not
+	 * contain a complete line yet.
+	 * @throws IOException if the line is too long to fit in the buffer.
+	 */
+	private static String readLine(ByteBuffer in) throws IOException {
+		int lineEnd = in.position();
+		while (lineEnd < in.limit() && in.get(lineEnd) != '\n')
+			lineEnd++;
+		if (lineEnd == in.limit()) {
+			if (in.remaining() == in.capacity())
+				throw new IOException("Line is too long");
+			return null;
+		}
+		byte[] line = new byte[lineEnd - in.position()];
+		in.get(line);
+		in.get();  // The line feed.
+		return new String(line, StandardCharsets.UTF_8).trim();
+	}
+
+	private void deliver(Peer peer) {
+		if (command.op == DrawCommand.NONE) {
+			peer.badCommands++;
+			return;
+		}
+		peer.commands++;
+		peer.sequence++;
+		sink.accept(command, peer);
+	}
+
+	/**
+	 * Close a peer's channel.  If retry is true, and the peer has not been removed,
+	 * schedule a reconnection after the peer's backoff delay.
+	 */
+	private void disconnect(Peer peer, boolean retry) {
+		endSnapshot(peer);
+		if (peer.stream != null) {
+			peer.stream.end();
+			peer.stream = null;
+		}
+		if (peer.channel != null) {
+			try {
+				peer.channel.close();
+			}
+			catch (IOException e) {
+			}
+			peer.channel = null;
+		}
+		if (retry && !peer.closed && !shutdown) {
+			peer.offerBinary = true;  // Even if this connection fell back to the bare handshake.
+			peer.failures++;
+			peer.reconnectTime = System.currentTimeMillis() + peer.backoff;
+			peer.backoff = Math.min(MAX_BACKOFF, peer.backoff * 2);
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds until the next reconnection is due, 0 if no
+	 * reconnection is scheduled, or -1 if one is due now.
+	 */
+	private long timeUntilReconnect() {
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for (Peer peer : peers) {
+			if (peer.reconnectTime != 0)
+				next = Math.min(next, peer.reconnectTime);
+		}
+		if (next == Long.MAX_VALUE)
+			return 0;
+		return next <= now ? -1 : next - now;
+	}
+
+	private void reconnect() {
+		long now = System.currentTimeMillis();
+		for (Peer peer : peers) {
+			if (peer.reconnectTime != 0 && peer.reconnectTime <= now)
+				connect(peer);
+		}
+	}
+
+}
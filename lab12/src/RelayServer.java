@@ -0,0 +1,737 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A headless NetDraw server that relays every command it receives to all of the other
+ * clients in the same room.  It speaks the same protocol as the HWS server: a client
+ * sends a "NetDraw" handshake line and gets a "NetDraw" reply, and after that every
+ * command line that the client sends is broadcast.  The binary format (see BinaryCodec)
+ * is accepted if a client offers it, and commands are converted as needed, so text and
+ * binary clients can share a board.  A client that offers the "sendonly" feature, as
+ * DrawConnection does, is never sent any commands.  A binary client that offers the
+ * "origin" feature is sent the commands of clients with the same origin, which belong
+ * to the same user, with their frames marked as echoes (see Handshake.ORIGIN).
+ * <p>Each room is a separate board.  A client picks its room with the "room" feature of
+ * the handshake; clients that don't, including those that only know the bare "NetDraw"
+ * handshake, are all in DEFAULT_ROOM.  Rooms are created when their first client joins.
+ * <p>Every command is also added to the CommandLog of its room, which numbers the
+ * commands in order.  A client that offers the "sync" feature is sent a compressed
+ * snapshot of the commands that it does not have yet before any live commands, so that
+ * someone who joins late sees the whole board.  (See CommandLog for the format.)
+ * <p>The server runs on a fixed number of event loops, by default one per processor, each
+ * a thread that handles its clients with non-blocking I/O.  This thread accepts new
+ * connections and reads their handshake lines, and then hands each client to the loop
+ * that owns its room, chosen by a hash of the room's name.  A room and all of its
+ * clients belong to one loop, which is the only thread that touches them, so there are
+ * no locks, and a busy room only slows down the rooms that share its loop.  Commands for
+ * a client are collected in its output buffer and written once per pass of the select
+ * loop, so a burst of commands costs one write per client rather than one per command.
+ * A client that does not read its data, so that more than MAX_PENDING bytes pile up
+ * for it, is disconnected rather than being allowed to use up the server's memory.
+ * <p>A client that offers the "deflate" feature gets a compressed connection (see
+ * Handshake.DEFLATE).  Its input is inflated into its input buffer as it arrives, and
+ * its output is collected uncompressed as usual, and compressed with a sync flush once
+ * per pass, just before it is written, so that each pass costs one flush per client.
+ * <p>Usage:  java RelayServer [port [loops]]
+ */
+public class RelayServer extends Thread {
+
+	public final static int MAX_PENDING = 4 * 1024 * 1024;
+	public final static String DEFAULT_ROOM = "";  // The room of clients that don't ask for one.
+	private final static int INPUT_BUFFER_SIZE = 128 * 1024;
+
+	private final ServerSocketChannel server;
+	private final Selector selector;  // For accepting clients and reading their handshake lines.
+	private final List<Client> joining = new ArrayList<>();  // Clients whose handshake line has not arrived yet.
+	private final EventLoop[] loops;
+	private volatile boolean shutdown;
+	private volatile int joiningCount;
+
+	/**
+	 * Information about one connected client.
+	 */
+	private class Client {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		ByteBuffer out = ByteBuffer.allocate(8 * 1024);
+		String handshake;    // The client's handshake line, read by the accepting thread.
+		String roomName;     // The room that the client asked for, set by the accepting thread.
+		Room room;           // Set when the event loop takes the client.
+		boolean handshakeDone;
+		boolean binary;
+		boolean sendOnly;
+		String origin;       // The user that the client belongs to, from Handshake.ORIGIN, or null.
+		boolean skipping;    // True while skipping a text line that did not fit in the buffer.
+		boolean isDirty;
+		int allowance;       // Extra bytes allowed in the output buffer beyond MAX_PENDING, while a snapshot is being sent.
+		Inflater inflater;   // For a client that uses deflate, inflates compressedIn into in; otherwise null.
+		ByteBuffer compressedIn;
+		Deflater deflater;   // For a client that uses deflate, compresses out into wire; otherwise null.
+		ByteBuffer wire;     // Compressed output that has not been written yet.
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * The clients and history of one board.
+	 */
+	private static class Room {
+		final String name;
+		final List<Client> clients = new ArrayList<>();
+		final CommandLog history = new CommandLog();
+		Room(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Create a relay server listening on a given port, with one event loop per processor.  Use port 0 to get any free port.
+	 */
+	public RelayServer(int port) throws IOException {
+		this(port, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a relay server listening on a given port, with a given number of event loops.  Use port 0 to get any free port.
+	 */
+	public RelayServer(int port, int loopCount) throws IOException {
+		if (loopCount < 1)
+			throw new IllegalArgumentException("A relay needs at least one event loop");
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++)
+			loops[i] = new EventLoop(i);
+		setName("NetDraw relay");
+	}
+
+	/**
+	 * Returns the port on which the server is listening.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	public int getLoopCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Returns the index of the event loop that owns a room.
+	 */
+	public int loopFor(String room) {
+		return Math.floorMod(room.hashCode(), loops.length);
+	}
+
+	public int getClientCount() {
+		int count = joiningCount;
+		for (EventLoop loop : loops)
+			count += loop.clientCount;
+		return count;
+	}
+
+	/**
+	 * Returns the number of rooms that have been created.  Rooms are kept after their last client leaves.
+	 */
+	public int getRoomCount() {
+		int count = 0;
+		for (EventLoop loop : loops)
+			count += loop.roomCount;
+		return count;
+	}
+
+	public long getCommandsIn() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.commandsIn;
+		return count;
+	}
+
+	/**
+	 * Returns the number of commands received by each event loop, to show how evenly the rooms are spread.
+	 */
+	public long[] getCommandsInPerLoop() {
+		long[] counts = new long[loops.length];
+		for (int i = 0; i < loops.length; i++)
+			counts[i] = loops[i].commandsIn;
+		return counts;
+	}
+
+	public long getDeliveries() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.deliveries;
+		return count;
+	}
+
+	public long getBytesOut() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.bytesOut;
+		return count;
+	}
+
+	/**
+	 * Returns how many of the bytes of output were compressed for clients that use deflate,
+	 * counted before compression; getBytesOut() counts them after compression.
+	 */
+	public long getDeflatedBytes() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.deflatedBytes;
+		return count;
+	}
+
+	public long getSlowClientsDropped() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.slowClientsDropped;
+		return count;
+	}
+
+	public long getSnapshotsSent() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.snapshotsSent;
+		return count;
+	}
+
+	/**
+	 * Returns the total compressed size of the snapshots that have been sent.
+	 */
+	public long getSnapshotBytes() {
+		long count = 0;
+		for (EventLoop loop : loops)
+			count += loop.snapshotBytes;
+		return count;
+	}
+
+	public String getStats() {
+		return String.format("loops=%d rooms=%d clients=%d commandsIn=%d deliveries=%d bytesOut=%d deflated=%d slowDropped=%d snapshots=%d snapshotBytes=%d",
+				loops.length, getRoomCount(), getClientCount(), getCommandsIn(), getDeliveries(), getBytesOut(), getDeflatedBytes(),
+				getSlowClientsDropped(), getSnapshotsSent(), getSnapshotBytes());
+	}
+
+	public void run() {
+		for (EventLoop loop : loops) {
+			loop.setDaemon(isDaemon());
+			loop.start();
+		}
+		try {
+			while (!shutdown) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key.channel() == server) {
+						accept();
+						continue;
+					}
+					Client client = (Client)key.attachment();
+					try {
+						if (key.isReadable())
+							readHandshake(client, key);
+					}
+					catch (IOException | CancelledKeyException e) {
+						abandon(client);
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			for (Client client : new ArrayList<>(joining))
+				abandon(client);
+			for (EventLoop loop : loops)
+				loop.shutdown();
+			try {
+				server.close();
+				selector.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Handshake.DEFAULT_PORT;
+		RelayServer relay = args.length > 1 ? new RelayServer(port, Integer.parseInt(args[1])) : new RelayServer(port);
+		relay.start();
+		System.out.println("NetDraw relay listening on port " + relay.getPort() + " with " + relay.getLoopCount() + " event loops");
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println(relay.getStats());
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel);
+			channel.register(selector, SelectionKey.OP_READ, client);
+			joining.add(client);
+			joiningCount = joining.size();
+		}
+	}
+
+	/**
+	 * Read from a new client until its handshake line has arrived, and then hand the
+	 * client to the event loop of the room that it asks for.  Anything that the client
+	 * sent after the handshake line stays in its input buffer for the loop.
+	 */
+	private void readHandshake(Client client, SelectionKey key) throws IOException {
+		ByteBuffer in = client.in;
+		if (client.channel.read(in) < 0)
+			throw new IOException("Closed before the handshake");
+		int lineEnd = 0;
+		while (lineEnd < in.position() && in.get(lineEnd) != '\n')
+			lineEnd++;
+		if (lineEnd == in.position()) {
+			if (!in.hasRemaining())
+				throw new IOException("Handshake line is too long");
+			return;
+		}
+		String line = new String(in.array(), 0, lineEnd, StandardCharsets.UTF_8).trim();
+		List<String> features = Handshake.parse(line);
+		if (features == null)
+			throw new IOException("Not a NetDraw client");
+		in.flip();
+		in.position(lineEnd + 1);
+		in.compact();
+		client.handshake = line;
+		key.cancel();
+		joining.remove(client);
+		joiningCount = joining.size();
+		String room = Handshake.value(features, Handshake.ROOM);
+		if (room == null)
+			room = DEFAULT_ROOM;
+		loops[loopFor(room)].adopt(client, room);
+	}
+
+	private void abandon(Client client) {
+		try {
+			client.channel.close();
+		}
+		catch (IOException e) {
+		}
+		if (joining.remove(client))
+			joiningCount = joining.size();
+	}
+
+	/**
+	 * A thread that owns some of the rooms and all of their clients.  Everything here is
+	 * only used by the loop's own thread, except adopt(), shutdown() and the statistics.
+	 */
+	private class EventLoop extends Thread {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Client> arriving = new ConcurrentLinkedQueue<>();  // Clients handed over by adopt().
+		private final Map<String,Room> rooms = new HashMap<>();
+		private final List<Client> dirty = new ArrayList<>();  // Clients with data in their output buffers.
+		private final CommandParser parser = new CommandParser();
+		private final DrawCommand command = new DrawCommand();
+		private final ByteBuffer binaryFrame = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		private volatile boolean stopping;
+
+		private volatile int clientCount;
+		private volatile int roomCount;
+		private volatile long commandsIn;
+		private volatile long deliveries;      // Number of times a command was added to some client's output.
+		private volatile long bytesOut;
+		private volatile long deflatedBytes;   // Bytes of output that were compressed, before compression.
+		private volatile long slowClientsDropped;
+		private volatile long snapshotsSent;
+		private volatile long snapshotBytes;
+
+		EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			setName("NetDraw relay loop " + index);
+		}
+
+		/**
+		 * Give the loop a client whose handshake line has been read.  Called by the accepting thread.
+		 */
+		void adopt(Client client, String room) {
+			client.roomName = room;
+			arriving.add(client);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			stopping = true;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (!stopping) {
+					selector.select();
+					Client client;
+					while ((client = arriving.poll()) != null)
+						join(client);
+					for (SelectionKey key : selector.selectedKeys()) {
+						client = (Client)key.attachment();
+						try {
+							if (key.isReadable())
+								read(client);
+							if (key.isValid() && key.isWritable())
+								write(client);
+						}
+						catch (IOException | IllegalArgumentException | CancelledKeyException e) {
+							close(client);
+						}
+					}
+					selector.selectedKeys().clear();
+					for (Client c : dirty) {
+						c.isDirty = false;
+						try {
+							write(c);
+						}
+						catch (IOException | CancelledKeyException e) {
+							close(c);
+						}
+					}
+					dirty.clear();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			finally {
+				for (Room room : rooms.values())
+					for (Client client : new ArrayList<>(room.clients))
+						close(client);
+				Client client;
+				while ((client = arriving.poll()) != null)
+					close(client);
+				try {
+					selector.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+
+		/**
+		 * Put an adopted client in its room, answer its handshake, and handle anything that it has already sent.
+		 */
+		private void join(Client client) {
+			Room room = rooms.get(client.roomName);
+			if (room == null) {
+				room = new Room(client.roomName);
+				rooms.put(room.name, room);
+				roomCount = rooms.size();
+			}
+			client.room = room;
+			room.clients.add(client);
+			clientCount++;
+			try {
+				client.channel.register(selector, SelectionKey.OP_READ, client);
+				answerHandshake(client);
+				if (client.inflater == null)
+					consume(client);
+				else
+					inflate(client);
+			}
+			catch (IOException | IllegalArgumentException | CancelledKeyException e) {
+				close(client);
+			}
+		}
+
+		private void read(Client client) throws IOException {
+			int n = client.channel.read(client.inflater == null ? client.in : client.compressedIn);
+			if (n < 0) {
+				close(client);
+				return;
+			}
+			if (client.inflater == null)
+				consume(client);
+			else
+				inflate(client);
+		}
+
+		/**
+		 * Inflate a client's compressed input into its input buffer, and broadcast the commands,
+		 * until all of the compressed input has been used.
+		 */
+		private void inflate(Client client) throws IOException {
+			ByteBuffer compressed = client.compressedIn;
+			compressed.flip();
+			client.inflater.setInput(compressed);
+			try {
+				while (!client.inflater.needsInput()) {
+					int count = client.inflater.inflate(client.in);
+					if (client.inflater.finished())
+						throw new IOException("The client ended the compressed stream");
+					if (count == 0 && !client.in.hasRemaining())
+						throw new IOException("Input buffer is full");
+					consume(client);
+				}
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Bad compressed data", e);
+			}
+			compressed.clear();
+		}
+
+		/**
+		 * Broadcast the complete commands in a client's input buffer.
+		 */
+		private void consume(Client client) {
+			ByteBuffer in = client.in;
+			in.flip();
+			while (true) {
+				int start = in.position();
+				boolean complete = client.binary ? BinaryCodec.decode(in, command) : parser.next(in, command);
+				if (!complete)
+					break;
+				if (client.skipping) {
+					client.skipping = false;
+					continue;
+				}
+				if (command.op != DrawCommand.NONE) {
+					commandsIn++;
+					broadcast(client, in, start, in.position());
+				}
+			}
+			if (!client.binary && in.remaining() == in.capacity()) {
+				in.clear();
+				client.skipping = true;
+				return;
+			}
+			in.compact();
+		}
+
+		/**
+		 * Answer the handshake line that the accepting thread read from a client.
+		 */
+		private void answerHandshake(Client client) {
+			String[] supported = { Handshake.BINARY, Handshake.SEND_ONLY, Handshake.SYNC, Handshake.ROOM, Handshake.DEFLATE, Handshake.ORIGIN };
+			if (!Handshake.has(Handshake.parse(client.handshake), Handshake.BINARY))
+				supported = Arrays.copyOf(supported, supported.length - 1);  // Echoes can only be marked in binary.
+			String reply = Handshake.reply(client.handshake, supported);
+			List<String> features = Handshake.parse(reply);
+			client.binary = Handshake.has(features, Handshake.BINARY);
+			client.sendOnly = Handshake.has(features, Handshake.SEND_ONLY);
+			String origin = Handshake.value(features, Handshake.ORIGIN);
+			client.origin = origin == null || origin.isEmpty() ? null : origin;
+			client.handshakeDone = true;
+			client.handshake = null;
+			byte[] line = (reply + "\n").getBytes(StandardCharsets.UTF_8);
+			if (Handshake.has(features, Handshake.DEFLATE)) {
+				client.wire = ByteBuffer.allocate(Math.max(8 * 1024, line.length));
+				client.wire.put(line);  // The reply itself is not compressed.
+				client.deflater = new Deflater(Deflater.BEST_SPEED);
+				client.inflater = new Inflater();
+				client.compressedIn = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+				client.in.flip();
+				client.compressedIn.put(client.in);  // Anything that came after the handshake line is compressed.
+				client.in.clear();
+				if (!client.isDirty) {
+					client.isDirty = true;
+					dirty.add(client);
+				}
+			}
+			else {
+				queue(client, line, 0, line.length);
+			}
+			String sync = Handshake.value(features, Handshake.SYNC);
+			if (sync != null && !client.sendOnly)
+				sendSnapshot(client, sync);
+		}
+
+		/**
+		 * Queue a snapshot of the commands in its room that a client does not have yet.
+		 * The value of the client's sync feature is the number of commands that it has.
+		 */
+		private void sendSnapshot(Client client, String have) {
+			CommandLog history = client.room.history;
+			long from;
+			try {
+				from = have.isEmpty() ? 0 : Long.parseLong(have);
+			}
+			catch (NumberFormatException e) {
+				from = 0;
+			}
+			if (from < 0 || from > history.size())
+				from = 0;  // The client has commands that this server never saw; it gets everything, and the header shows that it must drop what it has.
+			byte[] snapshot = history.snapshot(from);
+			byte[] header = (CommandLog.snapshotHeader(from, history.size(), snapshot.length) + "\n").getBytes(StandardCharsets.UTF_8);
+			client.allowance += header.length + snapshot.length;
+			queue(client, header, 0, header.length);
+			queue(client, snapshot, 0, snapshot.length);
+			snapshotsSent++;
+			snapshotBytes += snapshot.length;
+		}
+
+		/**
+		 * Add the current command to the room's history and send it to every client in the
+		 * room except the one that it came from.  The bytes of the command as received are
+		 * forwarded to clients that use the same format; the text format is produced at
+		 * most once per command.  A client with the same origin as the sender gets the
+		 * frame with ECHO set.
+		 */
+		private void broadcast(Client from, ByteBuffer in, int start, int end) {
+			byte[] text = null;
+			int textLength = 0;
+			binaryFrame.clear();
+			if (from.binary)
+				binaryFrame.put(in.array(), start, end - start);
+			else {
+				BinaryCodec.encode(command, binaryFrame);
+				text = in.array();
+				textLength = end - start;
+			}
+			int binaryLength = binaryFrame.position();
+			from.room.history.append(binaryFrame.array(), 0, binaryLength);
+			List<Client> clients = from.room.clients;
+			for (int i = clients.size() - 1; i >= 0; i--) {  // Backwards, since queue() can remove a slow client.
+				Client client = clients.get(i);
+				if (client == from || !client.handshakeDone || client.sendOnly)
+					continue;
+				if (client.binary) {
+					byte[] frame = binaryFrame.array();
+					byte first = frame[0];
+					if (from.origin != null && from.origin.equals(client.origin))
+						frame[0] = (byte)(first | BinaryCodec.ECHO);
+					queue(client, frame, 0, binaryLength);
+					frame[0] = first;
+				}
+				else {
+					if (text == null) {
+						text = (command.toText() + "\n").getBytes(StandardCharsets.UTF_8);
+						start = 0;
+						textLength = text.length;
+					}
+					queue(client, text, start, textLength);
+				}
+				deliveries++;
+			}
+		}
+
+		/**
+		 * Add bytes to a client's output buffer, to be written at the end of this pass of the
+		 * select loop.  A client whose buffer would grow past MAX_PENDING, plus the size of
+		 * any snapshot that it is still being sent, is disconnected.
+		 */
+		private void queue(Client client, byte[] bytes, int offset, int length) {
+			ByteBuffer out = client.out;
+			if (out.remaining() < length) {
+				int limit = MAX_PENDING + client.allowance;
+				if (out.position() + length > limit) {
+					slowClientsDropped++;
+					close(client);
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(limit, Math.max(out.capacity() * 2, out.position() + length)));
+				out.flip();
+				bigger.put(out);
+				client.out = out = bigger;
+			}
+			out.put(bytes, offset, length);
+			if (!client.isDirty) {
+				client.isDirty = true;
+				dirty.add(client);
+			}
+		}
+
+		/**
+		 * Write as much of a client's output as the socket will take.  For a client that
+		 * uses deflate, the output is first compressed, but only once the compressed
+		 * output of the previous pass is all written, so that a slow client's backlog
+		 * stays in its output buffer, where MAX_PENDING applies.
+		 */
+		private void write(Client client) throws IOException {
+			if (!client.channel.isOpen())
+				return;
+			ByteBuffer out = client.out;
+			if (client.deflater != null) {
+				if (client.wire.position() == 0 && out.position() > 0)
+					compress(client);
+				out = client.wire;
+			}
+			out.flip();
+			bytesOut += client.channel.write(out);
+			out.compact();
+			if (client.out.position() == 0 && client.allowance > 0) {
+				client.allowance = 0;
+				if (client.out.capacity() > MAX_PENDING)
+					client.out = ByteBuffer.allocate(8 * 1024);  // Don't keep the space that was needed for the snapshot.
+			}
+			if (client.wire != null && client.wire.position() == 0 && client.wire.capacity() > INPUT_BUFFER_SIZE)
+				client.wire = ByteBuffer.allocate(8 * 1024);
+			boolean pending = client.out.position() > 0 || (client.wire != null && client.wire.position() > 0);
+			int interest = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			client.channel.keyFor(selector).interestOps(interest);
+		}
+
+		/**
+		 * Compress all of a client's output buffer into its wire buffer, which is empty, ending with a sync flush.
+		 */
+		private void compress(Client client) {
+			ByteBuffer out = client.out;
+			out.flip();
+			client.deflater.setInput(out);
+			while (true) {
+				client.deflater.deflate(client.wire, Deflater.SYNC_FLUSH);
+				if (client.wire.hasRemaining())
+					break;  // The flush is complete, since there was room left.
+				ByteBuffer bigger = ByteBuffer.allocate(client.wire.capacity() * 2);
+				client.wire.flip();
+				bigger.put(client.wire);
+				client.wire = bigger;
+			}
+			deflatedBytes += out.position();
+			out.clear();
+		}
+
+		private void close(Client client) {
+			try {
+				client.channel.close();
+			}
+			catch (IOException e) {
+			}
+			if (client.deflater != null) {
+				client.deflater.end();
+				client.inflater.end();
+				client.deflater = null;
+				client.inflater = null;
+			}
+			if (client.room != null && client.room.clients.remove(client))
+				clientCount--;
+			client.handshakeDone = false;  // So that broadcasts skip it until it is removed from the list.
+		}
+
+	}
+
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring buffer that carries incoming drawing commands from the network thread to the
+ * JavaFX application thread.  The slots are DrawCommand objects that are allocated once
+ * and reused: offer() copies a command into the next free slot, and the consumer looks
+ * at the oldest command with peek() and frees its slot with remove().  There must be
+ * only one producer thread and one consumer thread.
+ * <p>When the buffer is full, offer() waits for the consumer to make room.  That holds
+ * up the network thread, so that the sender is slowed down by TCP flow control, rather
+ * than dropping commands or letting the backlog grow without limit.
+ * <p>While DrawMetrics are on, the time at which each command was queued is kept, for peekTime().
+ * A command can also be given a source and a sequence number, such as the server that
+ * sent it and the number of that server's commands up to it, for peekSource() and
+ * peekSequence().
+ */
+public class RenderQueue {
+
+	private final DrawCommand[] slots;
+	private final long[] times;  // When the command in each slot was queued, from DrawMetrics.now().
+	private final Object[] sources;  // The source of the command in each slot, or null.
+	private final long[] sequences;  // The sequence number of the command in each slot.
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();  // Index of the oldest command.  Written only by the consumer.
+	private final AtomicLong tail = new AtomicLong();  // Index of the next free slot.  Written only by the producer.
+
+	private volatile long offered;
+	private volatile long producerWaitNanos;
+	private volatile int maxDepth;
+
+	/**
+	 * Create a queue with room for at least capacity commands.
+	 */
+	public RenderQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new DrawCommand[size];
+		times = new long[size];
+		sources = new Object[size];
+		sequences = new long[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new DrawCommand();
+		mask = size - 1;
+	}
+
+	/**
+	 * Add a copy of a command to the queue, waiting if the queue is full.  Called only by the producer.
+	 * @return false if the thread was interrupted while waiting, in which case the command was not added.
+	 */
+	public boolean offer(DrawCommand command) {
+		return offer(command, null, 0);
+	}
+
+	/**
+	 * Add a copy of a command, with its source and sequence number, to the queue, waiting if the queue is full.
+	 * Called only by the producer.
+	 * @return false if the thread was interrupted while waiting, in which case the command was not added.
+	 */
+	public boolean offer(DrawCommand command, Object source, long sequence) {
+		long t = tail.get();
+		if (t - head.get() >= slots.length) {
+			long start = System.nanoTime();
+			while (t - head.get() >= slots.length) {
+				LockSupport.parkNanos(100_000);
+				if (Thread.interrupted())
+					return false;
+			}
+			producerWaitNanos += System.nanoTime() - start;
+		}
+		slots[(int)t & mask].copyFrom(command);
+		times[(int)t & mask] = DrawMetrics.now();
+		sources[(int)t & mask] = source;
+		sequences[(int)t & mask] = sequence;
+		tail.lazySet(t + 1);
+		offered++;
+		int depth = (int)(t + 1 - head.get());
+		if (depth > maxDepth)
+			maxDepth = depth;
+		return true;
+	}
+
+	/**
+	 * Returns the oldest command in the queue, or null if the queue is empty.  The command
+	 * stays in the queue, and must not be used after it is removed.  Called only by the consumer.
+	 */
+	public DrawCommand peek() {
+		long h = head.get();
+		return h == tail.get() ? null : slots[(int)h & mask];
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the command returned by peek() was queued,
+	 * or 0 if DrawMetrics were off then.  Called only by the consumer, after peek() returned non-null.
+	 */
+	public long peekTime() {
+		return times[(int)head.get() & mask];
+	}
+
+	/**
+	 * Returns the source that was given with the command returned by peek(), or null.
+	 * Called only by the consumer, after peek() returned non-null.
+	 */
+	public Object peekSource() {
+		return sources[(int)head.get() & mask];
+	}
+
+	/**
+	 * Returns the sequence number that was given with the command returned by peek().
+	 * Called only by the consumer, after peek() returned non-null.
+	 */
+	public long peekSequence() {
+		return sequences[(int)head.get() & mask];
+	}
+
+	/**
+	 * Remove the oldest command.  Called only by the consumer, after peek() returned non-null.
+	 */
+	public void remove() {
+		long h = head.get();
+		slots[(int)h & mask].text = null;  // Don't hold on to strings.
+		sources[(int)h & mask] = null;
+		head.lazySet(h + 1);
+	}
+
+	/**
+	 * Returns the number of commands waiting in the queue.
+	 */
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getOffered() {
+		return offered;
+	}
+
+	/**
+	 * Returns the total time that the producer has spent waiting for room in the queue.
+	 */
+	public long getProducerWaitNanos() {
+		return producerWaitNanos;
+	}
+
+}
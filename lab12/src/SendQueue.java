@@ -0,0 +1,259 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of outgoing commands.  Commands are added by a single
+ * producer thread (the JavaFX application thread) and removed by a single sender
+ * thread.  offer() encodes each command as a binary frame (see BinaryCodec), which
+ * is cheap and keeps every field of the command, and the queue holds the frames as
+ * byte arrays; the sender writes them as they are on a binary connection, and only
+ * turns them into text for a server that did not accept the binary format.  The
+ * queue is a ring of slots; a slot is claimed by atomically swapping its contents
+ * for null, so the consumer and a producer that is dropping the oldest entry can
+ * never both take the same command.
+ * <p>What happens when the queue is full is determined by the Overflow policy:
+ * BLOCK makes the producer wait for space, DROP_OLDEST discards the oldest queued
+ * command, and COALESCE appends the new command's frame to the newest queued entry
+ * so that both are sent together, in a single write.  (Once the newest entry has
+ * grown to MAX_COALESCED_LENGTH bytes, COALESCE falls back to dropping the oldest
+ * entry, so that a dead connection cannot use up unlimited memory.)  With
+ * DROP_OLDEST and COALESCE, offer() never waits.
+ * <p>While DrawMetrics are on, the time at which each entry was queued is kept, and
+ * the consumer can get it with getTakenTime() after it takes the entry.
+ */
+public class SendQueue {
+
+	/**
+	 * Policies for what to do when a command is offered to a full queue.
+	 */
+	public enum Overflow { BLOCK, DROP_OLDEST, COALESCE }
+
+	public final static int MAX_COALESCED_LENGTH = 64 * 1024;
+
+	private final AtomicReferenceArray<byte[]> slots;  // The frames of each entry, back to back.
+	private final long[] times;  // When the entry in each slot was queued, from DrawMetrics.now().  Published by the write of tail.
+	private final int mask;
+	private final Overflow overflow;
+
+	private final AtomicLong head = new AtomicLong();  // Index of the next slot to be taken.  Advanced only by whoever claimed that slot.
+	private volatile long tail;                        // Index of the next slot to be filled.  Written only by the producer.
+	private volatile Thread waiter;                    // The consumer thread, while it is parked in take().
+	private long takenTime;                            // times[] of the entry most recently taken by the consumer.
+	private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);  // Used by the producer to encode a command.
+
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private volatile int maxDepth;
+
+	/**
+	 * Create a queue.
+	 * @param capacity the maximum number of entries; rounded up to a power of two.
+	 * @param overflow the policy to use when the queue is full.
+	 */
+	public SendQueue(int capacity, Overflow overflow) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		times = new long[size];
+		mask = size - 1;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Add a copy of a command to the queue, as a binary frame.  Must only be called from the producer thread.
+	 * @return false if the command was not queued.  This can only happen if the
+	 *     thread is interrupted while waiting under the BLOCK policy.
+	 * @throws IllegalArgumentException if c is not a valid command; see BinaryCodec.encode().
+	 */
+	public boolean offer(DrawCommand c) {
+		int frameLength = BinaryCodec.frameLength(c);
+		if (encodeBuffer.capacity() < frameLength)
+			encodeBuffer = ByteBuffer.allocate(frameLength * 2);
+		encodeBuffer.clear();
+		BinaryCodec.encode(c, encodeBuffer);
+		byte[] command = Arrays.copyOf(encodeBuffer.array(), encodeBuffer.position());  // frameLength() can be more than was written.
+		offered.incrementAndGet();
+		long blockStart = 0;
+		while (true) {
+			long t = tail;
+			if (t - head.get() < slots.length()) {
+				times[(int)t & mask] = DrawMetrics.now();
+				slots.set((int)t & mask, command);
+				tail = t + 1;
+				int depth = (int)(t + 1 - head.get());
+				if (depth > maxDepth)
+					maxDepth = depth;
+				Thread w = waiter;
+				if (w != null)
+					LockSupport.unpark(w);
+				if (blockStart != 0)
+					blockedNanos.addAndGet(System.nanoTime() - blockStart);
+				return true;
+			}
+			switch (overflow) {
+			case COALESCE:
+				int newest = (int)(t - 1) & mask;
+				byte[] previous = slots.get(newest);
+				if (previous == null)
+					break;  // The newest entry was just taken, so there is room now.
+				if (previous.length < MAX_COALESCED_LENGTH) {
+					byte[] both = Arrays.copyOf(previous, previous.length + command.length);
+					System.arraycopy(command, 0, both, previous.length, command.length);
+					if (slots.compareAndSet(newest, previous, both)) {
+						coalesced.incrementAndGet();
+						return true;
+					}
+					break;
+				}
+				dropOldest();
+				break;
+			case DROP_OLDEST:
+				dropOldest();
+				break;
+			case BLOCK:
+				if (blockStart == 0)
+					blockStart = System.nanoTime();
+				LockSupport.parkNanos(50_000);
+				if (Thread.interrupted()) {
+					blockedNanos.addAndGet(System.nanoTime() - blockStart);
+					return false;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Discard the oldest entry, to make room for a new one.  Called from the producer thread.
+	 */
+	private void dropOldest() {
+		if (claim(head.get()) != null)
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Remove and return the oldest entry, which holds the frame of one command, or of
+	 * several that were coalesced, or null if the queue is empty.  Must only be called
+	 * from the consumer thread.
+	 */
+	public byte[] poll() {
+		while (true) {
+			long h = head.get();
+			if (h == tail)
+				return null;
+			long time = times[(int)h & mask];  // Read before the claim, since the slot can be refilled once head has moved.
+			byte[] command = claim(h);
+			if (command != null) {
+				takenTime = time;
+				return command;
+			}
+			Thread.onSpinWait();  // The producer is dropping this entry; wait for it to move head along.
+		}
+	}
+
+	/**
+	 * Remove and return the oldest entry, as poll() does, waiting for one to arrive if
+	 * the queue is empty.  Must only be called from the consumer thread.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public byte[] take() throws InterruptedException {
+		while (true) {
+			byte[] command = poll();
+			if (command != null)
+				return command;
+			waiter = Thread.currentThread();
+			if (head.get() == tail)
+				LockSupport.park(this);
+			waiter = null;
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Try to take the entry at index h.  Returns null if some other thread got it first.
+	 * If h is stale because head has already moved past it, the slot may hold a newer
+	 * entry that was written after the old one was removed; in that case the entry
+	 * is put back.
+	 */
+	private byte[] claim(long h) {
+		int index = (int)h & mask;
+		byte[] command = slots.getAndSet(index, null);
+		if (command != null && !head.compareAndSet(h, h + 1)) {
+			slots.set(index, command);
+			return null;
+		}
+		return command;
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the entry most recently returned by poll()
+	 * or take() was queued, or 0 if DrawMetrics were off then.  For an entry that other
+	 * commands were coalesced into, this is when the first of them was queued.
+	 * Must only be called from the consumer thread.
+	 */
+	public long getTakenTime() {
+		return takenTime;
+	}
+
+	public Overflow getOverflowPolicy() {
+		return overflow;
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Returns the number of entries currently in the queue.
+	 */
+	public int getDepth() {
+		return (int)Math.max(0, tail - head.get());
+	}
+
+	/**
+	 * Returns the largest depth that the queue has reached.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/**
+	 * Returns the number of queued commands that were discarded to make room for new ones.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of commands merged into an earlier entry under the COALESCE policy.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that the producer has spent waiting under the BLOCK policy.
+	 */
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	/**
+	 * Returns a one-line summary of the queue metrics.
+	 */
+	public String getStats() {
+		return String.format("policy=%s depth=%d/%d max=%d offered=%d dropped=%d coalesced=%d blocked=%.1fms",
+				overflow, getDepth(), getCapacity(), maxDepth, getOffered(), getDropped(), getCoalesced(),
+				getBlockedNanos() / 1e6);
+	}
+
+}
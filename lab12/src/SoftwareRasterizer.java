@@ -0,0 +1,736 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws DrawCommands into an array of ARGB pixels, without JavaFX, using several
+ * threads.  The picture is divided into horizontal bands of BAND_HEIGHT rows.  A batch
+ * of commands is drawn by giving the bands to a ForkJoinPool; each band draws, in order,
+ * the part of every command that falls inside it, so the bands never touch the same
+ * pixels and the result is the same as drawing the commands one after another.
+ * <p>Shapes are drawn the way NetDraw.drawShape() draws them with a GraphicsContext:
+ * lines have square ends, rectangles have square corners, round rectangles have
+ * corners with a quarter of the width and height as the arc size, filled shapes get
+ * a black outline when the line width is positive, and polylines have round joins and
+ * ends, except those with lineSegments set, whose segments are lines.  The edges are antialiased by estimating, for each pixel, the fraction of the
+ * pixel that the shape covers, from the distance between the center of the pixel and
+ * the edge of the shape.  Text is drawn from glyph masks that are made with java.awt
+ * fonts, which are not the same fonts that JavaFX uses, so text is only approximately
+ * the same.  Stamps are copied from the images supplied by an ImageSource.
+ * <p>The picture is always opaque.  The pixels must not be read while render() is
+ * running, and render() must not be called by two threads at once.
+ */
+public class SoftwareRasterizer {
+
+	public final static int BAND_HEIGHT = 32;
+	private final static FontRenderContext TEXT_CONTEXT = new FontRenderContext(null, true, true);  // Antialiased, with fractional metrics.
+	private final static int MAX_FONTS = 32;  // Sizes of text come from the network, so only this many fonts are kept.
+
+	/**
+	 * Makes the java.awt fonts that text is drawn with, sans-serif by default, and measures strings in them.
+	 */
+	public final static FontCache.Fonts<Font> TEXT_FONTS = new FontCache.Fonts<Font>() {
+		public Font create(String family, double size) {
+			return new Font(family == null ? Font.SANS_SERIF : family, Font.PLAIN, 1).deriveFont((float)size);
+		}
+		public FontCache.Extent measure(Font font, String text) {
+			Rectangle2D box = font.createGlyphVector(TEXT_CONTEXT, text).getVisualBounds();
+			return new FontCache.Extent(box.getMaxX(), -box.getMinY(), box.getMaxY());
+		}
+	};
+
+	private final static double SQRT_HALF = Math.sqrt(0.5);
+
+	/**
+	 * Working space for drawing a polyline in one band, for each thread: the coverage of
+	 * each pixel, and for each row, the first and last columns that have any coverage.
+	 */
+	private static class Scratch {
+		final float[] coverage;
+		final int[] rowLeft = new int[BAND_HEIGHT], rowRight = new int[BAND_HEIGHT];
+		Scratch(int width) {
+			coverage = new float[width * BAND_HEIGHT];
+		}
+	}
+
+	/**
+	 * Supplies the images for stamps.  It is called while render() is running, from the
+	 * thread that called render(), so it has to be safe to call from that thread.
+	 */
+	public interface ImageSource {
+		/**
+		 * Returns the image for a stamp, or null if there is no such stamp.
+		 */
+		Bitmap image(String name);
+	}
+
+	/**
+	 * An image as an array of ARGB pixels, row by row.  The colors are not premultiplied by alpha.
+	 */
+	public static class Bitmap {
+		public final int width, height;
+		public final int[] pixels;
+		public Bitmap(int width, int height, int[] pixels) {
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * The coverage of the pixels of a string, as made by java.awt.
+	 */
+	private static class TextMask {
+		int left, top, width, height;
+		byte[] coverage;
+	}
+
+	private final int width, height;
+	private final int[] pixels;
+	private final ForkJoinPool pool;
+	private ImageSource images;
+
+	private DrawCommand[] commands;          // The batch being drawn by render().
+	private int count;
+	private int[] bounds = new int[256];     // For each command in the batch: left, top, right, bottom of the pixels it can change.
+	private Object[] extras = new Object[64];  // For each command: its Bitmap for a stamp, or its TextMask for text.
+	private final FontCache<Font> fonts = new FontCache<>(TEXT_FONTS, MAX_FONTS, 0);  // Only the fonts are used; a mask is made for each text command.
+	private final ThreadLocal<Scratch> scratch;  // Used by each thread for drawing polylines.
+
+	private int dirtyTop, dirtyBottom;       // Rows that have changed since resetDirty(); dirtyTop > dirtyBottom if none.
+	private long batches;
+	private long commandsRendered;
+	private long lastRenderNanos;
+	private long totalRenderNanos;
+
+	/**
+	 * Create a rasterizer for a white picture of the given size.
+	 * @param pool the threads that draw the bands.
+	 */
+	public SoftwareRasterizer(int width, int height, ForkJoinPool pool) {
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		pixels = new int[width * height];
+		Arrays.fill(pixels, 0xFFFFFFFF);
+		scratch = ThreadLocal.withInitial(() -> new Scratch(width));
+		dirtyTop = 0;
+		dirtyBottom = height - 1;
+	}
+
+	public void setImageSource(ImageSource images) {
+		this.images = images;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the array that holds the picture, as ARGB pixels row by row.  It is not a copy.
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Fill the whole picture with a color.
+	 */
+	public void fill(int argb) {
+		Arrays.fill(pixels, argb | 0xFF000000);
+		dirtyTop = 0;
+		dirtyBottom = height - 1;
+	}
+
+	/**
+	 * Replace the whole picture with the given ARGB pixels, row by row.  They are made opaque.
+	 */
+	public void setPixels(int[] argb) {
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = argb[i] | 0xFF000000;
+		dirtyTop = 0;
+		dirtyBottom = height - 1;
+	}
+
+	/**
+	 * Returns the first row that has changed since the last call to resetDirty().
+	 */
+	public int getDirtyTop() {
+		return dirtyTop;
+	}
+
+	/**
+	 * Returns the last row that has changed since the last call to resetDirty(), or a
+	 * number less than getDirtyTop() if no row has changed.
+	 */
+	public int getDirtyBottom() {
+		return dirtyBottom;
+	}
+
+	public void resetDirty() {
+		dirtyTop = height;
+		dirtyBottom = -1;
+	}
+
+	/**
+	 * Draw a batch of commands, in order, and wait until they are done.
+	 */
+	public void render(DrawCommand[] commands, int count) {
+		long start = System.nanoTime();
+		this.commands = commands;
+		this.count = count;
+		prepare();
+		int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		pool.invoke(new Bands(0, bands));
+		Arrays.fill(extras, 0, count, null);
+		this.commands = null;
+		lastRenderNanos = System.nanoTime() - start;
+		totalRenderNanos += lastRenderNanos;
+		batches++;
+		commandsRendered += count;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public long getCommandsRendered() {
+		return commandsRendered;
+	}
+
+	public long getLastRenderNanos() {
+		return lastRenderNanos;
+	}
+
+	public String getStats() {
+		return String.format("batches=%d commands=%d avg=%.2fms last=%.2fms threads=%d",
+				batches, commandsRendered, batches == 0 ? 0 : totalRenderNanos / 1e6 / batches,
+				lastRenderNanos / 1e6, pool.getParallelism());
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Draws the bands from first up to, but not including, last, splitting the range in half
+	 * until each task has one band.
+	 */
+	private class Bands extends RecursiveAction {
+		private final static long serialVersionUID = 1;  // RecursiveAction is Serializable, though a task is never serialized.
+		final int first, last;
+		Bands(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+		protected void compute() {
+			if (last - first == 1)
+				drawBand(first * BAND_HEIGHT, Math.min(height, (first + 1) * BAND_HEIGHT));
+			else {
+				int middle = (first + last) >>> 1;
+				invokeAll(new Bands(first, middle), new Bands(middle, last));
+			}
+		}
+	}
+
+	/**
+	 * Find the area that each command can change, and make the masks and images for text
+	 * and stamps, before the bands are drawn.
+	 */
+	private void prepare() {
+		if (bounds.length < 4 * count)
+			bounds = new int[Math.max(4 * count, 2 * bounds.length)];
+		if (extras.length < count)
+			extras = new Object[Math.max(count, 2 * extras.length)];
+		for (int i = 0; i < count; i++) {
+			DrawCommand c = commands[i];
+			double left, top, right, bottom;
+			switch (c.op) {
+			case DrawCommand.TEXT:
+				TextMask mask = textMask(c);
+				extras[i] = mask;
+				if (mask == null) {
+					left = top = right = bottom = -1;
+					break;
+				}
+				left = mask.left;
+				top = mask.top;
+				right = mask.left + mask.width;
+				bottom = mask.top + mask.height;
+				break;
+			case DrawCommand.STAMP:
+				Bitmap image = images == null ? null : images.image(c.text);
+				extras[i] = image;
+				if (image == null) {
+					left = top = right = bottom = -1;
+					break;
+				}
+				left = stampLeft(c, image);
+				top = stampTop(c, image);
+				right = left + image.width;
+				bottom = top + image.height;
+				break;
+			case DrawCommand.POLYLINE:
+				left = right = c.x1;
+				top = bottom = c.y1;
+				for (int p = 0; p < 2 * c.pointCount; p += 2) {
+					left = Math.min(left, c.points[p]);
+					right = Math.max(right, c.points[p]);
+					top = Math.min(top, c.points[p+1]);
+					bottom = Math.max(bottom, c.points[p+1]);
+				}
+				double pad = (c.lineSegments ? 0.75 : 0.5) * strokeWidth(c.lineWidth) + 1;
+				left -= pad;
+				top -= pad;
+				right += pad;
+				bottom += pad;
+				break;
+			default:
+				double shapePad = (c.op == DrawCommand.LINE ? 0.75 : 0.5) * strokeWidth(c.lineWidth) + 1;  // Square line ends can stick out diagonally.
+				left = Math.min(c.x1, c.x2) - shapePad;
+				right = Math.max(c.x1, c.x2) + shapePad;
+				top = Math.min(c.y1, c.y2) - shapePad;
+				bottom = Math.max(c.y1, c.y2) + shapePad;
+				break;
+			}
+			int l = Math.max(0, (int)Math.floor(left));
+			int t = Math.max(0, (int)Math.floor(top));
+			int r = Math.min(width, (int)Math.ceil(right) + 1);
+			int b = Math.min(height, (int)Math.ceil(bottom) + 1);
+			if (c.op == DrawCommand.NONE || r <= l || b <= t)
+				l = t = r = b = 0;
+			bounds[4*i] = l;
+			bounds[4*i+1] = t;
+			bounds[4*i+2] = r;
+			bounds[4*i+3] = b;
+			if (b > t) {
+				dirtyTop = Math.min(dirtyTop, t);
+				dirtyBottom = Math.max(dirtyBottom, b - 1);
+			}
+		}
+	}
+
+	private void drawBand(int bandTop, int bandBottom) {
+		for (int i = 0; i < count; i++) {
+			int top = Math.max(bandTop, bounds[4*i+1]);
+			int bottom = Math.min(bandBottom, bounds[4*i+3]);
+			if (top >= bottom)
+				continue;
+			int left = bounds[4*i];
+			int right = bounds[4*i+2];
+			DrawCommand c = commands[i];
+			switch (c.op) {
+			case DrawCommand.TEXT:
+				drawText((TextMask)extras[i], c.color, top, bottom);
+				break;
+			case DrawCommand.STAMP:
+				drawStamp(c, (Bitmap)extras[i], top, bottom);
+				break;
+			case DrawCommand.POLYLINE:
+				drawPolyline(c, left, right, top, bottom, bandTop);
+				break;
+			case DrawCommand.LINE:
+				drawLine(c, left, right, top, bottom);
+				break;
+			default:
+				drawShape(c, left, right, top, bottom);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Draws a rectangle, oval or round rectangle, outlined or filled, in the rows from top to bottom - 1.
+	 * All three are treated as boxes with elliptical corners, with radii of zero for a rectangle and
+	 * of half the size for an oval.  In each row, the pixels that are certainly outside the shape
+	 * and its outline are skipped, and the pixels that are certainly inside the shape and away from
+	 * its outline are filled, or skipped for an outline, without computing their distance to the edge.
+	 * Only the pixels in between, along the edge, are drawn by their distance to it.
+	 */
+	private void drawShape(DrawCommand c, int left, int right, int top, int bottom) {
+		double cx = (c.x1 + c.x2) / 2, cy = (c.y1 + c.y2) / 2;
+		double hx = Math.abs(c.x2 - c.x1) / 2, hy = Math.abs(c.y2 - c.y1) / 2;
+		double rx, ry;
+		switch (c.op) {
+		case DrawCommand.RECT:
+		case DrawCommand.FILLED_RECT:
+			rx = ry = 0;
+			break;
+		case DrawCommand.OVAL:
+		case DrawCommand.FILLED_OVAL:
+			rx = hx;
+			ry = hy;
+			break;
+		default:
+			rx = hx / 4;
+			ry = hy / 4;
+			break;
+		}
+		boolean filled = c.op == DrawCommand.FILLED_RECT || c.op == DrawCommand.FILLED_OVAL || c.op == DrawCommand.FILLED_ROUNDRECT;
+		boolean outlined = !filled || c.lineWidth > 0;
+		double lineWidth = strokeWidth(c.lineWidth);
+		double margin = (outlined ? lineWidth / 2 : 0) + 1;
+		for (int y = top; y < bottom; y++) {
+			double dy = y + 0.5 - cy;
+			// The shape is convex and symmetric, and gets narrower away from its center, so a pixel within
+			// the margin of it is within the margin of its widest row that is within the margin, and a pixel
+			// is at least the margin inside it if it is that far inside its narrowest row within the margin.
+			double outer = halfWidth(Math.max(0, Math.abs(dy) - margin), hx, hy, rx, ry);
+			if (outer < 0)
+				continue;
+			outer += margin;
+			double inner = halfWidth(Math.abs(dy) + margin, hx, hy, rx, ry) - margin;
+			int from = Math.max(left, (int)Math.floor(cx - outer - 0.5));
+			int to = Math.min(right, (int)Math.ceil(cx + outer - 0.5) + 1);
+			if (to <= from)
+				continue;
+			int spanLeft = to, spanRight = to;
+			if (inner > 0) {
+				spanLeft = Math.min(to, Math.max(from, (int)Math.ceil(cx - inner - 0.5)));
+				spanRight = Math.max(spanLeft, Math.min(to, (int)Math.floor(cx + inner - 0.5) + 1));
+			}
+			shadeEdge(c, y, from, spanLeft, dy, cx, hx, hy, filled, outlined, lineWidth);
+			if (filled) {
+				int row = y * width;
+				if ((c.color >>> 24) == 0xFF)
+					Arrays.fill(pixels, row + spanLeft, row + spanRight, c.color);
+				else {
+					for (int x = spanLeft; x < spanRight; x++)
+						pixels[row + x] = blend(pixels[row + x], c.color, 1);
+				}
+			}
+			shadeEdge(c, y, spanRight, to, dy, cx, hx, hy, filled, outlined, lineWidth);
+		}
+	}
+
+	/**
+	 * Returns half the width of a box with elliptical corners, centered at 0, at a distance dy from
+	 * its center, or -1 if the box does not reach that far.
+	 * @param hx half the width of the box.
+	 * @param hy half the height of the box.
+	 * @param rx the horizontal radius of the corners.
+	 * @param ry the vertical radius of the corners.
+	 */
+	private static double halfWidth(double dy, double hx, double hy, double rx, double ry) {
+		if (dy > hy)
+			return -1;
+		double q = dy - (hy - ry);
+		if (q <= 0)
+			return hx;
+		double t = q / ry;
+		return hx - rx + rx * Math.sqrt(Math.max(0, 1 - t * t));
+	}
+
+	/**
+	 * Draws the pixels of a shape from from to to - 1 in one row, by their distance to the edge of the shape.
+	 */
+	private void shadeEdge(DrawCommand c, int y, int from, int to, double dy, double cx, double hx, double hy,
+			boolean filled, boolean outlined, double lineWidth) {
+		int row = y * width;
+		int outline = filled ? 0xFF000000 : c.color;
+		for (int x = from; x < to; x++) {
+			double dx = x + 0.5 - cx;
+			double d;
+			switch (c.op) {
+			case DrawCommand.RECT:
+			case DrawCommand.FILLED_RECT:
+				d = boxDistance(dx, dy, hx, hy);
+				break;
+			case DrawCommand.OVAL:
+			case DrawCommand.FILLED_OVAL:
+				d = ellipseDistance(dx, dy, hx, hy);
+				break;
+			default:
+				d = roundBoxDistance(dx, dy, hx, hy, hx / 4, hy / 4);
+				break;
+			}
+			int p = pixels[row + x];
+			if (filled)
+				p = blend(p, c.color, fillCoverage(d));
+			if (outlined)
+				p = blend(p, outline, strokeCoverage(d, lineWidth));
+			pixels[row + x] = p;
+		}
+	}
+
+	/**
+	 * Draws a line with square ends, which is a rotated box that extends half the line width past each end point.
+	 * In each row, only the pixels that are near the line are looked at.
+	 */
+	private void drawLine(DrawCommand c, int left, int right, int top, int bottom) {
+		double dx = c.x2 - c.x1, dy = c.y2 - c.y1;
+		double length = Math.sqrt(dx * dx + dy * dy);
+		if (length == 0)
+			return;
+		double ux = dx / length, uy = dy / length;
+		double cx = (c.x1 + c.x2) / 2, cy = (c.y1 + c.y2) / 2;
+		double lineWidth = strokeWidth(c.lineWidth);
+		double hx = length / 2 + lineWidth / 2, hy = lineWidth / 2;
+		for (int y = top; y < bottom; y++) {
+			double py = y + 0.5 - cy;
+			int row = y * width;
+			int from = Math.max(left, spanStart(cx, py, ux, uy, hy + 1));
+			int to = Math.min(right, spanEnd(cx, py, ux, uy, hy + 1));
+			for (int x = from; x < to; x++) {
+				double px = x + 0.5 - cx;
+				double d = boxDistance(px * ux + py * uy, py * ux - px * uy, hx, hy);
+				if (d < 0.5)
+					pixels[row + x] = blend(pixels[row + x], c.color, fillCoverage(d));
+			}
+		}
+	}
+
+	/**
+	 * Returns the first pixel in a row whose center is within distance reach of the line through
+	 * (cx,cy) with direction (ux,uy), where py is the row's center relative to cy.
+	 */
+	private static int spanStart(double cx, double py, double ux, double uy, double reach) {
+		if (Math.abs(uy) < 1e-9)
+			return Math.abs(py) <= reach ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+		double a = (py * ux - reach) / uy, b = (py * ux + reach) / uy;
+		return (int)Math.floor(cx + Math.min(a, b) - 0.5);
+	}
+
+	/**
+	 * Returns one more than the last pixel in a row whose center is within distance reach of a line, as for spanStart().
+	 */
+	private static int spanEnd(double cx, double py, double ux, double uy, double reach) {
+		if (Math.abs(uy) < 1e-9)
+			return Math.abs(py) <= reach ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+		double a = (py * ux - reach) / uy, b = (py * ux + reach) / uy;
+		return (int)Math.ceil(cx + Math.max(a, b) - 0.5) + 1;
+	}
+
+	/**
+	 * Draws a polyline with round joins and ends.  The coverage of each segment is found
+	 * separately, and the largest coverage of each pixel is used, so that the places where
+	 * segments overlap are not drawn twice.  A polyline with lineSegments set is drawn as
+	 * the lines that it was made of would be, each with square ends, as by drawLine(),
+	 * and with the coverages combined as blending each line in turn would combine them.
+	 */
+	private void drawPolyline(DrawCommand c, int left, int right, int top, int bottom, int bandTop) {
+		Scratch work = scratch.get();
+		float[] coverage = work.coverage;  // All zero between calls.
+		for (int y = top; y < bottom; y++) {
+			work.rowLeft[y - bandTop] = right;
+			work.rowRight[y - bandTop] = left;
+		}
+		double lineWidth = strokeWidth(c.lineWidth);
+		double pad = (c.lineSegments ? 0.75 : 0.5) * lineWidth + 1;
+		int segments = Math.max(1, c.pointCount - 1);
+		for (int s = 0; s < segments; s++) {
+			double ax = c.points[2*s], ay = c.points[2*s+1];
+			double bx = c.pointCount > 1 ? c.points[2*s+2] : ax, by = c.pointCount > 1 ? c.points[2*s+3] : ay;
+			int l = Math.max(left, (int)Math.floor(Math.min(ax, bx) - pad));
+			int r = Math.min(right, (int)Math.ceil(Math.max(ax, bx) + pad));
+			int t = Math.max(top, (int)Math.floor(Math.min(ay, by) - pad));
+			int b = Math.min(bottom, (int)Math.ceil(Math.max(ay, by) + pad));
+			double dx = bx - ax, dy = by - ay;
+			double lengthSquared = dx * dx + dy * dy;
+			double length = Math.sqrt(lengthSquared);
+			if (c.lineSegments && length == 0)
+				continue;  // As drawLine().
+			for (int y = t; y < b; y++) {
+				double py = y + 0.5 - ay;
+				int row = (y - bandTop) * width;
+				int from = l, to = r;
+				if (length > 0) {
+					from = Math.max(l, spanStart(ax, py, dx / length, dy / length, pad));
+					to = Math.min(r, spanEnd(ax, py, dx / length, dy / length, pad));
+				}
+				for (int x = from; x < to; x++) {
+					double px = x + 0.5 - ax;
+					float cover;
+					if (c.lineSegments) {
+						double ux = dx / length, uy = dy / length;
+						double qx = px - dx / 2, qy = py - dy / 2;  // Relative to the middle of the segment.
+						double d = boxDistance(qx * ux + qy * uy, qy * ux - qx * uy, length / 2 + lineWidth / 2, lineWidth / 2);
+						if (d < 0.5)  // As if the color were blended once for each segment; it is opaque.
+							coverage[row + x] = 1 - (1 - coverage[row + x]) * (1 - (float)fillCoverage(d));
+						continue;
+					}
+					else {
+						double along = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+						double ex = px - along * dx, ey = py - along * dy;
+						cover = (float)strokeCoverage(Math.sqrt(ex * ex + ey * ey), lineWidth);
+					}
+					if (cover > coverage[row + x])
+						coverage[row + x] = cover;
+				}
+				if (from < to) {
+					work.rowLeft[y - bandTop] = Math.min(work.rowLeft[y - bandTop], from);
+					work.rowRight[y - bandTop] = Math.max(work.rowRight[y - bandTop], to);
+				}
+			}
+		}
+		for (int y = top; y < bottom; y++) {
+			int row = (y - bandTop) * width;
+			for (int x = work.rowLeft[y - bandTop]; x < work.rowRight[y - bandTop]; x++) {
+				if (coverage[row + x] > 0) {
+					pixels[y * width + x] = blend(pixels[y * width + x], c.color, coverage[row + x]);
+					coverage[row + x] = 0;
+				}
+			}
+		}
+	}
+
+	private void drawText(TextMask mask, int color, int top, int bottom) {
+		bottom = Math.min(bottom, mask.top + mask.height);
+		for (int y = top; y < bottom; y++) {
+			int maskRow = (y - mask.top) * mask.width;
+			for (int mx = 0; mx < mask.width; mx++) {
+				int x = mask.left + mx;
+				int cover = mask.coverage[maskRow + mx] & 0xFF;
+				if (cover != 0 && x >= 0 && x < width)
+					pixels[y * width + x] = blend(pixels[y * width + x], color, cover / 255.0);
+			}
+		}
+	}
+
+	private void drawStamp(DrawCommand c, Bitmap image, int top, int bottom) {
+		int left = stampLeft(c, image);
+		int imageTop = stampTop(c, image);
+		bottom = Math.min(bottom, imageTop + image.height);
+		for (int y = top; y < bottom; y++) {
+			int imageRow = (y - imageTop) * image.width;
+			for (int ix = 0; ix < image.width; ix++) {
+				int x = left + ix;
+				int argb = image.pixels[imageRow + ix];
+				if ((argb >>> 24) != 0 && x >= 0 && x < width)
+					pixels[y * width + x] = blend(pixels[y * width + x], argb, 1);
+			}
+		}
+	}
+
+	private static int stampLeft(DrawCommand c, Bitmap image) {
+		return (int)Math.round(c.x1 - image.width / 2.0);
+	}
+
+	private static int stampTop(DrawCommand c, Bitmap image) {
+		return (int)Math.round(c.y1 - image.height / 2.0);
+	}
+
+	/**
+	 * Returns the mask for a text command, or null if it draws nothing.  Fonts are kept in a FontCache, for the next time.
+	 */
+	private TextMask textMask(DrawCommand c) {
+		if (c.text == null || c.text.isEmpty() || c.size <= 0)
+			return null;
+		GlyphVector glyphs = fonts.font(null, c.size).createGlyphVector(TEXT_CONTEXT, c.text);
+		Rectangle box = glyphs.getPixelBounds(TEXT_CONTEXT, (float)c.x1, (float)c.y1);
+		if (box.width <= 0 || box.height <= 0)
+			return null;
+		TextMask mask = new TextMask();
+		mask.left = box.x - 1;
+		mask.top = box.y - 1;
+		mask.width = box.width + 2;
+		mask.height = box.height + 2;
+		BufferedImage image = new BufferedImage(mask.width, mask.height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(java.awt.Color.WHITE);
+		g.drawGlyphVector(glyphs, (float)(c.x1 - mask.left), (float)(c.y1 - mask.top));
+		g.dispose();
+		mask.coverage = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		return mask;
+	}
+
+	/**
+	 * GraphicsContext ignores a line width that is not positive, so NetDraw's canvases keep their initial width; use 1.
+	 */
+	private static double strokeWidth(double lineWidth) {
+		return lineWidth > 0 ? lineWidth : 1;
+	}
+
+	/**
+	 * The distance from a point (dx,dy), relative to the center of a box, to the edge of the box, negative inside.
+	 * It is the larger of the horizontal and vertical distances, so an outline drawn with it has square corners.
+	 */
+	private static double boxDistance(double dx, double dy, double hx, double hy) {
+		return Math.max(Math.abs(dx) - hx, Math.abs(dy) - hy);
+	}
+
+	/**
+	 * The distance from a point (dx,dy), relative to the center of an ellipse with radii a and b, to the
+	 * ellipse, negative inside.  The nearest point on the ellipse is found with a few steps of an iteration
+	 * that treats the ellipse near the current guess as a circle around its center of curvature, which is
+	 * accurate to a small fraction of a pixel even for long, thin ellipses.
+	 */
+	private static double ellipseDistance(double dx, double dy, double a, double b) {
+		if (a <= 0 || b <= 0)
+			return boxDistance(dx, dy, a, b);
+		double px = Math.abs(dx), py = Math.abs(dy);
+		double tx = SQRT_HALF, ty = SQRT_HALF;
+		for (int i = 0; i < 3; i++) {
+			double x = a * tx, y = b * ty;
+			double ex = (a * a - b * b) * tx * tx * tx / a;  // The center of curvature at (x,y).
+			double ey = (b * b - a * a) * ty * ty * ty / b;
+			double rx = x - ex, ry = y - ey;
+			double qx = px - ex, qy = py - ey;
+			double q = Math.sqrt(qx * qx + qy * qy);
+			double scale = q == 0 ? 0 : Math.sqrt(rx * rx + ry * ry) / q;
+			tx = Math.max(0, Math.min(1, (qx * scale + ex) / a));
+			ty = Math.max(0, Math.min(1, (qy * scale + ey) / b));
+			double t = Math.sqrt(tx * tx + ty * ty);
+			tx /= t;
+			ty /= t;
+		}
+		double nx = px - a * tx, ny = py - b * ty;
+		double distance = Math.sqrt(nx * nx + ny * ny);
+		return (px * px) / (a * a) + (py * py) / (b * b) < 1 ? -distance : distance;
+	}
+
+	/**
+	 * The distance to the edge of a box whose corners are quarter ellipses with radii rx and ry.
+	 */
+	private static double roundBoxDistance(double dx, double dy, double hx, double hy, double rx, double ry) {
+		double qx = Math.abs(dx) - (hx - rx);
+		double qy = Math.abs(dy) - (hy - ry);
+		if (qx > 0 && qy > 0)
+			return ellipseDistance(qx, qy, rx, ry);
+		return boxDistance(dx, dy, hx, hy);
+	}
+
+	/**
+	 * The fraction of a pixel, one unit wide, that is inside a shape, when the center of the pixel is at distance d from the edge.
+	 */
+	private static double fillCoverage(double d) {
+		return Math.max(0, Math.min(1, 0.5 - d));
+	}
+
+	/**
+	 * The fraction of a pixel that is covered by an outline of width lineWidth centered on the edge of a shape.
+	 */
+	private static double strokeCoverage(double d, double lineWidth) {
+		return Math.max(0, Math.min(1, Math.min(d + 0.5, lineWidth / 2) - Math.max(d - 0.5, -lineWidth / 2)));
+	}
+
+	/**
+	 * Draws a color over an opaque pixel, with its alpha multiplied by a coverage from 0 to 1.
+	 */
+	private static int blend(int dst, int argb, double coverage) {
+		int k = (int)(coverage * (argb >>> 24) * (256 / 255.0) + 0.5);  // Weight of the new color, from 0 to 256.
+		if (k <= 0)
+			return dst;
+		if (k >= 256)
+			return argb | 0xFF000000;
+		int r = (dst >> 16) & 0xFF, g = (dst >> 8) & 0xFF, b = dst & 0xFF;
+		r += (((argb >> 16) & 0xFF) - r) * k >> 8;
+		g += (((argb >> 8) & 0xFF) - g) * k >> 8;
+		b += ((argb & 0xFF) - b) * k >> 8;
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
+}
@@ -0,0 +1,242 @@
+import java.util.Arrays;
+
+/**
+ * An index of the bounding boxes of the things drawn on a board, for finding quickly
+ * what is under a point or inside a rectangle without looking at every shape.  Each
+ * entry is identified by a non-negative int id chosen by the caller; NetDraw uses the
+ * position of the command in its DisplayList.
+ * <p>The index is a uniform grid of square cells over the board.  An entry is listed
+ * in every cell that its box overlaps, so a query only has to look at the entries in
+ * the cells that it touches.  An entry whose box would cover more than MAX_CELLS_PER_ENTRY
+ * cells goes in a second, coarser grid instead, whose cells are COARSE_FACTOR times
+ * larger, so that a big rectangle does not cost thousands of cell entries.  The few
+ * entries that are too big even for that grid are kept in a list that every query
+ * checks.  Boxes that extend past the edge of the board are listed in the edge cells.
+ * The boxes themselves are kept in arrays indexed by id, like the fields of DisplayList.
+ * <p>A SpatialIndex is not thread-safe.
+ */
+public class SpatialIndex {
+
+	/**
+	 * Receives the ids of the entries found by a query.
+	 */
+	public interface IdVisitor {
+		void accept(int id);
+	}
+
+	public final static int MAX_CELLS_PER_ENTRY = 64;
+	public final static int COARSE_FACTOR = 16;
+
+	/**
+	 * One grid of cells.  Each cell has a list of the ids of the entries that overlap it.
+	 */
+	private static class Grid {
+		final double cellSize;
+		final int columns, rows;
+		final int[][] cells;       // The ids of the entries listed in each cell, row by row.
+		final int[] cellCounts;
+		Grid(double width, double height, double cellSize) {
+			this.cellSize = cellSize;
+			columns = Math.max(1, (int)Math.ceil(width / cellSize));
+			rows = Math.max(1, (int)Math.ceil(height / cellSize));
+			cells = new int[columns * rows][];
+			cellCounts = new int[columns * rows];
+		}
+		int column(double x) {
+			return Math.max(0, Math.min(columns - 1, (int)Math.floor(x / cellSize)));
+		}
+		int row(double y) {
+			return Math.max(0, Math.min(rows - 1, (int)Math.floor(y / cellSize)));
+		}
+		boolean fits(float l, float t, float r, float b) {
+			return (column(r) - column(l) + 1) * (row(b) - row(t) + 1) <= MAX_CELLS_PER_ENTRY;
+		}
+		void add(int id, float l, float t, float r, float b) {
+			for (int row = row(t); row <= row(b); row++) {
+				for (int c = column(l); c <= column(r); c++) {
+					int cell = row * columns + c;
+					int[] list = cells[cell];
+					if (list == null)
+						list = cells[cell] = new int[4];
+					else if (cellCounts[cell] == list.length)
+						list = cells[cell] = Arrays.copyOf(list, 2 * list.length);
+					list[cellCounts[cell]++] = id;
+				}
+			}
+		}
+		void remove(int id, float l, float t, float r, float b) {
+			for (int row = row(t); row <= row(b); row++) {
+				for (int c = column(l); c <= column(r); c++) {
+					int cell = row * columns + c;
+					cellCounts[cell] = removeFrom(cells[cell], cellCounts[cell], id);
+				}
+			}
+		}
+		void clear() {
+			Arrays.fill(cells, null);
+			Arrays.fill(cellCounts, 0);
+		}
+	}
+
+	private final Grid fine, coarse;
+	private int[] large = new int[16]; // Entries that are too big for either grid.
+	private int largeCount;
+
+	private float[] left = new float[1024], top = new float[1024], right = new float[1024], bottom = new float[1024];
+	private byte[] level = new byte[1024];  // For each id: 0 if not present, FINE, COARSE or LARGE.
+	private int[] seen = new int[1024];  // The query number in which each entry was last reported, so that no entry is reported twice.
+	private int query;
+	private int size;
+
+	private final static byte FINE = 1, COARSE = 2, LARGE = 3;
+
+	/**
+	 * Create an index for a board of the given size, using square cells with sides of length cellSize.
+	 */
+	public SpatialIndex(double width, double height, double cellSize) {
+		fine = new Grid(width, height, cellSize);
+		coarse = new Grid(width, height, cellSize * COARSE_FACTOR);
+	}
+
+	/**
+	 * Add an entry with the given id and bounding box.  If the id is already in the index, its box is replaced.
+	 * @throws IllegalArgumentException if id is negative.
+	 */
+	public void insert(int id, double x1, double y1, double x2, double y2) {
+		if (id < 0)
+			throw new IllegalArgumentException("Negative id: " + id);
+		if (id < level.length && level[id] != 0)
+			remove(id);
+		ensureCapacity(id + 1);
+		float l = left[id] = (float)Math.min(x1, x2);
+		float t = top[id] = (float)Math.min(y1, y2);
+		float r = right[id] = (float)Math.max(x1, x2);
+		float b = bottom[id] = (float)Math.max(y1, y2);
+		size++;
+		if (fine.fits(l, t, r, b)) {
+			level[id] = FINE;
+			fine.add(id, l, t, r, b);
+		}
+		else if (coarse.fits(l, t, r, b)) {
+			level[id] = COARSE;
+			coarse.add(id, l, t, r, b);
+		}
+		else {
+			level[id] = LARGE;
+			if (largeCount == large.length)
+				large = Arrays.copyOf(large, 2 * large.length);
+			large[largeCount++] = id;
+		}
+	}
+
+	/**
+	 * Remove an entry.
+	 * @return false if there was no entry with that id.
+	 */
+	public boolean remove(int id) {
+		if (id < 0 || id >= level.length || level[id] == 0)
+			return false;
+		if (level[id] == FINE)
+			fine.remove(id, left[id], top[id], right[id], bottom[id]);
+		else if (level[id] == COARSE)
+			coarse.remove(id, left[id], top[id], right[id], bottom[id]);
+		else
+			largeCount = removeFrom(large, largeCount, id);
+		level[id] = 0;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Find the entries whose boxes contain the point (x,y), including their edges.
+	 * @return the number of entries found.
+	 */
+	public int queryPoint(double x, double y, IdVisitor visitor) {
+		return queryRange(x, y, x, y, visitor);
+	}
+
+	/**
+	 * Find the entries whose boxes intersect the rectangle with corners (x1,y1) and (x2,y2).
+	 * Each entry is reported once, in no particular order.
+	 * @return the number of entries found.
+	 */
+	public int queryRange(double x1, double y1, double x2, double y2, IdVisitor visitor) {
+		double l = Math.min(x1, x2), t = Math.min(y1, y2), r = Math.max(x1, x2), b = Math.max(y1, y2);
+		if (++query == 0) {  // The counter wrapped around, so old marks could be mistaken for this query.
+			Arrays.fill(seen, 0);
+			query = 1;
+		}
+		int found = 0;
+		for (int i = 0; i < largeCount; i++)
+			found += visit(large[i], l, t, r, b, visitor);
+		found += query(coarse, l, t, r, b, visitor);
+		found += query(fine, l, t, r, b, visitor);
+		return found;
+	}
+
+	/**
+	 * Returns the number of entries in the index.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		fine.clear();
+		coarse.clear();
+		Arrays.fill(level, (byte)0);
+		largeCount = 0;
+		size = 0;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private int visit(int id, double l, double t, double r, double b, IdVisitor visitor) {
+		if (seen[id] == query || left[id] > r || right[id] < l || top[id] > b || bottom[id] < t)
+			return 0;
+		seen[id] = query;
+		visitor.accept(id);
+		return 1;
+	}
+
+	private int query(Grid grid, double l, double t, double r, double b, IdVisitor visitor) {
+		int found = 0;
+		int c1 = grid.column(l), c2 = grid.column(r);
+		for (int row = grid.row(t); row <= grid.row(b); row++) {
+			for (int c = c1; c <= c2; c++) {
+				int cell = row * grid.columns + c;
+				int[] list = grid.cells[cell];
+				int count = grid.cellCounts[cell];
+				for (int i = 0; i < count; i++)
+					found += visit(list[i], l, t, r, b, visitor);
+			}
+		}
+		return found;
+	}
+
+	private static int removeFrom(int[] list, int count, int id) {
+		for (int i = 0; i < count; i++) {
+			if (list[i] == id) {
+				list[i] = list[count - 1];
+				return count - 1;
+			}
+		}
+		return count;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= level.length)
+			return;
+		int newLength = Math.max(capacity, level.length + (level.length >> 1));
+		left = Arrays.copyOf(left, newLength);
+		top = Arrays.copyOf(top, newLength);
+		right = Arrays.copyOf(right, newLength);
+		bottom = Arrays.copyOf(bottom, newLength);
+		level = Arrays.copyOf(level, newLength);
+		seen = Arrays.copyOf(seen, newLength);
+	}
+
+}
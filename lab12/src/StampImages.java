@@ -0,0 +1,172 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Holds the decoded images of the stamps in StampRegistry, so that each image file is
+ * decoded only once.  Images are looked up by stamp ID.  Along with the full-size
+ * image, reduced copies at 1/2, 1/4, ... of the size can be asked for, for drawing a
+ * stamp in a view that is zoomed out; a reduced copy is made from the next larger one
+ * by averaging blocks of 2 by 2 pixels, the first time it is needed, and then kept.
+ * <p>The images of the built-in stamps are kept for as long as this object exists.
+ * At most maxCustom custom stamps have their images in memory at a time; when more
+ * are used, the least recently used one is dropped, and it is loaded again from its
+ * source if it is needed later.  This class must only be used on the JavaFX
+ * application thread.
+ */
+public class StampImages {
+
+	public final static int MAX_LEVEL = 4;  // Smallest reduced copy is 1/16 of the full size, the smallest zoom of a TiledSurface.
+
+	private final Image[][] builtIn = new Image[StampRegistry.BUILT_IN_COUNT][];  // Full-size image and reduced copies, for each built-in stamp.
+	private final LinkedHashMap<Integer,Image[]> custom;  // Images of recently used custom stamps, by ID, in order of use.
+
+	private long loads;
+	private long customEvictions;
+
+	/**
+	 * Create a cache that keeps the images of up to maxCustom custom stamps in memory.
+	 */
+	public StampImages(int maxCustom) {
+		custom = new LinkedHashMap<Integer,Image[]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer,Image[]> eldest) {
+				if (size() <= maxCustom)
+					return false;
+				customEvictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the full-size image of a stamp, or null if there is no stamp with the
+	 * given ID or its image could not be loaded.
+	 */
+	public Image image(int id) {
+		Image[] levels = levels(id);
+		return levels == null ? null : levels[0];
+	}
+
+	/**
+	 * Returns the image of a stamp for drawing it at a given scale.  This is the smallest
+	 * of the full-size image and its reduced copies that is at least as big as the stamp
+	 * will appear, so that it can be drawn by scaling it down by at most a factor of 2.
+	 */
+	public Image image(int id, double scale) {
+		Image[] levels = levels(id);
+		if (levels == null)
+			return null;
+		int level = 0;
+		while (level < MAX_LEVEL && scale <= 1.0 / (2 << level))
+			level++;
+		if (levels[level] == null) {
+			for (int i = 1; i <= level; i++) {
+				if (levels[i] == null)
+					levels[i] = halve(levels[i-1]);
+			}
+		}
+		return levels[level];
+	}
+
+	/**
+	 * Returns the image of a stamp given its name, or null if there is no such stamp.
+	 */
+	public Image image(String name) {
+		return image(StampRegistry.id(name));
+	}
+
+	/**
+	 * Returns the number of times that an image file has been decoded.
+	 */
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Returns the number of times that the image of a custom stamp has been dropped to make room for another one.
+	 */
+	public long getCustomEvictions() {
+		return customEvictions;
+	}
+
+	public int getCustomResident() {
+		return custom.size();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private Image[] levels(int id) {
+		if (id < 0)
+			return null;
+		if (id < builtIn.length) {
+			if (builtIn[id] == null)
+				builtIn[id] = load(id);
+			return builtIn[id];
+		}
+		Image[] levels = custom.get(id);
+		if (levels == null) {
+			levels = load(id);
+			if (levels != null)
+				custom.put(id, levels);
+		}
+		return levels;
+	}
+
+	private Image[] load(int id) {
+		String source = StampRegistry.source(id);
+		if (source == null)
+			return null;
+		Image image = new Image(source);
+		loads++;
+		if (image.isError())
+			return null;
+		Image[] levels = new Image[MAX_LEVEL + 1];
+		levels[0] = image;
+		return levels;
+	}
+
+	/**
+	 * Returns a copy of an image with half the width and height.  Each pixel is the average
+	 * of a 2-by-2 block, with the colors weighted by alpha so that transparent pixels do
+	 * not darken the edges of the stamp.
+	 */
+	private static Image halve(Image image) {
+		int width = (int)image.getWidth();
+		int height = (int)image.getHeight();
+		int newWidth = Math.max(1, width / 2);
+		int newHeight = Math.max(1, height / 2);
+		int[] pixels = new int[width * height];
+		PixelReader reader = image.getPixelReader();
+		if (reader == null)
+			return image;
+		reader.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+		int[] reduced = new int[newWidth * newHeight];
+		for (int y = 0; y < newHeight; y++) {
+			for (int x = 0; x < newWidth; x++) {
+				int a = 0, r = 0, g = 0, b = 0, n = 0;
+				for (int dy = 0; dy < 2; dy++) {
+					for (int dx = 0; dx < 2; dx++) {
+						int px = Math.min(width - 1, 2*x + dx);
+						int py = Math.min(height - 1, 2*y + dy);
+						int argb = pixels[py * width + px];
+						int alpha = argb >>> 24;
+						a += alpha;
+						r += ((argb >> 16) & 0xFF) * alpha;
+						g += ((argb >> 8) & 0xFF) * alpha;
+						b += (argb & 0xFF) * alpha;
+						n++;
+					}
+				}
+				reduced[y * newWidth + x] = a == 0 ? 0 : ((a / n) << 24) | ((r / a) << 16) | ((g / a) << 8) | (b / a);
+			}
+		}
+		WritableImage result = new WritableImage(newWidth, newHeight);
+		result.getPixelWriter().setPixels(0, 0, newWidth, newHeight, PixelFormat.getIntArgbInstance(), reduced, 0, newWidth);
+		return result;
+	}
+
+}
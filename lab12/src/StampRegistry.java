@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every stamp a small integer ID, so that stamps can be identified without
+ * comparing or hashing their names.  The built-in stamps, which are the images in
+ * the "stamps" folder, have the fixed IDs 0 to BUILT_IN_COUNT - 1.  Those IDs are the
+ * same in every copy of NetDraw, so they are used on the wire in binary stamp frames
+ * (see BinaryCodec).  Custom stamps that are added while the program runs get IDs
+ * starting at BUILT_IN_COUNT.  Those IDs are only meaningful in the program that
+ * assigned them, so custom stamps are always sent by name.
+ * <p>The name Strings returned by name() are shared, and commands that are decoded
+ * from the network use them, so the usual lookup from a command's name to its ID is
+ * a comparison of references with the few built-in names.  This class does not
+ * depend on JavaFX; the images themselves are kept by StampImages.
+ */
+public class StampRegistry {
+
+	private final static String[] BUILT_IN = {  // Resource file names of the built-in stamps, in the folder "stamps", in ID order.
+			"bell.png", "bomb.png", "camera.png", "check.png", "flower.png",
+			"smiley.png", "star.png", "tux.png", "TV.png", "x.png"
+		};
+
+	public final static int BUILT_IN_COUNT = BUILT_IN.length;
+
+	private final static List<String> customNames = new ArrayList<>();    // Name of custom stamp BUILT_IN_COUNT + i.
+	private final static List<String> customSources = new ArrayList<>();  // URL of the image for custom stamp BUILT_IN_COUNT + i.
+	private final static Map<String,Integer> customIds = new HashMap<>();
+
+	/**
+	 * Returns the file names of the built-in stamps, in order of their IDs.
+	 */
+	public static String[] builtInNames() {
+		return BUILT_IN.clone();
+	}
+
+	/**
+	 * Returns the ID of a built-in stamp, or -1 if name is not the name of a built-in stamp.
+	 */
+	public static int builtInId(String name) {
+		for (int i = 0; i < BUILT_IN.length; i++) {
+			if (BUILT_IN[i] == name)
+				return i;
+		}
+		if (name == null)
+			return -1;
+		for (int i = 0; i < BUILT_IN.length; i++) {
+			if (BUILT_IN[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the ID of a stamp, built-in or custom, or -1 if no stamp has that name.
+	 */
+	public static int id(String name) {
+		int id = builtInId(name);
+		if (id >= 0 || name == null)
+			return id;
+		synchronized (customIds) {
+			Integer customId = customIds.get(name);
+			return customId == null ? -1 : customId;
+		}
+	}
+
+	/**
+	 * Returns the name of the stamp with a given ID, or null if there is no such stamp.
+	 */
+	public static String name(int id) {
+		if (id >= 0 && id < BUILT_IN.length)
+			return BUILT_IN[id];
+		synchronized (customIds) {
+			int i = id - BUILT_IN.length;
+			return i >= 0 && i < customNames.size() ? customNames.get(i) : null;
+		}
+	}
+
+	/**
+	 * Returns the URL from which the image for a stamp can be loaded.  For a built-in
+	 * stamp, this is its resource name, "stamps/" followed by its file name.  Returns
+	 * null if there is no stamp with the ID.
+	 */
+	public static String source(int id) {
+		if (id >= 0 && id < BUILT_IN.length)
+			return "stamps/" + BUILT_IN[id];
+		synchronized (customIds) {
+			int i = id - BUILT_IN.length;
+			return i >= 0 && i < customSources.size() ? customSources.get(i) : null;
+		}
+	}
+
+	/**
+	 * Add a custom stamp, or change the image of an existing custom stamp with the same
+	 * name.  The name is used for the stamp in the protocol, so it cannot contain spaces.
+	 * @param name the name of the stamp.
+	 * @param source the URL of the image for the stamp.
+	 * @return the ID of the stamp.
+	 * @throws IllegalArgumentException if the name is empty, contains a space, or is the
+	 *     name of a built-in stamp.
+	 */
+	public static int register(String name, String source) {
+		if (name.isEmpty() || name.indexOf(' ') >= 0 || builtInId(name) >= 0)
+			throw new IllegalArgumentException("Not a valid name for a custom stamp: " + name);
+		synchronized (customIds) {
+			Integer id = customIds.get(name);
+			if (id != null) {
+				customSources.set(id - BUILT_IN.length, source);
+				return id;
+			}
+			customNames.add(name);
+			customSources.add(source);
+			customIds.put(name, BUILT_IN.length + customNames.size() - 1);
+			return BUILT_IN.length + customNames.size() - 1;
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Joins consecutive lines and polylines into longer polylines before they are drawn.
+ * A remote peer that draws freehand with short line commands, or a Pen tool that sends
+ * a long stroke as several polylines, produces a series of strokes with the same color
+ * and width, each starting where the previous one ended.  Drawn one by one, each of
+ * them sets the stroke color and line width of the graphics context and makes its
+ * own drawing call.  Passed through a StrokeCoalescer, the whole series is drawn as
+ * one polyline, with one call.
+ * <p>Commands are passed to draw() in order.  A stroke that continues the pending
+ * stroke, starting exactly where it ends, is added to it; anything else first causes
+ * the pending stroke to be drawn, so the order of drawing is not changed.  The owner
+ * must call flush() when it has no more commands for now, such as at the end of a
+ * frame, so that a stroke is never kept waiting.  The commands themselves are not
+ * changed, so they are still recorded one by one, and they are drawn one by one when
+ * the picture is drawn again: by undo, by a replay of the display list, and from the
+ * journal.  So a joined stroke must cover the same pixels as its parts would:
+ * <ul>
+ * <li>Lines are only joined with lines, and polylines with polylines.  Lines have
+ *     square ends, so the polyline made of lines has lineSegments set, and it is drawn
+ *     as its separate segments, each with square ends, in one path.  A polyline has
+ *     round joins and ends, so a polyline drawn in one piece covers what its parts do.
+ * <li>Only opaque strokes are joined.  Where two translucent strokes overlap, the color
+ *     is laid on twice, but the parts of one polyline are only drawn once.
+ * </ul>
+ * A line that nothing joins is drawn as the line that it is.
+ */
+public class StrokeCoalescer {
+
+	private final DrawCommand path = new DrawCommand();  // The pending stroke, a copy of a line until something joins it; its op is NONE when there is none.
+
+	private long commandsIn;
+	private long strokesIn;     // Lines and polylines passed to draw().
+	private long pathsDrawn;    // Lines and polylines that they were drawn as.
+
+	/**
+	 * Draw a command on a target, or add it to the pending polyline to be drawn later.
+	 */
+	public void draw(DrawCommand c, FrameRenderer.Target target, DamageTracker damage) {
+		commandsIn++;
+		boolean stroke = c.op == DrawCommand.LINE || c.op == DrawCommand.POLYLINE;
+		if (stroke) {
+			strokesIn++;
+			if (continues(c)) {
+				if (path.op == DrawCommand.LINE) {
+					double x1 = path.x1, y1 = path.y1, x2 = path.x2, y2 = path.y2;
+					path.setPolyline(path.color, path.lineWidth).addPoint(x1, y1).addPoint(x2, y2);
+					path.lineSegments = true;
+				}
+				append(c, 1);
+				return;
+			}
+		}
+		flush(target, damage);
+		if (stroke) {
+			path.copyFrom(c);
+		}
+		else {
+			target.draw(c, damage);
+		}
+	}
+
+	/**
+	 * Draw the pending stroke, if there is one.
+	 */
+	public void flush(FrameRenderer.Target target, DamageTracker damage) {
+		if (path.op == DrawCommand.NONE)
+			return;
+		target.draw(path, damage);
+		pathsDrawn++;
+		path.op = DrawCommand.NONE;
+	}
+
+	/**
+	 * Returns the number of commands passed to draw().
+	 */
+	public long getCommandsIn() {
+		return commandsIn;
+	}
+
+	/**
+	 * Returns the number of lines and polylines passed to draw().
+	 */
+	public long getStrokesIn() {
+		return strokesIn;
+	}
+
+	/**
+	 * Returns the number of lines and polylines that the strokes were drawn as.
+	 */
+	public long getPathsDrawn() {
+		return pathsDrawn;
+	}
+
+	public String getStats() {
+		return String.format("commands=%d strokes=%d paths=%d", commandsIn, strokesIn, pathsDrawn);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns true if c starts at the end of the pending stroke, is the same kind of
+	 * stroke, has the same opaque color and the same width, and can be added to it
+	 * without making it too long.
+	 */
+	private boolean continues(DrawCommand c) {
+		if (path.op == DrawCommand.NONE || c.color != path.color || (c.color >>> 24) != 0xFF || c.lineWidth != path.lineWidth
+				|| c.x1 != path.x2 || c.y1 != path.y2)
+			return false;
+		boolean lines = path.op == DrawCommand.LINE || path.lineSegments;
+		if (lines != (c.op == DrawCommand.LINE))
+			return false;
+		int points = path.op == DrawCommand.LINE ? 2 : path.pointCount;
+		int extra = c.op == DrawCommand.LINE ? 1 : c.pointCount - 1;
+		return points + extra <= DrawCommand.MAX_POINTS;
+	}
+
+	/**
+	 * Add the points of a line or polyline to the pending polyline, starting from point number first.
+	 */
+	private void append(DrawCommand c, int first) {
+		if (c.op == DrawCommand.LINE) {
+			path.addPoint(c.x2, c.y2);
+		}
+		else {
+			for (int i = first; i < c.pointCount; i++)
+				path.addPoint(c.points[2 * i], c.points[2 * i + 1]);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+
+/**
+ * Reduces the number of points in a freehand stroke with the Ramer-Douglas-Peucker
+ * algorithm.  The first and last points are always kept.  Between two kept points,
+ * the point that is farthest from the segment joining them is kept if it is more than
+ * the tolerance away from it, and the two halves are then treated the same way;
+ * otherwise all of the points in between are dropped.  The result never strays
+ * from the original stroke by more than the tolerance.
+ * <p>A stroke drawn with the mouse has a point every few pixels, and most of them lie
+ * almost on a straight line with their neighbors, so a tolerance below one pixel
+ * typically removes most of the points without any visible change.  The algorithm
+ * uses an explicit stack instead of recursion, so a long stroke cannot overflow the
+ * call stack.
+ */
+public class StrokeSimplifier {
+
+	/**
+	 * Simplify a stroke.
+	 * @param points the points of the stroke, as x1, y1, x2, y2, ...
+	 * @param count the number of points.
+	 * @param tolerance how far, in pixels, the simplified stroke may be from the original.
+	 * @param out receives the kept points, in the same form as points.  It must have room
+	 *     for 2*count values.  It can be the same array as points.
+	 * @return the number of points that were kept.
+	 */
+	public static int simplify(double[] points, int count, double tolerance, double[] out) {
+		if (count <= 2) {
+			System.arraycopy(points, 0, out, 0, 2 * count);
+			return count;
+		}
+		boolean[] keep = new boolean[count];
+		keep[0] = keep[count - 1] = true;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = count - 1;
+		double limit = tolerance * tolerance;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double farthest = -1;
+			int index = -1;
+			for (int i = first + 1; i < last; i++) {
+				double d = distanceSquared(points, i, first, last);
+				if (d > farthest) {
+					farthest = d;
+					index = i;
+				}
+			}
+			if (index < 0 || farthest <= limit)
+				continue;
+			keep[index] = true;
+			if (top + 4 > stack.length)
+				stack = Arrays.copyOf(stack, 2 * stack.length);
+			stack[top++] = first;
+			stack[top++] = index;
+			stack[top++] = index;
+			stack[top++] = last;
+		}
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (keep[i]) {
+				out[2 * kept] = points[2 * i];
+				out[2 * kept + 1] = points[2 * i + 1];
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Returns the square of the distance from point i to the segment from point a to point b.
+	 */
+	private static double distanceSquared(double[] points, int i, int a, int b) {
+		double x = points[2 * i], y = points[2 * i + 1];
+		double ax = points[2 * a], ay = points[2 * a + 1];
+		double dx = points[2 * b] - ax, dy = points[2 * b + 1] - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = lengthSquared == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / lengthSquared;
+		t = Math.max(0, Math.min(1, t));
+		double px = ax + t * dx - x, py = ay + t * dy - y;
+		return px * px + py * py;
+	}
+
+}
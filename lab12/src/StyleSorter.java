@@ -0,0 +1,146 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Puts a batch of commands in an order that groups the commands with the same style,
+ * such as the same color and line width, without changing the picture that they draw.
+ * Drawing commands of one style one after another means that the graphics state only
+ * changes between groups, not between commands.
+ * <p>Two commands can be drawn in either order if they do not overlap, but if they do,
+ * the later one must still be drawn on top.  The sorter makes groups in the order they
+ * are needed.  Each command goes into the latest group of its style, unless some
+ * command before it that it overlaps is in a later group, in which case it starts a
+ * new group at the end.  Where the commands fall is kept on a grid of cells of
+ * CELL_SIZE pixels: for each cell, the latest group that draws in it.  So a command
+ * counts as overlapping another if they share a cell, which is cautious, and placing a
+ * command takes time in proportion to the number of cells it covers, not to the
+ * number of commands in the batch.
+ * <p>The sorter only sees bounds and styles, as given to add(), so it does not depend
+ * on JavaFX; BatchRenderer uses it for a GraphicsContext.  The style is any number
+ * that is the same for commands that need the same graphics state.  Commands that
+ * have different styles but the same number are grouped as if their styles were the
+ * same, which costs some state changes but does not change the picture.
+ */
+public class StyleSorter {
+
+	public final static int CELL_SIZE = 64;
+
+	private final int columns, rows;
+	private final int[] cellGroup;    // For each cell, the latest group that draws in it, or -1.
+	private final HashMap<Long,Integer> latestGroup = new HashMap<>();  // For each style, its latest group.
+	private int[] groupFirst = new int[64], groupLast = new int[64];  // First and last command of each group.
+	private int[] next = new int[256];  // For each command, the next command in its group, or -1.
+	private int[] order = new int[256];
+	private int count, groups;
+
+	private long commandsSorted, groupsMade;
+
+	/**
+	 * Create a sorter for commands that are drawn on a picture of the given size.  Commands can go outside the picture.
+	 */
+	public StyleSorter(int width, int height) {
+		columns = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+		rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+		cellGroup = new int[columns * rows];
+		Arrays.fill(cellGroup, -1);
+	}
+
+	/**
+	 * Add the next command of the batch, given by the box that it draws in and its style.
+	 * An empty box, with right < left or bottom < top, is taken to be the whole picture.
+	 */
+	public void add(double left, double top, double right, double bottom, long style) {
+		int first = 0, last = columns - 1, firstRow = 0, lastRow = rows - 1;
+		if (right >= left && bottom >= top) {
+			first = column(left);
+			last = column(right);
+			firstRow = row(top);
+			lastRow = row(bottom);
+		}
+		int after = -1;  // The latest group that draws where this command does.
+		for (int r = firstRow; r <= lastRow; r++)
+			for (int c = first; c <= last; c++)
+				after = Math.max(after, cellGroup[r * columns + c]);
+		if (count == next.length) {
+			next = Arrays.copyOf(next, 2 * count);
+			order = new int[2 * count];
+		}
+		next[count] = -1;
+		Integer latest = latestGroup.get(style);
+		int group;
+		if (latest != null && latest >= after) {
+			group = latest;
+			next[groupLast[group]] = count;
+			groupLast[group] = count;
+		}
+		else {
+			group = groups++;
+			if (group == groupFirst.length) {
+				groupFirst = Arrays.copyOf(groupFirst, 2 * group);
+				groupLast = Arrays.copyOf(groupLast, 2 * group);
+			}
+			groupFirst[group] = groupLast[group] = count;
+			latestGroup.put(style, group);
+		}
+		for (int r = firstRow; r <= lastRow; r++)
+			for (int c = first; c <= last; c++)
+				if (cellGroup[r * columns + c] < group)
+					cellGroup[r * columns + c] = group;
+		count++;
+	}
+
+	/**
+	 * Returns the number of commands in the batch.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of groups that the commands of the batch are in, which is the number of style changes needed to draw them.
+	 */
+	public int getGroupCount() {
+		return groups;
+	}
+
+	/**
+	 * Returns the positions in the batch of the commands, in the order to draw them.  The
+	 * first size() elements are used.  The array belongs to the sorter, and is only valid
+	 * until the batch is changed.
+	 */
+	public int[] order() {
+		int n = 0;
+		for (int g = 0; g < groups; g++)
+			for (int i = groupFirst[g]; i >= 0; i = next[i])
+				order[n++] = i;
+		return order;
+	}
+
+	/**
+	 * Start a new batch.
+	 */
+	public void clear() {
+		commandsSorted += count;
+		groupsMade += groups;
+		count = 0;
+		groups = 0;
+		latestGroup.clear();
+		Arrays.fill(cellGroup, -1);
+	}
+
+	public String getStats() {
+		return String.format("commands=%d groups=%d perGroup=%.1f", commandsSorted, groupsMade,
+				groupsMade == 0 ? 0 : (double)commandsSorted / groupsMade);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private int column(double x) {
+		return Math.max(0, Math.min(columns - 1, (int)Math.floor(x / CELL_SIZE)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int)Math.floor(y / CELL_SIZE)));
+	}
+
+}
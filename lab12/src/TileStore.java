@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed storage for the tiles of a large board that are not currently held in
+ * memory as images.  A tile is a square of ARGB pixels, identified by its column and
+ * row in the board, and is kept as deflated bytes.  Since most of a drawing is usually
+ * blank background, a tile typically shrinks to a small fraction of its 4 bytes per
+ * pixel.  TiledSurface puts its least recently used tiles here when it has more tiles
+ * in memory than its limit allows, and takes them back when they are needed again.
+ * <p>A TileStore is not thread-safe.
+ */
+public class TileStore {
+
+	private final Map<Long,byte[]> tiles = new HashMap<>();
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private byte[] buffer = new byte[64 * 1024];  // Working space for compression.
+	private long compressedBytes;                 // Total size of the stored tiles.
+
+	/**
+	 * Store the pixels of a tile, replacing any earlier copy.
+	 */
+	public void put(int column, int row, int[] pixels) {
+		ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+		bytes.asIntBuffer().put(pixels);
+		deflater.reset();
+		deflater.setInput(bytes.array());
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		byte[] old = tiles.put(key(column, row), Arrays.copyOf(buffer, length));
+		if (old != null)
+			compressedBytes -= old.length;
+		compressedBytes += length;
+	}
+
+	/**
+	 * Remove a tile from the store and decompress its pixels into an array.
+	 * @return the array, or null if the tile is not in the store.
+	 * @throws IllegalStateException if the stored data is damaged, which should not happen.
+	 */
+	public int[] take(int column, int row, int[] pixels) {
+		byte[] data = tiles.remove(key(column, row));
+		if (data == null)
+			return null;
+		compressedBytes -= data.length;
+		byte[] bytes = new byte[4 * pixels.length];
+		inflater.reset();
+		inflater.setInput(data);
+		try {
+			int length = 0;
+			while (length < bytes.length && !inflater.finished())
+				length += inflater.inflate(bytes, length, bytes.length - length);
+		}
+		catch (DataFormatException e) {
+			throw new IllegalStateException("Damaged tile data", e);
+		}
+		ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+		return pixels;
+	}
+
+	public boolean contains(int column, int row) {
+		return tiles.containsKey(key(column, row));
+	}
+
+	/**
+	 * Returns the number of tiles in the store.
+	 */
+	public int size() {
+		return tiles.size();
+	}
+
+	/**
+	 * Returns the total number of bytes used by the compressed tiles.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	public void clear() {
+		tiles.clear();
+		compressedBytes = 0;
+	}
+
+	private static long key(int column, int row) {
+		return ((long)column << 32) | (row & 0xFFFFFFFFL);
+	}
+
+}
@@ -0,0 +1,259 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.Group;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Affine;
+
+/**
+ * A drawing surface for boards that are much bigger than the window, made of square
+ * tiles, each of which is a separate Canvas of TILE_SIZE by TILE_SIZE pixels.  A tile
+ * is only created when something is first drawn on it, so blank parts of the board
+ * cost nothing.  A command is drawn only on the tiles that its bounds intersect, with
+ * the graphics context translated so that board coordinates can be used.
+ * <p>The surface shows a window-sized view of the board, which can be panned and
+ * zoomed.  Board coordinates are converted to view coordinates by scaling by the zoom
+ * factor and then adding an offset; toBoardX() and toBoardY() do the reverse, for
+ * mouse positions.
+ * <p>The tiles held in memory are kept in least-recently-used order.  When there are
+ * more of them than the memory limit allows, the least recently used tiles that are
+ * not in view are copied to a TileStore, in compressed form, and their canvases are
+ * discarded.  A stored tile is brought back when it comes into view or is drawn on.
+ * (If the view itself shows more tiles than the limit, the limit is exceeded for as
+ * long as that is true.)
+ */
+public class TiledSurface extends Pane {
+
+	public final static int TILE_SIZE = 512;
+	public final static double MIN_ZOOM = 1.0 / 16, MAX_ZOOM = 8;
+
+	private final int boardWidth, boardHeight;
+	private final int columns, rows;
+	private final int maxResidentTiles;
+	private final Group world = new Group();  // Holds the tile canvases, at their positions on the board.
+	private final Affine view = new Affine();
+	private final LinkedHashMap<Long,Canvas> resident = new LinkedHashMap<>(64, 0.75f, true);  // Tiles in memory, least recently used first.
+	private final TileStore store = new TileStore();
+	private final DamageTracker bounds = new DamageTracker();
+	private final int[] pixels = new int[TILE_SIZE * TILE_SIZE];  // Working space for moving tiles to and from the store.
+
+	private double zoom = 1;
+	private double offsetX, offsetY;
+	private int firstVisibleColumn, lastVisibleColumn, firstVisibleRow, lastVisibleRow;
+
+	private long tilesCreated;
+	private long evictions;
+	private long restores;
+
+	/**
+	 * Create a surface.
+	 * @param viewWidth the width of the view, in pixels.
+	 * @param viewHeight the height of the view, in pixels.
+	 * @param boardWidth the width of the whole board.
+	 * @param boardHeight the height of the whole board.
+	 * @param maxResidentBytes the limit on the memory used by tiles that are held as canvases.
+	 */
+	public TiledSurface(int viewWidth, int viewHeight, int boardWidth, int boardHeight, long maxResidentBytes) {
+		this.boardWidth = boardWidth;
+		this.boardHeight = boardHeight;
+		columns = (boardWidth + TILE_SIZE - 1) / TILE_SIZE;
+		rows = (boardHeight + TILE_SIZE - 1) / TILE_SIZE;
+		maxResidentTiles = (int)Math.max(1, maxResidentBytes / (4L * TILE_SIZE * TILE_SIZE));
+		setPrefSize(viewWidth, viewHeight);
+		setMinSize(viewWidth, viewHeight);
+		setMaxSize(viewWidth, viewHeight);
+		setClip(new Rectangle(viewWidth, viewHeight));
+		setStyle("-fx-background-color: gray");
+		Rectangle paper = new Rectangle(boardWidth, boardHeight, Color.WHITE);  // The background of the board, where there are no tiles.
+		world.getChildren().add(paper);
+		world.getTransforms().add(view);
+		world.setManaged(false);
+		getChildren().add(world);
+		updateView();
+	}
+
+	/**
+	 * Draw a command on the tiles that it covers, creating or restoring tiles as needed.
+	 * @param damage if not null, the area drawn, in board coordinates, is added to this tracker.
+	 */
+	public void draw(DrawCommand c, DamageTracker damage) {
+		bounds.reset();
+		NetDraw.addBounds(c, bounds);
+		bounds.forEachRegion((x, y, width, height) -> {
+			int firstColumn = Math.max(0, (int)Math.floor(x / TILE_SIZE));
+			int lastColumn = Math.min(columns - 1, (int)Math.floor((x + width) / TILE_SIZE));
+			int firstRow = Math.max(0, (int)Math.floor(y / TILE_SIZE));
+			int lastRow = Math.min(rows - 1, (int)Math.floor((y + height) / TILE_SIZE));
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					GraphicsContext g = tile(column, row).getGraphicsContext2D();
+					g.save();
+					g.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+					NetDraw.applyCommand(c, g);
+					g.restore();
+				}
+			}
+			if (damage != null)
+				damage.add(x, y, x + width, y + height, 0);
+		});
+		evictTiles();
+	}
+
+	/**
+	 * Discard all tiles, leaving a blank board.
+	 */
+	public void clear() {
+		for (Canvas canvas : resident.values())
+			world.getChildren().remove(canvas);
+		resident.clear();
+		store.clear();
+	}
+
+	/**
+	 * Move the view by a given number of pixels in the view.
+	 */
+	public void pan(double dx, double dy) {
+		offsetX += dx;
+		offsetY += dy;
+		updateView();
+	}
+
+	/**
+	 * Multiply the zoom factor by factor, keeping the board point under the view point (x,y) in place.
+	 */
+	public void zoom(double factor, double x, double y) {
+		double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+		double boardX = toBoardX(x);
+		double boardY = toBoardY(y);
+		zoom = newZoom;
+		offsetX = x - boardX * zoom;
+		offsetY = y - boardY * zoom;
+		updateView();
+	}
+
+	public double toBoardX(double viewX) {
+		return (viewX - offsetX) / zoom;
+	}
+
+	public double toBoardY(double viewY) {
+		return (viewY - offsetY) / zoom;
+	}
+
+	/**
+	 * Returns the transform from board coordinates to view coordinates.  It is a copy,
+	 * for use in a graphics context that draws in view coordinates, such as the overlay.
+	 */
+	public Affine getViewTransform() {
+		return new Affine(view);
+	}
+
+	public double getZoom() {
+		return zoom;
+	}
+
+	public int getBoardWidth() {
+		return boardWidth;
+	}
+
+	public int getBoardHeight() {
+		return boardHeight;
+	}
+
+	/**
+	 * Returns the number of tiles held in memory as canvases.
+	 */
+	public int getResidentTiles() {
+		return resident.size();
+	}
+
+	/**
+	 * Returns the number of tiles that are in compressed storage.
+	 */
+	public int getStoredTiles() {
+		return store.size();
+	}
+
+	public String getStats() {
+		return String.format("zoom=%.3f resident=%d (max %d) stored=%d (%d KB) created=%d evictions=%d restores=%d",
+				zoom, resident.size(), maxResidentTiles, store.size(), store.getCompressedBytes() / 1024,
+				tilesCreated, evictions, restores);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Apply the current zoom and offset, and make sure the tiles in view are in memory.
+	 */
+	private void updateView() {
+		view.setToTransform(zoom, 0, offsetX, 0, zoom, offsetY);
+		firstVisibleColumn = Math.max(0, (int)Math.floor(toBoardX(0) / TILE_SIZE));
+		lastVisibleColumn = Math.min(columns - 1, (int)Math.floor(toBoardX(getPrefWidth()) / TILE_SIZE));
+		firstVisibleRow = Math.max(0, (int)Math.floor(toBoardY(0) / TILE_SIZE));
+		lastVisibleRow = Math.min(rows - 1, (int)Math.floor(toBoardY(getPrefHeight()) / TILE_SIZE));
+		for (int row = firstVisibleRow; row <= lastVisibleRow; row++) {
+			for (int column = firstVisibleColumn; column <= lastVisibleColumn; column++) {
+				if (store.contains(column, row))
+					tile(column, row);
+			}
+		}
+		evictTiles();
+	}
+
+	/**
+	 * Returns the canvas for a tile, restoring it from the store or creating it if necessary.
+	 */
+	private Canvas tile(int column, int row) {
+		long key = key(column, row);
+		Canvas canvas = resident.get(key);
+		if (canvas != null)
+			return canvas;
+		canvas = new Canvas(TILE_SIZE, TILE_SIZE);
+		canvas.relocate(column * TILE_SIZE, row * TILE_SIZE);
+		GraphicsContext g = canvas.getGraphicsContext2D();
+		if (store.take(column, row, pixels) != null) {
+			g.getPixelWriter().setPixels(0, 0, TILE_SIZE, TILE_SIZE, PixelFormat.getIntArgbInstance(), pixels, 0, TILE_SIZE);
+			restores++;
+		}
+		else {
+			g.setFill(Color.WHITE);
+			g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+			tilesCreated++;
+		}
+		resident.put(key, canvas);
+		world.getChildren().add(canvas);
+		return canvas;
+	}
+
+	/**
+	 * Move least recently used tiles that are out of view to the store, until the number
+	 * of tiles in memory is within the limit or only tiles in view are left.
+	 */
+	private void evictTiles() {
+		Iterator<Map.Entry<Long,Canvas>> entries = resident.entrySet().iterator();
+		while (resident.size() > maxResidentTiles && entries.hasNext()) {
+			Map.Entry<Long,Canvas> entry = entries.next();
+			int column = (int)(entry.getKey() >> 32);
+			int row = (int)(long)entry.getKey();
+			if (column >= firstVisibleColumn && column <= lastVisibleColumn && row >= firstVisibleRow && row <= lastVisibleRow)
+				continue;
+			Canvas canvas = entry.getValue();
+			WritableImage image = canvas.snapshot(null, null);
+			image.getPixelReader().getPixels(0, 0, TILE_SIZE, TILE_SIZE, PixelFormat.getIntArgbInstance(), pixels, 0, TILE_SIZE);
+			store.put(column, row, pixels);
+			world.getChildren().remove(canvas);
+			entries.remove();
+			evictions++;
+		}
+	}
+
+	private static long key(int column, int row) {
+		return ((long)column << 32) | (row & 0xFFFFFFFFL);
+	}
+
+}
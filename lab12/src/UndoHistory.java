@@ -0,0 +1,263 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Undo and redo for the commands that the user has drawn, over the commands in a
+ * DisplayList.  The board is shared, so undo takes back the user's own latest command,
+ * not the latest command of anyone: the command stays in the display list, but is
+ * marked as undone, and the picture is drawn again without it.  Redo draws it again.
+ * Undo only changes this user's picture; the other users still see the command.
+ * <p>Drawing the whole display list again would take longer the longer the session
+ * has gone on, so the picture is saved as a checkpoint about every INTERVAL commands.
+ * Taking a snapshot of the picture takes a while, so added() only notes that one is
+ * due, and the owner saves it with saveCheckpointIfDue() when it has time: NetDraw
+ * does it at the end of a frame, after the commands of the frame have been drawn, so
+ * that it does not eat into the frame's budget for drawing.  To
+ * undo or redo the command at position k in the list, the latest checkpoint at or
+ * before k is put back on the board, and only the commands from there to the end of
+ * the list are drawn, skipping those that are undone.  The time for that depends on
+ * how far back the command is, not on how long the list is.  Checkpoints after k show
+ * the command the way it was before, so they are dropped.
+ * <p>A checkpoint is a whole picture, which is 2.4 MB for NetDraw's board, so only
+ * maxCheckpoints of them are kept, and when there would be more, the one that was used
+ * least recently is dropped; a checkpoint that is being undone to is more likely to be
+ * needed again than an old one.  If the checkpoint needed is gone, an earlier one is
+ * used, or at worst the picture from when the history was reset, which is always kept.
+ * Commands before that can't be undone.
+ * <p>Some things that the user draws are sent as several commands, such as a Pen stroke
+ * with more points than a polyline can hold.  A command can be added as joined to the
+ * user's previous one, and then undo and redo take back or draw again all the commands
+ * of the step together, with one redraw, even if commands from other users came
+ * between them.
+ * <p>How the picture is saved, put back and drawn is up to a Board, so this class does
+ * not depend on JavaFX: NetDraw saves its Canvas with snapshot() in a WritableImage,
+ * or the pixels of its RasterSurface, and UndoBench uses a SoftwareRasterizer.  An
+ * UndoHistory is not thread-safe; NetDraw only uses it on the JavaFX application thread.
+ * @param <S> the type of a saved picture.
+ */
+public class UndoHistory<S> {
+
+	/**
+	 * Saves, restores and draws on the picture that the commands are drawn on.
+	 */
+	public interface Board<S> {
+		/**
+		 * Returns a copy of the picture as it is now, including everything that has been drawn.
+		 * @param reuse  A picture from an earlier call that is no longer needed, which can be
+		 *               overwritten and returned instead of making a new one; or null.
+		 */
+		S snapshot(S reuse);
+		/**
+		 * Replace the picture with one that was returned by snapshot().
+		 */
+		void restore(S snapshot);
+		/**
+		 * Draw a command on the picture.  The command object will be reused.
+		 */
+		void draw(DrawCommand c);
+	}
+
+	public final static int INTERVAL = 250;  // A checkpoint is saved after every this many commands.
+
+	private final DisplayList list;
+	private final Board<S> board;
+	private final int maxCheckpoints;
+	private final LinkedHashMap<Integer,S> checkpoints = new LinkedHashMap<>(16, 0.75f, true);  // By the size of the list when saved, least recently used first.
+	private final BitSet undone = new BitSet();  // Positions in the list of the commands that are undone.
+	private final BitSet joined = new BitSet();  // Positions of the user's commands that are in one step with the user's previous command.
+	private final DrawCommand command = new DrawCommand();  // Reused for the commands that are drawn again.
+	private S base;         // The picture when the history was reset.
+	private int baseSize;   // The size of the list when the history was reset.
+	private S spare;        // A dropped checkpoint, to be reused by the next snapshot.
+	private boolean checkpointDue;  // INTERVAL commands have been added since the last checkpoint.
+	private int[] undoStack = new int[64];  // Positions of the user's commands that can be undone, the latest last.
+	private int undoCount;
+	private int[] redoStack = new int[64];  // Positions of the undone commands that can be redone, the latest undone last.
+	private int redoCount;
+
+	private long undos, redos, commandsRedrawn, checkpointsSaved, checkpointsDropped;
+	private long lastRewindNanos;
+
+	/**
+	 * Create a history over the commands in a display list, which are drawn on a board.  Call reset() before using it.
+	 * @param maxCheckpoints  The greatest number of checkpoints to keep, not counting the picture saved by reset().
+	 */
+	public UndoHistory(DisplayList list, Board<S> board, int maxCheckpoints) {
+		this.list = list;
+		this.board = board;
+		this.maxCheckpoints = Math.max(1, maxCheckpoints);
+	}
+
+	/**
+	 * Forget everything, and start a new history from the picture as it is now.  Call it
+	 * when the board is cleared or loaded, after the display list has been changed.
+	 */
+	public void reset() {
+		checkpoints.clear();
+		undone.clear();
+		joined.clear();
+		undoCount = redoCount = 0;
+		checkpointDue = false;
+		base = board.snapshot(base);
+		baseSize = list.size();
+	}
+
+	/**
+	 * Call after a command has been added to the end of the display list and drawn on the
+	 * board, but not for a command that the list ignored.  If the command was drawn by this
+	 * user, it becomes the one that undo() takes back, and the commands that were undone
+	 * can no longer be redone.  This does not take a snapshot; see saveCheckpointIfDue().
+	 */
+	public void added(boolean local) {
+		added(local, false);
+	}
+
+	/**
+	 * Call after a command has been added, as for added(local).  If the command was drawn by
+	 * this user and joinPrevious is true, it is undone and redone in one step with the
+	 * user's previous command, as long as that one can still be undone.
+	 */
+	public void added(boolean local, boolean joinPrevious) {
+		int index = list.size() - 1;
+		if (local) {
+			if (undoCount == undoStack.length)
+				undoStack = Arrays.copyOf(undoStack, 2 * undoCount);
+			if (joinPrevious && undoCount > 0)
+				joined.set(index);
+			undoStack[undoCount++] = index;
+			redoCount = 0;
+		}
+		if ((list.size() - baseSize) % INTERVAL == 0)
+			checkpointDue = true;
+	}
+
+	/**
+	 * Save a checkpoint of the picture if INTERVAL commands have been added since the last
+	 * one.  Call it when every command that has been added is on the picture, at a time
+	 * when a snapshot does not hold anything up, such as after a frame has been drawn.
+	 * The checkpoint is for the commands added so far, however many more than INTERVAL
+	 * that is.
+	 */
+	public void saveCheckpointIfDue() {
+		if (checkpointDue)
+			save(list.size());
+	}
+
+	public boolean canUndo() {
+		return undoCount > 0;
+	}
+
+	public boolean canRedo() {
+		return redoCount > 0;
+	}
+
+	/**
+	 * Take back the user's latest step that has not been undone.  Returns false if there is none.
+	 */
+	public boolean undo() {
+		if (undoCount == 0)
+			return false;
+		int index;
+		do {
+			index = undoStack[--undoCount];
+			if (redoCount == redoStack.length)
+				redoStack = Arrays.copyOf(redoStack, 2 * redoCount);
+			redoStack[redoCount++] = index;
+			undone.set(index);
+		} while (joined.get(index));  // The first command of a step is never joined, and it comes off the stack last.
+		rewind(index);
+		undos++;
+		return true;
+	}
+
+	/**
+	 * Draw the step that was undone last again.  Returns false if there is none.
+	 */
+	public boolean redo() {
+		if (redoCount == 0)
+			return false;
+		int index = redoStack[--redoCount];  // The first command of the step, which is the earliest.
+		undoStack[undoCount++] = index;  // There is room, since the commands came off this stack.
+		undone.clear(index);
+		while (redoCount > 0 && joined.get(redoStack[redoCount - 1])) {
+			int next = redoStack[--redoCount];
+			undoStack[undoCount++] = next;
+			undone.clear(next);
+		}
+		rewind(index);
+		redos++;
+		return true;
+	}
+
+	/**
+	 * Returns true if the command at a position in the display list has been undone.
+	 */
+	public boolean isUndone(int index) {
+		return undone.get(index);
+	}
+
+	public int getCheckpointCount() {
+		return checkpoints.size();
+	}
+
+	/**
+	 * Returns the time taken by the last undo or redo, in nanoseconds.
+	 */
+	public long getLastRewindNanos() {
+		return lastRewindNanos;
+	}
+
+	public String getStats() {
+		return String.format("undos=%d redos=%d redrawn=%d checkpoints=%d/%d saved=%d dropped=%d lastRewind=%s",
+				undos, redos, commandsRedrawn, checkpoints.size(), maxCheckpoints, checkpointsSaved, checkpointsDropped,
+				LatencyHistogram.format(lastRewindNanos));
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Draw the picture again, after the command at a position in the list has been undone or redone.
+	 */
+	private void rewind(int index) {
+		long start = System.nanoTime();
+		int from = baseSize;
+		for (Iterator<Map.Entry<Integer,S>> entries = checkpoints.entrySet().iterator(); entries.hasNext(); ) {
+			Map.Entry<Integer,S> e = entries.next();
+			int size = e.getKey();
+			if (size > index) {
+				spare = e.getValue();
+				entries.remove();  // It shows the command as it was before.
+			}
+			else if (size > from)
+				from = size;
+		}
+		board.restore(from == baseSize ? base : checkpoints.get(from));  // get() makes it the most recently used.
+		int end = list.size();
+		for (int i = undone.nextClearBit(from); i < end; i = undone.nextClearBit(i + 1))
+			board.draw(list.get(i, command));
+		commandsRedrawn += end - from;
+		if (end - from >= INTERVAL)
+			save(end);  // So that the next undo does not have to draw all of that again.
+		lastRewindNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Save the picture as the checkpoint for a size of the list, dropping the least recently used checkpoint if there are too many.
+	 */
+	private void save(int size) {
+		if (checkpoints.size() >= maxCheckpoints) {
+			Iterator<S> eldest = checkpoints.values().iterator();
+			spare = eldest.next();
+			eldest.remove();
+			checkpointsDropped++;
+		}
+		checkpoints.put(size, board.snapshot(spare));
+		spare = null;
+		checkpointDue = false;
+		checkpointsSaved++;
+	}
+
+}